@@ -0,0 +1,51 @@
+package me.sk.ta.api.controllers;
+
+import me.sk.ta.repositories.DbBackup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("/backup")
+public class BackupController {
+    private static final Logger log = LoggerFactory.getLogger(BackupController.class);
+    @Autowired
+    private DbBackup backup;
+
+    @GetMapping
+    public ResponseEntity<List<DbBackup.Manifest>> GetAll() {
+        return ResponseEntity.status(HttpStatus.OK).body(backup.list());
+    }
+
+    @PostMapping
+    public ResponseEntity<DbBackup.Manifest> Post(@RequestParam(defaultValue = "false") boolean incremental) {
+        try {
+            return ResponseEntity.status(HttpStatus.CREATED).body(backup.backup(incremental));
+        } catch (Exception e) {
+            log.error("Error: {}", e);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+    }
+
+    // target names a directory under the restore folder of the backups, see DbBackup.restoreInto
+    @PostMapping("{id}/restore")
+    public ResponseEntity<String> Restore(@PathVariable String id, @RequestParam String target) {
+        if (backup.find(id).isEmpty()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        try {
+            backup.restoreInto(id, target);
+            return ResponseEntity.status(HttpStatus.OK).build();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());
+        } catch (Exception e) {
+            log.error("Error: {}", e);
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+    }
+}
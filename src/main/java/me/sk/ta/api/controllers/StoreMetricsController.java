@@ -0,0 +1,22 @@
+package me.sk.ta.api.controllers;
+
+import me.sk.ta.repositories.StoreMetrics;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("/metrics/stores")
+public class StoreMetricsController {
+
+    // the metrics of the open stores whose name starts with name, of all of them without it
+    @GetMapping
+    public ResponseEntity<List<StoreMetrics.Snapshot>> GetAll(@RequestParam(required = false) String name) {
+        var metrics = StoreMetrics.all().stream()
+                .filter(x -> name == null || x.name().startsWith(name))
+                .toList();
+        return ResponseEntity.status(HttpStatus.OK).body(metrics);
+    }
+}
@@ -3,7 +3,9 @@ package me.sk.ta.api.controllers;
 import me.sk.ta.api.interfaces.LedgerEntry;
 import me.sk.ta.api.interfaces.PortfolioEntry;
 import me.sk.ta.domain.*;
-import me.sk.ta.api.interfaces.TradeRepository;
+import me.sk.ta.api.interfaces.AsyncTradeRepository;
+import me.sk.ta.repositories.RepositoryExecutor;
+import me.sk.ta.repositories.TradeArchiveRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -11,14 +13,27 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.LocalDate;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @RestController
 @RequestMapping("/trade")
 public class TradeController {
     private static final Logger log = LoggerFactory.getLogger(TradeController.class);
+    // the store calls are made on the threads of the RepositoryExecutor, the request thread is released meanwhile
     @Autowired
-    private TradeRepository tradeRepo;
+    private AsyncTradeRepository tradeRepo;
+    @Autowired
+    private TradeArchiveRepository archiveRepo;
+    @Autowired
+    private RepositoryExecutor executor;
     @Autowired
     private TradingChargesCalculator chargesCalculator;
 
@@ -54,33 +69,24 @@ public class TradeController {
     }
 
     @GetMapping("{tradeId}")
-    public ResponseEntity<Trade> Get(@PathVariable int tradeId) {
-        var trade = tradeRepo.get(tradeId);
-        if (trade.isEmpty()) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
-        } else {
-            return ResponseEntity.status(HttpStatus.OK).body(trade.get());
-        }
+    public CompletableFuture<ResponseEntity<Trade>> Get(@PathVariable int tradeId) {
+        return withTrade(tradeRepo.get(tradeId), x -> x);
     }
 
     @GetMapping("find/open/{symbol}")
-    public ResponseEntity<Trade> GetOpenTradeBySymbol(@PathVariable String symbol) {
-        var trade = tradeRepo.getOpenTrade(symbol);
-        if (trade.isEmpty()) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
-        } else {
-            return ResponseEntity.status(HttpStatus.OK).body(trade.get());
-        }
+    public CompletableFuture<ResponseEntity<Trade>> GetOpenTradeBySymbol(@PathVariable String symbol) {
+        return withTrade(tradeRepo.getOpenTrade(symbol), x -> x);
     }
 
     @GetMapping("find/all")
-    public ResponseEntity<List<Trade>> GetAll() {
-        var list = tradeRepo.getOpenTrades();
-        if (list == null || list.isEmpty()) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
-        } else {
-            return ResponseEntity.status(HttpStatus.OK).body(list);
-        }
+    public CompletableFuture<ResponseEntity<List<Trade>>> GetAll() {
+        return busyOnRejection(tradeRepo.getOpenTrades().thenApply(list -> {
+            if (list == null || list.isEmpty()) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+            } else {
+                return ResponseEntity.status(HttpStatus.OK).body(list);
+            }
+        }));
     }
 
     @GetMapping("cost/{price}/{size}/{isIntraDay}")
@@ -93,73 +99,53 @@ public class TradeController {
     }
 
     @GetMapping("position/{tradeId}/{price}")
-    public ResponseEntity<Integer> CalculatePosition(@PathVariable("tradeId") int tradeId, @PathVariable("price") double price) {
-        var trade = tradeRepo.get(tradeId);
-        if (trade == null || trade.isEmpty()) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
-        } else {
-            return ResponseEntity.status(HttpStatus.OK).body(trade.get().buyAnalysis.calculatePosition(price));
-        }
+    public CompletableFuture<ResponseEntity<Integer>> CalculatePosition(@PathVariable("tradeId") int tradeId, @PathVariable("price") double price) {
+        return withTrade(tradeRepo.get(tradeId), x -> x.buyAnalysis.calculatePosition(price));
     }
 
     @GetMapping("position/scaleIn/{tradeId}/{price}/{stopLoss}")
-    public ResponseEntity<PositionCalculationResult> CalculateScaleInPosition(
+    public CompletableFuture<ResponseEntity<PositionCalculationResult>> CalculateScaleInPosition(
             @PathVariable("tradeId") int tradeId,
             @PathVariable("price") double price,
             @PathVariable("stopLoss") double stopLoss) {
-        var trade = tradeRepo.get(tradeId);
-        if (trade == null || trade.isEmpty()) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
-        } else {
-            return ResponseEntity.status(HttpStatus.OK).body(trade.get().calculateScaleinPosition(price, stopLoss));
-        }
+        return withTrade(tradeRepo.get(tradeId), x -> x.calculateScaleinPosition(price, stopLoss));
     }
 
     @GetMapping("position/pyramid/{tradeId}/{price}/{stopLoss}/{percentOfProfitToBeLockedIn}")
-    public ResponseEntity<PositionCalculationResult> CalculatePyramidPosition(
+    public CompletableFuture<ResponseEntity<PositionCalculationResult>> CalculatePyramidPosition(
             @PathVariable("tradeId") int tradeId,
             @PathVariable("price") double price,
             @PathVariable("stopLoss") double stopLoss,
             @PathVariable("percentOfProfitToBeLockedIn") int percentOfProfitToBeLockedIn) {
-        var trade = tradeRepo.get(tradeId);
-        if (trade == null || trade.isEmpty()) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
-        } else {
-            return ResponseEntity.status(HttpStatus.OK).body(trade.get().calculatePyramidPosition(price, stopLoss, percentOfProfitToBeLockedIn));
-        }
+        return withTrade(tradeRepo.get(tradeId), x -> x.calculatePyramidPosition(price, stopLoss, percentOfProfitToBeLockedIn));
     }
 
     @GetMapping("stopLoss/{tradeId}")
-    public ResponseEntity<Double> GetCurrentStopLoss(@PathVariable("tradeId") int tradeId) {
-        var trade = tradeRepo.get(tradeId);
-        if (trade == null || trade.isEmpty()) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
-        } else {
-            return ResponseEntity.status(HttpStatus.OK).body(trade.get().getStopLoss());
-        }
+    public CompletableFuture<ResponseEntity<Double>> GetCurrentStopLoss(@PathVariable("tradeId") int tradeId) {
+        return withTrade(tradeRepo.get(tradeId), Trade::getStopLoss);
     }
 
     @PutMapping("stopLoss/{tradeId}/{price}")
-    public ResponseEntity<Double> SetTrailingStopLoss(
+    public CompletableFuture<ResponseEntity<Double>> SetTrailingStopLoss(
             @PathVariable("tradeId") int tradeId,
             @PathVariable("price") double newStopLoss) {
-        var trade = tradeRepo.get(tradeId);
-        if (trade == null || trade.isEmpty()) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
-        } else {
-            trade.get().setNewStoploss(newStopLoss);
-            var id = tradeRepo.saveOrUpdate(trade.get());
-            if (id > 0) {
-                return ResponseEntity.status(HttpStatus.OK).build();
-            } else {
-                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        return busyOnRejection(tradeRepo.get(tradeId).thenCompose(trade -> {
+            if (trade.isEmpty()) {
+                return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.NOT_FOUND).build());
             }
-        }
+            trade.get().setNewStoploss(newStopLoss);
+            return tradeRepo.saveOrUpdate(trade.get()).thenApply(id -> id > 0
+                    ? ResponseEntity.status(HttpStatus.OK).<Double>build()
+                    : ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).<Double>build());
+        }));
     }
 
     @GetMapping("portfolio")
-    public ResponseEntity<List<PortfolioEntry>> GetPortfolio() {
-        var list = tradeRepo.getOpenTrades();
+    public CompletableFuture<ResponseEntity<List<PortfolioEntry>>> GetPortfolio() {
+        return busyOnRejection(tradeRepo.getOpenTrades().thenApply(this::portfolio));
+    }
+
+    private ResponseEntity<List<PortfolioEntry>> portfolio(List<Trade> list) {
         if (list == null || list.isEmpty()) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
         } else {
@@ -181,14 +167,26 @@ public class TradeController {
     }
 
     @GetMapping("ledger")
-    public ResponseEntity<List<LedgerEntry>> GetLedger() {
-        var list = tradeRepo.getOpenTrades();
-        list.addAll(tradeRepo.getClosedTrades());
-        // TODO: include archived trades in ledger
-        if (list == null || list.isEmpty()) {
+    public CompletableFuture<ResponseEntity<List<LedgerEntry>>> GetLedger() {
+        return busyOnRejection(tradeRepo.getOpenTrades()
+                .thenCombine(tradeRepo.getClosedTrades(), (open, closed) -> {
+                    open.addAll(closed);
+                    return open;
+                })
+                .thenApplyAsync(this::ledger, executor));
+    }
+
+    private ResponseEntity<List<LedgerEntry>> ledger(List<Trade> list) {
+        var live = list.stream().map(x -> x.ID).collect(Collectors.toSet());
+        // the archived trades are read from the archive columns; a trade still in the live store is taken from there
+        var archived = archiveRepo.getClosedTradeFigures(LocalDate.EPOCH, Utils.UtcToday()).stream()
+                .filter(x -> live.contains(x.id()) == false)
+                .map(x -> new LedgerEntry(x.symbol(), x.soldSize(), x.averageBuyPrice(), x.averageSellPrice(), x.totalCharges(), x.realisedPnl()))
+                .toList();
+        if (list.isEmpty() && archived.isEmpty()) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
         } else {
-            var result = list.stream()
+            var current = list.stream()
                     .map(x -> {
                         var position = x.tradeHistory.stream().filter(y -> y.isSale()).mapToInt(y -> y.size()).sum();
                         var averageSellPrice = position > 0 ? x.totalSalePrice() / position : 0.00;
@@ -199,27 +197,44 @@ public class TradeController {
                                 averageSellPrice,
                                 x.totalCharges(),
                                 x.realisedPnl());
-                    })
-                    .toList();
+                    });
+            var result = Stream.concat(current, archived.stream()).toList();
             return ResponseEntity.status(HttpStatus.OK).body(result);
         }
     }
 
     @PostMapping("upload")
-    public ResponseEntity<String> PostAll(@RequestBody List<Trade> trades) {
+    public CompletableFuture<ResponseEntity<String>> PostAll(@RequestBody List<Trade> trades) {
         if (trades == null || trades.isEmpty()) {
-            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("No trades to save");
-        } else {
-            try {
-                for (var t : trades) {
-                    tradeRepo.saveOrUpdate(t);
-                }
-                return ResponseEntity.status(HttpStatus.CREATED).build();
-            } catch (Exception e) {
+            return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.BAD_REQUEST).body("No trades to save"));
+        }
+        return tradeRepo.saveOrUpdateAll(trades).handle((saved, e) -> {
+            if (e != null) {
                 log.error("Error: {}", e);
                 return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
             }
-        }
+            if (saved == 0) {
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+            }
+            return ResponseEntity.status(HttpStatus.CREATED).build();
+        });
+    }
+
+    private static <T> CompletableFuture<ResponseEntity<T>> withTrade(CompletableFuture<Optional<Trade>> trade, Function<Trade, T> body) {
+        return busyOnRejection(trade.thenApply(x -> x.isEmpty()
+                ? ResponseEntity.status(HttpStatus.NOT_FOUND).<T>build()
+                : ResponseEntity.status(HttpStatus.OK).body(body.apply(x.get()))));
+    }
+
+    // a call the executor had no room for is answered with 503, other failures are left to the error handling of Spring
+    private static <T> CompletableFuture<ResponseEntity<T>> busyOnRejection(CompletableFuture<ResponseEntity<T>> response) {
+        return response.exceptionally(e -> {
+            var cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof RejectedExecutionException) {
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+            }
+            throw e instanceof CompletionException completion ? completion : new CompletionException(cause);
+        });
     }
 
 }
@@ -0,0 +1,38 @@
+package me.sk.ta.api.interfaces;
+
+import me.sk.ta.domain.Trade;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+// TradeRepository with the store calls run off the calling thread. The futures complete on the threads of the
+// repository executor; a call that finds the executor saturated fails at once with a RejectedExecutionException.
+public interface AsyncTradeRepository {
+    CompletableFuture<Trade> find(int id);
+
+    CompletableFuture<Optional<Trade>> get(int id);
+
+    CompletableFuture<List<Trade>> where(Predicate<Trade> predicate);
+
+    CompletableFuture<Optional<Trade>> getOpenTrade(String symbol);
+
+    CompletableFuture<List<Trade>> getOpenTrades();
+
+    CompletableFuture<List<Trade>> getClosedTrades(LocalDate from, LocalDate to);
+
+    CompletableFuture<List<Trade>> getClosedTrades();
+
+    CompletableFuture<List<Trade>> findBy(Map<String, ?> keys);
+
+    <K extends Comparable<? super K>> CompletableFuture<List<Trade>> findByRange(String index, K from, K to);
+
+    CompletableFuture<Integer> saveOrUpdate(Trade trade);
+
+    CompletableFuture<Integer> saveOrUpdateAll(List<Trade> trades);
+
+    CompletableFuture<Boolean> delete(int id);
+}
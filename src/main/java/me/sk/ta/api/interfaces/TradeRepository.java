@@ -4,6 +4,7 @@ import me.sk.ta.domain.Trade;
 
 import java.time.LocalDate;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Predicate;
 
@@ -22,8 +23,16 @@ public interface TradeRepository {
 
     List<Trade> getClosedTrades();
 
+    // the trades having the key in each of the indexes named, such as pattern and stage
+    List<Trade> findBy(Map<String, ?> keys);
+
+    <K extends Comparable<? super K>> List<Trade> findByRange(String index, K from, K to);
+
     int saveOrUpdate(Trade trade);
 
+    // saves the trades and their index entries in one transaction per store, returns the number saved
+    int saveOrUpdateAll(List<Trade> trades);
+
     boolean delete(int id);
 
     void close();
@@ -0,0 +1,155 @@
+package me.sk.ta.domain;
+
+import java.time.LocalDate;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.RandomAccess;
+import java.util.function.Predicate;
+
+// The entries of a TradingAccount, in the order they were recorded, indexed by business transaction id and with
+// their amounts summed by day, see DailySums. Every change made through the list keeps the indexes up to date,
+// so the account finds an entry and sums a period without going through the entries.
+final class AccountHistory extends AbstractList<TradingAccountEntry> implements RandomAccess {
+    // the series of the sums
+    static final int BALANCE = 0;
+    // the trade entries of the trades not closed
+    static final int INVESTED = 1;
+    static final int CAPITAL_IN = 2;
+    static final int CAPITAL_OUT = 3;
+
+    private final List<TradingAccountEntry> entries = new ArrayList<>();
+    // the entries of each business transaction, there is normally one
+    private final Map<String, List<TradingAccountEntry>> byTransaction = new HashMap<>();
+    private final DailySums sums = new DailySums(4);
+
+    AccountHistory() {
+    }
+
+    AccountHistory(Collection<TradingAccountEntry> entries) {
+        addAll(entries);
+    }
+
+    @Override
+    public TradingAccountEntry get(int index) {
+        return entries.get(index);
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void add(int index, TradingAccountEntry entry) {
+        if (entry == null) {
+            throw new IllegalArgumentException("entry");
+        }
+        entries.add(index, entry);
+        index(entry, 1);
+        modCount++;
+    }
+
+    @Override
+    public TradingAccountEntry set(int index, TradingAccountEntry entry) {
+        if (entry == null) {
+            throw new IllegalArgumentException("entry");
+        }
+        var previous = entries.set(index, entry);
+        index(previous, -1);
+        index(entry, 1);
+        return previous;
+    }
+
+    @Override
+    public TradingAccountEntry remove(int index) {
+        var removed = entries.remove(index);
+        index(removed, -1);
+        modCount++;
+        return removed;
+    }
+
+    // in one pass over the entries
+    @Override
+    public boolean removeIf(Predicate<? super TradingAccountEntry> filter) {
+        List<TradingAccountEntry> removed = new ArrayList<>();
+        var changed = entries.removeIf(x -> filter.test(x) && removed.add(x));
+        removed.forEach(x -> index(x, -1));
+        if (changed) {
+            modCount++;
+        }
+        return changed;
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+        byTransaction.clear();
+        sums.clear();
+        modCount++;
+    }
+
+    // the first entry recorded of the business transaction
+    Optional<TradingAccountEntry> find(String businessTransactionId) {
+        var found = byTransaction.get(businessTransactionId);
+        return found == null ? Optional.empty() : Optional.of(found.get(0));
+    }
+
+    List<TradingAccountEntry> findAll(String businessTransactionId) {
+        return List.copyOf(byTransaction.getOrDefault(businessTransactionId, List.of()));
+    }
+
+    // Replaces the entry with another in its place. Looked for from the end, where the recent entries are.
+    void replace(TradingAccountEntry entry, TradingAccountEntry replacement) {
+        var index = entries.lastIndexOf(entry);
+        if (index >= 0) {
+            set(index, replacement);
+        }
+    }
+
+    void delete(TradingAccountEntry entry) {
+        var index = entries.lastIndexOf(entry);
+        if (index >= 0) {
+            remove(index);
+        }
+    }
+
+    // the sum of the series over the entries up to and including the date
+    double sumUpTo(LocalDate date, int series) {
+        return sums.sumUpTo(date, series);
+    }
+
+    // the sum of the series over the entries from and to, both included
+    double sum(LocalDate from, LocalDate to, int series) {
+        return sums.sum(from, to, series);
+    }
+
+    private void index(TradingAccountEntry entry, int sign) {
+        var id = entry.businessTransactionId();
+        if (id != null && id.isBlank() == false) {
+            if (sign > 0) {
+                byTransaction.computeIfAbsent(id, x -> new ArrayList<>(1)).add(entry);
+            } else {
+                var found = byTransaction.get(id);
+                if (found != null && found.remove(entry) && found.isEmpty()) {
+                    byTransaction.remove(id);
+                }
+            }
+        }
+        var amount = sign * entry.amount();
+        sums.add(entry.date(), BALANCE, amount);
+        if (entry.transType() == AccountTransactionType.Trade && entry.isTradeClosed() == false) {
+            sums.add(entry.date(), INVESTED, amount);
+        }
+        if (entry.transType() == AccountTransactionType.Capital && entry.amount() > 0) {
+            sums.add(entry.date(), CAPITAL_IN, amount);
+        }
+        if (entry.transType() == AccountTransactionType.Capital && entry.amount() < 0) {
+            sums.add(entry.date(), CAPITAL_OUT, amount);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package me.sk.ta.domain;
+
+import java.time.LocalDate;
+
+// Running sums of amounts by day, in several series: one Fenwick tree per series over one bucket per day, from the
+// first day seen. Adding an amount and summing the days up to a date take O(log d), d the number of days covered.
+// The buckets are added as earlier or later days come in, by rebuilding the trees from the daily amounts.
+final class DailySums {
+    private static final int MIN_DAYS = 64;
+    private final int series;
+    private long firstDay;
+    private int days;
+    // by series: the amount of each day, and the Fenwick tree over them, 1-based
+    private double[][] daily;
+    private double[][] trees;
+
+    DailySums(int series) {
+        this.series = series;
+        clear();
+    }
+
+    void clear() {
+        days = 0;
+        daily = new double[series][0];
+        trees = new double[series][1];
+    }
+
+    void add(LocalDate date, int series, double amount) {
+        var bucket = bucketOf(date.toEpochDay());
+        daily[series][bucket] += amount;
+        var tree = trees[series];
+        for (int i = bucket + 1; i <= days; i += i & -i) {
+            tree[i] += amount;
+        }
+    }
+
+    // the sum of the amounts of the days up to and including date
+    double sumUpTo(LocalDate date, int series) {
+        var offset = date.toEpochDay() - firstDay;
+        if (days == 0 || offset < 0) {
+            return 0;
+        }
+        var tree = trees[series];
+        var sum = 0.0;
+        for (int i = (int) Math.min(offset + 1, days); i > 0; i -= i & -i) {
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    // the sum of the amounts of the days from and to, both included
+    double sum(LocalDate from, LocalDate to, int series) {
+        return from.isAfter(to) ? 0 : sumUpTo(to, series) - sumUpTo(from.minusDays(1), series);
+    }
+
+    // the bucket of the day, making room for it with as many days again to spare
+    private int bucketOf(long day) {
+        if (days == 0) {
+            resize(day - MIN_DAYS / 2, MIN_DAYS);
+        } else if (day < firstDay) {
+            var needed = firstDay + days - day;
+            resize(firstDay + days - Math.max(2 * needed, MIN_DAYS), (int) Math.max(2 * needed, MIN_DAYS));
+        } else if (day >= firstDay + days) {
+            resize(firstDay, (int) Math.max(2 * (day - firstDay + 1), MIN_DAYS));
+        }
+        return (int) (day - firstDay);
+    }
+
+    private void resize(long newFirstDay, int newDays) {
+        var shift = (int) (firstDay - newFirstDay);
+        for (int s = 0; s < series; s++) {
+            var moved = new double[newDays];
+            if (days > 0) {
+                System.arraycopy(daily[s], 0, moved, shift, days);
+            }
+            daily[s] = moved;
+            trees[s] = build(moved);
+        }
+        firstDay = newFirstDay;
+        days = newDays;
+    }
+
+    // in O(d), each node adding itself to its parent
+    private static double[] build(double[] daily) {
+        var tree = new double[daily.length + 1];
+        System.arraycopy(daily, 0, tree, 1, daily.length);
+        for (int i = 1; i <= daily.length; i++) {
+            var parent = i + (i & -i);
+            if (parent <= daily.length) {
+                tree[parent] += tree[i];
+            }
+        }
+        return tree;
+    }
+}
@@ -38,10 +38,11 @@ public class Stats {
     public double largestDrawdown;
     public double averageDrawdown;
 
-    public static Stats build(LocalDate from, LocalDate to, List<Trade> trades) {
-        Supplier<Stream<Trade>> closedTrades = () -> trades.stream().filter(x -> x.isClosed());
-        Supplier<Stream<Trade>> wins = () -> closedTrades.get().filter(x -> x.realisedPnl() >= 0);
-        Supplier<Stream<Trade>> losses = () -> closedTrades.get().filter(x -> x.realisedPnl() < 0);
+    // trades or the ClosedTrade rows of the archive columns, in the order they were closed
+    public static <T extends TradeResult> Stats build(LocalDate from, LocalDate to, List<T> trades) {
+        Supplier<Stream<T>> closedTrades = () -> trades.stream().filter(x -> x.isClosed());
+        Supplier<Stream<T>> wins = () -> closedTrades.get().filter(x -> x.realisedPnl() >= 0);
+        Supplier<Stream<T>> losses = () -> closedTrades.get().filter(x -> x.realisedPnl() < 0);
 
         log.trace("Closed: {}, Wins:{} Losses:{}", closedTrades.get().count(), wins.get().count(), losses.get().count());
 
@@ -82,23 +83,23 @@ public class Stats {
         return stats;
     }
 
-    public static int getMaxConsecutiveWins(Supplier<Stream<Trade>> trades) {
+    public static <T extends TradeResult> int getMaxConsecutiveWins(Supplier<Stream<T>> trades) {
         return measureStreaks(trades, true, true);
     }
 
-    public static int getMaxConsecutiveLosses(Supplier<Stream<Trade>> trades) {
+    public static <T extends TradeResult> int getMaxConsecutiveLosses(Supplier<Stream<T>> trades) {
         return measureStreaks(trades, false, true);
     }
 
-    public static int getAverageConsecutiveWins(Supplier<Stream<Trade>> trades) {
+    public static <T extends TradeResult> int getAverageConsecutiveWins(Supplier<Stream<T>> trades) {
         return measureStreaks(trades, true, false);
     }
 
-    public static int getAverageConsecutiveLosses(Supplier<Stream<Trade>> trades) {
+    public static <T extends TradeResult> int getAverageConsecutiveLosses(Supplier<Stream<T>> trades) {
         return measureStreaks(trades, false, false);
     }
 
-    public static int measureStreaks(Supplier<Stream<Trade>> trades, boolean countWins, boolean max) {
+    public static <T extends TradeResult> int measureStreaks(Supplier<Stream<T>> trades, boolean countWins, boolean max) {
         if (trades.get().count() == 0) {
             return 0;
         }
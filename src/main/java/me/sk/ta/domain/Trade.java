@@ -10,7 +10,7 @@ import java.util.*;
 
 import static me.sk.ta.domain.DelayedFormatterUtility.format;
 
-public class Trade {
+public class Trade implements TradeResult {
     private static final Logger log = LoggerFactory.getLogger(Trade.class);
     public TradingChargesCalculator tcCalculator;
     public int ID;
@@ -0,0 +1,12 @@
+package me.sk.ta.domain;
+
+// The figures of a trade that the statistics of a period are computed from
+public interface TradeResult {
+    boolean isClosed();
+
+    double grossPnl();
+
+    double realisedPnl();
+
+    double totalCharges();
+}
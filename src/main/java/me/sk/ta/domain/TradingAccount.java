@@ -4,53 +4,39 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.time.LocalDate;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 
+// The entries are kept in an AccountHistory, indexed by business transaction and summed by day, so the balances
+// and the period sums are O(log n). A list set in History by a reader, such as the codecs, is indexed on first use.
 public class TradingAccount {
     private static final Logger log = LoggerFactory.getLogger(TradingAccount.class);
     public double cashBalance;
     public List<TradingAccountEntry> History;
 
     public TradingAccount() {
-        initializeHistoryIfNecessary();
+        History = new AccountHistory();
     }
 
     public AccountPeriodSummary reportSummary(LocalDate from, LocalDate to) {
-        initializeHistoryIfNecessary();
+        var history = history();
         return new AccountPeriodSummary()
                 .from(from)
                 .to(to)
                 .opening(getClosingBalanceOn(from.minusDays(-1)))
                 .closing(getClosingBalanceOn(to))
-                .invested(History.stream()
-                        .filter(x -> x.date().isAfter(to) == false && x.transType() == AccountTransactionType.Trade && x.isTradeClosed() == false)
-                        .mapToDouble(TradingAccountEntry::amount)
-                        .sum())
-                .capitalInfused(History.stream()
-                        .filter(x -> Utils.IsWithinRange(x.date(), from, to) && x.transType() == AccountTransactionType.Capital && x.amount() > 0)
-                        .mapToDouble(TradingAccountEntry::amount)
-                        .sum())
-                .capitalWithdrawn(History.stream()
-                        .filter(x -> Utils.IsWithinRange(x.date(), from, to)  && x.transType() == AccountTransactionType.Capital && x.amount() < 0)
-                        .mapToDouble(TradingAccountEntry::amount)
-                        .sum());
+                .invested(history.sumUpTo(to, AccountHistory.INVESTED))
+                .capitalInfused(history.sum(from, to, AccountHistory.CAPITAL_IN))
+                .capitalWithdrawn(history.sum(from, to, AccountHistory.CAPITAL_OUT));
     }
 
     public void deleteTillAndIncluding(LocalDate date) {
-        initializeHistoryIfNecessary();
-        if (History.size() > 0) {
-            History.removeAll(History.stream().filter(x -> x.date().isAfter(date) == false).toList());
-        }
+        history().removeIf(x -> x.date().isAfter(date) == false);
     }
 
     public double getClosingBalanceOn(LocalDate date) {
-        initializeHistoryIfNecessary();
-        return History.stream()
-                .filter(x -> x.date().isAfter(date) == false)
-                .mapToDouble(TradingAccountEntry::amount)
-                .sum();
+        return history().sumUpTo(date, AccountHistory.BALANCE);
     }
 
     public void addCapital(double amount, LocalDate date) {
@@ -71,27 +57,24 @@ public class TradingAccount {
         if (amount <= 0) {
             return;
         }
-        var revenue = amount - charges;
-        recordAccountEntry(date, revenue, AccountTransactionType.Trade, generateBusinessTransactionId(tradeid, contractId));
+        var entry = TradingAccountEntry.sale(amount, charges, date, tradeid, contractId);
+        recordAccountEntry(date, entry.amount(), AccountTransactionType.Trade, entry.businessTransactionId());
     }
 
     public void recordPurchase(double amount, double charges, LocalDate date, int tradeid, int contractId) {
         if (amount <= 0) {
             return;
         }
-        var cost = amount + charges;
-        recordAccountEntry(date, -1 * cost, AccountTransactionType.Trade, generateBusinessTransactionId(tradeid, contractId));
+        var entry = TradingAccountEntry.purchase(amount, charges, date, tradeid, contractId);
+        recordAccountEntry(date, entry.amount(), AccountTransactionType.Trade, entry.businessTransactionId());
     }
 
     public void closeTrade(int tradeId, Collection<Integer> contractIds) {
+        var history = history();
         for (var id : contractIds) {
-            final var businessTansId = generateBusinessTransactionId(tradeId, id);
-            final var entry = History.stream()
-                    .filter(x -> x.businessTransactionId().equals(businessTansId))
-                    .findFirst();
+            final var entry = history.find(generateBusinessTransactionId(tradeId, id));
             if (entry.isEmpty() == false) {
-                final var closed = entry.get().closeTrade();
-                History.set(History.indexOf(entry), closed);
+                history.replace(entry.get(), entry.get().closeTrade());
             }
         }
     }
@@ -103,7 +86,7 @@ public class TradingAccount {
     }
 
     private String generateBusinessTransactionId(int tradeId, int contractId) {
-        return tradeId + "-" + contractId;
+        return TradingAccountEntry.businessTransactionId(tradeId, contractId);
     }
 
     synchronized private boolean deleteAccountEntry(String businessTansId) {
@@ -114,23 +97,14 @@ public class TradingAccount {
             throw new IllegalArgumentException("businessTansId");
         }
 
-        if (History.stream().anyMatch(x -> x.businessTransactionId().equals(businessTansId)) == false) {
+        var history = history();
+        var oldEntry = history.find(businessTansId);
+        if (oldEntry.isEmpty()) {
             throw new RuntimeException("No entry found. Business Trans Id:" + businessTansId);
         }
-
-        var oldEntry = History.stream()
-                .filter(x -> x.businessTransactionId().equals(businessTansId))
-                .findFirst();
-
-        if (oldEntry.isPresent())
-        {
-            History.remove(oldEntry.get());
-            cashBalance -= oldEntry.get().amount();
-            return true;
-        }
-        else {
-            return false;
-        }
+        history.delete(oldEntry.get());
+        cashBalance -= oldEntry.get().amount();
+        return true;
     }
 
     private void recordAccountEntry(LocalDate date, double amount, AccountTransactionType type) {
@@ -138,30 +112,26 @@ public class TradingAccount {
     }
 
     synchronized private void recordAccountEntry(LocalDate date, double amount, AccountTransactionType type, String businessTansId) {
-        initializeHistoryIfNecessary();
-        double deltaBalance = 0.00;
-        if (businessTansId != null &&
-                businessTansId.isBlank() == false &&
-                businessTansId.isEmpty() == false &&
-                History.stream().anyMatch(x -> x.businessTransactionId().equals(businessTansId))) {
+        var history = history();
+        double deltaBalance = amount;
+        var oldEntry = businessTansId == null || businessTansId.isBlank() ? Optional.<TradingAccountEntry>empty() : history.find(businessTansId);
+        if (oldEntry.isPresent()) {
             // update to an older entry
-            var oldEntry = History.stream()
-                    .filter(x -> x.businessTransactionId().equals(businessTansId))
-                    .findFirst()
-                    .orElse(TradingAccountEntry.Empty());
-            deltaBalance = amount - oldEntry.amount();
-            History.removeAll(History.stream().filter(x -> x.businessTransactionId().equals(businessTansId)).toList());
-        } else {
-            deltaBalance = amount;
+            deltaBalance = amount - oldEntry.get().amount();
+            history.findAll(businessTansId).forEach(history::delete);
         }
 
-        History.add(new TradingAccountEntry(type, businessTansId, amount, date, false));
+        history.add(new TradingAccountEntry(type, businessTansId, amount, date, false));
         cashBalance += deltaBalance;
     }
 
-    synchronized private void initializeHistoryIfNecessary() {
-        if (History == null) {
-            History = new ArrayList<TradingAccountEntry>();
+    // the entries, indexed; a list set by a reader is copied into an AccountHistory once
+    synchronized private AccountHistory history() {
+        if (History instanceof AccountHistory indexed) {
+            return indexed;
         }
+        var indexed = History == null ? new AccountHistory() : new AccountHistory(History);
+        History = indexed;
+        return indexed;
     }
 }
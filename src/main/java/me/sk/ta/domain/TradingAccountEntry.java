@@ -7,6 +7,20 @@ public record TradingAccountEntry(AccountTransactionType transType,
                                   double amount,
                                   LocalDate date,
                                   boolean isTradeClosed) {
+    // the entry of a sale: its revenue net of the charges
+    public static TradingAccountEntry sale(double amount, double charges, LocalDate date, int tradeId, int contractId) {
+        return new TradingAccountEntry(AccountTransactionType.Trade, businessTransactionId(tradeId, contractId), amount - charges, date, false);
+    }
+
+    // the entry of a purchase: its cost with the charges, as a negative amount
+    public static TradingAccountEntry purchase(double amount, double charges, LocalDate date, int tradeId, int contractId) {
+        return new TradingAccountEntry(AccountTransactionType.Trade, businessTransactionId(tradeId, contractId), -1 * (amount + charges), date, false);
+    }
+
+    public static String businessTransactionId(int tradeId, int contractId) {
+        return tradeId + "-" + contractId;
+    }
+
     public static TradingAccountEntry Empty() {
         return new TradingAccountEntry(AccountTransactionType.Invalid, "", 0.00, Utils.UtcToday(), false);
     }
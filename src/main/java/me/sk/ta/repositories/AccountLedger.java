@@ -0,0 +1,199 @@
+package me.sk.ta.repositories;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import me.sk.ta.domain.TradingAccount;
+import me.sk.ta.domain.TradingAccountEntry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+// The entries of the trading accounts, one record each keyed by (account, date, sequence), next to the running
+// balance of each account. A posting writes its entry, the key of its business transaction and the new balance
+// in one transaction, whatever the number of entries of the account. The maps share one MVStore file.
+final class AccountLedger {
+    static final String SEQUENCE = "LEDGER_SEQUENCE";
+    final SharedMVStore store;
+    // by LedgerEntry.key
+    final KvDb<String, LedgerEntry> entries;
+    // the key of the entry of each business transaction, by account and business transaction id
+    final KvDb<String, String> transactions;
+    // the accounts without their entries, holding the balances
+    final KvDb<Integer, TradingAccount> balances;
+    final KvDb<String, Integer> counters;
+    final IdAllocator sequence;
+
+    AccountLedger(String dbFolder, ObjectMapper serializer) {
+        store = new SharedMVStore(dbFolder, "ledger");
+        entries = new MVStoreRepo<>(store, "entries", String.class, new LedgerEntryDataType(), serializer);
+        transactions = new MVStoreRepo<>(store, "transactions", String.class, new StringDataType(), serializer);
+        balances = new MVStoreRepo<>(store, "balances", Integer.class, new TradingAccountDataType(), serializer);
+        counters = new MVStoreRepo<>(store, "counters", String.class, new IntegerDataType(), serializer);
+        sequence = IdAllocator.of(counters, SEQUENCE, 1000);
+    }
+
+    // whether the account has a ledger, even one without entries
+    boolean exists(int account) {
+        return balances.find(account).isPresent();
+    }
+
+    double balance(int account) {
+        return balances.find(account).map(x -> x.cashBalance).orElse(0.0);
+    }
+
+    // the account with its entries in date order, read one entry at a time
+    Optional<TradingAccount> account(int account) {
+        return balances.find(account).map(x -> {
+            var found = new TradingAccount();
+            found.cashBalance = x.cashBalance;
+            found.History = entries(account).stream().map(LedgerEntry::entry).collect(Collectors.toCollection(ArrayList::new));
+            return found;
+        });
+    }
+
+    private List<LedgerEntry> entries(int account) {
+        try (var found = entries.scan(LedgerEntry.accountPrefix(account), 0)) {
+            return found.takeWhile(x -> x.account() == account).toList();
+        }
+    }
+
+    // Appends the entry, replacing the entry of the same business transaction if there is one.
+    void post(int account, TradingAccountEntry entry) {
+        write("post " + entry, tx -> {
+            var delta = entry.amount();
+            var res = true;
+            var id = transactionKey(account, entry.businessTransactionId());
+            if (id != null) {
+                var previous = transactions.find(id, tx).flatMap(x -> entries.find(x, tx));
+                if (previous.isPresent()) {
+                    delta -= previous.get().entry().amount();
+                    res = entries.delete(previous.get().key(), tx);
+                }
+            }
+            var posted = new LedgerEntry(account, sequence.next(), entry);
+            return res && entries.save(posted.key(), posted, tx)
+                    && (id == null || transactions.save(id, posted.key(), tx))
+                    && addToBalance(account, delta, tx);
+        });
+    }
+
+    // marks the entries of the business transactions as those of a closed trade; the ones not found are skipped
+    void close(int account, Collection<String> businessTransactionIds) {
+        write("close " + businessTransactionIds, tx -> {
+            var res = true;
+            for (var id : businessTransactionIds) {
+                var found = transactions.find(transactionKey(account, id), tx).flatMap(x -> entries.find(x, tx));
+                if (found.isPresent()) {
+                    var closed = new LedgerEntry(account, found.get().sequence(), found.get().entry().closeTrade());
+                    res = res && entries.save(closed.key(), closed, tx);
+                }
+            }
+            return res;
+        });
+    }
+
+    // reverses the entries of the business transactions, which must all be there
+    void reverse(int account, Collection<String> businessTransactionIds) {
+        write("reverse " + businessTransactionIds, tx -> {
+            var res = true;
+            var delta = 0.0;
+            for (var id : businessTransactionIds) {
+                var key = transactionKey(account, id);
+                var found = transactions.find(key, tx).flatMap(x -> entries.find(x, tx));
+                if (found.isEmpty()) {
+                    throw new RuntimeException("No entry found. Business Trans Id:" + id);
+                }
+                delta -= found.get().entry().amount();
+                res = res && entries.delete(found.get().key(), tx) && transactions.delete(key, tx);
+            }
+            return res && addToBalance(account, delta, tx);
+        });
+    }
+
+    // Replaces the ledger of the account with the entries and the balance of the account, in one transaction.
+    // Costs as much as the entries of the account; the postings are for the day to day.
+    void replace(int account, TradingAccount replacement) {
+        write("replace the ledger of account " + account, tx -> {
+            var res = remove(account, tx);
+            var history = replacement.History == null ? List.<TradingAccountEntry>of() : replacement.History;
+            for (var entry : history) {
+                var posted = new LedgerEntry(account, sequence.next(), entry);
+                var id = transactionKey(account, entry.businessTransactionId());
+                res = res && entries.save(posted.key(), posted, tx) && (id == null || transactions.save(id, posted.key(), tx));
+            }
+            return res && balances.save(account, balanceOf(replacement.cashBalance), tx);
+        });
+    }
+
+    boolean delete(int account) {
+        if (exists(account) == false) {
+            return false;
+        }
+        write("delete the ledger of account " + account, tx -> remove(account, tx));
+        return true;
+    }
+
+    private boolean remove(int account, KvTransaction tx) {
+        var res = true;
+        for (var entry : entries(account)) {
+            var id = transactionKey(account, entry.entry().businessTransactionId());
+            res = res && entries.delete(entry.key(), tx) && (id == null || transactions.delete(id, tx));
+        }
+        return res && balances.delete(account, tx);
+    }
+
+    // the stored accounts are not changed in place, they may be those of the pages of the store
+    private boolean addToBalance(int account, double delta, KvTransaction tx) {
+        var balance = balances.find(account, tx).map(x -> x.cashBalance).orElse(0.0);
+        return balances.save(account, balanceOf(balance + delta), tx);
+    }
+
+    private static TradingAccount balanceOf(double cashBalance) {
+        var balance = new TradingAccount();
+        balance.cashBalance = cashBalance;
+        balance.History = null;
+        return balance;
+    }
+
+    // null for the entries of no business transaction, such as those of the capital
+    private static String transactionKey(int account, String businessTransactionId) {
+        return businessTransactionId == null || businessTransactionId.isBlank() ? null : account + "|" + businessTransactionId;
+    }
+
+    private void write(String what, Predicate<KvTransaction> work) {
+        var tx = store.beginTransaction();
+        try {
+            if (work.test(tx)) {
+                tx.commit();
+                return;
+            }
+        } catch (RuntimeException e) {
+            tx.rollback();
+            throw e;
+        }
+        tx.rollback();
+        throw new RuntimeException("Could not " + what);
+    }
+
+    StoreSnapshot snapshot() {
+        return store.snapshot();
+    }
+
+    void compact() {
+        store.compact();
+    }
+
+    // the maps leave the shared store to the ledger, which owns it
+    void close() {
+        List.of(entries, transactions, balances, counters).forEach(KvDb::close);
+        store.close();
+    }
+
+    void drop() {
+        List.of(entries, transactions, balances, counters).forEach(KvDb::drop);
+        store.drop();
+    }
+}
@@ -0,0 +1,83 @@
+package me.sk.ta.repositories;
+
+import me.sk.ta.domain.Trade;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+// Each call is made on the RepositoryExecutor; the trades repository itself serializes the writes.
+@Component
+public class AsyncTradeRepository implements me.sk.ta.api.interfaces.AsyncTradeRepository {
+    final me.sk.ta.api.interfaces.TradeRepository trades;
+    final RepositoryExecutor executor;
+
+    public AsyncTradeRepository(me.sk.ta.api.interfaces.TradeRepository trades, RepositoryExecutor executor) {
+        this.trades = trades;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Trade> find(int id) {
+        return executor.supply(() -> trades.find(id));
+    }
+
+    @Override
+    public CompletableFuture<Optional<Trade>> get(int id) {
+        return executor.supply(() -> trades.get(id));
+    }
+
+    @Override
+    public CompletableFuture<List<Trade>> where(Predicate<Trade> predicate) {
+        return executor.supply(() -> trades.where(predicate));
+    }
+
+    @Override
+    public CompletableFuture<Optional<Trade>> getOpenTrade(String symbol) {
+        return executor.supply(() -> trades.getOpenTrade(symbol));
+    }
+
+    @Override
+    public CompletableFuture<List<Trade>> getOpenTrades() {
+        return executor.supply(trades::getOpenTrades);
+    }
+
+    @Override
+    public CompletableFuture<List<Trade>> getClosedTrades(LocalDate from, LocalDate to) {
+        return executor.supply(() -> trades.getClosedTrades(from, to));
+    }
+
+    @Override
+    public CompletableFuture<List<Trade>> getClosedTrades() {
+        return executor.supply(trades::getClosedTrades);
+    }
+
+    @Override
+    public CompletableFuture<List<Trade>> findBy(Map<String, ?> keys) {
+        return executor.supply(() -> trades.findBy(keys));
+    }
+
+    @Override
+    public <K extends Comparable<? super K>> CompletableFuture<List<Trade>> findByRange(String index, K from, K to) {
+        return executor.supply(() -> trades.findByRange(index, from, to));
+    }
+
+    @Override
+    public CompletableFuture<Integer> saveOrUpdate(Trade trade) {
+        return executor.supply(() -> trades.saveOrUpdate(trade));
+    }
+
+    @Override
+    public CompletableFuture<Integer> saveOrUpdateAll(List<Trade> list) {
+        return executor.supply(() -> trades.saveOrUpdateAll(list));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> delete(int id) {
+        return executor.supply(() -> trades.delete(id));
+    }
+}
@@ -0,0 +1,33 @@
+package me.sk.ta.repositories;
+
+import me.sk.ta.domain.Trade;
+import me.sk.ta.domain.TradeContract;
+import me.sk.ta.domain.TradeResult;
+
+import java.time.LocalDate;
+
+// The figures of a closed trade kept in the archive columns, enough for the statistics and the ledger of a period
+public record ClosedTrade(int id, String symbol, LocalDate closedOn, int soldSize, double averageBuyPrice,
+                          double totalSalePrice, double totalCharges, double grossPnl, double realisedPnl) implements TradeResult {
+
+    static ClosedTrade of(Trade trade) {
+        return new ClosedTrade(trade.ID,
+                trade.symbol,
+                trade.getDateOfClosure().orElseThrow(),
+                trade.tradeHistory.stream().filter(TradeContract::isSale).mapToInt(TradeContract::size).sum(),
+                trade.averageBuyPrice(),
+                trade.totalSalePrice(),
+                trade.totalCharges(),
+                trade.grossPnl(),
+                trade.realisedPnl());
+    }
+
+    @Override
+    public boolean isClosed() {
+        return true;
+    }
+
+    public double averageSellPrice() {
+        return soldSize > 0 ? totalSalePrice / soldSize : 0.00;
+    }
+}
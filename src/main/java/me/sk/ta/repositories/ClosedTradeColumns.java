@@ -0,0 +1,335 @@
+package me.sk.ta.repositories;
+
+import me.sk.ta.domain.Trade;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+// The figures of the archived closed trades, kept in append-only segment files next to the archive.
+// A segment holds a dictionary of its symbols followed by one column per field, each column an array of
+// ints or doubles, and is memory mapped once written. A scan of a period reads the columns sequentially
+// and skips the segments whose closure dates are all outside of it. A trade appended again, because it
+// was archived again, is read from the newest segment holding it. A segment also lists the trades whose
+// rows are dropped, because they were deleted or reopened; the rows of the older segments are skipped.
+//
+// The archive records the trades it is about to write in a file named "pending" before it commits them,
+// and the segment written for them clears it. The rows of the trades still pending when the archive is
+// opened are written again from the archive, see TradeArchiveRepository.
+//
+// The segments and the newest segment of each trade change together, in append and merge; they are only read and
+// written under the monitor, so a scan sees them as one.
+public class ClosedTradeColumns {
+    private static final Logger log = LoggerFactory.getLogger(ClosedTradeColumns.class);
+    static final int MAGIC = 0x54434f4c;
+    // version 1 segments have no dropped rows
+    static final int VERSION = 2;
+    static final String PENDING = "pending";
+    // segments are merged into one once there are this many of them
+    static final int MAX_SEGMENTS = 32;
+    private static final int INT_COLUMNS = 4;
+    private static final int DOUBLE_COLUMNS = 5;
+
+    final Path dir;
+    private final List<Segment> segments = new ArrayList<>();
+    // the number of the newest segment holding each trade, the rows of the older segments are stale
+    private final Map<Integer, Integer> newest = new HashMap<>();
+    private int nextSegment;
+
+    public ClosedTradeColumns(Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+            try (var files = Files.list(dir)) {
+                for (var file : files.filter(x -> x.getFileName().toString().endsWith(".col")).sorted().toList()) {
+                    add(Segment.map(file));
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error opening the columns at {}. Exception: '{}', message: '{}'", dir, e.getCause(), e.getMessage(), e);
+            throw new RuntimeException(e);
+        }
+        nextSegment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1).number + 1;
+        log.info("Opened {} column segments at {}", segments.size(), dir);
+    }
+
+    public synchronized boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    // writes the closed trades among the given ones as a new segment; the rows of the open ones are dropped
+    public void append(List<Trade> trades) {
+        append(trades, List.of());
+    }
+
+    // writes the closed trades as a new segment, dropping the rows of the open and of the removed ones
+    public synchronized void append(List<Trade> trades, Collection<Integer> removed) {
+        var rows = trades.stream().filter(Trade::isClosed).map(ClosedTrade::of).toList();
+        var dropped = new LinkedHashSet<>(removed);
+        trades.stream().filter(x -> x.isClosed() == false).forEach(x -> dropped.add(x.ID));
+        rows.forEach(x -> dropped.remove(x.id()));
+        dropped.removeIf(x -> newest.containsKey(x) == false);
+        if (rows.isEmpty() == false || dropped.isEmpty() == false) {
+            add(write(nextSegment++, rows, List.copyOf(dropped)));
+            if (segments.size() >= MAX_SEGMENTS) {
+                merge();
+            }
+        }
+        try {
+            Files.deleteIfExists(dir.resolve(PENDING));
+        } catch (IOException e) {
+            log.error("Error clearing the pending trades of {}. Cause: '{}', message: '{}'", dir, e.getCause(), e.getMessage());
+        }
+    }
+
+    // records the trades about to be written to the archive, until the next append
+    public synchronized void pending(Collection<Integer> ids) {
+        var file = dir.resolve(PENDING);
+        var temp = dir.resolve(PENDING + ".tmp");
+        try {
+            try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                var buff = ByteBuffer.allocate(ids.size() * Integer.BYTES);
+                ids.forEach(buff::putInt);
+                buff.flip();
+                while (buff.hasRemaining()) {
+                    channel.write(buff);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Error recording the pending trades of {}. Cause: '{}', message: '{}'", dir, e.getCause(), e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    // the trades recorded as pending and not appended since
+    public synchronized List<Integer> pending() {
+        var file = dir.resolve(PENDING);
+        if (Files.exists(file) == false) {
+            return List.of();
+        }
+        try {
+            var buff = ByteBuffer.wrap(Files.readAllBytes(file));
+            List<Integer> ids = new ArrayList<>();
+            while (buff.remaining() >= Integer.BYTES) {
+                ids.add(buff.getInt());
+            }
+            return ids;
+        } catch (IOException e) {
+            log.error("Error reading the pending trades of {}. Cause: '{}', message: '{}'", dir, e.getCause(), e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    // the rows closed within [from, to], ordered by closure date and id
+    public synchronized List<ClosedTrade> scan(LocalDate from, LocalDate to) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("from and to are required");
+        }
+        return scan((int) from.toEpochDay(), (int) to.toEpochDay());
+    }
+
+    private List<ClosedTrade> scan(int firstDay, int lastDay) {
+        List<ClosedTrade> result = new ArrayList<>();
+        for (var segment : segments) {
+            segment.scan(firstDay, lastDay, newest, result);
+        }
+        result.sort(Comparator.comparing(ClosedTrade::closedOn).thenComparing(ClosedTrade::id));
+        return result;
+    }
+
+    private void add(Segment segment) {
+        segments.add(segment);
+        for (int i = 0; i < segment.rows; i++) {
+            newest.put(segment.id(i), segment.number);
+        }
+        for (int i = 0; i < segment.dropped; i++) {
+            newest.put(segment.droppedId(i), segment.number);
+        }
+    }
+
+    // rewrites the rows of all the segments, the newest of each trade, into a single segment
+    synchronized void merge() {
+        var current = List.copyOf(segments);
+        var merged = write(nextSegment++, scan(Integer.MIN_VALUE, Integer.MAX_VALUE), List.of());
+        add(merged);
+        segments.removeAll(current);
+        // the dropped rows are gone with the merged segments
+        newest.values().removeIf(x -> x != merged.number);
+        for (var segment : current) {
+            try {
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                log.error("Error deleting the merged segment {}. Cause: '{}', message: '{}'", segment.file, e.getCause(), e.getMessage());
+            }
+        }
+        log.info("Merged {} column segments into {}", current.size(), merged.file);
+    }
+
+    public synchronized void drop() {
+        try {
+            log.info("Dropping the columns at {}", dir);
+            segments.clear();
+            newest.clear();
+            RocksDbRepo.deleteDirectory(dir.toFile());
+        } catch (IOException e) {
+            log.error("Error dropping the columns at {}. Cause: '{}', message: '{}'", dir, e.getCause(), e.getMessage());
+        }
+    }
+
+    // the segment is written to a temporary file and renamed, so a segment file is always complete
+    private Segment write(int number, List<ClosedTrade> rows, List<Integer> dropped) {
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        rows.forEach(x -> dictionary.putIfAbsent(x.symbol(), dictionary.size()));
+        var symbols = dictionary.keySet().stream().map(x -> x.getBytes(StandardCharsets.UTF_8)).toList();
+
+        var size = 7 * Integer.BYTES
+                + symbols.stream().mapToInt(x -> Short.BYTES + x.length).sum()
+                + rows.size() * (INT_COLUMNS * Integer.BYTES + DOUBLE_COLUMNS * Double.BYTES)
+                + dropped.size() * Integer.BYTES;
+        var buff = ByteBuffer.allocate(size);
+        buff.putInt(MAGIC)
+                .putInt(VERSION)
+                .putInt(rows.size())
+                .putInt(rows.stream().mapToInt(x -> (int) x.closedOn().toEpochDay()).min().orElse(0))
+                .putInt(rows.stream().mapToInt(x -> (int) x.closedOn().toEpochDay()).max().orElse(-1))
+                .putInt(symbols.size())
+                .putInt(dropped.size());
+        for (var symbol : symbols) {
+            buff.putShort((short) symbol.length).put(symbol);
+        }
+        rows.forEach(x -> buff.putInt(x.id()));
+        rows.forEach(x -> buff.putInt(dictionary.get(x.symbol())));
+        rows.forEach(x -> buff.putInt((int) x.closedOn().toEpochDay()));
+        rows.forEach(x -> buff.putInt(x.soldSize()));
+        rows.forEach(x -> buff.putDouble(x.averageBuyPrice()));
+        rows.forEach(x -> buff.putDouble(x.totalSalePrice()));
+        rows.forEach(x -> buff.putDouble(x.totalCharges()));
+        rows.forEach(x -> buff.putDouble(x.grossPnl()));
+        rows.forEach(x -> buff.putDouble(x.realisedPnl()));
+        dropped.forEach(buff::putInt);
+
+        var file = dir.resolve(String.format("segment-%06d.col", number));
+        var temp = dir.resolve(file.getFileName() + ".tmp");
+        try {
+            try (var channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                buff.flip();
+                while (buff.hasRemaining()) {
+                    channel.write(buff);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Wrote {} rows to {}", rows.size(), file);
+            return Segment.map(file);
+        } catch (IOException e) {
+            log.error("Error writing the segment {}. Cause: '{}', message: '{}'", file, e.getCause(), e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class Segment {
+        final Path file;
+        final int number;
+        final MappedByteBuffer buff;
+        final int rows;
+        final int firstDay;
+        final int lastDay;
+        final String[] symbols;
+        // the number of trades whose rows are dropped
+        final int dropped;
+        // offsets of the columns, in the order they are written
+        final int ids, symbolCodes, days, soldSizes, averageBuyPrices, salePrices, charges, grossPnls, realisedPnls, droppedIds;
+
+        private Segment(Path file, MappedByteBuffer buff) {
+            this.file = file;
+            this.buff = buff;
+            var name = file.getFileName().toString();
+            number = Integer.parseInt(name.substring(name.indexOf('-') + 1, name.indexOf('.')));
+            var version = buff.getInt() == MAGIC ? buff.getInt() : -1;
+            if (version != 1 && version != VERSION) {
+                throw new IllegalStateException("Not a column segment of version " + VERSION + ": " + file);
+            }
+            rows = buff.getInt();
+            firstDay = buff.getInt();
+            lastDay = buff.getInt();
+            symbols = new String[buff.getInt()];
+            dropped = version == 1 ? 0 : buff.getInt();
+            for (int i = 0; i < symbols.length; i++) {
+                var bytes = new byte[buff.getShort()];
+                buff.get(bytes);
+                symbols[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            ids = buff.position();
+            symbolCodes = ids + rows * Integer.BYTES;
+            days = symbolCodes + rows * Integer.BYTES;
+            soldSizes = days + rows * Integer.BYTES;
+            averageBuyPrices = soldSizes + rows * Integer.BYTES;
+            salePrices = averageBuyPrices + rows * Double.BYTES;
+            charges = salePrices + rows * Double.BYTES;
+            grossPnls = charges + rows * Double.BYTES;
+            realisedPnls = grossPnls + rows * Double.BYTES;
+            droppedIds = realisedPnls + rows * Double.BYTES;
+        }
+
+        static Segment map(Path file) throws IOException {
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return new Segment(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        int id(int row) {
+            return buff.getInt(ids + row * Integer.BYTES);
+        }
+
+        int droppedId(int i) {
+            return buff.getInt(droppedIds + i * Integer.BYTES);
+        }
+
+        // Only the day column is read for the rows outside of the period. The rows of the trades
+        // held by a newer segment are skipped.
+        void scan(int first, int last, Map<Integer, Integer> newest, List<ClosedTrade> result) {
+            if (lastDay < first || firstDay > last) {
+                return;
+            }
+            for (int i = 0; i < rows; i++) {
+                var day = buff.getInt(days + i * Integer.BYTES);
+                if (day < first || day > last) {
+                    continue;
+                }
+                var id = id(i);
+                if (Objects.equals(newest.get(id), number) == false) {
+                    continue;
+                }
+                result.add(new ClosedTrade(id,
+                        symbols[buff.getInt(symbolCodes + i * Integer.BYTES)],
+                        LocalDate.ofEpochDay(day),
+                        buff.getInt(soldSizes + i * Integer.BYTES),
+                        buff.getDouble(averageBuyPrices + i * Double.BYTES),
+                        buff.getDouble(salePrices + i * Double.BYTES),
+                        buff.getDouble(charges + i * Double.BYTES),
+                        buff.getDouble(grossPnls + i * Double.BYTES),
+                        buff.getDouble(realisedPnls + i * Double.BYTES)));
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package me.sk.ta.repositories;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+// Online backups of the stores of the trades, of the archive and of the account.
+//
+// The snapshots of all the stores are taken together while holding the monitors of the repositories, which
+// only waits for the writes in progress; the backup is written from the snapshots once the monitors are
+// released. Each store is written to <dir>/<backup id>/<path of the store>, and the manifest last, so a
+// backup without a manifest is incomplete and ignored. An incremental backup holds what changed since the
+// latest backup, see StoreSnapshot.write; a restore applies the full backup it is based on and the
+// incremental ones after it.
+@Component
+public class DbBackup {
+    private static final Logger log = LoggerFactory.getLogger(DbBackup.class);
+    static final String MANIFEST = "manifest.json";
+    // the folder under dir the restores asked for by name are written to, see restoreInto
+    static final String RESTORED = "restored";
+    private static final DateTimeFormatter ID_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    // base is the id of the backup an incremental backup is based on, null for a full backup;
+    // marks are the marks of the stores, by path
+    public record Manifest(String id, String base, String takenAt, Map<String, Long> marks) {
+    }
+
+    final TradeRepository trades;
+    final TradeArchiveRepository archive;
+    final TradingAccountRepository accounts;
+    final Path dir;
+    final ObjectMapper serializer;
+
+    @Autowired
+    public DbBackup(TradeRepository trades, TradeArchiveRepository archive, TradingAccountRepository accounts,
+                    @Value("${db.backup.dir:db/backup}") String dir, ObjectMapper serializer) {
+        this.trades = trades;
+        this.archive = archive;
+        this.accounts = accounts;
+        this.dir = Path.of(dir);
+        this.serializer = serializer;
+    }
+
+    // One backup or restore at a time. An incremental backup without an earlier backup to base it on is full.
+    public synchronized Manifest backup(boolean incremental) {
+        var base = incremental ? latest() : Optional.<Manifest>empty();
+        var id = LocalDateTime.now().format(ID_FORMAT) + (base.isPresent() ? "-incremental" : "-full");
+        var target = dir.resolve(id);
+        var start = System.nanoTime();
+        Map<String, Long> marks = new LinkedHashMap<>();
+        var snapshots = snapshot();
+        try {
+            for (var snapshot : snapshots) {
+                var name = name(snapshot.source());
+                var since = base.map(x -> x.marks().getOrDefault(name, -1L)).orElse(-1L);
+                marks.put(name, snapshot.write(target.resolve(name), since));
+            }
+        } finally {
+            snapshots.forEach(StoreSnapshot::close);
+        }
+        var manifest = new Manifest(id, base.map(Manifest::id).orElse(null), Instant.now().toString(), marks);
+        try {
+            Files.writeString(target.resolve(MANIFEST), serializer.writeValueAsString(manifest));
+        } catch (IOException e) {
+            log.error("Error writing the manifest of {}. Cause: '{}', message: '{}'", target, e.getCause(), e.getMessage());
+            throw new RuntimeException(e);
+        }
+        log.info("Backed up {} stores to {} in {} ms", marks.size(), target, (System.nanoTime() - start) / 1_000_000);
+        return manifest;
+    }
+
+    // the complete backups, oldest first
+    public List<Manifest> list() {
+        if (Files.isDirectory(dir) == false) {
+            return List.of();
+        }
+        try (var backups = Files.list(dir)) {
+            List<Manifest> result = new ArrayList<>();
+            for (var backup : backups.filter(x -> Files.exists(x.resolve(MANIFEST))).toList()) {
+                result.add(serializer.readValue(Files.readString(backup.resolve(MANIFEST)), Manifest.class));
+            }
+            result.sort(Comparator.comparing(Manifest::id));
+            return result;
+        } catch (IOException e) {
+            log.error("Error listing the backups at {}. Cause: '{}', message: '{}'", dir, e.getCause(), e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    public Optional<Manifest> find(String id) {
+        return list().stream().filter(x -> x.id().equals(id)).findFirst();
+    }
+
+    private Optional<Manifest> latest() {
+        var backups = list();
+        return backups.isEmpty() ? Optional.empty() : Optional.of(backups.get(backups.size() - 1));
+    }
+
+    // Restores the backup into the directory of the given name under <dir>/restored, for the callers that are not
+    // to write anywhere else: a name that is absolute, holds .. or leads out of that folder is refused.
+    public void restoreInto(String id, String target) {
+        restore(id, restoreTarget(target));
+    }
+
+    Path restoreTarget(String target) {
+        if (target == null || target.isBlank()) {
+            throw new IllegalArgumentException("The name of the directory to restore into is required");
+        }
+        var name = Path.of(target);
+        var root = dir.resolve(RESTORED).toAbsolutePath().normalize();
+        var resolved = root.resolve(name).normalize();
+        var parent = false;
+        for (var part : name) {
+            parent |= part.toString().equals("..");
+        }
+        if (name.isAbsolute() || parent || resolved.startsWith(root) == false || resolved.equals(root)) {
+            throw new IllegalArgumentException("Restore into a directory under " + root + ", not " + target);
+        }
+        return resolved;
+    }
+
+    // Restores the backup, and the ones it is based on, into a directory that does not exist or is empty.
+    // The stores are written under target at the paths they have here.
+    public synchronized void restore(String id, Path target) {
+        List<Manifest> chain = new ArrayList<>();
+        for (var backup = find(id); backup.isPresent(); backup = backup.get().base() == null ? Optional.empty() : find(backup.get().base())) {
+            chain.add(0, backup.get());
+        }
+        if (chain.isEmpty()) {
+            throw new IllegalArgumentException("No backup " + id);
+        }
+        if (chain.get(0).base() != null) {
+            throw new IllegalStateException("The backup " + chain.get(0).base() + " that " + id + " is based on is missing");
+        }
+        try (var files = Files.exists(target) ? Files.list(target) : null) {
+            if (files != null && files.findAny().isPresent()) {
+                throw new IllegalArgumentException("Restore into an empty directory, " + target + " is not empty");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        // the snapshots of the open stores give the types of their maps
+        var snapshots = snapshot();
+        try {
+            for (var snapshot : snapshots) {
+                var name = name(snapshot.source());
+                var backups = chain.stream()
+                        .map(x -> dir.resolve(x.id()).resolve(name))
+                        .filter(Files::exists)
+                        .toList();
+                if (backups.isEmpty()) {
+                    log.warn("The backup {} has no copy of {}", id, name);
+                    continue;
+                }
+                snapshot.restore(backups, target.resolve(name));
+            }
+        } finally {
+            snapshots.forEach(StoreSnapshot::close);
+        }
+        log.info("Restored the backup {} into {}", id, target);
+    }
+
+    private List<StoreSnapshot> snapshot() {
+        List<StoreSnapshot> snapshots = new ArrayList<>();
+        // the writes of the trades are held off, then the monitors taken, always in this order; nothing else holds more than one of them
+        return trades.holdingWrites(() -> {
+            synchronized (archive) {
+                synchronized (accounts) {
+                    snapshots.addAll(trades.snapshot());
+                    try {
+                        snapshots.addAll(archive.snapshot());
+                        snapshots.addAll(accounts.snapshot());
+                    } catch (RuntimeException e) {
+                        snapshots.forEach(StoreSnapshot::close);
+                        throw e;
+                    }
+                }
+            }
+            return snapshots;
+        });
+    }
+
+    // the path of the store relative to the working directory, or to the root for stores outside of it
+    private static String name(Path source) {
+        var path = source.toAbsolutePath().normalize();
+        var cwd = Path.of("").toAbsolutePath();
+        return (path.startsWith(cwd) ? cwd.relativize(path) : path.getRoot().relativize(path)).toString();
+    }
+}
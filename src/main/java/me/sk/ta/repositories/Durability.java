@@ -0,0 +1,20 @@
+package me.sk.ta.repositories;
+
+// When a committed write reaches the disk. Selected with db.durability in application.yml
+public enum Durability {
+    // the commit returns at once, the background writer of the store persists it within about a second
+    Async,
+    // every commit writes and syncs the store before it returns
+    Sync,
+    // concurrent commits share one write and sync of the store, each returns once the write covering it is done
+    Group;
+
+    public static Durability of(String name) {
+        for (var durability : values()) {
+            if (durability.name().equalsIgnoreCase(name)) {
+                return durability;
+            }
+        }
+        throw new IllegalArgumentException("Unknown durability: " + name);
+    }
+}
@@ -0,0 +1,98 @@
+package me.sk.ta.repositories;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hands out ids from blocks leased against a persisted high-water mark. Only the mark is written, once per block,
+// so an allocation costs no commit. Ids of a block not used up before a restart are skipped, never reused.
+public final class IdAllocator {
+
+    // where the mark is kept; set persists the new value before returning
+    public interface HighWaterMark {
+        long get();
+
+        void set(long value);
+    }
+
+    private final HighWaterMark mark;
+    private final int blockSize;
+    private final AtomicLong next = new AtomicLong();
+    // the highest id that may be handed out; persisted before it is raised
+    private volatile long limit;
+    // the mark is read on first use, so that the store holding it may still be opening when this is created
+    private volatile boolean started;
+
+    public IdAllocator(HighWaterMark mark, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize");
+        }
+        this.mark = mark;
+        this.blockSize = blockSize;
+    }
+
+    // the mark is the value of the key in the counters store, which holds the last id handed out before ids were leased
+    public static IdAllocator of(KvDb<String, Integer> counters, String key, int blockSize) {
+        return new IdAllocator(new HighWaterMark() {
+            @Override
+            public long get() {
+                return counters.find(key).orElse(0);
+            }
+
+            @Override
+            public void set(long value) {
+                if (counters.save(key, Math.toIntExact(value)) == false) {
+                    throw new RuntimeException("Could not lease ids of " + key);
+                }
+            }
+        }, blockSize);
+    }
+
+    public long next() {
+        return reserve(1);
+    }
+
+    // reserves count consecutive ids and returns the first one
+    public long reserve(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count");
+        }
+        start();
+        while (true) {
+            var first = next.get();
+            if (first + count - 1 <= limit) {
+                if (next.compareAndSet(first, first + count)) {
+                    return first;
+                }
+            } else {
+                lease(first + count - 1);
+            }
+        }
+    }
+
+    // every id handed out so far is at most the mark
+    public long highWaterMark() {
+        start();
+        return limit;
+    }
+
+    private void start() {
+        if (started) {
+            return;
+        }
+        synchronized (this) {
+            if (started == false) {
+                limit = mark.get();
+                next.set(limit + 1);
+                started = true;
+            }
+        }
+    }
+
+    private synchronized void lease(long upTo) {
+        if (upTo <= limit) {
+            return;
+        }
+        var newLimit = Math.max(upTo, limit + blockSize);
+        mark.set(newLimit);
+        limit = newLimit;
+    }
+}
@@ -0,0 +1,70 @@
+package me.sk.ta.repositories;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+// Index keys are the json form of the key. Dates are always written as quoted ISO dates ("2022-12-31"),
+// whatever the date settings of the mapper, so that the lexical order of date keys is their chronological order.
+// Numbers are written likewise as quoted fixed width hex of their bits, the sign bit flipped, and all the bits of
+// the negative floating point numbers, so that the lexical order of number keys is their numeric order.
+final class IndexKeys {
+    // the version of the encoding; 1 wrote the numbers as json numbers, whose lexical order is not numeric
+    static final int VERSION = 2;
+
+    private IndexKeys() {
+    }
+
+    static String encode(ObjectMapper serializer, Object key) throws JsonProcessingException {
+        if (key instanceof LocalDate date) {
+            return '"' + date.format(DateTimeFormatter.ISO_LOCAL_DATE) + '"';
+        }
+        if (key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte) {
+            return hex(((Number) key).longValue() ^ Long.MIN_VALUE);
+        }
+        if (key instanceof Double || key instanceof Float) {
+            var bits = Double.doubleToLongBits(((Number) key).doubleValue());
+            return hex(bits < 0 ? ~bits : bits ^ Long.MIN_VALUE);
+        }
+        return serializer.writeValueAsString(key);
+    }
+
+    static <K> K decode(ObjectMapper serializer, String key, Class<K> keyClass) throws JsonProcessingException {
+        if (ordered(keyClass) == false) {
+            return serializer.readValue(key, keyClass);
+        }
+        var bits = Long.parseUnsignedLong(key.substring(1, key.length() - 1), 16);
+        if (keyClass == Double.class || keyClass == Float.class) {
+            var value = Double.longBitsToDouble(bits < 0 ? bits ^ Long.MIN_VALUE : ~bits);
+            return keyClass.cast(keyClass == Float.class ? (Object) (float) value : (Object) value);
+        }
+        var value = bits ^ Long.MIN_VALUE;
+        if (keyClass == Integer.class) {
+            return keyClass.cast((int) value);
+        }
+        if (keyClass == Short.class) {
+            return keyClass.cast((short) value);
+        }
+        return keyClass.cast(keyClass == Byte.class ? (Object) (byte) value : (Object) value);
+    }
+
+    // whether the keys of the class are numbers encoded in numeric order
+    static boolean ordered(Class<?> keyClass) {
+        return keyClass == Long.class || keyClass == Integer.class || keyClass == Short.class || keyClass == Byte.class
+                || keyClass == Double.class || keyClass == Float.class;
+    }
+
+    private static String hex(long bits) {
+        return '"' + String.format("%016x", bits) + '"';
+    }
+
+    // range scans rely on the lexical order of the encoded keys, which the other numbers, such as BigDecimal, do not
+    // have, nor the enums, encoded by their names
+    static void checkOrdered(Class<?> keyClass) {
+        if (keyClass.isEnum() || Number.class.isAssignableFrom(keyClass) && ordered(keyClass) == false) {
+            throw new IllegalArgumentException("Range scans are not supported on " + keyClass.getSimpleName() + " keys");
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package me.sk.ta.repositories;
+
+import java.util.List;
+
+// The outcome of comparing the indexes of a store with the entries recomputed from its primary map.
+// Orphans are index entries no stored value accounts for, missing entries are those the values call for but the index lacks.
+public record IndexReport(int scanned, List<Entry> missing, List<Entry> orphans, long elapsedMs) {
+
+    public record Entry(String index, Object key, int id) {
+    }
+
+    public boolean isConsistent() {
+        return missing.isEmpty() && orphans.isEmpty();
+    }
+}
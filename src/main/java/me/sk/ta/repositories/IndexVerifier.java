@@ -0,0 +1,107 @@
+package me.sk.ta.repositories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+// Recomputes the entries of the indexes of a store from its primary map, keyed by int id, and compares them with
+// the entries found in the indexes. The primary map is read in key ranges in parallel, without taking any lock,
+// so the check runs against a live store; repair re-reads the values involved before changing the indexes.
+class IndexVerifier<T> {
+    private static final Logger log = LoggerFactory.getLogger(IndexVerifier.class);
+
+    record IndexedKeys<K, T>(String name, KvIndex<K, Integer> index, Function<T, Collection<K>> keys) {
+    }
+
+    private final KvDb<Integer, T> db;
+    private final Function<T, Integer> id;
+    private final List<IndexedKeys<?, T>> indexes;
+
+    IndexVerifier(KvDb<Integer, T> db, Function<T, Integer> id, List<IndexedKeys<?, T>> indexes) {
+        this.db = db;
+        this.id = id;
+        this.indexes = indexes;
+    }
+
+    // lastId is where the ids are split into ranges; ids above it are read by the last range
+    IndexReport verify(int lastId) {
+        var start = System.nanoTime();
+        Map<String, Set<Map.Entry<Object, Integer>>> expected = new ConcurrentHashMap<>();
+        indexes.forEach(x -> expected.put(x.name(), ConcurrentHashMap.newKeySet()));
+        var scanned = new AtomicInteger();
+        var ranges = Runtime.getRuntime().availableProcessors() * 4;
+        var width = Math.max(1, lastId / ranges);
+        IntStream.range(0, ranges).parallel().forEach(n -> {
+            var from = n == 0 ? Integer.MIN_VALUE : n * width + 1;
+            var to = n == ranges - 1 ? Integer.MAX_VALUE : (n + 1) * width;
+            for (var value : db.findRange(from, to)) {
+                scanned.incrementAndGet();
+                for (var indexed : indexes) {
+                    expected.get(indexed.name()).addAll(entries(indexed, value));
+                }
+            }
+        });
+
+        List<IndexReport.Entry> missing = new ArrayList<>();
+        List<IndexReport.Entry> orphans = new ArrayList<>();
+        for (var indexed : indexes) {
+            var wanted = expected.get(indexed.name());
+            var found = new HashSet<Map.Entry<?, Integer>>(indexed.index().entries());
+            found.stream().filter(x -> !wanted.contains(x))
+                    .forEach(x -> orphans.add(new IndexReport.Entry(indexed.name(), x.getKey(), x.getValue())));
+            wanted.stream().filter(x -> !found.contains(x))
+                    .forEach(x -> missing.add(new IndexReport.Entry(indexed.name(), x.getKey(), x.getValue())));
+        }
+        var report = new IndexReport(scanned.get(), missing, orphans, (System.nanoTime() - start) / 1_000_000);
+        log.info("Verified the indexes of {} values in {} ms: {} missing, {} orphaned entries",
+                report.scanned(), report.elapsedMs(), missing.size(), orphans.size());
+        return report;
+    }
+
+    // Adds the missing entries and deletes the orphans of the report in the given transactions, one per index.
+    // The values are read again first, so an entry a write has fixed since the report was made is left alone.
+    // Writers must be held off until the transactions are committed.
+    boolean repair(IndexReport report, Map<KvIndex<?, Integer>, KvTransaction> txs) {
+        var result = true;
+        for (var entry : report.missing()) {
+            var indexed = find(entry.index());
+            if (current(indexed, entry)) {
+                result &= indexed.index().index(entry.key(), entry.id(), txs.get(indexed.index()));
+            }
+        }
+        for (var entry : report.orphans()) {
+            var indexed = find(entry.index());
+            if (current(indexed, entry) == false) {
+                result &= indexed.index().delete(entry.key(), entry.id(), txs.get(indexed.index()));
+            }
+        }
+        return result;
+    }
+
+    private boolean current(IndexedKeys<Object, T> indexed, IndexReport.Entry entry) {
+        return db.find(entry.id())
+                .map(x -> indexed.keys().apply(x).contains(entry.key()))
+                .orElse(false);
+    }
+
+    // the keys of the entries of a report were read from the index or from the keys of its values, which are of its type
+    @SuppressWarnings("unchecked")
+    private IndexedKeys<Object, T> find(String name) {
+        return (IndexedKeys<Object, T>) indexes.stream().filter(x -> x.name().equals(name)).findFirst().orElseThrow();
+    }
+
+    private List<Map.Entry<Object, Integer>> entries(IndexedKeys<?, T> indexed, T value) {
+        var valueId = id.apply(value);
+        return indexed.keys().apply(value).stream().map(x -> Map.entry((Object) x, valueId)).toList();
+    }
+}
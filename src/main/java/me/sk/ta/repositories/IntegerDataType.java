@@ -0,0 +1,40 @@
+package me.sk.ta.repositories;
+
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.WriteBuffer;
+
+import java.nio.ByteBuffer;
+
+public class IntegerDataType extends VersionedDataType<Integer> {
+    private static final byte VERSION = 1;
+
+    @Override
+    protected byte currentVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public Class<Integer> getValueClass() {
+        return Integer.class;
+    }
+
+    @Override
+    public Integer[] createStorage(int size) {
+        return new Integer[size];
+    }
+
+    @Override
+    public int getMemory(Integer value) {
+        return 16;
+    }
+
+    @Override
+    protected void writeBody(WriteBuffer buff, Integer value) {
+        buff.putVarInt(value);
+    }
+
+    @Override
+    protected Integer readBody(ByteBuffer buff, byte version) {
+        return DataUtils.readVarInt(buff);
+    }
+}
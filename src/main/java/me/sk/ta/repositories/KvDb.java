@@ -1,26 +1,47 @@
 package me.sk.ta.repositories;
 
-import org.h2.mvstore.tx.Transaction;
-
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 public interface KvDb<K, V> {
 
     Optional<V> find(K key);
-    Optional<V> find(K key, Transaction tx);
+    Optional<V> find(K key, KvTransaction tx);
 
     List<V> findAll(Function<V, Optional<V>> filter);
 
+    // values in key order, read one entry at a time as the stream is consumed.
+    // startAfter == null starts from the first key, limit <= 0 means no limit. Close the stream when done.
+    Stream<V> scan(K startAfter, long limit);
+
+    // values whose keys fall within [fromKey, toKey], in key order
+    List<V> findRange(K fromKey, K toKey);
+
     boolean delete(K key);
-    boolean delete(K key, Transaction x);
+    boolean delete(K key, KvTransaction tx);
 
     void close();
 
-    Transaction beginTransaction();
-    boolean save(K key, V value, Transaction tx);
+    // gives the space of deleted and overwritten entries back to the file system
+    void compact();
+
+    // writes the committed entries to the disk and waits until they are there, whatever the durability of the commits
+    void flush();
+
+    // Point-in-time views of the stores holding the entries for a backup, one store but for a sharded db, see
+    // ShardedKvDb. To be taken while no write is in progress; see DbBackup
+    List<Supplier<StoreSnapshot>> snapshots();
+
+    KvTransaction beginTransaction();
+    boolean save(K key, V value, KvTransaction tx);
     boolean save(K key, V value);
+    // all entries are written in one transaction: saveAll(entries) commits once, the tx variant leaves the commit to the caller
+    boolean saveAll(Map<K, V> entries, KvTransaction tx);
+    boolean saveAll(Map<K, V> entries);
 
     V get(K key);
 
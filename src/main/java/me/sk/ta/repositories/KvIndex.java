@@ -0,0 +1,65 @@
+package me.sk.ta.repositories;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+public interface KvIndex<K, V> {
+
+    enum IndexingStrategy {
+        PostfixValue,
+        // one entry per key holding the int values of the key as an encoded PostingList
+        MultipleValues,
+        PostfixWithCount
+    }
+
+    List<V> find(K key);
+
+    // values of the keys within [fromKey, toKey], in key order; for keys whose encoding sorts like the keys, such as dates
+    List<V> findRange(K fromKey, K toKey);
+
+    // The values of the key as a posting list, for indexes of int values. Postings of different keys,
+    // or of different indexes, are combined with PostingList.union and PostingList.intersect.
+    @SuppressWarnings("unchecked")
+    default PostingList postings(K key) {
+        return PostingList.of((List<Integer>) find(key));
+    }
+
+    // the union of the postings of the keys within [fromKey, toKey]
+    @SuppressWarnings("unchecked")
+    default PostingList postings(K fromKey, K toKey) {
+        return PostingList.of((List<Integer>) findRange(fromKey, toKey));
+    }
+
+    // every committed key/value pair of the index, in key order
+    List<Map.Entry<K, V>> entries();
+
+    // the committed key/value pairs of the keys within [fromKey, toKey], in key order; for keys ordered like findRange
+    List<Map.Entry<K, V>> entries(K fromKey, K toKey);
+
+    KvTransaction beginTransaction();
+
+    boolean index(K key, V value);
+    boolean index(K key, V value, KvTransaction tx);
+    // indexes all the key/value pairs in the given transaction
+    boolean indexAll(List<Map.Entry<K, V>> entries, KvTransaction tx);
+
+    boolean delete(K key, V value);
+    boolean delete(K key, V value, KvTransaction tx);
+
+    void clear();
+
+    void close();
+
+    // gives the space of deleted entries back to the file system
+    void compact();
+
+    // writes the committed entries to the disk and waits until they are there, whatever the durability of the commits
+    void flush();
+
+    // Point-in-time views of the stores holding the entries for a backup, one store but for a sharded index, see
+    // ShardedKvIndex. To be taken while no write is in progress; see DbBackup
+    List<Supplier<StoreSnapshot>> snapshots();
+
+    boolean drop();
+}
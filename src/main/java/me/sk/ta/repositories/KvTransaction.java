@@ -0,0 +1,17 @@
+package me.sk.ta.repositories;
+
+// A unit of work on a single store, handed out by KvDb.beginTransaction and KvIndex.beginTransaction
+// and passed back to the write methods that take a transaction.
+public interface KvTransaction {
+    void commit();
+
+    // Commits and returns the wait for the commit to reach the disk, see Durability. A caller holding a lock
+    // runs the wait once it has released the lock, so that the commits waiting meanwhile can share one store write.
+    default Runnable commitDeferred() {
+        commit();
+        return () -> {
+        };
+    }
+
+    void rollback();
+}
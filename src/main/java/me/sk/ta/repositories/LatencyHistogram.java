@@ -0,0 +1,71 @@
+package me.sk.ta.repositories;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latencies counted in buckets of powers of two microseconds, recorded without taking a lock.
+// Bucket 0 holds the latencies under a microsecond, bucket i those in [2^(i-1), 2^i) microseconds.
+public final class LatencyHistogram {
+    static final int BUCKETS = 32;
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+    // the percentiles are the upper bounds of their buckets; buckets maps the upper bound in microseconds of
+    // every bucket holding latencies to their count
+    public record Snapshot(long count, double meanMicros, long maxMicros, long p50Micros, long p99Micros, Map<Long, Long> buckets) {
+    }
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        var micros = Math.max(nanos, 0) / 1000;
+        var bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts[bucket].increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    // records the time since start, a value of System.nanoTime
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    public Snapshot snapshot() {
+        var counted = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counted[i] = counts[i].sum();
+            count += counted[i];
+        }
+        Map<Long, Long> buckets = new LinkedHashMap<>();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counted[i] > 0) {
+                buckets.put(1L << i, counted[i]);
+            }
+        }
+        var mean = count == 0 ? 0 : totalNanos.sum() / 1000.0 / count;
+        return new Snapshot(count, mean, maxNanos.get() / 1000, percentile(counted, count, 0.5), percentile(counted, count, 0.99), buckets);
+    }
+
+    private static long percentile(long[] counted, long count, double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        var rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counted[i];
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+}
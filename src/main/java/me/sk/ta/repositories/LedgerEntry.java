@@ -0,0 +1,21 @@
+package me.sk.ta.repositories;
+
+import me.sk.ta.domain.TradingAccountEntry;
+
+// An entry of the ledger of an account, with what makes up its key: the account, the date of the entry and the
+// sequence number it was posted with. Keys sort by account, then date, then the order of posting.
+record LedgerEntry(int account, long sequence, TradingAccountEntry entry) {
+
+    String key() {
+        return key(account, entry.date().toString(), sequence);
+    }
+
+    static String key(int account, String date, long sequence) {
+        return String.format("%010d|%s|%019d", account, date, sequence);
+    }
+
+    // sorts before the keys of the account
+    static String accountPrefix(int account) {
+        return String.format("%010d|", account);
+    }
+}
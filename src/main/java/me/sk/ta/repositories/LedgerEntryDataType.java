@@ -0,0 +1,56 @@
+package me.sk.ta.repositories;
+
+import me.sk.ta.domain.AccountTransactionType;
+import me.sk.ta.domain.TradingAccountEntry;
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.WriteBuffer;
+
+import java.nio.ByteBuffer;
+
+public class LedgerEntryDataType extends VersionedDataType<LedgerEntry> {
+    private static final byte VERSION = 1;
+
+    @Override
+    protected byte currentVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public Class<LedgerEntry> getValueClass() {
+        return LedgerEntry.class;
+    }
+
+    @Override
+    public LedgerEntry[] createStorage(int size) {
+        return new LedgerEntry[size];
+    }
+
+    @Override
+    public int getMemory(LedgerEntry value) {
+        return 112 + stringMemory(value.entry().businessTransactionId());
+    }
+
+    @Override
+    protected void writeBody(WriteBuffer buff, LedgerEntry value) {
+        buff.putVarInt(value.account());
+        buff.putVarLong(value.sequence());
+        var entry = value.entry();
+        putEnum(buff, entry.transType());
+        putString(buff, entry.businessTransactionId());
+        buff.putDouble(entry.amount());
+        putDate(buff, entry.date());
+        putBoolean(buff, entry.isTradeClosed());
+    }
+
+    @Override
+    protected LedgerEntry readBody(ByteBuffer buff, byte version) {
+        var account = DataUtils.readVarInt(buff);
+        var sequence = DataUtils.readVarLong(buff);
+        return new LedgerEntry(account, sequence, new TradingAccountEntry(
+                getEnum(buff, AccountTransactionType.class),
+                getString(buff),
+                buff.getDouble(),
+                getDate(buff),
+                getBoolean(buff)));
+    }
+}
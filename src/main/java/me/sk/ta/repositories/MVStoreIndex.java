@@ -7,6 +7,7 @@ import org.h2.mvstore.MVStore;
 import org.h2.mvstore.tx.Transaction;
 import org.h2.mvstore.tx.TransactionMap;
 import org.h2.mvstore.tx.TransactionStore;
+import org.h2.value.VersionedValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,101 +15,287 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
-public class MVStoreIndex<K, V> {
+public class MVStoreIndex<K, V> implements KvIndex<K, V> {
     private static final Logger log = LoggerFactory.getLogger(MVStoreIndex.class);
     final MVStore indexDb;
     final TransactionStore ts;
     final String indexName;
     final IndexingStrategy strategy;
-    File baseDir;
-    final Class valueClass;
-    final Class keyClass;
+    final File baseDir;
+    final Class<V> valueClass;
+    final Class<? extends K> keyClass;
     final String keySeparator;
     final ObjectMapper serializer;
+    final MVMap<String, VersionedValue<Object>> committedMap;
+    // null when the index has a store of its own
+    final SharedMVStore store;
+    final StoreCommits commits;
+    final StoreMetrics metrics;
+    // the postfixes of PostfixWithCount, null for the other strategies
+    final IdAllocator postfixCounts;
 
-    public MVStoreIndex(String dbFolder, String indexName, IndexingStrategy strategy, Class valueType, Class keyClass, String keySeparator, ObjectMapper serializer) {
+    public MVStoreIndex(String dbFolder, String indexName, IndexingStrategy strategy, Class<V> valueType, Class<? extends K> keyClass, String keySeparator, ObjectMapper serializer) {
+        this(dbFolder, indexName, strategy, valueType, keyClass, keySeparator, serializer, Durability.Async);
+    }
+
+    public MVStoreIndex(String dbFolder, String indexName, IndexingStrategy strategy, Class<V> valueType, Class<? extends K> keyClass, String keySeparator, ObjectMapper serializer, Durability durability) {
+        this(null, new File(dbFolder, indexName), indexName, strategy, valueType, keyClass, keySeparator, serializer, durability);
+    }
+
+    // the index map lives in the shared store, next to the maps of the other repositories and indexes using it
+    public MVStoreIndex(SharedMVStore store, String indexName, IndexingStrategy strategy, Class<V> valueType, Class<? extends K> keyClass, String keySeparator, ObjectMapper serializer) {
+        this(store, store.baseDir, indexName, strategy, valueType, keyClass, keySeparator, serializer, store.commits.durability);
+    }
+
+    private MVStoreIndex(SharedMVStore store, File baseDir, String indexName, IndexingStrategy strategy, Class<V> valueType, Class<? extends K> keyClass, String keySeparator, ObjectMapper serializer, Durability durability) {
         this.strategy = strategy;
         this.valueClass = valueType;
         this.keyClass = keyClass;
         this.indexName = indexName;
         this.keySeparator = keySeparator;
         this.serializer = serializer;
+        this.store = store;
+        this.baseDir = baseDir;
         if (strategy.equals(IndexingStrategy.PostfixValue) || strategy.equals(IndexingStrategy.PostfixWithCount)) {
             if (keySeparator == null || keySeparator.isEmpty()) {
                 throw new RuntimeException("key separator is required for PostfixValue/PostfixWithCount strategies");
             }
         }
-        baseDir = new File(dbFolder, indexName);
-
-        try {
-            log.debug("Creating path: {}", baseDir.getParentFile().toPath());
-            Files.createDirectories(baseDir.getParentFile().toPath());
-            indexDb = new MVStore.Builder()
-                    .fileName(baseDir.getAbsolutePath())
-                    .encryptionKey("007".toCharArray())
-                    .compress()
-                    .open();
-            ts = new TransactionStore(indexDb);
-            log.info("{} IndexDB initialized at {}", indexName, baseDir.getAbsoluteFile().toPath());
-        } catch (IOException e) {
-            log.error("Error initializing IndexDB. Exception: '{}', message: '{}'", e.getCause(), e.getMessage(), e);
-            throw new RuntimeException(e);
+        if (strategy.equals(IndexingStrategy.MultipleValues) && valueType != Integer.class) {
+            throw new IllegalArgumentException("MultipleValues strategy requires Integer values");
         }
-    }
 
-    public enum IndexingStrategy {
-        PostfixValue,
-        MultipleValues,
-        PostfixWithCount
+        if (store != null) {
+            indexDb = store.db;
+            ts = store.ts;
+            commits = store.commits;
+        } else {
+            try {
+                log.debug("Creating path: {}", baseDir.getParentFile().toPath());
+                Files.createDirectories(baseDir.getParentFile().toPath());
+                indexDb = new MVStore.Builder()
+                        .fileName(baseDir.getAbsolutePath())
+                        .encryptionKey("007".toCharArray())
+                        .compress()
+                        .open();
+                ts = new TransactionStore(indexDb);
+                commits = new StoreCommits(indexDb, durability);
+            } catch (IOException e) {
+                log.error("Error initializing IndexDB. Exception: '{}', message: '{}'", e.getCause(), e.getMessage(), e);
+                throw new RuntimeException(e);
+            }
+        }
+        var tx = ts.begin();
+        TransactionMap<String, Object> map = tx.openMap(indexName);
+        committedMap = map.map;
+        if (strategy == IndexingStrategy.MultipleValues) {
+            migratePostfixedEntries(map);
+        }
+        tx.commit();
+        postfixCounts = strategy == IndexingStrategy.PostfixWithCount ? new IdAllocator(new PostfixCount(), 1000) : null;
+        metrics = StoreMetrics.register(store != null ? baseDir.getPath() + ":" + indexName : baseDir.getPath(), indexDb, ts, commits);
+        log.info("{} IndexDB initialized at {}", indexName, baseDir.getAbsoluteFile().toPath());
     }
 
-    public synchronized Transaction beginTransaction() {
-        return ts.begin();
+    @Override
+    public synchronized KvTransaction beginTransaction() {
+        return new MVStoreTransaction(ts.begin(), commits);
     }
 
-    public synchronized List<V> find(K desiredKey) {
+    // Lookups read the committed entries of the index map without taking the monitor or opening a transaction.
+    // The entries of a key are stored under the encoded key itself and under the encoded key, the separator and a postfix.
+    @Override
+    public List<V> find(K desiredKey) {
         if (desiredKey == null) {
             throw new IllegalArgumentException("indexKey");
         }
-        List<V> result = new ArrayList<>();
-        var tx = beginTransaction();
+        var start = System.nanoTime();
         try {
-            TransactionMap<String, String> map = tx.openMap(indexName);
-            var ikd = serializer.writeValueAsString(desiredKey);
-            Iterator<String> it = map.keyIterator(ikd);
-            while (it.hasNext()) {
-                var key = it.next();
-                if (key.startsWith(ikd) == false) {
-                    break;
-                }
-                result.add(getValue(key, map.get(ikd)));
+            return findCommitted(desiredKey);
+        } finally {
+            metrics.record(StoreMetrics.Operation.Find, start);
+        }
+    }
+
+    private List<V> findCommitted(K desiredKey) {
+        if (strategy == IndexingStrategy.MultipleValues) {
+            return values(postings(desiredKey));
+        }
+        List<V> result = new ArrayList<>();
+        var ikd = encodeKey(desiredKey);
+        addCommitted(result, ikd, committedMap.get(ikd));
+        var prefix = ikd + keySeparator;
+        var cursor = committedMap.cursor(prefix);
+        while (cursor.hasNext()) {
+            var key = cursor.next();
+            if (key.startsWith(prefix) == false) {
+                break;
             }
+            addCommitted(result, key, cursor.getValue());
+        }
+        return result;
+    }
+
+    // Encoded string, date and number keys end with a quote, which sorts before the characters of a key,
+    // so the entries of every key in the range are contiguous and in key order.
+    @Override
+    public List<V> findRange(K fromKey, K toKey) {
+        if (fromKey == null || toKey == null) {
+            throw new IllegalArgumentException("fromKey and toKey are required");
+        }
+        IndexKeys.checkOrdered(keyClass);
+        var start = System.nanoTime();
+        try {
+            return findRangeCommitted(fromKey, toKey);
+        } finally {
+            metrics.record(StoreMetrics.Operation.FindRange, start);
+        }
+    }
+
+    private List<V> findRangeCommitted(K fromKey, K toKey) {
+        List<V> result = new ArrayList<>();
+        if (strategy == IndexingStrategy.MultipleValues) {
+            committedPostings(fromKey, toKey).forEach(x -> result.addAll(values(x)));
             return result;
+        }
+        var to = encodeKey(toKey);
+        var lastPrefix = to + keySeparator;
+        var cursor = committedMap.cursor(encodeKey(fromKey));
+        while (cursor.hasNext()) {
+            var key = cursor.next();
+            if (key.compareTo(to) > 0 && key.startsWith(lastPrefix) == false) {
+                break;
+            }
+            addCommitted(result, key, cursor.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public PostingList postings(K key) {
+        if (strategy != IndexingStrategy.MultipleValues) {
+            return KvIndex.super.postings(key);
+        }
+        if (key == null) {
+            throw new IllegalArgumentException("indexKey");
+        }
+        var value = committedMap.get(encodeKey(key));
+        return PostingList.decode(value == null ? null : (byte[]) value.getCommittedValue());
+    }
+
+    @Override
+    public PostingList postings(K fromKey, K toKey) {
+        if (strategy != IndexingStrategy.MultipleValues) {
+            return KvIndex.super.postings(fromKey, toKey);
+        }
+        if (fromKey == null || toKey == null) {
+            throw new IllegalArgumentException("fromKey and toKey are required");
+        }
+        IndexKeys.checkOrdered(keyClass);
+        return committedPostings(fromKey, toKey).stream().reduce(new PostingList(), PostingList::union);
+    }
+
+    // the committed posting lists of the keys within [fromKey, toKey], in key order
+    private List<PostingList> committedPostings(K fromKey, K toKey) {
+        List<PostingList> result = new ArrayList<>();
+        var to = encodeKey(toKey);
+        var cursor = committedMap.cursor(encodeKey(fromKey));
+        while (cursor.hasNext()) {
+            var key = cursor.next();
+            if (key.compareTo(to) > 0) {
+                break;
+            }
+            var committed = cursor.getValue().getCommittedValue();
+            if (committed != null) {
+                result.add(PostingList.decode((byte[]) committed));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Map.Entry<K, V>> entries() {
+        return committedEntries(null, null);
+    }
+
+    @Override
+    public List<Map.Entry<K, V>> entries(K fromKey, K toKey) {
+        if (fromKey == null || toKey == null) {
+            throw new IllegalArgumentException("fromKey and toKey are required");
+        }
+        IndexKeys.checkOrdered(keyClass);
+        return committedEntries(encodeKey(fromKey), encodeKey(toKey));
+    }
+
+    // the committed pairs of the encoded keys within [from, to], with the postfixed entries of to; every pair when to is null
+    private List<Map.Entry<K, V>> committedEntries(String from, String to) {
+        List<Map.Entry<K, V>> result = new ArrayList<>();
+        var lastPrefix = to + keySeparator;
+        var cursor = committedMap.cursor(from);
+        while (cursor.hasNext()) {
+            var key = cursor.next();
+            if (to != null && key.compareTo(to) > 0 && key.startsWith(lastPrefix) == false) {
+                break;
+            }
+            var committed = cursor.getValue().getCommittedValue();
+            if (committed == null) {
+                continue;
+            }
+            if (strategy == IndexingStrategy.MultipleValues) {
+                var decoded = decodeKey(key);
+                PostingList.decode((byte[]) committed).toList().forEach(x -> result.add(Map.entry(decoded, valueClass.cast(x))));
+            } else {
+                var at = key.indexOf(keySeparator);
+                result.add(Map.entry(decodeKey(at < 0 ? key : key.substring(0, at)), getValue(key, (String) committed)));
+            }
+        }
+        return result;
+    }
+
+    private K decodeKey(String key) {
+        try {
+            return IndexKeys.decode(serializer, key, keyClass);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // the values of a MultipleValues index, whose values are Integers, see the constructor
+    @SuppressWarnings("unchecked")
+    private List<V> values(PostingList postings) {
+        return (List<V>) postings.toList();
+    }
+
+    private void addCommitted(List<V> result, String key, VersionedValue<Object> value) {
+        // null when inserted by a transaction that has not committed yet
+        var committed = value == null ? null : value.getCommittedValue();
+        if (committed != null) {
+            result.add(getValue(key, (String) committed));
+        }
+    }
+
+    private String encodeKey(K key) {
+        try {
+            return IndexKeys.encode(serializer, key);
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
-        } finally {
-            tx.commit();
         }
     }
 
-    private synchronized V getValue(String key, String value) {
+    // every entry holds the json value, whether it is stored under the bare key or a postfixed one
+    private V getValue(String key, String value) {
         try {
             switch (strategy) {
-                case PostfixWithCount -> {
-                    return (V) serializer.readValue(value, valueClass);
-                }
-                case PostfixValue -> {
-                    var posOfValue = key.indexOf(keySeparator) + keySeparator.length();
-                    if (posOfValue < key.length())
-                        return (V) serializer.readValue(value, valueClass);
-                    else
-                        return (V) serializer.readValue(key.substring(posOfValue, key.length()), valueClass);
+                case PostfixWithCount, PostfixValue -> {
+                    return serializer.readValue(value, valueClass);
                 }
                 case MultipleValues -> {
-                    throw new RuntimeException("MultipleValues strategy is not implemented");
+                    throw new IllegalStateException("MultipleValues entries hold posting lists");
                 }
             }
             return null;
@@ -117,6 +304,7 @@ public class MVStoreIndex<K, V> {
         }
     }
 
+    @Override
     public synchronized boolean index(K key, V value) {
         var tx = beginTransaction();
         try {
@@ -133,7 +321,8 @@ public class MVStoreIndex<K, V> {
         }
     }
 
-    public synchronized boolean index(K key, V value, Transaction tx) {
+    @Override
+    public synchronized boolean index(K key, V value, KvTransaction kvTx) {
         if (key == null) {
             throw new IllegalArgumentException("key");
         }
@@ -142,21 +331,85 @@ public class MVStoreIndex<K, V> {
         }
         log.debug("saving value '{}' with key '{}'", value, key);
 
+        var start = System.nanoTime();
+        var tx = MVStoreTransaction.of(kvTx);
         try {
-            TransactionMap<String, String> map = tx.openMap(indexName);
-            if (map.get(serializer.writeValueAsString(key)) == null) {
-                map.put(serializer.writeValueAsString(key), serializer.writeValueAsString(value));
+            TransactionMap<String, Object> map = tx.openMap(indexName);
+            if (strategy == IndexingStrategy.MultipleValues) {
+                addPostings(map, Map.of(encodeKey(key), List.of((Integer) value)));
             } else {
-                map.put(generateKey(key, value), serializer.writeValueAsString(value));
+                put(map, key, value);
             }
-            tx.prepare();
         } catch (JsonProcessingException e) {
             log.error("Error saving entry. Cause: '{}', message: '{}'", e.getCause(), e.getMessage());
             return false;
+        } finally {
+            metrics.record(StoreMetrics.Operation.Index, start);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean indexAll(List<Map.Entry<K, V>> entries, KvTransaction kvTx) {
+        log.debug("saving {} entries", entries.size());
+        var start = System.nanoTime();
+        var tx = MVStoreTransaction.of(kvTx);
+        try {
+            TransactionMap<String, Object> map = tx.openMap(indexName);
+            // the values of a key are added to its posting list in one read and one write
+            Map<String, List<Integer>> postings = new LinkedHashMap<>();
+            for (var entry : entries) {
+                if (entry.getKey() == null) {
+                    throw new IllegalArgumentException("key");
+                }
+                if (entry.getValue() == null) {
+                    throw new IllegalArgumentException("value");
+                }
+                if (strategy == IndexingStrategy.MultipleValues) {
+                    postings.computeIfAbsent(encodeKey(entry.getKey()), x -> new ArrayList<>()).add((Integer) entry.getValue());
+                } else {
+                    put(map, entry.getKey(), entry.getValue());
+                }
+            }
+            addPostings(map, postings);
+        } catch (JsonProcessingException e) {
+            log.error("Error saving entries. Cause: '{}', message: '{}'", e.getCause(), e.getMessage());
+            return false;
+        } finally {
+            metrics.record(StoreMetrics.Operation.Index, start);
         }
         return true;
     }
 
+    // the posting lists are locked for the rest of the transaction, so concurrent writers do not lose each other's values
+    private void addPostings(TransactionMap<String, Object> map, Map<String, List<Integer>> postings) {
+        for (var entry : postings.entrySet()) {
+            var list = PostingList.decode((byte[]) map.lock(entry.getKey()));
+            var changed = false;
+            for (var value : entry.getValue()) {
+                changed |= list.add(value);
+            }
+            if (changed) {
+                map.put(entry.getKey(), list.encode());
+            }
+        }
+    }
+
+    private void put(TransactionMap<String, Object> map, K key, V value) throws JsonProcessingException {
+        var ks = encodeKey(key);
+        var vs = serializer.writeValueAsString(value);
+        var existing = map.get(ks);
+        if (existing == null) {
+            map.put(ks, vs);
+        } else if (strategy == IndexingStrategy.PostfixValue && existing.equals(vs)) {
+            // already indexed under the bare key
+            return;
+        } else {
+            map.put(generateKey(key, value), vs);
+        }
+    }
+
+    @Override
     public synchronized boolean delete(K key, V indexValue) {
         var tx = beginTransaction();
         try {
@@ -173,34 +426,110 @@ public class MVStoreIndex<K, V> {
         }
     }
 
-    public synchronized boolean delete(K indexKey, V indexValue, Transaction tx) {
+    @Override
+    public synchronized boolean delete(K indexKey, V indexValue, KvTransaction kvTx) {
         if (indexKey == null) {
             throw new IllegalArgumentException("indexKey");
         }
         if (indexValue == null) {
             throw new IllegalArgumentException("indexValue");
         }
-        MVMap<String, String> map = indexDb.openMap(indexName);
-        if (map.remove(generateKey(indexKey, indexValue)) == null) {
-            tx.prepare();
-            return true;
-        } else {
+        var start = System.nanoTime();
+        var tx = MVStoreTransaction.of(kvTx);
+        try {
+            TransactionMap<String, Object> map = tx.openMap(indexName);
+            var ks = encodeKey(indexKey);
+            if (strategy == IndexingStrategy.MultipleValues) {
+                var list = PostingList.decode((byte[]) map.lock(ks));
+                if (list.remove((Integer) indexValue)) {
+                    if (list.isEmpty()) {
+                        map.remove(ks);
+                    } else {
+                        map.put(ks, list.encode());
+                    }
+                }
+                return true;
+            }
+            var vs = serializer.writeValueAsString(indexValue);
+            if (vs.equals(map.get(ks))) {
+                map.remove(ks);
+            }
+            var prefix = ks + keySeparator;
+            List<String> postfixed = new ArrayList<>();
+            for (var it = map.keyIterator(prefix); it.hasNext(); ) {
+                var key = it.next();
+                if (key.startsWith(prefix) == false) {
+                    break;
+                }
+                if (vs.equals(map.get(key))) {
+                    postfixed.add(key);
+                }
+            }
+            postfixed.forEach(map::remove);
+        } catch (JsonProcessingException e) {
+            log.error("Error deleting entry. Cause: '{}', message: '{}'", e.getCause(), e.getMessage());
             return false;
+        } finally {
+            metrics.record(StoreMetrics.Operation.Delete, start);
         }
+        // deleting an entry that is not in the index is not an error
+        return true;
     }
 
+    @Override
+    public void compact() {
+        if (store != null) {
+            store.compact();
+        } else {
+            SharedMVStore.compact(indexDb, baseDir);
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (store != null) {
+            store.flush();
+        } else {
+            SharedMVStore.flush(indexDb);
+        }
+    }
+
+    @Override
+    public List<Supplier<StoreSnapshot>> snapshots() {
+        return List.of(() -> store != null ? store.snapshot() : new MVStoreSnapshot(indexDb, baseDir));
+    }
+
+    // a shared store is closed by its owner, once every map in it is done with
+    @Override
     public synchronized void close() {
-        indexDb.close();
+        metrics.unregister();
+        if (store == null) {
+            indexDb.close();
+        }
         log.debug("{} index closed", indexName);
     }
 
+    @Override
     public synchronized void clear() {
         MVMap<String, String> map = indexDb.openMap(indexName);
         map.clear();
         log.debug("{} index cleared of all entries", indexName);
     }
 
+    @Override
     public synchronized boolean drop() {
+        metrics.unregister();
+        if (store != null) {
+            // only the maps of this index, the other maps of the shared store stay; once the store is closed the
+            // owner drops the whole file
+            if (indexDb.isClosed() == false) {
+                log.info("Dropping {} index from {}", indexName, baseDir.getAbsolutePath());
+                indexDb.removeMap(indexName);
+                indexDb.removeMap(indexName + "-counter");
+                SharedMVStore.flush(indexDb);
+            }
+            return true;
+        }
         try {
             log.info("Dropping {} index", baseDir.getAbsolutePath());
             indexDb.close();
@@ -221,7 +550,7 @@ public class MVStoreIndex<K, V> {
                 return postFixCount(key);
             }
             case MultipleValues -> {
-                throw new RuntimeException("MultipleValues strategy is not implemented");
+                throw new IllegalStateException("MultipleValues entries are stored under the bare key");
             }
         }
         return "";
@@ -229,8 +558,8 @@ public class MVStoreIndex<K, V> {
 
     private String postFixCount(K key) {
         try {
-            var ks = serializer.writeValueAsString(key);
-            var vs = serializer.writeValueAsString(GetPostfixCount());
+            var ks = encodeKey(key);
+            var vs = serializer.writeValueAsString(postfixCounts.next());
             return (ks + keySeparator + vs);
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
@@ -239,7 +568,7 @@ public class MVStoreIndex<K, V> {
 
     private String postFixValue(K key, V value) {
         try {
-            var ks = serializer.writeValueAsString(key);
+            var ks = encodeKey(key);
             var vs = serializer.writeValueAsString(value);
             return (ks + keySeparator + vs);
         } catch (JsonProcessingException e) {
@@ -247,17 +576,49 @@ public class MVStoreIndex<K, V> {
         }
     }
 
-    private Long GetPostfixCount() {
-        var tx = beginTransaction();
+    // An index switched to MultipleValues from one of the postfix strategies still holds one json value per entry,
+    // under the bare key or the key, the separator and a postfix. They are folded into one posting list per key.
+    private void migratePostfixedEntries(TransactionMap<String, Object> map) {
+        Map<String, List<Integer>> postings = new LinkedHashMap<>();
+        List<String> postfixed = new ArrayList<>();
         try {
-            TransactionMap<Integer, Long> map = tx.openMap(indexName + "-counter");
-            if (map.get(1) == null) {
-                map.put(1, 0L);
+            for (var it = map.entryIterator(null, null); it.hasNext(); ) {
+                var entry = it.next();
+                if (entry.getValue() instanceof String value) {
+                    var key = entry.getKey();
+                    var at = keySeparator == null || keySeparator.isEmpty() ? -1 : key.indexOf(keySeparator);
+                    postings.computeIfAbsent(at < 0 ? key : key.substring(0, at), x -> new ArrayList<>())
+                            .add(serializer.readValue(value, Integer.class));
+                    postfixed.add(key);
+                }
             }
-            var val = map.get(1);
-            map.put(1, val + 1L);
-            return val;
-        } finally {
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+        if (postfixed.isEmpty()) {
+            return;
+        }
+        postfixed.forEach(map::remove);
+        addPostings(map, postings);
+        log.info("{} index migrated {} entries to {} posting lists", indexName, postfixed.size(), postings.size());
+    }
+
+    // The counter map holds the next postfix to hand out, so the mark, the last postfix handed out, is one less.
+    private class PostfixCount implements IdAllocator.HighWaterMark {
+        @Override
+        public long get() {
+            var tx = ts.begin();
+            TransactionMap<Integer, Long> map = tx.openMap(indexName + "-counter");
+            var next = map.get(1);
+            tx.commit();
+            return next == null ? -1 : next - 1;
+        }
+
+        @Override
+        public void set(long value) {
+            var tx = ts.begin();
+            TransactionMap<Integer, Long> map = tx.openMap(indexName + "-counter");
+            map.put(1, value + 1);
             tx.commit();
         }
     }
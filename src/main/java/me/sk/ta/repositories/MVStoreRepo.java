@@ -2,11 +2,15 @@ package me.sk.ta.repositories;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 import org.h2.mvstore.MVStoreException;
 import org.h2.mvstore.tx.Transaction;
 import org.h2.mvstore.tx.TransactionMap;
 import org.h2.mvstore.tx.TransactionStore;
+import org.h2.mvstore.type.DataType;
+import org.h2.mvstore.type.ObjectDataType;
+import org.h2.value.VersionedValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,47 +20,154 @@ import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class MVStoreRepo<K, V> implements KvDb<K, V> {
     private static final Logger log = LoggerFactory.getLogger(MVStoreRepo.class);
+    // bumped whenever the layout of the entries in the map changes
+    static final int LAYOUT_VERSION = 2;
     private String DB_FILE_NAME;
+    private final String mapName;
     File baseDir;
     MVStore db;
     TransactionStore ts;
-    final Class valueClass;
+    final Class<V> valueClass;
+    final DataType<K> keyType;
+    final DataType<V> valueType;
+    MVMap<K, VersionedValue<V>> committedMap;
 
-    final Class keyClass;
+    final Class<K> keyClass;
     final ObjectMapper serializer;
 
+    // null when the repository has a store of its own
+    final SharedMVStore store;
+    final StoreCommits commits;
+    final StoreMetrics metrics;
+
     // execute after the application starts.
-    public MVStoreRepo(String dbFolder, String dbName, Class keyClass, Class valueType, ObjectMapper serializer) {
+    public MVStoreRepo(String dbFolder, String dbName, Class<K> keyClass, VersionedDataType<V> valueType, ObjectMapper serializer) {
+        this(dbFolder, dbName, keyClass, valueType, serializer, Durability.Async);
+    }
+
+    public MVStoreRepo(String dbFolder, String dbName, Class<K> keyClass, VersionedDataType<V> valueType, ObjectMapper serializer, Durability durability) {
+        this(null, new File(dbFolder, dbName), dbName, keyClass, valueType, serializer, durability);
+    }
+
+    // the map lives in the shared store, next to the maps of the other repositories and indexes using it
+    public MVStoreRepo(SharedMVStore store, String dbName, Class<K> keyClass, VersionedDataType<V> valueType, ObjectMapper serializer) {
+        this(store, store.baseDir, dbName, keyClass, valueType, serializer, store.commits.durability);
+    }
+
+    private MVStoreRepo(SharedMVStore store, File baseDir, String dbName, Class<K> keyClass, VersionedDataType<V> valueType, ObjectMapper serializer, Durability durability) {
         DB_FILE_NAME = dbName;
-        baseDir = new File(dbFolder, DB_FILE_NAME);
-        this.valueClass = valueType;
+        mapName = DB_FILE_NAME + ".v" + LAYOUT_VERSION;
+        this.store = store;
+        this.baseDir = baseDir;
+        this.valueClass = valueType.getValueClass();
+        this.valueType = valueType;
+        this.keyType = objectKeys();
         this.keyClass = keyClass;
         this.serializer = serializer;
 
+        if (store != null) {
+            db = store.db;
+            ts = store.ts;
+            commits = store.commits;
+            log.info("{} db initialized in the shared store {}", DB_FILE_NAME, baseDir.getAbsolutePath());
+        } else {
+            try {
+                log.debug("Creating path: {}", baseDir.getParentFile().toPath());
+                Files.createDirectories(baseDir.getParentFile().toPath());
+                db = new MVStore.Builder()
+                        .fileName(baseDir.getAbsolutePath())
+                        .encryptionKey("007".toCharArray())
+                        .compress()
+                        .open();
+                log.info("{} db initialized at {}", DB_FILE_NAME, baseDir.getAbsolutePath());
+                ts = new TransactionStore(db);
+                ts.init();
+                commits = new StoreCommits(db, durability);
+            } catch (IOException e) {
+                log.error("Error initializing {} db. Exception: '{}', message: '{}'", DB_FILE_NAME, e.getCause(), e.getMessage(), e);
+                throw new RuntimeException(e);
+            }
+        }
+        log.info("key class: {}, value class: {}", keyClass, valueClass);
+        migrateOlderLayouts();
+        var tx = begin();
+        committedMap = openMap(tx).map;
+        tx.commit();
+        metrics = StoreMetrics.register(store != null ? baseDir.getPath() + ":" + DB_FILE_NAME : baseDir.getPath(), db, ts, commits);
+    }
+
+    // Older layouts are decoded once and copied into the current map, after which the old map is removed.
+    // The JSON layout kept JSON strings for keys and values in a map named after the db,
+    // layout v1 kept binary values under JSON encoded keys.
+    private void migrateOlderLayouts() {
+        migrate(DB_FILE_NAME, true);
+        migrate(DB_FILE_NAME + ".v1", false);
+    }
+
+    private void migrate(String oldMapName, boolean jsonValues) {
+        if (db.hasMap(oldMapName) == false) {
+            return;
+        }
+        log.info("Migrating {} entries to the layout v{}", oldMapName, LAYOUT_VERSION);
+        var tx = begin();
+        var count = 0;
         try {
-            log.debug("Creating path: {}", baseDir.getParentFile().toPath());
-            Files.createDirectories(baseDir.getParentFile().toPath());
-            db = new MVStore.Builder()
-                    .fileName(baseDir.getAbsolutePath())
-                    .encryptionKey("007".toCharArray())
-                    .compress()
-                    .open();
-            log.info("{} db initialized at {}", DB_FILE_NAME, baseDir.getAbsolutePath());
-            log.info("key class: {}, value class: {}", keyClass, valueClass);
-            ts = new TransactionStore(db);
-            ts.init();
-        } catch (IOException e) {
-            log.error("Error initializing {} db. Exception: '{}', message: '{}'", DB_FILE_NAME, e.getCause(), e.getMessage(), e);
+            TransactionMap<?, ?> old = jsonValues
+                    ? tx.openMap(oldMapName)
+                    : tx.openMap(oldMapName, new ObjectDataType(), valueType);
+            var map = openMap(tx);
+            for (var entry : old.entrySet()) {
+                if (entry.getValue() == null) {
+                    continue;
+                }
+                var key = serializer.readValue((String) entry.getKey(), keyClass);
+                var value = jsonValues
+                        ? serializer.readValue((String) entry.getValue(), valueClass)
+                        : valueClass.cast(entry.getValue());
+                map.put(key, value);
+                count++;
+            }
+            tx.commit();
+        } catch (MVStoreException | JsonProcessingException e) {
+            tx.rollback();
+            log.error("Error migrating {}. Cause: '{}', message: '{}'", oldMapName, e.getCause(), e.getMessage());
             throw new RuntimeException(e);
         }
+        db.removeMap(oldMapName);
+        db.commit();
+        log.info("Migrated {} entries of {}", count, oldMapName);
+    }
+
+    // the keys are written by class, whatever their class; K only says which the repository is given
+    @SuppressWarnings("unchecked")
+    private static <K> DataType<K> objectKeys() {
+        return (DataType<K>) (DataType<?>) new ObjectDataType();
+    }
+
+    private TransactionMap<K, V> openMap(Transaction tx) {
+        return tx.openMap(mapName, keyType, valueType);
+    }
+
+    @Override
+    public KvTransaction beginTransaction() {
+        return new MVStoreTransaction(begin(), commits);
     }
 
-    public synchronized Transaction beginTransaction() {
+    private synchronized Transaction begin() {
         if (ts == null) {
             ts = new TransactionStore(db);
             ts.init();
@@ -64,167 +175,210 @@ public class MVStoreRepo<K, V> implements KvDb<K, V> {
         return ts.begin();
     }
 
+    // The monitor is released before waiting for the commit to be durable, see KvTransaction.commitDeferred
     @Override
-    public synchronized boolean save(K key, V value) {
+    public boolean save(K key, V value) {
         if (key == null) {
             throw new IllegalArgumentException("key");
         }
         log.trace("saving value '{}' with key '{}'", value, key);
 
-        var tx = beginTransaction();
+        var start = System.nanoTime();
         try {
-            TransactionMap<String, String> map = tx.openMap(DB_FILE_NAME);
-            map.put(serializer.writeValueAsString(key), value == null ? null : serializer.writeValueAsString(value));
-            tx.commit();
-        } catch (MVStoreException te) {
-            tx.rollback();
-            log.error("Transaction failed: {}", te);
-            return false;
-        } catch (JsonProcessingException e) {
-            tx.rollback();
-            log.error("Error saving entry. Cause: '{}', message: '{}'", e.getCause(), e.getMessage());
-            return false;
+            synchronized (this) {
+                var tx = begin();
+                try {
+                    TransactionMap<K, V> map = openMap(tx);
+                    map.put(key, value);
+                    commits.commitDeferred(tx);
+                } catch (MVStoreException te) {
+                    tx.rollback();
+                    log.error("Transaction failed: {}", te);
+                    return false;
+                }
+            }
+            commits.awaitDurable();
+            return true;
+        } finally {
+            metrics.record(StoreMetrics.Operation.Save, start);
         }
-        return true;
     }
 
     @Override
-    public synchronized boolean save(K key, V value, Transaction tx) {
+    public synchronized boolean save(K key, V value, KvTransaction kvTx) {
         if (key == null) {
             throw new IllegalArgumentException("key");
         }
         log.trace("saving value '{}' with key '{}'", value, key);
 
+        var start = System.nanoTime();
+        var tx = MVStoreTransaction.of(kvTx);
         try {
-            TransactionMap<String, String> map = tx.openMap(DB_FILE_NAME);
-            map.put(serializer.writeValueAsString(key), value == null ? null : serializer.writeValueAsString(value));
-            tx.prepare();
+            TransactionMap<K, V> map = openMap(tx);
+            map.put(key, value);
         } catch (MVStoreException te) {
             log.error("Transaction failed: {}", te);
             return false;
-        } catch (JsonProcessingException e) {
-            log.error("Error saving entry. Cause: '{}', message: '{}'", e.getCause(), e.getMessage());
-            return false;
+        } finally {
+            metrics.record(StoreMetrics.Operation.Save, start);
         }
         return true;
     }
 
     @Override
-    public synchronized V get(K key) {
-        if (key == null) {
-            throw new IllegalArgumentException("key cannot be null");
-        }
-        log.trace("Open transactions: {}", ts.getOpenTransactions().size());
-        var tx = beginTransaction();
+    public boolean saveAll(Map<K, V> entries) {
+        var start = System.nanoTime();
         try {
-            TransactionMap<String, String> map = tx.openMap(DB_FILE_NAME);
-            var kd = serializer.writeValueAsString(key);
-            if (map.containsKey(key)) {
-                var value = map.get(kd);
-                log.trace("get key '{}' returns '{}'", key, value);
-                if (value == null) {
-                    return null;
-                } else {
-                    return (V) serializer.readValue(value, valueClass);
+            synchronized (this) {
+                var tx = begin();
+                try {
+                    TransactionMap<K, V> map = openMap(tx);
+                    putAll(map, entries);
+                    commits.commitDeferred(tx);
+                } catch (MVStoreException te) {
+                    tx.rollback();
+                    log.error("Transaction failed: {}", te);
+                    return false;
                 }
-            } else {
-                throw new RuntimeException("Not found");
             }
-        } catch (JsonProcessingException e) {
-            log.error(
-                    "Error retrieving the entry with key: {}, cause: {}, message: {}",
-                    key,
-                    e.getCause(),
-                    e.getMessage());
-            throw new RuntimeException(e);
+            commits.awaitDurable();
+            return true;
         } finally {
-            tx.commit();
+            metrics.record(StoreMetrics.Operation.SaveAll, start);
         }
     }
 
     @Override
-    public synchronized Optional<V> find(K key) {
-
-        log.trace("Open transactions: {}", ts.getOpenTransactions().size());
-        var tx = beginTransaction();
+    public synchronized boolean saveAll(Map<K, V> entries, KvTransaction kvTx) {
+        var start = System.nanoTime();
+        var tx = MVStoreTransaction.of(kvTx);
         try {
-            TransactionMap<String, String> map = tx.openMap(DB_FILE_NAME);
-            var value = map.get(serializer.writeValueAsString(key));
-            log.trace("finding key '{}' returns '{}'", key, value);
-            if (value == null) {
-                return Optional.empty();
-            } else {
-                return Optional.of((V) serializer.readValue(value, valueClass));
-            }
-        } catch (JsonProcessingException e) {
-            log.error(
-                    "Error retrieving the entry with key: {}, cause: {}, message: {}",
-                    key,
-                    e.getCause(),
-                    e.getMessage());
-            throw new RuntimeException(e);
+            TransactionMap<K, V> map = openMap(tx);
+            putAll(map, entries);
+        } catch (MVStoreException te) {
+            log.error("Transaction failed: {}", te);
+            return false;
         } finally {
-            tx.commit();
+            metrics.record(StoreMetrics.Operation.SaveAll, start);
         }
+        return true;
     }
 
-    @Override
-    public synchronized Optional<V> find(K key, Transaction tx) {
-        try {
-            TransactionMap<String, String> map = tx.openMap(DB_FILE_NAME);
-            var value = map.get(serializer.writeValueAsString(key));
-            log.trace("found key '{}' returns '{}'", key, value);
-            if (value == null) {
-                return Optional.empty();
-            } else {
-                return Optional.of((V) serializer.readValue(value, valueClass));
+    private void putAll(TransactionMap<K, V> map, Map<K, V> entries) {
+        log.trace("saving {} values", entries.size());
+        for (var entry : entries.entrySet()) {
+            if (entry.getKey() == null) {
+                throw new IllegalArgumentException("key");
             }
-        } catch (JsonProcessingException e) {
-            log.error(
-                    "Error retrieving the entry with key: {}, cause: {}, message: {}",
-                    key,
-                    e.getCause(),
-                    e.getMessage());
-            throw new RuntimeException(e);
+            map.put(entry.getKey(), entry.getValue());
         }
     }
 
+    // Reads do not take the monitor or open a transaction: they go to the MVMap underneath the
+    // transactional view and use the committed value of each entry. The root page of an MVMap is immutable,
+    // so a scan iterates over the version that was current when it started while writers publish new roots.
+    private V committedValue(VersionedValue<V> value) {
+        return value == null ? null : value.getCommittedValue();
+    }
+
     @Override
-    public synchronized List<V> findAll(Function<V, Optional<V>> filter) {
-        List<V> result = new ArrayList<>();
-        var jm = serializer;
-        var tx = beginTransaction();
-        try {
-            TransactionMap<String, String> map = tx.openMap(DB_FILE_NAME);
-            if (map.firstKey() == null) {
-                return result;
-            }
-            Iterator<String> it = map.keyIterator(map.firstKey());
-            while (it.hasNext()) {
-                var key = it.next();
-                V val = null;
-                if (map.get(key) != null) {
-                    val = (V) jm.readValue(map.get(key), valueClass);
-                }
-                if (filter == null) {
-                    result.add(val);
-                } else {
-                    var filterResult = filter.apply(val);
-                    if (filterResult.isPresent()) {
-                        result.add(filterResult.get());
+    public V get(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        var start = System.nanoTime();
+        var value = committedValue(committedMap.get(key));
+        metrics.record(StoreMetrics.Operation.Find, start);
+        log.trace("get key '{}' returns '{}'", key, value);
+        if (value == null) {
+            throw new RuntimeException("Not found");
+        }
+        return value;
+    }
+
+    @Override
+    public Optional<V> find(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        var start = System.nanoTime();
+        var value = committedValue(committedMap.get(key));
+        metrics.record(StoreMetrics.Operation.Find, start);
+        log.trace("finding key '{}' returns '{}'", key, value);
+        return Optional.ofNullable(value);
+    }
+
+    @Override
+    public synchronized Optional<V> find(K key, KvTransaction tx) {
+        var start = System.nanoTime();
+        TransactionMap<K, V> map = openMap(MVStoreTransaction.of(tx));
+        var value = map.get(key);
+        metrics.record(StoreMetrics.Operation.Find, start);
+        log.trace("found key '{}' returns '{}'", key, value);
+        return Optional.ofNullable(value);
+    }
+
+    @Override
+    public List<V> findAll(Function<V, Optional<V>> filter) {
+        var start = System.nanoTime();
+        try (var values = scan(null, 0)) {
+            var result = filter == null ? values : values.map(filter).flatMap(Optional::stream);
+            return result.collect(Collectors.toList());
+        } finally {
+            metrics.record(StoreMetrics.Operation.FindAll, start);
+        }
+    }
+
+    @Override
+    public Stream<V> scan(K startAfter, long limit) {
+        var cursor = committedMap.cursor(startAfter);
+        Iterator<V> values = new Iterator<>() {
+            V next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && cursor.hasNext()) {
+                    var key = cursor.next();
+                    if (startAfter != null && Objects.equals(key, startAfter)) {
+                        continue;
                     }
+                    // null when inserted by a transaction that has not committed yet
+                    next = committedValue(cursor.getValue());
                 }
+                return next != null;
+            }
+
+            @Override
+            public V next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                var value = next;
+                next = null;
+                return value;
+            }
+        };
+        var stream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(values, Spliterator.ORDERED | Spliterator.NONNULL), false);
+        return limit > 0 ? stream.limit(limit) : stream;
+    }
+
+    @Override
+    public List<V> findRange(K fromKey, K toKey) {
+        if (fromKey == null || toKey == null) {
+            throw new IllegalArgumentException("fromKey and toKey are required");
+        }
+        var start = System.nanoTime();
+        List<V> result = new ArrayList<>();
+        var cursor = committedMap.cursor(fromKey, toKey, false);
+        while (cursor.hasNext()) {
+            cursor.next();
+            var val = committedValue(cursor.getValue());
+            if (val != null) {
+                result.add(val);
             }
-            return result;
-        } catch (JsonProcessingException e) {
-            log.error(
-                    "Error retrieving retrieving entries - cause: {}, message: {}",
-                    e.getCause(),
-                    e.getMessage());
-            throw new RuntimeException(e);
-        } finally {
-            tx.commit();
         }
+        metrics.record(StoreMetrics.Operation.FindRange, start);
+        return result;
     }
 
     @Override
@@ -245,33 +399,64 @@ public class MVStoreRepo<K, V> implements KvDb<K, V> {
     }
 
     @Override
-    public synchronized boolean delete(K key, Transaction tx) {
+    public synchronized boolean delete(K key, KvTransaction kvTx) {
         log.info("deleting key '{}'", key);
         if (key == null) {
             return false;
         }
-        TransactionMap<String, String> map = tx.openMap(DB_FILE_NAME);
-        try {
-            map.remove(serializer.writeValueAsString(key));
-            tx.prepare();
-            return true;
-        } catch (JsonProcessingException e) {
-            log.error(
-                    "Error deleting the entry with key: {}, cause: {}, message: {}",
-                    key,
-                    e.getCause(),
-                    e.getMessage());
-            throw new RuntimeException(e);
+        var start = System.nanoTime();
+        var tx = MVStoreTransaction.of(kvTx);
+        TransactionMap<K, V> map = openMap(tx);
+        map.remove(key);
+        metrics.record(StoreMetrics.Operation.Delete, start);
+        return true;
+    }
+
+    @Override
+    public void compact() {
+        if (store != null) {
+            store.compact();
+        } else {
+            SharedMVStore.compact(db, baseDir);
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (store != null) {
+            store.flush();
+        } else {
+            SharedMVStore.flush(db);
         }
     }
 
+    @Override
+    public List<Supplier<StoreSnapshot>> snapshots() {
+        return List.of(() -> store != null ? store.snapshot() : new MVStoreSnapshot(db, baseDir));
+    }
+
+    // a shared store is closed by its owner, once every map in it is done with
     @Override
     public void close() {
-        db.close();
+        metrics.unregister();
+        if (store == null) {
+            db.close();
+        }
     }
 
     @Override
     public synchronized void drop() {
+        metrics.unregister();
+        if (store != null) {
+            // only the map of this table, the other maps of the shared store stay; once the store is closed the
+            // owner drops the whole file
+            if (db.isClosed() == false) {
+                log.info("Dropping {} table from {}", mapName, baseDir.getAbsolutePath());
+                db.removeMap(mapName);
+                SharedMVStore.flush(db);
+            }
+            return;
+        }
         try {
             log.info("Dropping {} table", baseDir.getAbsolutePath());
             db.close();
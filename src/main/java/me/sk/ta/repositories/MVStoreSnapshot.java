@@ -0,0 +1,242 @@
+package me.sk.ta.repositories;
+
+import org.h2.mvstore.Cursor;
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.Page;
+import org.h2.mvstore.RootReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The roots of the maps of an MVStore at one version, which is kept from being reclaimed until the snapshot
+// is closed. Pages are never changed once written, so the maps are read from the roots while the writers
+// carry on.
+//
+// A backup is an MVStore file holding the maps of the snapshot and a manifest. The mark of a write is the id of
+// the newest chunk at the time of the snapshot. A page written to a chunk up to that id and still reachable
+// later was reachable at the snapshot too, together with everything under it; an incremental write skips
+// such pages and only records the range of keys they hold. The keys outside of those ranges were changed or
+// removed, and the incremental write holds the entries that replace them.
+class MVStoreSnapshot implements StoreSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(MVStoreSnapshot.class);
+    static final String MANIFEST = "backup.manifest";
+    // the first and the last key of the unchanged pages of a map
+    static final String KEPT = "backup.kept.";
+
+    private record Captured(MVMap<Object, Object> map, RootReference<Object, Object> root) {
+    }
+
+    final MVStore db;
+    final Path file;
+    private final MVStore.TxCounter usage;
+    private final Map<String, Captured> maps = new LinkedHashMap<>();
+    private final int chunk;
+
+    // to be taken while no transaction of the store is in progress, so that every entry is committed
+    MVStoreSnapshot(MVStore db, File file) {
+        this.db = db;
+        this.file = file.toPath();
+        usage = db.registerVersionUsage();
+        db.commit();
+        var meta = db.getMetaMap();
+        for (var name : db.getMapNames()) {
+            // the undo logs of the transaction store are empty between transactions and its type registry
+            // is written again when the maps are opened
+            if (name.startsWith("undoLog") || name.equals("_")) {
+                continue;
+            }
+            MVMap<Object, Object> map = db.getMap(DataUtils.parseHexInt(meta.get(DataUtils.META_NAME + name)));
+            if (map == null) {
+                log.warn("Leaving the map {} of {} out of the snapshot, it is not open", name, file);
+                continue;
+            }
+            maps.put(name, new Captured(map, map.flushAndGetRoot()));
+        }
+        chunk = DataUtils.getPageChunkId(db.getLayoutMap().getRootPage().getPos());
+    }
+
+    @Override
+    public Path source() {
+        return file;
+    }
+
+    @Override
+    public long write(Path target, long since) {
+        if (since > chunk) {
+            log.warn("{} has no chunk {} of the previous backup, writing it whole", file, since);
+            since = -1;
+        }
+        long entries = 0;
+        try {
+            Files.createDirectories(target.getParent());
+            Files.deleteIfExists(target);
+        } catch (IOException e) {
+            log.error("Error creating the backup {}. Cause: '{}', message: '{}'", target, e.getCause(), e.getMessage());
+            throw new RuntimeException(e);
+        }
+        var backup = open(target);
+        try {
+            var manifest = backup.<String, String>openMap(MANIFEST);
+            manifest.put("since", Long.toString(since));
+            manifest.put("chunk", Integer.toString(chunk));
+            manifest.put("maps", String.join("\n", maps.keySet()));
+            for (var entry : maps.entrySet()) {
+                var map = entry.getValue().map;
+                var copy = backup.openMap(entry.getKey(), builder(map));
+                if (since < 0) {
+                    var cursor = new Cursor<>(entry.getValue().root, null, null);
+                    while (cursor.hasNext()) {
+                        copy.put(cursor.next(), cursor.getValue());
+                        entries++;
+                    }
+                } else {
+                    var kept = backup.openMap(KEPT + entry.getKey(), new MVMap.Builder<>().keyType(map.getKeyType()).valueType(map.getKeyType()));
+                    entries += copyChanged(entry.getValue().root.root, (int) since, copy, kept);
+                }
+            }
+            backup.commit();
+        } finally {
+            backup.close();
+        }
+        log.info("Wrote {} entries of {} to {}, {}", entries, file, target, since < 0 ? "whole" : "changed since chunk " + since);
+        return chunk;
+    }
+
+    private static long copyChanged(Page<Object, Object> page, int since, MVMap<Object, Object> copy, MVMap<Object, Object> kept) {
+        if (page.getPos() != 0 && DataUtils.getPageChunkId(page.getPos()) <= since) {
+            if (page.getTotalCount() > 0) {
+                kept.put(edgeKey(page, true), edgeKey(page, false));
+            }
+            return 0;
+        }
+        if (page.isLeaf()) {
+            for (int i = 0; i < page.getKeyCount(); i++) {
+                copy.put(page.getKey(i), page.getValue(i));
+            }
+            return page.getKeyCount();
+        }
+        long entries = 0;
+        for (int i = 0; i < page.getRawChildPageCount(); i++) {
+            entries += copyChanged(page.getChildPage(i), since, copy, kept);
+        }
+        return entries;
+    }
+
+    private static Object edgeKey(Page<Object, Object> page, boolean first) {
+        while (page.isLeaf() == false) {
+            page = page.getChildPage(first ? 0 : page.getRawChildPageCount() - 1);
+        }
+        return page.getKey(first ? 0 : page.getKeyCount() - 1);
+    }
+
+    @Override
+    public void restore(List<Path> backups, Path target) {
+        MVStore restored = null;
+        try {
+            Files.createDirectories(target.getParent());
+            for (var backup : backups) {
+                if (restored != null && since(backup) >= 0) {
+                    apply(backup, restored);
+                    continue;
+                }
+                if (restored != null) {
+                    restored.close();
+                }
+                Files.copy(backup, target, StandardCopyOption.REPLACE_EXISTING);
+                restored = open(target);
+            }
+            if (restored != null) {
+                restored.removeMap(MANIFEST);
+                restored.commit();
+            }
+        } catch (IOException e) {
+            log.error("Error restoring {} into {}. Cause: '{}', message: '{}'", file, target, e.getCause(), e.getMessage());
+            throw new RuntimeException(e);
+        } finally {
+            if (restored != null) {
+                restored.close();
+            }
+        }
+        log.info("Restored {} backups of {} into {}", backups.size(), file, target);
+    }
+
+    private static long since(Path backup) {
+        var store = open(backup);
+        try {
+            return Long.parseLong(store.<String, String>openMap(MANIFEST).get("since"));
+        } finally {
+            store.close();
+        }
+    }
+
+    // Removes the keys of the restored maps that the incremental backup does not keep, then writes its entries
+    private void apply(Path backup, MVStore restored) {
+        var incremental = open(backup);
+        try {
+            var names = Arrays.stream(incremental.<String, String>openMap(MANIFEST).get("maps").split("\n"))
+                    .filter(x -> x.isEmpty() == false)
+                    .toList();
+            for (var name : List.copyOf(restored.getMapNames())) {
+                if (name.equals(MANIFEST) == false && names.contains(name) == false) {
+                    restored.removeMap(name);
+                }
+            }
+            for (var name : names) {
+                var captured = maps.get(name);
+                if (captured == null) {
+                    log.warn("Skipping the map {} of {}, {} has no such map to take its types from", name, backup, file);
+                    continue;
+                }
+                var keyType = captured.map.getKeyType();
+                var map = restored.openMap(name, builder(captured.map));
+                var changed = incremental.openMap(name, builder(captured.map));
+                var kept = incremental.openMap(KEPT + name, new MVMap.Builder<>().keyType(keyType).valueType(keyType));
+                List<Object> removed = new ArrayList<>();
+                var ranges = kept.entrySet().iterator();
+                var range = ranges.hasNext() ? ranges.next() : null;
+                for (var key : map.keySet()) {
+                    while (range != null && keyType.compare(range.getValue(), key) < 0) {
+                        range = ranges.hasNext() ? ranges.next() : null;
+                    }
+                    if (range == null || keyType.compare(range.getKey(), key) > 0) {
+                        removed.add(key);
+                    }
+                }
+                removed.forEach(map::remove);
+                changed.forEach(map::put);
+            }
+            restored.commit();
+        } finally {
+            incremental.close();
+        }
+    }
+
+    private static MVMap.Builder<Object, Object> builder(MVMap<Object, Object> map) {
+        return new MVMap.Builder<>().keyType(map.getKeyType()).valueType(map.getValueType());
+    }
+
+    private static MVStore open(Path file) {
+        return new MVStore.Builder()
+                .fileName(file.toAbsolutePath().toString())
+                .encryptionKey("007".toCharArray())
+                .compress()
+                .open();
+    }
+
+    @Override
+    public void close() {
+        db.deregisterVersionUsage(usage);
+    }
+}
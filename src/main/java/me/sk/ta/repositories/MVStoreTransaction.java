@@ -0,0 +1,36 @@
+package me.sk.ta.repositories;
+
+import org.h2.mvstore.tx.Transaction;
+
+class MVStoreTransaction implements KvTransaction {
+    final Transaction tx;
+    final StoreCommits commits;
+
+    MVStoreTransaction(Transaction tx, StoreCommits commits) {
+        this.tx = tx;
+        this.commits = commits;
+    }
+
+    static Transaction of(KvTransaction tx) {
+        if (tx instanceof MVStoreTransaction mvTx) {
+            return mvTx.tx;
+        }
+        throw new IllegalArgumentException("Not an MVStore transaction: " + tx);
+    }
+
+    @Override
+    public void commit() {
+        commits.commit(tx);
+    }
+
+    @Override
+    public Runnable commitDeferred() {
+        commits.commitDeferred(tx);
+        return commits::awaitDurable;
+    }
+
+    @Override
+    public void rollback() {
+        tx.rollback();
+    }
+}
@@ -0,0 +1,154 @@
+package me.sk.ta.repositories;
+
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.WriteBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+// A sorted set of ints, stored as the count, the first value and the gaps between consecutive values, all as varints.
+// Trade ids are allocated consecutively, so the gaps of an index key's ids mostly take a byte each.
+public final class PostingList {
+    private int[] values;
+    private int size;
+
+    public PostingList() {
+        values = new int[4];
+    }
+
+    private PostingList(int[] values, int size) {
+        this.values = values;
+        this.size = size;
+    }
+
+    public static PostingList of(Collection<Integer> values) {
+        var result = new PostingList();
+        values.forEach(result::add);
+        return result;
+    }
+
+    public static PostingList decode(byte[] bytes) {
+        if (bytes == null) {
+            return new PostingList();
+        }
+        var buff = ByteBuffer.wrap(bytes);
+        var count = DataUtils.readVarInt(buff);
+        var values = new int[Math.max(count, 4)];
+        for (int i = 0; i < count; i++) {
+            values[i] = i == 0 ? DataUtils.readVarInt(buff) : values[i - 1] + DataUtils.readVarInt(buff);
+        }
+        return new PostingList(values, count);
+    }
+
+    public byte[] encode() {
+        var buff = new WriteBuffer(size + 8);
+        buff.putVarInt(size);
+        for (int i = 0; i < size; i++) {
+            buff.putVarInt(i == 0 ? values[0] : values[i] - values[i - 1]);
+        }
+        var bytes = new byte[buff.position()];
+        buff.getBuffer().flip().get(bytes);
+        return bytes;
+    }
+
+    // returns false if the value was already in the list
+    public boolean add(int value) {
+        var at = Arrays.binarySearch(values, 0, size, value);
+        if (at >= 0) {
+            return false;
+        }
+        at = -at - 1;
+        if (size == values.length) {
+            values = Arrays.copyOf(values, Math.max(size * 2, 4));
+        }
+        System.arraycopy(values, at, values, at + 1, size - at);
+        values[at] = value;
+        size++;
+        return true;
+    }
+
+    // returns false if the value was not in the list
+    public boolean remove(int value) {
+        var at = Arrays.binarySearch(values, 0, size, value);
+        if (at < 0) {
+            return false;
+        }
+        System.arraycopy(values, at + 1, values, at, size - at - 1);
+        size--;
+        return true;
+    }
+
+    public boolean contains(int value) {
+        return Arrays.binarySearch(values, 0, size, value) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public PostingList union(PostingList other) {
+        var result = new int[Math.max(size + other.size, 4)];
+        int i = 0, j = 0, n = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && values[i] < other.values[j])) {
+                result[n++] = values[i++];
+            } else if (i == size || other.values[j] < values[i]) {
+                result[n++] = other.values[j++];
+            } else {
+                result[n++] = values[i++];
+                j++;
+            }
+        }
+        return new PostingList(result, n);
+    }
+
+    public PostingList intersect(PostingList other) {
+        var result = new int[Math.max(Math.min(size, other.size), 4)];
+        int i = 0, j = 0, n = 0;
+        while (i < size && j < other.size) {
+            if (values[i] < other.values[j]) {
+                i++;
+            } else if (other.values[j] < values[i]) {
+                j++;
+            } else {
+                result[n++] = values[i++];
+                j++;
+            }
+        }
+        return new PostingList(result, n);
+    }
+
+    public List<Integer> toList() {
+        List<Integer> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(values[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PostingList other && Arrays.equals(values, 0, size, other.values, 0, other.size);
+    }
+
+    @Override
+    public int hashCode() {
+        var result = 1;
+        for (int i = 0; i < size; i++) {
+            result = 31 * result + values[i];
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+}
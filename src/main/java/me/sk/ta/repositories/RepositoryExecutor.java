@@ -0,0 +1,74 @@
+package me.sk.ta.repositories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// The threads the asynchronous repositories make their store calls on, so that the request threads do not wait
+// for scans and for the disk. Bounded: once every thread is busy and the queue is full, calls fail at once
+// instead of piling up.
+@Component
+public class RepositoryExecutor implements Executor, AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(RepositoryExecutor.class);
+    final ThreadPoolExecutor pool;
+
+    @Autowired
+    public RepositoryExecutor(@Value("${db.async.threads:16}") int threads, @Value("${db.async.queue:1000}") int queue) {
+        if (threads < 1 || queue < 1) {
+            throw new IllegalArgumentException("threads and queue must be positive");
+        }
+        var count = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue), x -> {
+            var thread = new Thread(x, "repo-io-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("Running the asynchronous store calls on {} threads, queueing up to {}", threads, queue);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        pool.execute(command);
+    }
+
+    // runs the call on the executor; the future fails with a RejectedExecutionException when it is saturated
+    public <T> CompletableFuture<T> supply(Supplier<T> call) {
+        try {
+            return CompletableFuture.supplyAsync(call, pool);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public CompletableFuture<Void> run(Runnable call) {
+        try {
+            return CompletableFuture.runAsync(call, pool);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // the calls already queued are completed
+    @Override
+    public void close() {
+        pool.shutdown();
+        try {
+            if (pool.awaitTermination(10, TimeUnit.SECONDS) == false) {
+                log.warn("{} store calls were still running at shutdown", pool.getActiveCount());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package me.sk.ta.repositories;
+
+import me.sk.ta.domain.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+// Keys are encoded so that RocksDB's bytewise comparator orders them the same way MVStore orders the native keys:
+// numbers and dates as 8 big-endian bytes with the sign bit flipped, strings as UTF-8.
+// Values reuse the VersionedDataType codecs of the MVStore maps.
+final class RocksDbCodec {
+
+    private RocksDbCodec() {
+    }
+
+    static byte[] encodeKey(Object key) {
+        if (key instanceof Integer i) {
+            return Utils.longToBytes(i.longValue() ^ Long.MIN_VALUE);
+        } else if (key instanceof Long l) {
+            return Utils.longToBytes(l ^ Long.MIN_VALUE);
+        } else if (key instanceof LocalDate date) {
+            return Utils.longToBytes(date.toEpochDay() ^ Long.MIN_VALUE);
+        } else if (key instanceof String s) {
+            return s.getBytes(StandardCharsets.UTF_8);
+        }
+        throw new IllegalArgumentException("Unsupported key type: " + (key == null ? null : key.getClass()));
+    }
+
+    static <V> byte[] encodeValue(VersionedDataType<V> valueType, V value) {
+        return valueType.encode(value);
+    }
+
+    static <V> V decodeValue(VersionedDataType<V> valueType, byte[] bytes) {
+        return valueType.decode(bytes);
+    }
+}
@@ -0,0 +1,481 @@
+package me.sk.ta.repositories;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import me.sk.ta.domain.Utils;
+import org.rocksdb.Options;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.Transaction;
+import org.rocksdb.TransactionDB;
+import org.rocksdb.TransactionDBOptions;
+import org.rocksdb.WriteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// Index entries are stored under "<json key><separator><postfix>" and looked up by seeking to "<json key><separator>"
+// and reading while the keys start with that prefix.
+// PostfixValue uses the json value as the postfix, PostfixWithCount an 8 byte sequence number.
+// MultipleValues stores one entry per key, under the prefix itself, holding the encoded PostingList of the key.
+public class RocksDbIndex<K, V> implements KvIndex<K, V> {
+    private static final Logger log = LoggerFactory.getLogger(RocksDbIndex.class);
+    // sorts before every json key, so it never shows up in a prefix scan
+    private static final byte[] COUNTER_KEY = new byte[]{0};
+    final String indexName;
+    final IndexingStrategy strategy;
+    final File baseDir;
+    final Class<V> valueClass;
+    final Class<? extends K> keyClass;
+    final byte[] keySeparator;
+    final ObjectMapper serializer;
+    final Options options;
+    final TransactionDBOptions txOptions;
+    final WriteOptions writeOptions;
+    final TransactionDB indexDb;
+
+    static {
+        RocksDB.loadLibrary();
+    }
+
+    public RocksDbIndex(String dbFolder, String indexName, IndexingStrategy strategy, Class<V> valueType, Class<? extends K> keyClass, String keySeparator, ObjectMapper serializer) {
+        this(dbFolder, indexName, strategy, valueType, keyClass, keySeparator, serializer, Durability.Async);
+    }
+
+    // see RocksDbRepo for the durability
+    public RocksDbIndex(String dbFolder, String indexName, IndexingStrategy strategy, Class<V> valueType, Class<? extends K> keyClass, String keySeparator, ObjectMapper serializer, Durability durability) {
+        this.strategy = strategy;
+        this.valueClass = valueType;
+        this.keyClass = keyClass;
+        this.indexName = indexName;
+        this.serializer = serializer;
+        if (strategy.equals(IndexingStrategy.MultipleValues) && valueType != Integer.class) {
+            throw new IllegalArgumentException("MultipleValues strategy requires Integer values");
+        }
+        if (keySeparator == null || keySeparator.isEmpty()) {
+            throw new RuntimeException("key separator is required for PostfixValue/PostfixWithCount strategies");
+        }
+        this.keySeparator = keySeparator.getBytes(StandardCharsets.UTF_8);
+        baseDir = new File(dbFolder, indexName + ".rocksdb");
+        options = new Options().setCreateIfMissing(true);
+        txOptions = new TransactionDBOptions();
+        writeOptions = new WriteOptions().setSync(durability != Durability.Async);
+        try {
+            log.debug("Creating path: {}", baseDir.toPath());
+            Files.createDirectories(baseDir.toPath());
+            indexDb = TransactionDB.open(options, txOptions, baseDir.getAbsolutePath());
+            if (strategy == IndexingStrategy.MultipleValues) {
+                migratePostfixedEntries();
+            }
+            log.info("{} IndexDB initialized at {}", indexName, baseDir.getAbsoluteFile().toPath());
+        } catch (IOException | RocksDBException e) {
+            log.error("Error initializing IndexDB. Exception: '{}', message: '{}'", e.getCause(), e.getMessage(), e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public KvTransaction beginTransaction() {
+        return new RocksDbTransaction(indexDb.beginTransaction(writeOptions));
+    }
+
+    @Override
+    public List<V> find(K desiredKey) {
+        if (desiredKey == null) {
+            throw new IllegalArgumentException("indexKey");
+        }
+        if (strategy == IndexingStrategy.MultipleValues) {
+            return values(postings(desiredKey));
+        }
+        List<V> result = new ArrayList<>();
+        var prefix = prefix(desiredKey);
+        try (var it = indexDb.newIterator()) {
+            for (it.seek(prefix); it.isValid() && Utils.byteArrayStartsWith(it.key(), prefix); it.next()) {
+                result.add(serializer.readValue(it.value(), valueClass));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    @Override
+    public List<V> findRange(K fromKey, K toKey) {
+        if (fromKey == null || toKey == null) {
+            throw new IllegalArgumentException("fromKey and toKey are required");
+        }
+        IndexKeys.checkOrdered(keyClass);
+        List<V> result = new ArrayList<>();
+        var lastPrefix = prefix(toKey);
+        try (var it = indexDb.newIterator()) {
+            for (it.seek(prefix(fromKey)); it.isValid(); it.next()) {
+                if (Arrays.compareUnsigned(it.key(), lastPrefix) > 0 && Utils.byteArrayStartsWith(it.key(), lastPrefix) == false) {
+                    break;
+                }
+                if (strategy == IndexingStrategy.MultipleValues) {
+                    result.addAll(values(PostingList.decode(it.value())));
+                } else {
+                    result.add(serializer.readValue(it.value(), valueClass));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    @Override
+    public List<Map.Entry<K, V>> entries() {
+        return entries(null, null);
+    }
+
+    @Override
+    public List<Map.Entry<K, V>> entries(K fromKey, K toKey) {
+        if ((fromKey == null) != (toKey == null)) {
+            throw new IllegalArgumentException("fromKey and toKey are required");
+        }
+        if (fromKey != null) {
+            IndexKeys.checkOrdered(keyClass);
+        }
+        List<Map.Entry<K, V>> result = new ArrayList<>();
+        var lastPrefix = toKey == null ? null : prefix(toKey);
+        try (var it = indexDb.newIterator()) {
+            if (fromKey == null) {
+                it.seekToFirst();
+            } else {
+                it.seek(prefix(fromKey));
+            }
+            for (; it.isValid(); it.next()) {
+                if (lastPrefix != null && Arrays.compareUnsigned(it.key(), lastPrefix) > 0 && Utils.byteArrayStartsWith(it.key(), lastPrefix) == false) {
+                    break;
+                }
+                var at = indexOf(it.key(), keySeparator);
+                if (at < 0) {
+                    // the counter of PostfixWithCount
+                    continue;
+                }
+                var key = IndexKeys.decode(serializer, new String(it.key(), 0, at, StandardCharsets.UTF_8), keyClass);
+                if (strategy == IndexingStrategy.MultipleValues) {
+                    PostingList.decode(it.value()).toList().forEach(x -> result.add(Map.entry(key, valueClass.cast(x))));
+                } else {
+                    result.add(Map.entry(key, serializer.readValue(it.value(), valueClass)));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    @Override
+    public PostingList postings(K key) {
+        if (strategy != IndexingStrategy.MultipleValues) {
+            return KvIndex.super.postings(key);
+        }
+        if (key == null) {
+            throw new IllegalArgumentException("indexKey");
+        }
+        try {
+            return PostingList.decode(indexDb.get(prefix(key)));
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public PostingList postings(K fromKey, K toKey) {
+        if (strategy != IndexingStrategy.MultipleValues) {
+            return KvIndex.super.postings(fromKey, toKey);
+        }
+        if (fromKey == null || toKey == null) {
+            throw new IllegalArgumentException("fromKey and toKey are required");
+        }
+        IndexKeys.checkOrdered(keyClass);
+        var result = new PostingList();
+        var lastPrefix = prefix(toKey);
+        try (var it = indexDb.newIterator()) {
+            for (it.seek(prefix(fromKey)); it.isValid() && Arrays.compareUnsigned(it.key(), lastPrefix) <= 0; it.next()) {
+                result = result.union(PostingList.decode(it.value()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean index(K key, V value) {
+        var tx = beginTransaction();
+        if (index(key, value, tx)) {
+            tx.commit();
+            return true;
+        }
+        tx.rollback();
+        return false;
+    }
+
+    @Override
+    public boolean index(K key, V value, KvTransaction tx) {
+        return indexAll(List.of(Map.entry(key, value)), tx);
+    }
+
+    @Override
+    public boolean indexAll(List<Map.Entry<K, V>> entries, KvTransaction kvTx) {
+        log.debug("saving {} entries", entries.size());
+        var tx = RocksDbTransaction.of(kvTx);
+        try {
+            // the values of a key are added to its posting list in one read and one write
+            Map<K, List<Integer>> postings = new LinkedHashMap<>();
+            for (var entry : entries) {
+                if (entry.getKey() == null) {
+                    throw new IllegalArgumentException("key");
+                }
+                if (entry.getValue() == null) {
+                    throw new IllegalArgumentException("value");
+                }
+                if (strategy == IndexingStrategy.MultipleValues) {
+                    postings.computeIfAbsent(entry.getKey(), x -> new ArrayList<>()).add((Integer) entry.getValue());
+                    continue;
+                }
+                var value = serializer.writeValueAsBytes(entry.getValue());
+                tx.put(generateKey(entry.getKey(), value, tx), value);
+            }
+            for (var entry : postings.entrySet()) {
+                addPostings(tx, prefix(entry.getKey()), entry.getValue());
+            }
+        } catch (JsonProcessingException | RocksDBException e) {
+            log.error("Error saving entries. Cause: '{}', message: '{}'", e.getCause(), e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean delete(K key, V indexValue) {
+        var tx = beginTransaction();
+        if (delete(key, indexValue, tx)) {
+            tx.commit();
+            return true;
+        }
+        tx.rollback();
+        return false;
+    }
+
+    // deleting an entry that is not in the index is not an error
+    @Override
+    public boolean delete(K indexKey, V indexValue, KvTransaction kvTx) {
+        if (indexKey == null) {
+            throw new IllegalArgumentException("indexKey");
+        }
+        if (indexValue == null) {
+            throw new IllegalArgumentException("indexValue");
+        }
+        var tx = RocksDbTransaction.of(kvTx);
+        try {
+            var value = serializer.writeValueAsBytes(indexValue);
+            switch (strategy) {
+                case MultipleValues -> {
+                    try (var readOptions = new ReadOptions()) {
+                        var key = prefix(indexKey);
+                        var list = PostingList.decode(tx.getForUpdate(readOptions, key, true));
+                        if (list.remove((Integer) indexValue)) {
+                            if (list.isEmpty()) {
+                                tx.delete(key);
+                            } else {
+                                tx.put(key, list.encode());
+                            }
+                        }
+                    }
+                }
+                case PostfixValue -> tx.delete(concat(prefix(indexKey), value));
+                case PostfixWithCount -> {
+                    var prefix = prefix(indexKey);
+                    try (var readOptions = new ReadOptions(); var it = tx.getIterator(readOptions)) {
+                        for (it.seek(prefix); it.isValid() && Utils.byteArrayStartsWith(it.key(), prefix); it.next()) {
+                            if (Arrays.equals(it.value(), value)) {
+                                tx.delete(it.key());
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (JsonProcessingException | RocksDBException e) {
+            log.error("Error deleting entry. Cause: '{}', message: '{}'", e.getCause(), e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        try (var it = indexDb.newIterator()) {
+            it.seekToFirst();
+            if (it.isValid()) {
+                var first = it.key();
+                it.seekToLast();
+                // the end key of deleteRange is exclusive
+                indexDb.deleteRange(first, concat(it.key(), new byte[]{0}));
+            }
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+        log.debug("{} index cleared of all entries", indexName);
+    }
+
+    @Override
+    public void compact() {
+        try {
+            indexDb.compactRange();
+        } catch (RocksDBException e) {
+            log.error("Compaction of {} failed: {}", baseDir.getAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public void flush() {
+        try {
+            indexDb.flushWal(true);
+        } catch (RocksDBException e) {
+            throw new RuntimeException("Could not flush " + baseDir.getAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public List<Supplier<StoreSnapshot>> snapshots() {
+        return List.of(() -> new RocksDbSnapshot(indexDb, baseDir));
+    }
+
+    @Override
+    public synchronized void close() {
+        if (indexDb.isOwningHandle()) {
+            indexDb.close();
+            writeOptions.close();
+            txOptions.close();
+            options.close();
+            log.debug("{} index closed", indexName);
+        }
+    }
+
+    @Override
+    public synchronized boolean drop() {
+        try {
+            log.info("Dropping {} index", baseDir.getAbsolutePath());
+            close();
+            RocksDbRepo.deleteDirectory(baseDir);
+            return true;
+        } catch (IOException e) {
+            log.error("Error dropping {} index. Cause: '{}', message: '{}'", baseDir.getAbsolutePath(), e.getCause(), e.getMessage());
+            return false;
+        }
+    }
+
+    // the values of a MultipleValues index, whose values are Integers, see the constructor
+    @SuppressWarnings("unchecked")
+    private List<V> values(PostingList postings) {
+        return (List<V>) postings.toList();
+    }
+
+    private byte[] prefix(K key) {
+        try {
+            return concat(IndexKeys.encode(serializer, key).getBytes(StandardCharsets.UTF_8), keySeparator);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private byte[] generateKey(K key, byte[] value, Transaction tx) throws RocksDBException {
+        return switch (strategy) {
+            case PostfixValue -> concat(prefix(key), value);
+            case PostfixWithCount -> concat(prefix(key), Utils.longToBytes(nextCount(tx)));
+            case MultipleValues -> throw new IllegalStateException("MultipleValues entries are stored under the prefix");
+        };
+    }
+
+    // the posting list is locked until the transaction ends, so concurrent writers do not lose each other's values
+    private void addPostings(Transaction tx, byte[] key, List<Integer> values) throws RocksDBException {
+        try (var readOptions = new ReadOptions()) {
+            var list = PostingList.decode(tx.getForUpdate(readOptions, key, true));
+            var changed = false;
+            for (var value : values) {
+                changed |= list.add(value);
+            }
+            if (changed) {
+                tx.put(key, list.encode());
+            }
+        }
+    }
+
+    // An index switched to MultipleValues from one of the postfix strategies still holds one json value per
+    // postfixed entry. They are folded into one posting list per prefix.
+    private void migratePostfixedEntries() throws RocksDBException, IOException {
+        Map<String, List<Integer>> postings = new LinkedHashMap<>();
+        List<byte[]> postfixed = new ArrayList<>();
+        try (var it = indexDb.newIterator()) {
+            for (it.seekToFirst(); it.isValid(); it.next()) {
+                var key = it.key();
+                if (Arrays.equals(key, COUNTER_KEY) || endsWith(key, keySeparator)) {
+                    continue;
+                }
+                var at = indexOf(key, keySeparator);
+                if (at < 0) {
+                    continue;
+                }
+                var prefix = new String(key, 0, at + keySeparator.length, StandardCharsets.UTF_8);
+                postings.computeIfAbsent(prefix, x -> new ArrayList<>()).add(serializer.readValue(it.value(), Integer.class));
+                postfixed.add(key);
+            }
+        }
+        if (postfixed.isEmpty()) {
+            return;
+        }
+        try (var tx = indexDb.beginTransaction(writeOptions)) {
+            for (var key : postfixed) {
+                tx.delete(key);
+            }
+            tx.delete(COUNTER_KEY);
+            for (var entry : postings.entrySet()) {
+                addPostings(tx, entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue());
+            }
+            tx.commit();
+        }
+        log.info("{} index migrated {} entries to {} posting lists", indexName, postfixed.size(), postings.size());
+    }
+
+    private static boolean endsWith(byte[] bytes, byte[] suffix) {
+        return bytes.length >= suffix.length
+                && Arrays.equals(bytes, bytes.length - suffix.length, bytes.length, suffix, 0, suffix.length);
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++) {
+            if (Arrays.equals(bytes, i, i + part.length, part, 0, part.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private long nextCount(Transaction tx) throws RocksDBException {
+        try (var readOptions = new ReadOptions()) {
+            var current = tx.getForUpdate(readOptions, COUNTER_KEY, true);
+            var count = current == null ? 0L : Utils.bytesToLong(current);
+            tx.put(COUNTER_KEY, Utils.longToBytes(count + 1));
+            return count;
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        var result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
@@ -0,0 +1,313 @@
+package me.sk.ta.repositories;
+
+import org.rocksdb.Options;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.TransactionDB;
+import org.rocksdb.TransactionDBOptions;
+import org.rocksdb.WriteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+public class RocksDbRepo<K, V> implements KvDb<K, V> {
+    private static final Logger log = LoggerFactory.getLogger(RocksDbRepo.class);
+    private final String DB_NAME;
+    final File baseDir;
+    final Options options;
+    final TransactionDBOptions txOptions;
+    final WriteOptions writeOptions;
+    final TransactionDB db;
+    final VersionedDataType<V> valueType;
+
+    static {
+        RocksDB.loadLibrary();
+    }
+
+    public RocksDbRepo(String dbFolder, String dbName, VersionedDataType<V> valueType) {
+        this(dbFolder, dbName, valueType, Durability.Async);
+    }
+
+    // RocksDB already groups the concurrent writes syncing the log, so Group and Sync both turn on synced writes
+    public RocksDbRepo(String dbFolder, String dbName, VersionedDataType<V> valueType, Durability durability) {
+        DB_NAME = dbName;
+        // kept apart from the MVStore file of the same name so that both backends can live in one folder
+        baseDir = new File(dbFolder, dbName + ".rocksdb");
+        this.valueType = valueType;
+        options = new Options().setCreateIfMissing(true);
+        txOptions = new TransactionDBOptions();
+        writeOptions = new WriteOptions().setSync(durability != Durability.Async);
+        try {
+            log.debug("Creating path: {}", baseDir.toPath());
+            Files.createDirectories(baseDir.toPath());
+            db = TransactionDB.open(options, txOptions, baseDir.getAbsolutePath());
+            log.info("{} db initialized at {}", DB_NAME, baseDir.getAbsolutePath());
+            log.info("value class: {}", valueType.getValueClass());
+        } catch (IOException | RocksDBException e) {
+            log.error("Error initializing {} db. Exception: '{}', message: '{}'", DB_NAME, e.getCause(), e.getMessage(), e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public KvTransaction beginTransaction() {
+        return new RocksDbTransaction(db.beginTransaction(writeOptions));
+    }
+
+    @Override
+    public boolean save(K key, V value) {
+        var tx = beginTransaction();
+        if (save(key, value, tx)) {
+            tx.commit();
+            return true;
+        }
+        tx.rollback();
+        return false;
+    }
+
+    @Override
+    public boolean save(K key, V value, KvTransaction tx) {
+        if (key == null) {
+            throw new IllegalArgumentException("key");
+        }
+        log.trace("saving value '{}' with key '{}'", value, key);
+        try {
+            RocksDbTransaction.of(tx).put(RocksDbCodec.encodeKey(key), RocksDbCodec.encodeValue(valueType, value));
+        } catch (RocksDBException e) {
+            log.error("Transaction failed: {}", e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean saveAll(Map<K, V> entries) {
+        var tx = beginTransaction();
+        if (saveAll(entries, tx)) {
+            tx.commit();
+            return true;
+        }
+        tx.rollback();
+        return false;
+    }
+
+    @Override
+    public boolean saveAll(Map<K, V> entries, KvTransaction tx) {
+        log.trace("saving {} values", entries.size());
+        var rocksTx = RocksDbTransaction.of(tx);
+        try {
+            for (var entry : entries.entrySet()) {
+                if (entry.getKey() == null) {
+                    throw new IllegalArgumentException("key");
+                }
+                rocksTx.put(RocksDbCodec.encodeKey(entry.getKey()), RocksDbCodec.encodeValue(valueType, entry.getValue()));
+            }
+        } catch (RocksDBException e) {
+            log.error("Transaction failed: {}", e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public V get(K key) {
+        var value = find(key);
+        if (value.isEmpty()) {
+            throw new RuntimeException("Not found");
+        }
+        return value.get();
+    }
+
+    @Override
+    public Optional<V> find(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        try {
+            var value = RocksDbCodec.decodeValue(valueType, db.get(RocksDbCodec.encodeKey(key)));
+            log.trace("finding key '{}' returns '{}'", key, value);
+            return Optional.ofNullable(value);
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // the key is locked until the transaction ends, so read-modify-write sequences such as counters are safe
+    @Override
+    public Optional<V> find(K key, KvTransaction tx) {
+        try (var readOptions = new ReadOptions()) {
+            var bytes = RocksDbTransaction.of(tx).getForUpdate(readOptions, RocksDbCodec.encodeKey(key), true);
+            var value = RocksDbCodec.decodeValue(valueType, bytes);
+            log.trace("found key '{}' returns '{}'", key, value);
+            return Optional.ofNullable(value);
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public List<V> findAll(Function<V, Optional<V>> filter) {
+        try (var values = scan(null, 0)) {
+            var result = filter == null ? values : values.map(filter).flatMap(Optional::stream);
+            return result.collect(Collectors.toList());
+        }
+    }
+
+    // The stream iterates over a snapshot taken when it is opened; closing it releases the snapshot.
+    @Override
+    public Stream<V> scan(K startAfter, long limit) {
+        var snapshot = db.getSnapshot();
+        var readOptions = new ReadOptions().setSnapshot(snapshot);
+        var it = db.newIterator(readOptions);
+        if (startAfter == null) {
+            it.seekToFirst();
+        } else {
+            var after = RocksDbCodec.encodeKey(startAfter);
+            it.seek(after);
+            if (it.isValid() && Arrays.equals(it.key(), after)) {
+                it.next();
+            }
+        }
+        var stream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(values(it, null), Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> {
+                    it.close();
+                    db.releaseSnapshot(snapshot);
+                    readOptions.close();
+                });
+        return limit > 0 ? stream.limit(limit) : stream;
+    }
+
+    @Override
+    public List<V> findRange(K fromKey, K toKey) {
+        if (fromKey == null || toKey == null) {
+            throw new IllegalArgumentException("fromKey and toKey are required");
+        }
+        List<V> result = new ArrayList<>();
+        try (var it = db.newIterator()) {
+            it.seek(RocksDbCodec.encodeKey(fromKey));
+            values(it, RocksDbCodec.encodeKey(toKey)).forEachRemaining(result::add);
+        }
+        return result;
+    }
+
+    // decodes the values from the iterator's position up to and including lastKey, or to the end when lastKey is null
+    private Iterator<V> values(RocksIterator it, byte[] lastKey) {
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return it.isValid() && (lastKey == null || Arrays.compareUnsigned(it.key(), lastKey) <= 0);
+            }
+
+            @Override
+            public V next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                var value = RocksDbCodec.decodeValue(valueType, it.value());
+                it.next();
+                return value;
+            }
+        };
+    }
+
+    @Override
+    public boolean delete(K key) {
+        var tx = beginTransaction();
+        if (delete(key, tx)) {
+            tx.commit();
+            return true;
+        }
+        tx.rollback();
+        return false;
+    }
+
+    @Override
+    public boolean delete(K key, KvTransaction tx) {
+        log.info("deleting key '{}'", key);
+        if (key == null) {
+            return false;
+        }
+        try {
+            RocksDbTransaction.of(tx).delete(RocksDbCodec.encodeKey(key));
+        } catch (RocksDBException e) {
+            log.error("Transaction failed: {}", e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void compact() {
+        try {
+            db.compactRange();
+        } catch (RocksDBException e) {
+            log.error("Compaction of {} failed: {}", baseDir.getAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public void flush() {
+        try {
+            db.flushWal(true);
+        } catch (RocksDBException e) {
+            throw new RuntimeException("Could not flush " + baseDir.getAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public List<Supplier<StoreSnapshot>> snapshots() {
+        return List.of(() -> new RocksDbSnapshot(db, baseDir));
+    }
+
+    @Override
+    public synchronized void close() {
+        if (db.isOwningHandle()) {
+            db.close();
+            writeOptions.close();
+            txOptions.close();
+            options.close();
+        }
+    }
+
+    @Override
+    public synchronized void drop() {
+        try {
+            log.info("Dropping {} table", baseDir.getAbsolutePath());
+            close();
+            deleteDirectory(baseDir);
+        } catch (IOException e) {
+            log.error("Error dropping {} table. Cause: '{}', message: '{}'", baseDir.getAbsolutePath(), e.getCause(), e.getMessage());
+        }
+    }
+
+    static void deleteDirectory(File dir) throws IOException {
+        if (!dir.exists()) {
+            return;
+        }
+        try (var paths = Files.walk(dir.toPath())) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package me.sk.ta.repositories;
+
+import org.rocksdb.Checkpoint;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+// A RocksDB checkpoint: the table files of the db hard linked, and its log copied, into a directory next to it.
+// The checkpoint is copied to the backup afterwards. Every write is whole, RocksDB checkpoints have no
+// notion of what changed since an earlier one.
+class RocksDbSnapshot implements StoreSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(RocksDbSnapshot.class);
+    final Path dir;
+    private final Path checkpoint;
+
+    RocksDbSnapshot(RocksDB db, File dir) {
+        this.dir = dir.toPath();
+        checkpoint = this.dir.resolveSibling(dir.getName() + ".snapshot-" + System.nanoTime());
+        try (var cp = Checkpoint.create(db)) {
+            cp.createCheckpoint(checkpoint.toAbsolutePath().toString());
+        } catch (RocksDBException e) {
+            log.error("Error taking a checkpoint of {}: {}", dir.getAbsolutePath(), e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Path source() {
+        return dir;
+    }
+
+    @Override
+    public long write(Path target, long since) {
+        copy(checkpoint, target);
+        log.info("Wrote the checkpoint of {} to {}", dir, target);
+        return -1;
+    }
+
+    // every backup is whole, the last one is restored
+    @Override
+    public void restore(List<Path> backups, Path target) {
+        copy(backups.get(backups.size() - 1), target);
+        log.info("Restored {} into {}", backups.get(backups.size() - 1), target);
+    }
+
+    private static void copy(Path from, Path to) {
+        try {
+            RocksDbRepo.deleteDirectory(to.toFile());
+            Files.createDirectories(to);
+            try (var files = Files.list(from)) {
+                for (var file : files.toList()) {
+                    Files.copy(file, to.resolve(file.getFileName()));
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error copying {} to {}. Cause: '{}', message: '{}'", from, to, e.getCause(), e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            RocksDbRepo.deleteDirectory(checkpoint.toFile());
+        } catch (IOException e) {
+            log.error("Error deleting the checkpoint {}. Cause: '{}', message: '{}'", checkpoint, e.getCause(), e.getMessage());
+        }
+    }
+}
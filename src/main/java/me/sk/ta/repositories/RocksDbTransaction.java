@@ -0,0 +1,41 @@
+package me.sk.ta.repositories;
+
+import org.rocksdb.RocksDBException;
+import org.rocksdb.Transaction;
+
+class RocksDbTransaction implements KvTransaction {
+    final Transaction tx;
+
+    RocksDbTransaction(Transaction tx) {
+        this.tx = tx;
+    }
+
+    static Transaction of(KvTransaction tx) {
+        if (tx instanceof RocksDbTransaction rocksTx) {
+            return rocksTx.tx;
+        }
+        throw new IllegalArgumentException("Not a RocksDB transaction: " + tx);
+    }
+
+    @Override
+    public void commit() {
+        try {
+            tx.commit();
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        } finally {
+            tx.close();
+        }
+    }
+
+    @Override
+    public void rollback() {
+        try {
+            tx.rollback();
+        } catch (RocksDBException e) {
+            throw new RuntimeException(e);
+        } finally {
+            tx.close();
+        }
+    }
+}
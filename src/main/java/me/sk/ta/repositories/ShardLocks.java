@@ -0,0 +1,39 @@
+package me.sk.ta.repositories;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+// The locks of the writers of a repository whose stores are sharded, one per shard. A write holds the lock of the
+// shard it writes to, so that writes to different shards run side by side; a write spanning shards holds them all,
+// taken in shard order.
+final class ShardLocks {
+    interface Held extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final ReentrantLock[] locks;
+
+    ShardLocks(int shards) {
+        locks = new ReentrantLock[shards];
+        for (int i = 0; i < shards; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    Held lock(int shard) {
+        var lock = locks[shard];
+        lock.lock();
+        return lock::unlock;
+    }
+
+    Held lockAll() {
+        for (var lock : locks) {
+            lock.lock();
+        }
+        return () -> {
+            for (int i = locks.length - 1; i >= 0; i--) {
+                locks[i].unlock();
+            }
+        };
+    }
+}
@@ -0,0 +1,304 @@
+package me.sk.ta.repositories;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Spreads the values over several stores, the shards, by the hash of a key of the value, such as the symbol of a
+// trade, so that the writes of different symbols go to different stores. A key is read from the shard it was last
+// found in, or looked for in every shard; scans read the shards in parallel and merge them in key order.
+// The hash of the shard key must not change between runs, String.hashCode does not.
+public class ShardedKvDb<K extends Comparable<? super K>, V> implements KvDb<K, V> {
+    final List<KvDb<K, V>> shards;
+    final Function<V, ?> shardKey;
+    final Function<V, K> keyOf;
+    // the shard each key was last saved to or found in; checked on use, a write that was rolled back leaves it wrong
+    final Map<K, Integer> locations = new ConcurrentHashMap<>();
+
+    private record Located<V>(int shard, V value) {
+    }
+
+    // the shards are not used before the first call, so that they can be stand-ins of stores still opening
+    public ShardedKvDb(List<KvDb<K, V>> shards, Function<V, ?> shardKey, Function<V, K> keyOf) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("shards");
+        }
+        this.shards = List.copyOf(shards);
+        this.shardKey = shardKey;
+        this.keyOf = keyOf;
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    // the shard the value is written to
+    public int shardOf(V value) {
+        return Math.floorMod(Objects.hashCode(shardKey.apply(value)), shards.size());
+    }
+
+    // the shard holding the committed value of the key, or -1
+    public int locate(K key) {
+        return lookup(key).map(Located::shard).orElse(-1);
+    }
+
+    private Optional<Located<V>> lookup(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null");
+        }
+        var hint = locations.get(key);
+        if (hint != null) {
+            var value = shards.get(hint).find(key);
+            if (value.isPresent()) {
+                return Optional.of(new Located<>(hint, value.get()));
+            }
+        }
+        for (int i = 0; i < shards.size(); i++) {
+            if (hint != null && i == hint) {
+                continue;
+            }
+            var value = shards.get(i).find(key);
+            if (value.isPresent()) {
+                locations.put(key, i);
+                return Optional.of(new Located<>(i, value.get()));
+            }
+        }
+        locations.remove(key);
+        return Optional.empty();
+    }
+
+    private KvTransaction on(ShardedTransaction tx, int shard) {
+        var store = shards.get(shard);
+        return tx.on(store, shard, store::beginTransaction);
+    }
+
+    @Override
+    public Optional<V> find(K key) {
+        return lookup(key).map(Located::value);
+    }
+
+    @Override
+    public Optional<V> find(K key, KvTransaction tx) {
+        var sharded = ShardedTransaction.of(tx);
+        var shard = sharded.route(key);
+        if (shard == null) {
+            shard = locate(key);
+            if (shard < 0) {
+                return Optional.empty();
+            }
+        }
+        return shards.get(shard).find(key, on(sharded, shard));
+    }
+
+    @Override
+    public V get(K key) {
+        return find(key).orElseThrow(() -> new RuntimeException("Not found"));
+    }
+
+    @Override
+    public List<V> findAll(Function<V, Optional<V>> filter) {
+        return inKeyOrder(x -> x.findAll(filter));
+    }
+
+    @Override
+    public List<V> findRange(K fromKey, K toKey) {
+        return inKeyOrder(x -> x.findRange(fromKey, toKey));
+    }
+
+    // reads the shards in parallel
+    private List<V> inKeyOrder(Function<KvDb<K, V>, List<V>> read) {
+        return shards.parallelStream()
+                .flatMap(x -> read.apply(x).stream())
+                .sorted(Comparator.comparing(keyOf))
+                .collect(Collectors.toList());
+    }
+
+    // merges the scans of the shards, each in key order, one value at a time
+    @Override
+    public Stream<V> scan(K startAfter, long limit) {
+        List<Stream<V>> scans = new ArrayList<>();
+        try {
+            shards.forEach(x -> scans.add(x.scan(startAfter, 0)));
+        } catch (RuntimeException e) {
+            scans.forEach(Stream::close);
+            throw e;
+        }
+        var merged = StreamSupport.stream(Spliterators.spliteratorUnknownSize(new MergingIterator(scans),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+        merged = merged.onClose(() -> scans.forEach(Stream::close));
+        return limit > 0 ? merged.limit(limit) : merged;
+    }
+
+    private class MergingIterator implements Iterator<V> {
+        private record Head<V>(V value, Iterator<V> rest) {
+        }
+
+        private final PriorityQueue<Head<V>> heads = new PriorityQueue<>(Comparator.comparing(x -> keyOf.apply(x.value())));
+
+        MergingIterator(List<Stream<V>> scans) {
+            scans.forEach(x -> advance(x.iterator()));
+        }
+
+        private void advance(Iterator<V> scan) {
+            if (scan.hasNext()) {
+                heads.add(new Head<>(scan.next(), scan));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return heads.isEmpty() == false;
+        }
+
+        @Override
+        public V next() {
+            var head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            advance(head.rest());
+            return head.value();
+        }
+    }
+
+    @Override
+    public boolean delete(K key) {
+        var tx = beginTransaction();
+        if (delete(key, tx)) {
+            tx.commit();
+            return true;
+        }
+        tx.rollback();
+        return false;
+    }
+
+    @Override
+    public boolean delete(K key, KvTransaction tx) {
+        var shard = locate(key);
+        if (shard < 0) {
+            return false;
+        }
+        locations.remove(key);
+        return shards.get(shard).delete(key, on(ShardedTransaction.of(tx), shard));
+    }
+
+    @Override
+    public KvTransaction beginTransaction() {
+        return new ShardedTransaction();
+    }
+
+    // the shards other than the given one holding a value of the key, left by a move whose commit stopped half way
+    public List<Integer> strays(K key, int shard) {
+        return IntStream.range(0, shards.size())
+                .filter(i -> i != shard && shards.get(i).find(key).isPresent())
+                .boxed()
+                .toList();
+    }
+
+    // deletes the value of the key from the shard, the index entries of the key following it there in the transaction
+    public boolean deleteFrom(K key, int shard, KvTransaction tx) {
+        var sharded = ShardedTransaction.of(tx);
+        sharded.route(key, shard);
+        locations.remove(key);
+        return shards.get(shard).delete(key, on(sharded, shard));
+    }
+
+    // a value whose shard key changed moves: it is deleted from its old shard in the same transaction
+    @Override
+    public boolean save(K key, V value, KvTransaction tx) {
+        var sharded = ShardedTransaction.of(tx);
+        var shard = shardOf(value);
+        var result = moveFrom(key, shard, sharded);
+        sharded.receive(key, shard);
+        locations.put(key, shard);
+        return result && shards.get(shard).save(key, value, on(sharded, shard));
+    }
+
+    private boolean moveFrom(K key, int shard, ShardedTransaction tx) {
+        var current = tx.route(key) == null ? locate(key) : tx.route(key);
+        return current < 0 || current == shard || shards.get(current).delete(key, on(tx, current));
+    }
+
+    @Override
+    public boolean save(K key, V value) {
+        var tx = beginTransaction();
+        if (save(key, value, tx)) {
+            tx.commit();
+            return true;
+        }
+        tx.rollback();
+        return false;
+    }
+
+    @Override
+    public boolean saveAll(Map<K, V> entries, KvTransaction tx) {
+        var sharded = ShardedTransaction.of(tx);
+        Map<Integer, Map<K, V>> byShard = new HashMap<>();
+        var result = true;
+        for (var entry : entries.entrySet()) {
+            var shard = shardOf(entry.getValue());
+            result = result && moveFrom(entry.getKey(), shard, sharded);
+            sharded.receive(entry.getKey(), shard);
+            locations.put(entry.getKey(), shard);
+            byShard.computeIfAbsent(shard, x -> new LinkedHashMap<>()).put(entry.getKey(), entry.getValue());
+        }
+        for (var shard : byShard.entrySet()) {
+            result = result && shards.get(shard.getKey()).saveAll(shard.getValue(), on(sharded, shard.getKey()));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean saveAll(Map<K, V> entries) {
+        var tx = beginTransaction();
+        if (saveAll(entries, tx)) {
+            tx.commit();
+            return true;
+        }
+        tx.rollback();
+        return false;
+    }
+
+    @Override
+    public void close() {
+        shards.forEach(KvDb::close);
+    }
+
+    @Override
+    public void compact() {
+        shards.parallelStream().forEach(KvDb::compact);
+    }
+
+    @Override
+    public void flush() {
+        shards.forEach(KvDb::flush);
+    }
+
+    @Override
+    public List<Supplier<StoreSnapshot>> snapshots() {
+        return shards.stream().flatMap(x -> x.snapshots().stream()).toList();
+    }
+
+    @Override
+    public void drop() {
+        locations.clear();
+        shards.forEach(KvDb::drop);
+    }
+}
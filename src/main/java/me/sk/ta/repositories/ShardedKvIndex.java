@@ -0,0 +1,187 @@
+package me.sk.ta.repositories;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+// An index of the keys of a ShardedKvDb, with one index store per shard of the db. The entries of a key of the db
+// are kept in the shard holding its value, so that a write touches the stores of one shard only. Lookups read
+// every shard and merge what they find in key order.
+public class ShardedKvIndex<K, V extends Comparable<? super V>> implements KvIndex<K, V> {
+    final List<KvIndex<K, V>> shards;
+    final ShardedKvDb<V, ?> db;
+
+    // the shards are not used before the first call, so that they can be stand-ins of stores still opening
+    public ShardedKvIndex(List<KvIndex<K, V>> shards, ShardedKvDb<V, ?> db) {
+        if (shards.size() != db.shardCount()) {
+            throw new IllegalArgumentException("The index needs one shard per shard of the db");
+        }
+        this.shards = List.copyOf(shards);
+        this.db = db;
+    }
+
+    // the shard the value was saved to in the transaction, else the shard holding it; -1 when no shard holds it
+    private int shardOf(V value, ShardedTransaction tx) {
+        var routed = tx.route(value);
+        return routed != null ? routed : db.locate(value);
+    }
+
+    private KvTransaction on(ShardedTransaction tx, int shard) {
+        var store = shards.get(shard);
+        return tx.on(store, shard, store::beginTransaction);
+    }
+
+    @Override
+    public List<V> find(K key) {
+        return shards.stream()
+                .flatMap(x -> x.find(key).stream())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public List<V> findRange(K fromKey, K toKey) {
+        return entries(fromKey, toKey).stream().map(Map.Entry::getValue).collect(Collectors.toList());
+    }
+
+    @Override
+    public PostingList postings(K key) {
+        return shards.stream().map(x -> x.postings(key)).reduce(new PostingList(), PostingList::union);
+    }
+
+    @Override
+    public PostingList postings(K fromKey, K toKey) {
+        return shards.parallelStream().map(x -> x.postings(fromKey, toKey)).reduce(new PostingList(), PostingList::union);
+    }
+
+    @Override
+    public List<Map.Entry<K, V>> entries() {
+        return inKeyOrder(KvIndex::entries);
+    }
+
+    @Override
+    public List<Map.Entry<K, V>> entries(K fromKey, K toKey) {
+        return inKeyOrder(x -> x.entries(fromKey, toKey));
+    }
+
+    // reads the shards in parallel
+    private List<Map.Entry<K, V>> inKeyOrder(Function<KvIndex<K, V>, List<Map.Entry<K, V>>> read) {
+        return shards.parallelStream()
+                .flatMap(x -> read.apply(x).stream())
+                .sorted(Comparator.<Map.Entry<K, V>, K>comparing(Map.Entry::getKey, ShardedKvIndex::compareKeys).thenComparing(Map.Entry.comparingByValue()))
+                .collect(Collectors.toList());
+    }
+
+    // the keys of an index are comparable, the declared indexes only know them as objects: dates, strings, numbers, enums
+    @SuppressWarnings("unchecked")
+    private static <K> int compareKeys(K a, K b) {
+        return ((Comparable<Object>) a).compareTo(b);
+    }
+
+    @Override
+    public KvTransaction beginTransaction() {
+        return new ShardedTransaction();
+    }
+
+    @Override
+    public boolean index(K key, V value) {
+        var tx = beginTransaction();
+        if (index(key, value, tx)) {
+            tx.commit();
+            return true;
+        }
+        tx.rollback();
+        return false;
+    }
+
+    // the value must be saved to the db first, in the same transaction or an earlier one
+    @Override
+    public boolean index(K key, V value, KvTransaction tx) {
+        var sharded = ShardedTransaction.of(tx);
+        var shard = shardOf(value, sharded);
+        return shard >= 0 && shards.get(shard).index(key, value, on(sharded, shard));
+    }
+
+    @Override
+    public boolean indexAll(List<Map.Entry<K, V>> entries, KvTransaction tx) {
+        var sharded = ShardedTransaction.of(tx);
+        Map<Integer, List<Map.Entry<K, V>>> byShard = new HashMap<>();
+        for (var entry : entries) {
+            var shard = shardOf(entry.getValue(), sharded);
+            if (shard < 0) {
+                return false;
+            }
+            byShard.computeIfAbsent(shard, x -> new ArrayList<>()).add(entry);
+        }
+        var result = true;
+        for (var shard : byShard.entrySet()) {
+            result = result && shards.get(shard.getKey()).indexAll(shard.getValue(), on(sharded, shard.getKey()));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean delete(K key, V value) {
+        var tx = beginTransaction();
+        if (delete(key, value, tx)) {
+            tx.commit();
+            return true;
+        }
+        tx.rollback();
+        return false;
+    }
+
+    // the entries of a value no shard holds any more are looked for in every shard
+    @Override
+    public boolean delete(K key, V value, KvTransaction tx) {
+        var sharded = ShardedTransaction.of(tx);
+        var shard = shardOf(value, sharded);
+        if (shard >= 0) {
+            return shards.get(shard).delete(key, value, on(sharded, shard));
+        }
+        var result = true;
+        for (int i = 0; i < shards.size(); i++) {
+            result = result && shards.get(i).delete(key, value, on(sharded, i));
+        }
+        return result;
+    }
+
+    @Override
+    public void clear() {
+        shards.forEach(KvIndex::clear);
+    }
+
+    @Override
+    public void close() {
+        shards.forEach(KvIndex::close);
+    }
+
+    @Override
+    public void compact() {
+        shards.parallelStream().forEach(KvIndex::compact);
+    }
+
+    @Override
+    public void flush() {
+        shards.forEach(KvIndex::flush);
+    }
+
+    @Override
+    public List<Supplier<StoreSnapshot>> snapshots() {
+        return shards.stream().flatMap(x -> x.snapshots().stream()).toList();
+    }
+
+    @Override
+    public boolean drop() {
+        var result = true;
+        for (var shard : shards) {
+            result &= shard.drop();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,86 @@
+package me.sk.ta.repositories;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+// The unit of work of a ShardedKvDb and of its ShardedKvIndexes. A transaction is begun on a shard store the
+// first time it is written to; one ShardedTransaction can be shared by the db and its indexes, as the stores
+// of a SharedMVStore share theirs. The shards are committed one after the other, like the stores of TradeRepository,
+// so the commit is not atomic across the shards. The shards the values were saved to are committed first: a stop
+// in between leaves a value that moved in both its new and its old shard rather than in neither, and the old copy
+// is deleted when the repository recovers, see TradeRepository.deleteStrays.
+final class ShardedTransaction implements KvTransaction {
+    // the transactions begun so far, by shard store, and the shard of each store
+    private final Map<Object, KvTransaction> txs = new IdentityHashMap<>();
+    private final Map<Object, Integer> shards = new IdentityHashMap<>();
+    // the shards the keys saved in this transaction go to, so that their index entries follow them
+    private final Map<Object, Integer> routes = new HashMap<>();
+    // the shards values were saved to
+    private final Set<Integer> receiving = new HashSet<>();
+
+    KvTransaction on(Object store, int shard, Supplier<KvTransaction> begin) {
+        shards.put(store, shard);
+        return txs.computeIfAbsent(store, x -> begin.get());
+    }
+
+    void route(Object key, int shard) {
+        routes.put(key, shard);
+    }
+
+    // routes the key to the shard its value is saved to
+    void receive(Object key, int shard) {
+        route(key, shard);
+        receiving.add(shard);
+    }
+
+    // the shard the key was saved to in this transaction, or null
+    Integer route(Object key) {
+        return routes.get(key);
+    }
+
+    static ShardedTransaction of(KvTransaction tx) {
+        if (tx instanceof ShardedTransaction sharded) {
+            return sharded;
+        }
+        throw new IllegalArgumentException("Expected the transaction of a sharded store, got " + tx);
+    }
+
+    // the transactions of the shards the values were saved to, then the others
+    private List<KvTransaction> inCommitOrder() {
+        List<KvTransaction> ordered = new ArrayList<>();
+        txs.forEach((store, tx) -> {
+            if (receiving.contains(shards.get(store))) {
+                ordered.add(tx);
+            }
+        });
+        txs.forEach((store, tx) -> {
+            if (receiving.contains(shards.get(store)) == false) {
+                ordered.add(tx);
+            }
+        });
+        return ordered;
+    }
+
+    @Override
+    public void commit() {
+        inCommitOrder().forEach(KvTransaction::commit);
+    }
+
+    @Override
+    public Runnable commitDeferred() {
+        List<Runnable> durable = new ArrayList<>();
+        inCommitOrder().forEach(x -> durable.add(x.commitDeferred()));
+        return () -> durable.forEach(Runnable::run);
+    }
+
+    @Override
+    public void rollback() {
+        txs.values().forEach(KvTransaction::rollback);
+    }
+}
@@ -0,0 +1,90 @@
+package me.sk.ta.repositories;
+
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.tx.TransactionStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+// One MVStore file hosting the maps of several MVStoreRepo and MVStoreIndex instances.
+// They all hand out transactions of the same TransactionStore, so a single transaction
+// can write to all of them and is made durable with one commit.
+public class SharedMVStore {
+    private static final Logger log = LoggerFactory.getLogger(SharedMVStore.class);
+    static final int COMPACT_MILLIS = 10_000;
+    final File baseDir;
+    final MVStore db;
+    final TransactionStore ts;
+    final StoreCommits commits;
+
+    public SharedMVStore(String dbFolder, String dbName) {
+        this(dbFolder, dbName, Durability.Async);
+    }
+
+    public SharedMVStore(String dbFolder, String dbName, Durability durability) {
+        baseDir = new File(dbFolder, dbName);
+        try {
+            log.debug("Creating path: {}", baseDir.getParentFile().toPath());
+            Files.createDirectories(baseDir.getParentFile().toPath());
+            db = new MVStore.Builder()
+                    .fileName(baseDir.getAbsolutePath())
+                    .encryptionKey("007".toCharArray())
+                    .compress()
+                    .open();
+            ts = new TransactionStore(db);
+            ts.init();
+            commits = new StoreCommits(db, durability);
+            log.info("{} shared db initialized at {} with {} durability", dbName, baseDir.getAbsolutePath(), durability);
+        } catch (IOException e) {
+            log.error("Error initializing {} db. Exception: '{}', message: '{}'", dbName, e.getCause(), e.getMessage(), e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    public KvTransaction beginTransaction() {
+        return new MVStoreTransaction(ts.begin(), commits);
+    }
+
+    public void compact() {
+        compact(db, baseDir);
+    }
+
+    // rewrites the chunks that are partly free, for at most COMPACT_MILLIS, and truncates the file
+    static void compact(MVStore db, File baseDir) {
+        var before = db.getFileStore().size();
+        db.compactFile(COMPACT_MILLIS);
+        log.info("Compacted {} from {} to {} bytes", baseDir.getAbsolutePath(), before, db.getFileStore().size());
+    }
+
+    public void flush() {
+        flush(db);
+    }
+
+    static void flush(MVStore db) {
+        db.commit();
+        db.sync();
+    }
+
+    public StoreSnapshot snapshot() {
+        return new MVStoreSnapshot(db, baseDir);
+    }
+
+    public synchronized void close() {
+        if (!db.isClosed()) {
+            db.close();
+        }
+    }
+
+    public synchronized void drop() {
+        try {
+            log.info("Dropping {} db", baseDir.getAbsolutePath());
+            close();
+            Files.deleteIfExists(baseDir.getAbsoluteFile().toPath());
+        } catch (IOException e) {
+            log.error("Error dropping {} db. Cause: '{}', message: '{}'", baseDir.getAbsolutePath(), e.getCause(), e.getMessage());
+        }
+    }
+}
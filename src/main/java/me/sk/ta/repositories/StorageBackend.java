@@ -0,0 +1,40 @@
+package me.sk.ta.repositories;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// Selected with db.backend in application.yml
+public enum StorageBackend {
+    MVStore,
+    RocksDb;
+
+    public static StorageBackend of(String name) {
+        for (var backend : values()) {
+            if (backend.name().equalsIgnoreCase(name)) {
+                return backend;
+            }
+        }
+        throw new IllegalArgumentException("Unknown storage backend: " + name);
+    }
+
+    public <K, V> KvDb<K, V> openDb(String dbFolder, String dbName, Class<K> keyClass, VersionedDataType<V> valueType, ObjectMapper serializer) {
+        return openDb(dbFolder, dbName, keyClass, valueType, serializer, Durability.Async);
+    }
+
+    public <K, V> KvDb<K, V> openDb(String dbFolder, String dbName, Class<K> keyClass, VersionedDataType<V> valueType, ObjectMapper serializer, Durability durability) {
+        return switch (this) {
+            case MVStore -> new MVStoreRepo<>(dbFolder, dbName, keyClass, valueType, serializer, durability);
+            case RocksDb -> new RocksDbRepo<>(dbFolder, dbName, valueType, durability);
+        };
+    }
+
+    public <K, V> KvIndex<K, V> openIndex(String dbFolder, String indexName, KvIndex.IndexingStrategy strategy, Class<V> valueClass, Class<? extends K> keyClass, String keySeparator, ObjectMapper serializer) {
+        return openIndex(dbFolder, indexName, strategy, valueClass, keyClass, keySeparator, serializer, Durability.Async);
+    }
+
+    public <K, V> KvIndex<K, V> openIndex(String dbFolder, String indexName, KvIndex.IndexingStrategy strategy, Class<V> valueClass, Class<? extends K> keyClass, String keySeparator, ObjectMapper serializer, Durability durability) {
+        return switch (this) {
+            case MVStore -> new MVStoreIndex<>(dbFolder, indexName, strategy, valueClass, keyClass, keySeparator, serializer, durability);
+            case RocksDb -> new RocksDbIndex<>(dbFolder, indexName, strategy, valueClass, keyClass, keySeparator, serializer, durability);
+        };
+    }
+}
@@ -0,0 +1,108 @@
+package me.sk.ta.repositories;
+
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.tx.Transaction;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Commits the transactions of one MVStore with the durability it was opened with.
+// In Group mode the first committer to find no write in progress writes the store for every commit made so far,
+// the commits arriving meanwhile wait for it and are covered by the next write. When the last write covered several
+// commits, the writers are concurrent and the next one first waits up to GROUP_DELAY_MILLIS for more commits to join.
+final class StoreCommits {
+    static final long GROUP_DELAY_MILLIS = 1;
+    private final MVStore db;
+    final Durability durability;
+    private final Object lock = new Object();
+    // commits waiting to be made durable are numbered in order; those up to durable have been written
+    private long requested;
+    private long durable;
+    private boolean writing;
+    // number of commits the last write covered
+    private long lastGroup = 1;
+    // number of store writes, for the statistics
+    final AtomicLong writes = new AtomicLong();
+    // time to commit a transaction, and to write and sync the store, see StoreMetrics
+    final LatencyHistogram commitLatency = new LatencyHistogram();
+    final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    StoreCommits(MVStore db, Durability durability) {
+        this.db = db;
+        this.durability = durability;
+    }
+
+    void commit(Transaction tx) {
+        commitDeferred(tx);
+        awaitDurable();
+    }
+
+    // commits the transaction without waiting for it to be durable, the caller then calls awaitDurable
+    void commitDeferred(Transaction tx) {
+        var start = System.nanoTime();
+        tx.commit();
+        commitLatency.recordSince(start);
+    }
+
+    // waits until the transactions committed so far are on the disk, as far as the durability asks for it
+    void awaitDurable() {
+        switch (durability) {
+            case Async -> {
+            }
+            case Sync -> write();
+            case Group -> awaitGroupWrite();
+        }
+    }
+
+    private void awaitGroupWrite() {
+        long upTo;
+        synchronized (lock) {
+            var ticket = ++requested;
+            while (writing && durable < ticket) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for the commit to be written", e);
+                }
+            }
+            if (durable >= ticket) {
+                return;
+            }
+            writing = true;
+            if (lastGroup > 1) {
+                try {
+                    // the waiting commits take their tickets meanwhile, the lock being released
+                    lock.wait(GROUP_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    writing = false;
+                    lock.notifyAll();
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Interrupted while waiting for the commit to be written", e);
+                }
+            }
+            upTo = requested;
+        }
+        var written = false;
+        try {
+            write();
+            written = true;
+        } finally {
+            synchronized (lock) {
+                if (written) {
+                    lastGroup = upTo - durable;
+                    durable = upTo;
+                }
+                writing = false;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void write() {
+        var start = System.nanoTime();
+        db.commit();
+        db.sync();
+        writes.incrementAndGet();
+        writeLatency.recordSince(start);
+    }
+}
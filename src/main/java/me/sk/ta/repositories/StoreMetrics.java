@@ -0,0 +1,101 @@
+package me.sk.ta.repositories;
+
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.MVStoreException;
+import org.h2.mvstore.tx.TransactionStore;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// The figures of one MVStoreRepo or MVStoreIndex: the latency of its operations, and the cache, fill rate,
+// chunks, open transactions and file size of the MVStore underneath, read when the snapshot is taken.
+// Every open repository and index is registered under its name until it is closed, see all().
+public final class StoreMetrics {
+    private static final Map<String, StoreMetrics> registry = new ConcurrentSkipListMap<>();
+
+    public enum Operation {
+        Save, SaveAll, Find, FindAll, FindRange, Index, Delete
+    }
+
+    // fillRate and chunksFillRate are percentages of live data in the file and in the chunks, cacheHitRatio the
+    // percentage of page reads served by the cache; commits is the time to commit a transaction, writes the
+    // time to write and sync the store when the durability asks for it
+    public record Snapshot(String name, long fileBytes, int fillRate, int chunksFillRate, int chunkCount,
+                           int cacheHitRatio, int cacheUsedMb, int cacheSizeMb, int openTransactions,
+                           LatencyHistogram.Snapshot commits, LatencyHistogram.Snapshot writes,
+                           Map<Operation, LatencyHistogram.Snapshot> operations) {
+    }
+
+    final String name;
+    private final MVStore db;
+    private final TransactionStore ts;
+    private final StoreCommits commits;
+    private final Map<Operation, LatencyHistogram> operations = new EnumMap<>(Operation.class);
+
+    private StoreMetrics(String name, MVStore db, TransactionStore ts, StoreCommits commits) {
+        this.name = name;
+        this.db = db;
+        this.ts = ts;
+        this.commits = commits;
+        for (var operation : Operation.values()) {
+            operations.put(operation, new LatencyHistogram());
+        }
+    }
+
+    // replaces the metrics of a store of the same name
+    static StoreMetrics register(String name, MVStore db, TransactionStore ts, StoreCommits commits) {
+        var metrics = new StoreMetrics(name, db, ts, commits);
+        registry.put(name, metrics);
+        return metrics;
+    }
+
+    void unregister() {
+        registry.remove(name, this);
+    }
+
+    // records the time since start, a value of System.nanoTime
+    void record(Operation operation, long start) {
+        operations.get(operation).recordSince(start);
+    }
+
+    public Snapshot snapshot() {
+        Map<Operation, LatencyHistogram.Snapshot> latencies = new LinkedHashMap<>();
+        operations.forEach((operation, histogram) -> {
+            var latency = histogram.snapshot();
+            if (latency.count() > 0) {
+                latencies.put(operation, latency);
+            }
+        });
+        long fileBytes = 0;
+        int fillRate = 0, chunksFillRate = 0, chunkCount = 0, cacheHitRatio = 0, cacheUsed = 0, cacheSize = 0, open = 0;
+        try {
+            if (db.isClosed() == false) {
+                fileBytes = db.getFileStore().size();
+                fillRate = db.getFillRate();
+                chunksFillRate = db.getChunksFillRate();
+                chunkCount = db.getChunkCount();
+                cacheHitRatio = db.getCacheHitRatio();
+                cacheUsed = db.getCacheSizeUsed();
+                cacheSize = db.getCacheSize();
+                open = ts.getOpenTransactions().size();
+            }
+        } catch (MVStoreException e) {
+            // closed meanwhile, only the latencies are left
+        }
+        return new Snapshot(name, fileBytes, fillRate, chunksFillRate, chunkCount, cacheHitRatio, cacheUsed, cacheSize, open,
+                commits.commitLatency.snapshot(), commits.writeLatency.snapshot(), latencies);
+    }
+
+    // the metrics of every open MVStoreRepo and MVStoreIndex, by name
+    public static List<Snapshot> all() {
+        List<Snapshot> snapshots = new ArrayList<>();
+        for (var metrics : registry.values()) {
+            snapshots.add(metrics.snapshot());
+        }
+        return snapshots;
+    }
+}
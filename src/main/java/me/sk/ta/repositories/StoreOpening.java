@@ -0,0 +1,176 @@
+package me.sk.ta.repositories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Opens the stores of a repository in parallel and records how long each of them took.
+//
+// Eager, the default: the constructor of the repository waits for its stores, then initializes the repository.
+// Lazy: the constructor gets stand-ins for the stores and returns at once. The stores are opened, and the
+// repository initialized, in the background while holding the monitor of the repository, so its synchronized
+// methods wait for that; everything else waits on the first call of a stand-in, or on await. See StoreReadiness.
+final class StoreOpening {
+    private static final Logger log = LoggerFactory.getLogger(StoreOpening.class);
+    private static final AtomicInteger threads = new AtomicInteger();
+    // unbounded, the initialization of a lazy repository waits on a thread of its own for its stores
+    private static final ExecutorService opener = Executors.newCachedThreadPool(x -> {
+        var thread = new Thread(x, "store-open-" + threads.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    record Timing(String store, Duration elapsed) {
+    }
+
+    final String repository;
+    final boolean lazy;
+    private final long start = System.nanoTime();
+    private final List<CompletableFuture<?>> stores = new ArrayList<>();
+    private final List<Timing> timings = new CopyOnWriteArrayList<>();
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private volatile Duration elapsed;
+    // the thread initializing a lazy repository, which uses the stores before they are ready
+    private volatile Thread initializer;
+
+    StoreOpening(String repository, boolean lazy) {
+        this.repository = repository;
+        this.lazy = lazy;
+    }
+
+    // starts opening a store
+    <T> CompletableFuture<T> open(String store, Supplier<T> opener) {
+        var opening = CompletableFuture.supplyAsync(() -> openNow(store, opener), StoreOpening.opener);
+        stores.add(opening);
+        return opening;
+    }
+
+    // opens a store on the calling thread, for the stores that are not opened alongside others
+    <T> T openNow(String store, Supplier<T> opener) {
+        var start = System.nanoTime();
+        var opened = opener.get();
+        timings.add(new Timing(store, Duration.ofNanos(System.nanoTime() - start)));
+        return opened;
+    }
+
+    // The opened store, or with lazy opening a stand-in for it. The stores still opening are closed when one of them fails.
+    @SuppressWarnings("unchecked")
+    <T> T get(Class<? super T> type, CompletableFuture<? extends T> store) {
+        if (lazy == false) {
+            try {
+                return store.join();
+            } catch (CompletionException e) {
+                closeAll();
+                throw failure(e);
+            }
+        }
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            await();
+            try {
+                return method.invoke(store.join(), args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    // Runs the initialization of the repository once its stores are open; with lazy opening in the background
+    // while holding the monitor of the repository, which is taken before this returns.
+    void initialize(Object monitor, Runnable initialization) {
+        if (lazy == false) {
+            initializer = Thread.currentThread();
+            try {
+                initialization.run();
+            } finally {
+                initializer = null;
+            }
+            opened();
+            return;
+        }
+        var held = new CompletableFuture<Void>();
+        opener.execute(() -> {
+            synchronized (monitor) {
+                initializer = Thread.currentThread();
+                held.complete(null);
+                try {
+                    CompletableFuture.allOf(stores.toArray(CompletableFuture[]::new)).join();
+                    initialization.run();
+                    opened();
+                } catch (Throwable e) {
+                    log.error("Error opening the stores of {}: {}", repository, e);
+                    ready.completeExceptionally(e);
+                } finally {
+                    initializer = null;
+                }
+            }
+        });
+        held.join();
+    }
+
+    private void opened() {
+        elapsed = Duration.ofNanos(System.nanoTime() - start);
+        log.info("Opened the stores of {}: {}", repository, report());
+        ready.complete(null);
+    }
+
+    // completes once the stores are open and the repository initialized
+    CompletableFuture<Void> ready() {
+        return ready;
+    }
+
+    // waits until the stores are ready, throws if they could not be opened; the initialization itself does not wait
+    void await() {
+        if (Thread.currentThread() == initializer) {
+            return;
+        }
+        try {
+            ready.join();
+        } catch (CompletionException e) {
+            throw failure(e);
+        }
+    }
+
+    List<Timing> timings() {
+        return List.copyOf(timings);
+    }
+
+    // the time each store took to open, and the time from the start until the repository was ready
+    String report() {
+        var report = new StringBuilder();
+        for (var timing : timings) {
+            report.append(timing.store()).append(' ').append(timing.elapsed().toMillis()).append(" ms, ");
+        }
+        var total = elapsed;
+        return report.append(total == null ? "not ready" : "ready in " + total.toMillis() + " ms").toString();
+    }
+
+    private void closeAll() {
+        for (var store : stores) {
+            store.thenAccept(x -> {
+                if (x instanceof KvDb<?, ?> db) {
+                    db.close();
+                } else if (x instanceof KvIndex<?, ?> index) {
+                    index.close();
+                }
+            });
+        }
+    }
+
+    private RuntimeException failure(CompletionException e) {
+        return e.getCause() instanceof RuntimeException cause
+                ? cause
+                : new RuntimeException("Could not open the stores of " + repository, e.getCause());
+    }
+}
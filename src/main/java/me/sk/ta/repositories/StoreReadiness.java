@@ -0,0 +1,77 @@
+package me.sk.ta.repositories;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.LivenessState;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Holds the readiness of the application back until the stores of the repositories are open, which with
+// db.lazy-open happens after the application has started, and reports how long each store took to open.
+@Component
+public class StoreReadiness {
+    private static final Logger log = LoggerFactory.getLogger(StoreReadiness.class);
+    final List<StoreOpening> openings;
+    final ApplicationEventPublisher publisher;
+
+    @Autowired
+    public StoreReadiness(TradeRepository trades, TradeArchiveRepository archive, TradingAccountRepository accounts,
+                          ApplicationEventPublisher publisher) {
+        this(List.of(trades.opening, archive.opening, accounts.opening), publisher);
+    }
+
+    StoreReadiness(List<StoreOpening> openings, ApplicationEventPublisher publisher) {
+        this.openings = openings;
+        this.publisher = publisher;
+    }
+
+    // completes once the stores of all the repositories are open
+    public CompletableFuture<Void> ready() {
+        return CompletableFuture.allOf(openings.stream().map(StoreOpening::ready).toArray(CompletableFuture[]::new));
+    }
+
+    public boolean isReady() {
+        return ready().isDone() && ready().isCompletedExceptionally() == false;
+    }
+
+    // the time each store took to open, by repository
+    public String report() {
+        var report = new StringBuilder();
+        for (var opening : openings) {
+            report.append(opening.repository).append(": ").append(opening.report()).append('\n');
+        }
+        return report.toString();
+    }
+
+    // Runs after ApplicationAvailabilityBean has recorded the change, so that refusing the traffic here is what it keeps.
+    // The traffic is accepted again, and this called again, once the stores are open.
+    @EventListener
+    @Order(Ordered.LOWEST_PRECEDENCE)
+    public void onReadiness(AvailabilityChangeEvent<ReadinessState> event) {
+        if (event.getState() != ReadinessState.ACCEPTING_TRAFFIC) {
+            return;
+        }
+        var ready = ready();
+        if (ready.isDone()) {
+            if (isReady()) {
+                log.info("The stores are open\n{}", report());
+            } else {
+                log.error("The stores could not be opened\n{}", report());
+                AvailabilityChangeEvent.publish(publisher, this, LivenessState.BROKEN);
+            }
+            return;
+        }
+        log.info("Refusing traffic until the stores are open");
+        AvailabilityChangeEvent.publish(publisher, this, ReadinessState.REFUSING_TRAFFIC);
+        ready.whenComplete((x, e) -> AvailabilityChangeEvent.publish(publisher, this, ReadinessState.ACCEPTING_TRAFFIC));
+    }
+}
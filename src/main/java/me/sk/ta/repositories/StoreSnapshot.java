@@ -0,0 +1,37 @@
+package me.sk.ta.repositories;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+// A point-in-time view of one store file or directory, taken while no write is in progress and written out
+// afterwards, while the writers carry on. See DbBackup.
+public interface StoreSnapshot extends AutoCloseable {
+    // the file or directory of the store
+    Path source();
+
+    // Writes the snapshot to target. With since >= 0, the mark returned by an earlier write of the same
+    // store, only what changed after that write is written. Returns the mark of this write.
+    long write(Path target, long since);
+
+    // Restores the backups of the store, the full one first and then the incremental ones in order, into target
+    void restore(List<Path> backups, Path target);
+
+    @Override
+    void close();
+
+    // takes the snapshots of all the stores, closing those already taken if one of them fails
+    static List<StoreSnapshot> takeAll(List<Supplier<StoreSnapshot>> stores) {
+        List<StoreSnapshot> snapshots = new ArrayList<>();
+        try {
+            for (var store : stores) {
+                snapshots.add(store.get());
+            }
+        } catch (RuntimeException e) {
+            snapshots.forEach(StoreSnapshot::close);
+            throw e;
+        }
+        return snapshots;
+    }
+}
@@ -0,0 +1,39 @@
+package me.sk.ta.repositories;
+
+import org.h2.mvstore.WriteBuffer;
+
+import java.nio.ByteBuffer;
+
+public class StringDataType extends VersionedDataType<String> {
+    private static final byte VERSION = 1;
+
+    @Override
+    protected byte currentVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public Class<String> getValueClass() {
+        return String.class;
+    }
+
+    @Override
+    public String[] createStorage(int size) {
+        return new String[size];
+    }
+
+    @Override
+    public int getMemory(String value) {
+        return stringMemory(value);
+    }
+
+    @Override
+    protected void writeBody(WriteBuffer buff, String value) {
+        putString(buff, value);
+    }
+
+    @Override
+    protected String readBody(ByteBuffer buff, byte version) {
+        return getString(buff);
+    }
+}
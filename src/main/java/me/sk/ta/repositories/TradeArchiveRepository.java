@@ -1,40 +1,91 @@
 package me.sk.ta.repositories;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import me.sk.ta.domain.Stats;
 import me.sk.ta.domain.Trade;
 import me.sk.ta.domain.TradingChargesCalculator;
-import org.h2.mvstore.tx.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.nio.file.Path;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Component
 public class TradeArchiveRepository {
     private static final Logger log = LoggerFactory.getLogger(TradeArchiveRepository.class);
-    final MVStoreIndex<String, Integer> symbolIndex;
-    final MVStoreIndex<LocalDate, Integer> dateIndex;
+    static final int COLUMNS_BATCH_SIZE = 10_000;
+    final KvIndex<String, Integer> symbolIndex;
+    final KvIndex<LocalDate, Integer> dateIndex;
     final KvDb<String, Integer> countersDb;
     final KvDb<Integer, Trade> db;
+    // the figures of the closed trades, for the statistics and the ledger of a period
+    final ClosedTradeColumns columns;
+    final StoreOpening opening;
     String dbPath;
     final TradingChargesCalculator chargesCalculator;
 
-    public TradeArchiveRepository(@Value("${db.conn.archive.trade}") String dbPath, ObjectMapper serializer, TradingChargesCalculator tc) {
+    public TradeArchiveRepository(String dbPath, ObjectMapper serializer, TradingChargesCalculator tc) {
+        this(dbPath, StorageBackend.MVStore.name(), false, serializer, tc);
+    }
+
+    // With lazyOpen the stores are opened in the background and the first use of the repository waits for them, see StoreOpening
+    @Autowired
+    public TradeArchiveRepository(@Value("${db.conn.archive.trade}") String dbPath, @Value("${db.backend:mvstore}") String backend,
+                                  @Value("${db.lazy-open:false}") boolean lazyOpen, ObjectMapper serializer, TradingChargesCalculator tc) {
         if (dbPath == null) {
             throw new IllegalArgumentException("dbPath has not been initialized");
         }
         this.dbPath = Path.of(dbPath).resolve("archive").toString();
         this.chargesCalculator = tc;
-        db = new MVStoreRepo<Integer, Trade>(dbPath, "trade", Integer.class, Trade.class, serializer);
-        symbolIndex = new MVStoreIndex<>(dbPath, "SYMBOL_INDEX", MVStoreIndex.IndexingStrategy.PostfixValue, String.class, Integer.class, "~~~", serializer);
-        dateIndex = new MVStoreIndex<>(dbPath, "DATE_INDEX", MVStoreIndex.IndexingStrategy.PostfixValue, LocalDate.class, Integer.class, "~~~", serializer);
-        countersDb = new MVStoreRepo<String, Integer>(dbPath, "counters", String.class, Integer.class, serializer);
+        var storage = StorageBackend.of(backend);
+        log.info("Using the {} storage backend", storage);
+        opening = new StoreOpening("archive", lazyOpen);
+        var trades = opening.open("trade", () -> storage.openDb(dbPath, "trade", Integer.class, new TradeDataType(tc), serializer));
+        var symbols = opening.open("SYMBOL_INDEX", () -> storage.openIndex(dbPath, "SYMBOL_INDEX", KvIndex.IndexingStrategy.MultipleValues, Integer.class, String.class, "~~~", serializer));
+        var dates = opening.open("DATE_INDEX", () -> storage.openIndex(dbPath, "DATE_INDEX", KvIndex.IndexingStrategy.MultipleValues, Integer.class, LocalDate.class, "~~~", serializer));
+        var counters = opening.open("counters", () -> storage.openDb(dbPath, "counters", String.class, new IntegerDataType(), serializer));
+        db = opening.get(KvDb.class, trades);
+        symbolIndex = opening.get(KvIndex.class, symbols);
+        dateIndex = opening.get(KvIndex.class, dates);
+        countersDb = opening.get(KvDb.class, counters);
+        columns = new ClosedTradeColumns(Path.of(dbPath, "columns"));
+        opening.initialize(this, this::buildColumns);
+    }
+
+    // Archives written before the columns existed, or whose columns were removed, have their columns
+    // written from one scan of the trades when they are opened. The rows of the trades whose write was not
+    // followed by the columns, the process having stopped in between, are written again from the trades.
+    private void buildColumns() {
+        if (columns.isEmpty() == false) {
+            var pending = columns.pending();
+            if (pending.isEmpty() == false) {
+                var trades = pending.stream().map(db::find).flatMap(Optional::stream).toList();
+                columns.append(trades, pending);
+                log.warn("Wrote the columns of {} trades pending when the archive was closed", pending.size());
+            }
+            return;
+        }
+        try (var trades = db.scan(null, 0)) {
+            var closed = trades.filter(Trade::isClosed).toList();
+            for (int i = 0; i < closed.size(); i += COLUMNS_BATCH_SIZE) {
+                columns.append(closed.subList(i, Math.min(i + COLUMNS_BATCH_SIZE, closed.size())));
+            }
+            if (closed.isEmpty() == false) {
+                log.info("Built the columns of {} closed trades", closed.size());
+            }
+        }
     }
 
     public Trade find(int id) {
@@ -45,9 +96,7 @@ public class TradeArchiveRepository {
     }
 
     public List<Trade> where(Predicate<Trade> predicate) {
-        return db.findAll(x -> {
-            return predicate.test(x) ? Optional.of(x) : Optional.empty();
-        });
+        return scan(predicate);
     }
 
     public Optional<Trade> get(int id) {
@@ -58,61 +107,158 @@ public class TradeArchiveRepository {
     }
 
     public List<Trade> getClosedTrades(LocalDate from, LocalDate to) {
-        return db.findAll(x -> {
-            var date = x.getDateOfClosure();
-            if (date.isEmpty()) {
-                return Optional.empty();
-            }
-            if (date.get().isBefore(from) || date.get().isAfter(to)) {
-                return Optional.empty();
-            }
-            return Optional.of(x);
-        });
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("from and to are required");
+        }
+        // only the trades found in the date index are read; the closure date is checked again
+        // as the index may still hold the date of a trade that has been reopened since
+        return dateIndex.findRange(from, to).stream()
+                .distinct()
+                .map(db::find)
+                .flatMap(Optional::stream)
+                .filter(x -> {
+                    var date = x.getDateOfClosure();
+                    return date.isPresent() && !date.get().isBefore(from) && !date.get().isAfter(to);
+                })
+                .collect(Collectors.toList());
+    }
+
+    // The figures of the trades closed within [from, to], read from the columns without decoding any trade
+    public List<ClosedTrade> getClosedTradeFigures(LocalDate from, LocalDate to) {
+        return columns.scan(from, to);
     }
 
-    // TODO commit write transaction
-    public int save(Trade trade) {
+    public Stats stats(LocalDate from, LocalDate to) {
+        return Stats.build(from, to, getClosedTradeFigures(from, to));
+    }
+
+    // trades are decoded one at a time while scanning, only the matches are kept
+    private List<Trade> scan(Predicate<Trade> predicate) {
+        try (var trades = db.scan(null, 0)) {
+            return trades.filter(predicate).collect(Collectors.toList());
+        }
+    }
+
+    // Stores the trade as saveAll does; its ID is cleared when it could not be stored
+    public synchronized int save(Trade trade) {
         if (trade == null) {
             throw new IllegalArgumentException("trade");
         }
+        if (saveAll(List.of(trade)) == 0) {
+            trade.ID = 0;
+            return 0;
+        }
+        return trade.ID;
+    }
 
-        if (trade.ID <= 0) {
+    // Stores the trades and their index entries in one unit of work, then appends the closed ones to the
+    // columns, recorded as pending until then. A trade already in the archive is replaced, along with the index
+    // entries and the row of the archived copy.
+    public synchronized int saveAll(List<Trade> trades) {
+        if (trades == null) {
+            throw new IllegalArgumentException("trades");
+        }
+        if (trades.isEmpty()) {
+            return 0;
+        }
+        if (trades.stream().anyMatch(x -> x.ID <= 0)) {
             throw new IllegalArgumentException("Trade.ID has to be greater than zero");
         }
 
-        Transaction tx1 = null, tx2 = null, tx3 = null;
-        boolean res1 = true, res2 = true, res3 = true;
-
+        KvTransaction tx1 = null, tx2 = null, tx3 = null;
         try {
             tx1 = db.beginTransaction();
             tx2 = symbolIndex.beginTransaction();
             tx3 = dateIndex.beginTransaction();
 
-            res1 = db.save(trade.ID, trade);
-            res2 = symbolIndex.index(trade.symbol, trade.ID);
-            var closureDate = trade.getDateOfClosure();
-            if (closureDate.isPresent()) {
-                res3 = dateIndex.index(closureDate.get(), trade.ID);
+            Map<Integer, Trade> entries = new LinkedHashMap<>();
+            List<Map.Entry<String, Integer>> symbols = new ArrayList<>();
+            List<Map.Entry<LocalDate, Integer>> closureDates = new ArrayList<>();
+            boolean res = true;
+            for (var t : trades) {
+                var previous = db.find(t.ID);
+                if (previous.isPresent()) {
+                    res = res && symbolIndex.delete(previous.get().symbol, t.ID, tx2);
+                    if (previous.get().getDateOfClosure().isPresent()) {
+                        res = res && dateIndex.delete(previous.get().getDateOfClosure().get(), t.ID, tx3);
+                    }
+                }
+                entries.put(t.ID, t);
+                symbols.add(Map.entry(t.symbol, t.ID));
+                t.getDateOfClosure().ifPresent(date -> closureDates.add(Map.entry(date, t.ID)));
             }
-            if (res1 && res2 && res3) {
-                tx1.commit();
-                tx2.commit();
-                tx3.commit();
-            } else {
+            res = res && db.saveAll(entries, tx1) && symbolIndex.indexAll(symbols, tx2);
+            if (closureDates.isEmpty() == false) {
+                res = res && dateIndex.indexAll(closureDates, tx3);
+            }
+            if (res == false) {
                 tx1.rollback();
                 tx2.rollback();
                 tx3.rollback();
-                trade.ID = 0;
+                return 0;
             }
+            columns.pending(entries.keySet());
+            tx1.commit();
+            tx2.commit();
+            tx3.commit();
         } catch (Exception ex) {
             log.error("An exception occurred: {}", ex);
             if (tx1 != null) tx1.rollback();
             if (tx2 != null) tx2.rollback();
             if (tx3 != null) tx3.rollback();
-            trade.ID = 0;
             return 0;
         }
-        return trade.ID;
+        columns.append(trades);
+        return trades.size();
+    }
+
+    // Deletes the trade with its index entries in one unit of work, then drops its row from the columns
+    public synchronized boolean delete(int id) {
+        if (id < 1) {
+            throw new IllegalArgumentException("id");
+        }
+        var trade = db.find(id);
+        if (trade.isEmpty()) {
+            return false;
+        }
+
+        KvTransaction tx1 = null, tx2 = null, tx3 = null;
+        try {
+            tx1 = db.beginTransaction();
+            tx2 = symbolIndex.beginTransaction();
+            tx3 = dateIndex.beginTransaction();
+
+            var res = db.delete(id, tx1) && symbolIndex.delete(trade.get().symbol, id, tx2);
+            if (trade.get().getDateOfClosure().isPresent()) {
+                res = res && dateIndex.delete(trade.get().getDateOfClosure().get(), id, tx3);
+            }
+            if (res == false) {
+                tx1.rollback();
+                tx2.rollback();
+                tx3.rollback();
+                return false;
+            }
+            columns.pending(List.of(id));
+            tx1.commit();
+            tx2.commit();
+            tx3.commit();
+        } catch (Exception ex) {
+            log.error("An exception occurred: {}", ex);
+            if (tx1 != null) tx1.rollback();
+            if (tx2 != null) tx2.rollback();
+            if (tx3 != null) tx3.rollback();
+            return false;
+        }
+        columns.append(List.of(), List.of(id));
+        return true;
+    }
+
+    // The stores of the archive as they are now, see TradeRepository.snapshot. The columns are left out,
+    // they are written again from the trades when missing.
+    public synchronized List<StoreSnapshot> snapshot() {
+        List<Supplier<StoreSnapshot>> stores = new ArrayList<>();
+        Stream.of(db.snapshots(), symbolIndex.snapshots(), dateIndex.snapshots(), countersDb.snapshots()).forEach(stores::addAll);
+        return StoreSnapshot.takeAll(stores);
     }
 
     public void close() {
@@ -123,6 +269,7 @@ public class TradeArchiveRepository {
     }
 
     public void drop() {
+        columns.drop();
         db.drop();
         countersDb.drop();
         symbolIndex.drop();
@@ -0,0 +1,67 @@
+package me.sk.ta.repositories;
+
+import me.sk.ta.domain.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+
+// Moves the trades closed more than afterDays ago from the live store to the archive, so that the live store
+// holds the open book and the recent history only.
+@Component
+public class TradeArchiver {
+    private static final Logger log = LoggerFactory.getLogger(TradeArchiver.class);
+    final TradeRepository live;
+    final TradeArchiveRepository archive;
+    final int afterDays;
+    final int batchSize;
+
+    @Autowired
+    public TradeArchiver(TradeRepository live, TradeArchiveRepository archive,
+                         @Value("${db.archive.after-days:90}") int afterDays, @Value("${db.archive.batch-size:500}") int batchSize) {
+        if (afterDays < 0 || batchSize < 1) {
+            throw new IllegalArgumentException("afterDays must not be negative and batchSize must be positive");
+        }
+        this.live = live;
+        this.archive = archive;
+        this.afterDays = afterDays;
+        this.batchSize = batchSize;
+    }
+
+    // the schedule is a cron expression, "-" turns the job off
+    @Scheduled(cron = "${db.archive.schedule:-}")
+    public void run() {
+        archive(Utils.UtcToday().minusDays(afterDays));
+    }
+
+    // A batch is written to the archive before it is removed from the live store. If the removal fails
+    // the trades are in both stores and the next run copies them again, replacing the archived copies.
+    public synchronized int archive(LocalDate closedBefore) {
+        var moved = 0;
+        while (true) {
+            var batch = live.getClosedBefore(closedBefore, batchSize);
+            if (batch.isEmpty()) {
+                break;
+            }
+            if (archive.saveAll(batch) != batch.size()) {
+                throw new RuntimeException("Could not archive a batch of " + batch.size() + " trades");
+            }
+            var removed = live.removeArchived(batch);
+            moved += removed;
+            // none of the batch could be removed, they are left to the next run
+            if (removed == 0) {
+                log.warn("Archived {} trades but removed none of them from the live store", batch.size());
+                break;
+            }
+        }
+        if (moved > 0) {
+            live.compact();
+        }
+        log.info("Moved {} trades closed before {} to the archive", moved, closedBefore);
+        return moved;
+    }
+}
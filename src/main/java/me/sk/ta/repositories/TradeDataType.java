@@ -0,0 +1,248 @@
+package me.sk.ta.repositories;
+
+import me.sk.ta.domain.ADRating;
+import me.sk.ta.domain.AnalysisAbstract;
+import me.sk.ta.domain.BreakoutPattern;
+import me.sk.ta.domain.BuyAnalysis;
+import me.sk.ta.domain.CurrentAnalysis;
+import me.sk.ta.domain.MarketTrend;
+import me.sk.ta.domain.Trade;
+import me.sk.ta.domain.TradeContract;
+import me.sk.ta.domain.TradingChargesCalculator;
+import me.sk.ta.domain.Trend;
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.WriteBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TradeDataType extends VersionedDataType<Trade> {
+    private static final byte VERSION = 1;
+    // the charges calculator is not persisted, the live one is attached when a trade is read
+    private final TradingChargesCalculator chargesCalculator;
+
+    public TradeDataType() {
+        this(null);
+    }
+
+    public TradeDataType(TradingChargesCalculator chargesCalculator) {
+        this.chargesCalculator = chargesCalculator;
+    }
+
+    @Override
+    protected byte currentVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public Class<Trade> getValueClass() {
+        return Trade.class;
+    }
+
+    @Override
+    public Trade[] createStorage(int size) {
+        return new Trade[size];
+    }
+
+    @Override
+    public int getMemory(Trade trade) {
+        var analysisCount = trade.analysisHistory == null ? 0 : trade.analysisHistory.size();
+        var contractCount = trade.tradeHistory == null ? 0 : trade.tradeHistory.size();
+        return 128 + stringMemory(trade.symbol) + 400 + analysisCount * 320 + contractCount * 96;
+    }
+
+    @Override
+    protected void writeBody(WriteBuffer buff, Trade trade) {
+        buff.putVarInt(trade.ID);
+        putString(buff, trade.symbol);
+        buff.putVarInt(trade.position);
+        buff.putVarInt(trade.unfilledPosition);
+        if (trade.buyAnalysis == null) {
+            buff.put((byte) 0);
+        } else {
+            buff.put((byte) 1);
+            writeBuyAnalysis(buff, trade.buyAnalysis);
+        }
+        if (trade.analysisHistory == null) {
+            buff.putVarInt(0);
+        } else {
+            buff.putVarInt(trade.analysisHistory.size() + 1);
+            for (var analysis : trade.analysisHistory) {
+                writeCurrentAnalysis(buff, analysis);
+            }
+        }
+        if (trade.tradeHistory == null) {
+            buff.putVarInt(0);
+        } else {
+            buff.putVarInt(trade.tradeHistory.size() + 1);
+            for (var contract : trade.tradeHistory) {
+                writeContract(buff, contract);
+            }
+        }
+    }
+
+    @Override
+    protected Trade readBody(ByteBuffer buff, byte version) {
+        var trade = new Trade();
+        trade.tcCalculator = chargesCalculator;
+        trade.ID = DataUtils.readVarInt(buff);
+        trade.symbol = getString(buff);
+        trade.position = DataUtils.readVarInt(buff);
+        trade.unfilledPosition = DataUtils.readVarInt(buff);
+        if (buff.get() != 0) {
+            trade.buyAnalysis = readBuyAnalysis(buff);
+        }
+        var analysisCount = DataUtils.readVarInt(buff);
+        if (analysisCount > 0) {
+            List<CurrentAnalysis> history = new ArrayList<>(analysisCount - 1);
+            for (int i = 0; i < analysisCount - 1; i++) {
+                history.add(readCurrentAnalysis(buff));
+            }
+            trade.analysisHistory = history;
+        }
+        var contractCount = DataUtils.readVarInt(buff);
+        if (contractCount > 0) {
+            List<TradeContract> history = new ArrayList<>(contractCount - 1);
+            for (int i = 0; i < contractCount - 1; i++) {
+                history.add(readContract(buff));
+            }
+            trade.tradeHistory = history;
+        }
+        return trade;
+    }
+
+    private void writeBuyAnalysis(WriteBuffer buff, BuyAnalysis analysis) {
+        writeAnalysis(buff, analysis);
+        buff.putDouble(analysis.getCapital());
+        buff.putDouble(analysis.getPercentOfCapitalRisked());
+        buff.putDouble(analysis.getTargetPrice());
+        buff.putVarInt(analysis.getPosition());
+        buff.putVarInt(analysis.getStage());
+        buff.putChar(analysis.getBreakout());
+        putEnum(buff, analysis.getPattern());
+        buff.putDouble(analysis.getPivot());
+        buff.putDouble(analysis.getBuyRangeLow());
+        buff.putDouble(analysis.getBuyRangeHigh());
+        putDate(buff, analysis.getEarningsDate());
+    }
+
+    private BuyAnalysis readBuyAnalysis(ByteBuffer buff) {
+        var builder = BuyAnalysis.builder();
+        readAnalysis(buff, builder);
+        return builder
+                .capital(buff.getDouble())
+                .percentOfCapitalRisked(buff.getDouble())
+                .targetPrice(buff.getDouble())
+                .position(DataUtils.readVarInt(buff))
+                .stage(DataUtils.readVarInt(buff))
+                .breakout(buff.getChar())
+                .pattern(getEnum(buff, BreakoutPattern.class))
+                .pivot(buff.getDouble())
+                .buyRangeLow(buff.getDouble())
+                .buyRangeHigh(buff.getDouble())
+                .earningsDate(getDate(buff))
+                .tcCalculator(chargesCalculator)
+                .build();
+    }
+
+    void writeCurrentAnalysis(WriteBuffer buff, CurrentAnalysis analysis) {
+        writeAnalysis(buff, analysis);
+        putDate(buff, analysis.getDate());
+        buff.putDouble(analysis.getPrice());
+    }
+
+    CurrentAnalysis readCurrentAnalysis(ByteBuffer buff) {
+        var builder = CurrentAnalysis.builder();
+        readAnalysis(buff, builder);
+        return builder
+                .date(getDate(buff))
+                .price(buff.getDouble())
+                .build();
+    }
+
+    private static void writeAnalysis(WriteBuffer buff, AnalysisAbstract analysis) {
+        buff.putDouble(analysis.getAlpha());
+        buff.putDouble(analysis.getBeta());
+        buff.putDouble(analysis.getDebt());
+        buff.putDouble(analysis.getStopLoss());
+        buff.putDouble(analysis.getDma20());
+        buff.putDouble(analysis.getDma50());
+        buff.putDouble(analysis.getDma100());
+        buff.putDouble(analysis.getObvValue());
+        putEnum(buff, analysis.getObvTrend());
+        putBoolean(buff, analysis.isObvPositive());
+        putEnum(buff, analysis.getCmfTrend());
+        putBoolean(buff, analysis.isCmfPositive());
+        putEnum(buff, analysis.getAdTrend());
+        putBoolean(buff, analysis.isAdPositive());
+        putString(buff, analysis.getComments());
+        buff.putVarInt(analysis.getWonMasterRating());
+        buff.putVarInt(analysis.getWonRSRating());
+        buff.putVarInt(analysis.getWonEpsRating());
+        putEnum(buff, analysis.getWonADRating());
+        buff.putVarInt(analysis.getGuruScoreWon());
+        buff.putVarInt(analysis.getGuruScorePl());
+        buff.putVarInt(analysis.getGuruScoreWb());
+        buff.putVarInt(analysis.getGuruScoreBg());
+        buff.putVarInt(analysis.getGuruScoreJos());
+        putEnum(buff, analysis.getMarketTrend());
+        buff.putDouble(analysis.getIncreaseInFunds());
+        buff.putDouble(analysis.getIncreaseInFundHoldings());
+        buff.putDouble(analysis.getFloatingShares());
+    }
+
+    private static void readAnalysis(ByteBuffer buff, AnalysisAbstract.AnalysisAbstractBuilder<?, ?> builder) {
+        builder.alpha(buff.getDouble());
+        builder.beta(buff.getDouble());
+        builder.debt(buff.getDouble());
+        builder.stopLoss(buff.getDouble());
+        builder.dma20(buff.getDouble());
+        builder.dma50(buff.getDouble());
+        builder.dma100(buff.getDouble());
+        builder.obvValue(buff.getDouble());
+        builder.obvTrend(getEnum(buff, Trend.class));
+        builder.obvPositive(getBoolean(buff));
+        builder.cmfTrend(getEnum(buff, Trend.class));
+        builder.cmfPositive(getBoolean(buff));
+        builder.adTrend(getEnum(buff, Trend.class));
+        builder.adPositive(getBoolean(buff));
+        builder.comments(getString(buff));
+        builder.wonMasterRating(DataUtils.readVarInt(buff));
+        builder.wonRSRating(DataUtils.readVarInt(buff));
+        builder.wonEpsRating(DataUtils.readVarInt(buff));
+        builder.wonADRating(getEnum(buff, ADRating.class));
+        builder.guruScoreWon(DataUtils.readVarInt(buff));
+        builder.guruScorePl(DataUtils.readVarInt(buff));
+        builder.guruScoreWb(DataUtils.readVarInt(buff));
+        builder.guruScoreBg(DataUtils.readVarInt(buff));
+        builder.guruScoreJos(DataUtils.readVarInt(buff));
+        builder.marketTrend(getEnum(buff, MarketTrend.class));
+        builder.increaseInFunds(buff.getDouble());
+        builder.increaseInFundHoldings(buff.getDouble());
+        builder.floatingShares(buff.getDouble());
+    }
+
+    static void writeContract(WriteBuffer buff, TradeContract contract) {
+        buff.putVarInt(contract.id());
+        putDate(buff, contract.date());
+        buff.putVarInt(contract.size());
+        buff.putDouble(contract.averagePrice());
+        buff.putDouble(contract.totalPrice());
+        buff.putDouble(contract.charges());
+        putBoolean(buff, contract.isSale());
+        putBoolean(buff, contract.isIntraDay());
+    }
+
+    static TradeContract readContract(ByteBuffer buff) {
+        return new TradeContract()
+                .id(DataUtils.readVarInt(buff))
+                .date(getDate(buff))
+                .size(DataUtils.readVarInt(buff))
+                .averagePrice(buff.getDouble())
+                .totalPrice(buff.getDouble())
+                .charges(buff.getDouble())
+                .isSale(getBoolean(buff))
+                .isIntraDay(getBoolean(buff));
+    }
+}
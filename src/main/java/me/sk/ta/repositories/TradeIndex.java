@@ -0,0 +1,81 @@
+package me.sk.ta.repositories;
+
+import me.sk.ta.domain.AnalysisAbstract;
+import me.sk.ta.domain.BreakoutPattern;
+import me.sk.ta.domain.BuyAnalysis;
+import me.sk.ta.domain.MarketTrend;
+import me.sk.ta.domain.Trade;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Function;
+
+// A secondary index of the trades, declared by the keys it gives a trade. TradeRepository keeps the declared indexes
+// up to date on every write and answers findBy from them, reading only the trades found. A trade with no key, such
+// as a null field, is not in the index. A unique index refuses the write of a trade taking a key another trade has.
+// Each index is a store of its own, named after the index, see storeName.
+public record TradeIndex<K>(String name, Class<K> keyType, Function<Trade, Collection<K>> keys, boolean unique) {
+
+    // the indexes of every TradeRepository unless it is given others
+    public static final List<TradeIndex<?>> DEFAULTS = List.of(
+            of("pattern", BreakoutPattern.class, plan(BuyAnalysis::getPattern)),
+            of("stage", Integer.class, plan(BuyAnalysis::getStage)),
+            // the market when the trade was entered, and as of its latest analysis
+            of("marketTrend", MarketTrend.class, plan(BuyAnalysis::getMarketTrend)),
+            of("currentMarketTrend", MarketTrend.class, latest(AnalysisAbstract::getMarketTrend)),
+            of("earningsDate", LocalDate.class, plan(BuyAnalysis::getEarningsDate)));
+
+    public TradeIndex {
+        if (name == null || name.isBlank() || keyType == null || keys == null) {
+            throw new IllegalArgumentException("An index needs a name, a key type and the keys of a trade");
+        }
+    }
+
+    public static <K> TradeIndex<K> of(String name, Class<K> keyType, Function<Trade, K> key) {
+        return new TradeIndex<>(name, keyType, single(key), false);
+    }
+
+    public static <K> TradeIndex<K> unique(String name, Class<K> keyType, Function<Trade, K> key) {
+        return new TradeIndex<>(name, keyType, single(key), true);
+    }
+
+    // an index giving a trade any number of keys
+    public static <K> TradeIndex<K> ofAll(String name, Class<K> keyType, Function<Trade, Collection<K>> keys) {
+        return new TradeIndex<>(name, keyType, keys, false);
+    }
+
+    private static <K> Function<Trade, Collection<K>> single(Function<Trade, K> key) {
+        return x -> {
+            var value = key.apply(x);
+            return value == null ? List.of() : List.of(value);
+        };
+    }
+
+    // a field of the buy analysis of the trade
+    public static <K> Function<Trade, K> plan(Function<BuyAnalysis, K> field) {
+        return x -> x.buyAnalysis == null ? null : field.apply(x.buyAnalysis);
+    }
+
+    // a field of the latest analysis of the trade, which is the buy analysis until there is another one
+    public static <K> Function<Trade, K> latest(Function<AnalysisAbstract, K> field) {
+        return x -> {
+            if (x.analysisHistory == null || x.analysisHistory.isEmpty()) {
+                return x.buyAnalysis == null ? null : field.apply(x.buyAnalysis);
+            }
+            var latest = x.analysisHistory.get(x.analysisHistory.size() - 1);
+            return latest == null ? null : field.apply(latest);
+        };
+    }
+
+    // the keys of the trade, as a list without repeats
+    List<K> keysOf(Trade trade) {
+        var found = keys.apply(trade);
+        return found == null ? List.of() : found.stream().distinct().toList();
+    }
+
+    // marketTrend is stored in MARKET_TREND_INDEX, next to SYMBOL_INDEX
+    String storeName() {
+        return name.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase() + "_INDEX";
+    }
+}
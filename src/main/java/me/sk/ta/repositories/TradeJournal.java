@@ -0,0 +1,501 @@
+package me.sk.ta.repositories;
+
+import me.sk.ta.domain.CurrentAnalysis;
+import me.sk.ta.domain.Trade;
+import me.sk.ta.domain.TradeContract;
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.WriteBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+// An append-only journal of the changes made to the trades, kept in memory mapped segment files.
+// A trade is written whole (a snapshot) the first time it is journaled after the journal is opened, when its
+// plan changes and after every SNAPSHOT_EVERY changes; otherwise only the contracts and analyses that changed are
+// written. The trades are rebuilt by replaying their last snapshot and the changes that follow it.
+//
+// A checkpoint records the sequence up to which the stores are known to hold the changes, see checkpoint. The
+// segments before it are deleted, so the history of a trade goes back to the segment current at the last
+// checkpoint, and the repository replays only the records after it when opened, see tail.
+//
+// Record layout: length, crc32c of the rest, sequence, time, trade id, event type, payload. A zero length marks
+// the end of a segment's records; a record failing its crc is where the journal was torn and ends.
+public class TradeJournal {
+    private static final Logger log = LoggerFactory.getLogger(TradeJournal.class);
+    static final int SEGMENT_BYTES = 8 << 20;
+    static final int SNAPSHOT_EVERY = 32;
+    static final String CHECKPOINT = "checkpoint";
+    private static final int HEADER_BYTES = 2 * Integer.BYTES + 2 * Long.BYTES + Integer.BYTES + 1;
+
+    public enum EventType {
+        // the whole trade
+        Snapshot,
+        // contracts bought or sold: the number of contracts kept, the contracts that follow them and the positions
+        Contracts,
+        // analyses added or changed, stop losses included: the number of analyses kept and those that follow them
+        Analyses,
+        Deleted,
+        // moved to the archive, see TradeArchiver
+        Archived
+    }
+
+    public record Entry(long sequence, Instant at, int tradeId, EventType type) {
+    }
+
+    final Path dir;
+    private final TradeDataType tradeType;
+    // the appends are forced to the disk before they are acknowledged, see durable
+    private final boolean sync;
+    // held while forcing, so that the appends waiting meanwhile are covered by the next force instead of one each
+    private final Object forcing = new Object();
+    // the sequence of the last record forced to the disk, guarded by forcing
+    private long forced;
+    private final int segmentBytes;
+    private final List<Path> segments = new ArrayList<>();
+    private MappedByteBuffer current;
+    private long sequence;
+    // the sequence of the last record whose change the stores hold durably
+    private long checkpoint;
+    // changes journaled per trade since its last snapshot; a trade missing here gets a snapshot
+    private final Map<Integer, Integer> sinceSnapshot = new HashMap<>();
+
+    public TradeJournal(Path dir, TradeDataType tradeType, boolean sync) {
+        this(dir, tradeType, sync, SEGMENT_BYTES);
+    }
+
+    TradeJournal(Path dir, TradeDataType tradeType, boolean sync, int segmentBytes) {
+        this.dir = dir;
+        this.tradeType = tradeType;
+        this.sync = sync;
+        this.segmentBytes = segmentBytes;
+        try {
+            Files.createDirectories(dir);
+            var checkpointed = dir.resolve(CHECKPOINT);
+            if (Files.exists(checkpointed)) {
+                checkpoint = Long.parseLong(Files.readString(checkpointed).trim());
+            }
+            try (var files = Files.list(dir)) {
+                segments.addAll(files.filter(x -> x.getFileName().toString().endsWith(".log")).sorted().toList());
+            }
+            if (segments.isEmpty()) {
+                current = map(newSegment(), segmentBytes);
+            } else {
+                var last = segments.get(segments.size() - 1);
+                current = map(last, Files.size(last));
+                forEach(last, current, x -> sequence = x.sequence());
+                // anything after the last complete record is a torn write, it is cleared so that appends follow on
+                for (int i = current.position(); i < current.limit(); i++) {
+                    current.put(i, (byte) 0);
+                }
+            }
+            // the segments holding the records up to the checkpoint may all be gone
+            sequence = Math.max(sequence, checkpoint);
+        } catch (IOException e) {
+            log.error("Error opening the journal at {}. Exception: '{}', message: '{}'", dir, e.getCause(), e.getMessage(), e);
+            throw new RuntimeException(e);
+        }
+        log.info("Opened the journal at {} with {} segments, last sequence {}, checkpoint {}", dir, segments.size(), sequence, checkpoint);
+    }
+
+    // journals the changes from the previous version of the trade, null for a new trade, to the current one
+    public synchronized void append(Trade previous, Trade current) {
+        var changes = sinceSnapshot.get(current.ID);
+        if (previous == null || changes == null || changes >= SNAPSHOT_EVERY
+                || Objects.equals(previous.symbol, current.symbol) == false
+                || Objects.equals(previous.buyAnalysis, current.buyAnalysis) == false) {
+            write(current.ID, EventType.Snapshot, buff -> tradeType.write(buff, current));
+            sinceSnapshot.put(current.ID, 0);
+            return;
+        }
+        var contractsKept = commonPrefix(previous.tradeHistory, current.tradeHistory);
+        if (contractsKept < current.tradeHistory.size() || previous.tradeHistory == null || contractsKept < previous.tradeHistory.size()) {
+            write(current.ID, EventType.Contracts, buff -> {
+                buff.putVarInt(contractsKept);
+                buff.putVarInt(current.tradeHistory.size() - contractsKept);
+                current.tradeHistory.subList(contractsKept, current.tradeHistory.size()).forEach(x -> TradeDataType.writeContract(buff, x));
+                buff.putVarInt(current.position);
+                buff.putVarInt(current.unfilledPosition);
+            });
+            changes++;
+        }
+        var analysesKept = commonPrefix(previous.analysisHistory, current.analysisHistory);
+        if (analysesKept < current.analysisHistory.size() || previous.analysisHistory == null || analysesKept < previous.analysisHistory.size()) {
+            write(current.ID, EventType.Analyses, buff -> {
+                buff.putVarInt(analysesKept);
+                buff.putVarInt(current.analysisHistory.size() - analysesKept);
+                current.analysisHistory.subList(analysesKept, current.analysisHistory.size()).forEach(x -> tradeType.writeCurrentAnalysis(buff, x));
+            });
+            changes++;
+        }
+        sinceSnapshot.put(current.ID, changes);
+    }
+
+    // With sync, the wait for the records appended so far to reach the disk. The callers run it once they have
+    // released their locks, and a single force covers the records of every caller waiting for one at the time.
+    public synchronized Runnable durable() {
+        if (sync == false) {
+            return () -> {
+            };
+        }
+        var appended = sequence;
+        return () -> force(appended);
+    }
+
+    private void force(long appended) {
+        synchronized (forcing) {
+            if (forced >= appended) {
+                return;
+            }
+            // a segment is forced before the next one is started, forcing the current one covers every record
+            MappedByteBuffer segment;
+            long last;
+            synchronized (this) {
+                segment = current;
+                last = sequence;
+            }
+            if (segment != null) {
+                segment.force();
+            }
+            forced = last;
+        }
+    }
+
+    public synchronized void appendDeleted(int tradeId) {
+        write(tradeId, EventType.Deleted, buff -> {
+        });
+        sinceSnapshot.remove(tradeId);
+    }
+
+    public synchronized void appendArchived(int tradeId) {
+        write(tradeId, EventType.Archived, buff -> {
+        });
+        sinceSnapshot.remove(tradeId);
+    }
+
+    // the last sequence journaled
+    public synchronized long sequence() {
+        return sequence;
+    }
+
+    // whether a segment has been filled since the last checkpoint, which would delete it
+    public synchronized boolean checkpointDue() {
+        return segments.size() > 1;
+    }
+
+    // Records that the stores hold every change journaled so far, the caller having made them durable while no
+    // change was in progress. The segments before the current one are deleted, and the next change of each
+    // trade is journaled as a snapshot, so that the records after the checkpoint replay on their own.
+    public synchronized void checkpoint() {
+        try {
+            var written = dir.resolve(CHECKPOINT + ".tmp");
+            Files.writeString(written, Long.toString(sequence), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE, StandardOpenOption.DSYNC);
+            Files.move(written, dir.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            checkpoint = sequence;
+            sinceSnapshot.clear();
+            while (segments.size() > 1) {
+                Files.deleteIfExists(segments.remove(0));
+            }
+        } catch (IOException e) {
+            log.error("Error writing the checkpoint of the journal at {}. Cause: '{}', message: '{}'", dir, e.getCause(), e.getMessage());
+            throw new RuntimeException(e);
+        }
+        log.info("Checkpointed the journal at {} at sequence {}", dir, checkpoint);
+    }
+
+    // The changes journaled after the checkpoint, read in one pass: the trades as the journal left them, and
+    // null for those it deleted or archived last.
+    public synchronized Map<Integer, Trade> tail() {
+        Map<Integer, Trade> trades = new LinkedHashMap<>();
+        forEachRecord((entry, payload) -> {
+            if (entry.sequence() > checkpoint) {
+                apply(trades, entry, payload);
+            }
+        });
+        return trades;
+    }
+
+    // the trades as the journal left them, deleted and archived trades excluded
+    public synchronized Map<Integer, Trade> replay() {
+        var trades = replayAll();
+        trades.values().removeIf(Objects::isNull);
+        return trades;
+    }
+
+    // the ids of the trades whose last journaled change deleted or archived them
+    public synchronized Set<Integer> removed() {
+        return replayAll().entrySet().stream()
+                .filter(x -> x.getValue() == null)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
+
+    // the removed trades are kept with a null value
+    private Map<Integer, Trade> replayAll() {
+        Map<Integer, Trade> trades = new LinkedHashMap<>();
+        forEachRecord((entry, payload) -> apply(trades, entry, payload));
+        return trades;
+    }
+
+    public synchronized Optional<Trade> replay(int tradeId) {
+        Map<Integer, Trade> trades = new HashMap<>();
+        forEachRecord((entry, payload) -> {
+            if (entry.tradeId() == tradeId) {
+                apply(trades, entry, payload);
+            }
+        });
+        return Optional.ofNullable(trades.get(tradeId));
+    }
+
+    // the audit trail of the trade, oldest first
+    public synchronized List<Entry> history(int tradeId) {
+        List<Entry> result = new ArrayList<>();
+        forEachRecord((entry, payload) -> {
+            if (entry.tradeId() == tradeId) {
+                result.add(entry);
+            }
+        });
+        return result;
+    }
+
+    // the segments as they are now; the records written later go after the end taken here
+    public synchronized StoreSnapshot snapshot() {
+        return new Snapshot(dir, List.copyOf(segments), current == null ? -1 : current.position(), checkpoint);
+    }
+
+    public synchronized void close() {
+        if (current != null) {
+            current.force();
+            current = null;
+        }
+    }
+
+    public synchronized void drop() {
+        try {
+            log.info("Dropping the journal at {}", dir);
+            current = null;
+            segments.clear();
+            sinceSnapshot.clear();
+            RocksDbRepo.deleteDirectory(dir.toFile());
+        } catch (IOException e) {
+            log.error("Error dropping the journal at {}. Cause: '{}', message: '{}'", dir, e.getCause(), e.getMessage());
+        }
+    }
+
+    private void apply(Map<Integer, Trade> trades, Entry entry, ByteBuffer payload) {
+        switch (entry.type()) {
+            case Snapshot -> trades.put(entry.tradeId(), tradeType.read(payload));
+            case Deleted, Archived -> trades.put(entry.tradeId(), null);
+            case Contracts -> {
+                var trade = trades.get(entry.tradeId());
+                if (trade == null) {
+                    return;
+                }
+                var kept = DataUtils.readVarInt(payload);
+                var added = DataUtils.readVarInt(payload);
+                List<TradeContract> history = new ArrayList<>(trade.tradeHistory.subList(0, kept));
+                for (int i = 0; i < added; i++) {
+                    history.add(TradeDataType.readContract(payload));
+                }
+                trade.tradeHistory = history;
+                trade.position = DataUtils.readVarInt(payload);
+                trade.unfilledPosition = DataUtils.readVarInt(payload);
+            }
+            case Analyses -> {
+                var trade = trades.get(entry.tradeId());
+                if (trade == null) {
+                    return;
+                }
+                var kept = DataUtils.readVarInt(payload);
+                var added = DataUtils.readVarInt(payload);
+                List<CurrentAnalysis> history = new ArrayList<>(trade.analysisHistory.subList(0, kept));
+                for (int i = 0; i < added; i++) {
+                    history.add(tradeType.readCurrentAnalysis(payload));
+                }
+                trade.analysisHistory = history;
+            }
+        }
+    }
+
+    private static <T> int commonPrefix(List<T> previous, List<T> current) {
+        if (previous == null) {
+            return 0;
+        }
+        var n = 0;
+        while (n < previous.size() && n < current.size() && previous.get(n).equals(current.get(n))) {
+            n++;
+        }
+        return n;
+    }
+
+    private void write(int tradeId, EventType type, Consumer<WriteBuffer> payload) {
+        var buff = new WriteBuffer();
+        buff.putInt(0).putInt(0)
+                .putLong(++sequence)
+                .putLong(System.currentTimeMillis())
+                .putInt(tradeId)
+                .put((byte) type.ordinal());
+        payload.accept(buff);
+        var record = buff.getBuffer();
+        record.flip();
+        var length = record.limit();
+        record.putInt(0, length);
+        var crc = new CRC32C();
+        crc.update(record.slice(2 * Integer.BYTES, length - 2 * Integer.BYTES));
+        record.putInt(Integer.BYTES, (int) crc.getValue());
+        try {
+            // the zero length that ends the segment must fit after the record
+            if (current.remaining() < length + Integer.BYTES) {
+                current.force();
+                current = map(newSegment(), Math.max(segmentBytes, length + Integer.BYTES));
+            }
+        } catch (IOException e) {
+            log.error("Error adding a segment to the journal at {}. Cause: '{}', message: '{}'", dir, e.getCause(), e.getMessage());
+            throw new RuntimeException(e);
+        }
+        current.put(record);
+    }
+
+    // Segments are only appended to, so a backup copies the segments, the last one up to the end of its records.
+    // The mark of a write is the number of its last segment, an incremental write copies that segment and
+    // the ones after it. A file named "since" in the backup records the mark it was based on.
+    // A segment deleted by a checkpoint since the snapshot was taken is skipped, the stores taken with it hold its changes.
+    private record Snapshot(Path source, List<Path> segments, int end, long checkpoint) implements StoreSnapshot {
+        @Override
+        public long write(Path target, long since) {
+            try {
+                RocksDbRepo.deleteDirectory(target.toFile());
+                Files.createDirectories(target);
+                Files.writeString(target.resolve("since"), Long.toString(since));
+                Files.writeString(target.resolve(CHECKPOINT), Long.toString(checkpoint));
+                for (var segment : segments) {
+                    if (number(segment) < since) {
+                        continue;
+                    }
+                    var last = segment.equals(segments.get(segments.size() - 1));
+                    try (var in = FileChannel.open(segment, StandardOpenOption.READ);
+                         var out = FileChannel.open(target.resolve(segment.getFileName()), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                        var length = last && end >= 0 ? end : in.size();
+                        for (long copied = 0; copied < length; ) {
+                            copied += in.transferTo(copied, length - copied, out);
+                        }
+                    } catch (NoSuchFileException e) {
+                        log.debug("The journal segment {} was deleted by a checkpoint", segment);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Error writing the journal {} to {}. Cause: '{}', message: '{}'", source, target, e.getCause(), e.getMessage());
+                throw new RuntimeException(e);
+            }
+            return segments.isEmpty() ? -1 : number(segments.get(segments.size() - 1));
+        }
+
+        // the segments of each backup replace those of the same number written by the earlier ones
+        @Override
+        public void restore(List<Path> backups, Path target) {
+            try {
+                for (var backup : backups) {
+                    if (Long.parseLong(Files.readString(backup.resolve("since"))) < 0) {
+                        RocksDbRepo.deleteDirectory(target.toFile());
+                    }
+                    Files.createDirectories(target);
+                    try (var files = Files.list(backup)) {
+                        for (var file : files.filter(x -> x.getFileName().toString().endsWith(".log")
+                                || x.getFileName().toString().equals(CHECKPOINT)).toList()) {
+                            Files.copy(file, target.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Error restoring the journal {} into {}. Cause: '{}', message: '{}'", source, target, e.getCause(), e.getMessage());
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static int number(Path segment) {
+        return Integer.parseInt(segment.getFileName().toString().substring(8, 14));
+    }
+
+    private Path newSegment() {
+        var number = segments.isEmpty() ? 1 : number(segments.get(segments.size() - 1)) + 1;
+        var segment = dir.resolve(String.format("journal-%06d.log", number));
+        segments.add(segment);
+        return segment;
+    }
+
+    private static MappedByteBuffer map(Path segment, long size) throws IOException {
+        try (var channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private interface RecordConsumer {
+        void accept(Entry entry, ByteBuffer payload);
+    }
+
+    private void forEachRecord(RecordConsumer consumer) {
+        for (var segment : segments) {
+            try {
+                var buff = segment.equals(segments.get(segments.size() - 1)) && current != null
+                        ? current.duplicate()
+                        : map(segment, Files.size(segment));
+                readRecords(segment, buff.position(0), consumer);
+            } catch (IOException e) {
+                log.error("Error reading the journal segment {}. Cause: '{}', message: '{}'", segment, e.getCause(), e.getMessage());
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // reads the records of the segment, leaving the buffer at the end of the last complete one
+    private static void forEach(Path segment, ByteBuffer buff, Consumer<Entry> consumer) {
+        readRecords(segment, buff, (entry, payload) -> consumer.accept(entry));
+    }
+
+    private static void readRecords(Path segment, ByteBuffer buff, RecordConsumer consumer) {
+        while (buff.remaining() >= HEADER_BYTES) {
+            var start = buff.position();
+            var length = buff.getInt(start);
+            if (length < HEADER_BYTES || length > buff.limit() - start) {
+                break;
+            }
+            var crc = new CRC32C();
+            crc.update(buff.slice(start + 2 * Integer.BYTES, length - 2 * Integer.BYTES));
+            if ((int) crc.getValue() != buff.getInt(start + Integer.BYTES)) {
+                log.warn("The journal segment {} ends with a torn record at {}", segment, start);
+                break;
+            }
+            buff.position(start + 2 * Integer.BYTES);
+            var entry = new Entry(buff.getLong(), Instant.ofEpochMilli(buff.getLong()), buff.getInt(), EventType.values()[buff.get()]);
+            var payload = buff.slice(buff.position(), start + length - buff.position());
+            consumer.accept(entry, payload);
+            buff.position(start + length);
+        }
+    }
+}
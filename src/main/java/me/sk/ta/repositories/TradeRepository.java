@@ -3,41 +3,397 @@ package me.sk.ta.repositories;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import me.sk.ta.domain.Trade;
 import me.sk.ta.domain.TradingChargesCalculator;
-import org.h2.mvstore.tx.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.nio.file.Path;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Component
 public class TradeRepository implements me.sk.ta.api.interfaces.TradeRepository, AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(TradeRepository.class);
 
     final String TRADE_KEY_COUNTER = "TRADE_ID_COUNTER";
-    final MVStoreIndex<String, Integer> symbolIndex;
-    final MVStoreIndex<LocalDate, Integer> dateIndex;
+    static final int ID_BLOCK_SIZE = 100;
+    static final long CACHE_BYTES = 16L << 20;
+    // the keys of the status index
+    public static final String OPEN = "OPEN";
+    public static final String CLOSED = "CLOSED";
+    // recorded in the counters once a declared index has been built, see buildDeclaredIndexes
+    static final String BUILT_INDEX = "BUILT_INDEX_";
+    final KvIndex<String, Integer> symbolIndex;
+    final KvIndex<LocalDate, Integer> dateIndex;
+    // ids of the open and of the closed trades, so that the open book is read without a full scan
+    final KvIndex<String, Integer> statusIndex;
     final KvDb<String, Integer> countersDb;
+    final IdAllocator tradeIds;
+    final TradeDataType tradeType;
     final KvDb<Integer, Trade> db;
+    // encoded copies of the trades read or written lately, so that reads skip the store
+    final ValueCache<Integer, Trade> cache;
+    // null unless the trades, the indexes and the counters share one MVStore file
+    final SharedMVStore store;
+    final IndexVerifier<Trade> indexVerifier;
+    // the changes made to the trades, replayed when the store lost some of them
+    final TradeJournal journal;
+    final StoreOpening opening;
+    // null unless the trades are spread over several shards, see TradeStores
+    final ShardedKvDb<Integer, Trade> shards;
+    // writes hold the lock of the shard they write to, see lockFor
+    final ShardLocks locks;
+    // the declared indexes, kept up to date on every write
+    final List<Indexed<?>> declared;
+    // the declared indexes and the symbol, closureDate and status indexes by name, for findBy
+    final Map<String, Indexed<?>> indexes;
+    // with several shards, a unique index is checked while every shard is held
+    final boolean anyUnique;
     String dbPath;
     final TradingChargesCalculator chargesCalculator;
 
-    public TradeRepository(@Value("${db.conn.current.trade}") String dbPath, ObjectMapper serializer, TradingChargesCalculator tc) {
+    public TradeRepository(String dbPath, ObjectMapper serializer, TradingChargesCalculator tc) {
+        this(dbPath, StorageBackend.MVStore.name(), false, serializer, tc);
+    }
+
+    public TradeRepository(String dbPath, String backend, boolean singleFile, ObjectMapper serializer, TradingChargesCalculator tc) {
+        this(dbPath, backend, singleFile, Durability.Async.name(), false, serializer, tc);
+    }
+
+    public TradeRepository(String dbPath, String backend, boolean singleFile, String durability, boolean lazyOpen,
+                           ObjectMapper serializer, TradingChargesCalculator tc) {
+        this(dbPath, backend, singleFile, durability, lazyOpen, 1, serializer, tc);
+    }
+
+    @Autowired
+    public TradeRepository(@Value("${db.conn.current.trade}") String dbPath, @Value("${db.backend:mvstore}") String backend,
+                           @Value("${db.mvstore.single-file:false}") boolean singleFile, @Value("${db.durability:async}") String durability,
+                           @Value("${db.lazy-open:false}") boolean lazyOpen, @Value("${db.shards:1}") int shards,
+                           ObjectMapper serializer, TradingChargesCalculator tc) {
+        this(dbPath, backend, singleFile, durability, lazyOpen, shards, TradeIndex.DEFAULTS, serializer, tc);
+    }
+
+    // With lazyOpen the stores are opened in the background and the first use of the repository waits for them, see StoreOpening.
+    // With more than one shard the trades are spread over that many sets of stores by their symbol; stores written
+    // with another number of shards are resharded first, see TradeStores. indexes are the declared indexes, see TradeIndex.
+    public TradeRepository(String dbPath, String backend, boolean singleFile, String durability, boolean lazyOpen, int shards,
+                           List<TradeIndex<?>> indexes, ObjectMapper serializer, TradingChargesCalculator tc) {
         if (dbPath == null) {
             throw new IllegalArgumentException("dbPath has not been initialized");
         }
         dbPath = Path.of(dbPath).resolve("live").toString();
         this.dbPath = dbPath;
         this.chargesCalculator = tc;
-        db = new MVStoreRepo<Integer, Trade>(dbPath, "trade", Integer.class, Trade.class, serializer);
-        symbolIndex = new MVStoreIndex<>(dbPath, "SYMBOL_INDEX", MVStoreIndex.IndexingStrategy.PostfixValue, String.class, Integer.class, "~~~", serializer);
-        dateIndex = new MVStoreIndex<>(dbPath, "DATE_INDEX", MVStoreIndex.IndexingStrategy.PostfixValue, LocalDate.class, Integer.class, "~~~", serializer);
-        countersDb = new MVStoreRepo<String, Integer>(dbPath, "counters", String.class, Integer.class, serializer);
+        var storage = StorageBackend.of(backend);
+        var commitMode = Durability.of(durability);
+        tradeType = new TradeDataType(tc);
+        opening = new StoreOpening("trades", lazyOpen);
+        if (shards < 1) {
+            throw new IllegalArgumentException("db.shards must be positive");
+        }
+        var names = indexes.stream().map(TradeIndex::name).collect(Collectors.toSet());
+        if (names.size() != indexes.size() || names.stream().anyMatch(BUILT_IN::contains)) {
+            throw new IllegalArgumentException("The names of the declared indexes must be distinct and not one of " + BUILT_IN);
+        }
+        Map<String, KvIndex<Object, Integer>> declaredStores = new LinkedHashMap<>();
+        if (singleFile && storage == StorageBackend.MVStore) {
+            if (shards > 1) {
+                log.warn("db.shards does not apply to a single MVStore file, ignoring it");
+            }
+            log.info("Using a single MVStore file for the trades, their indexes and the counters");
+            this.shards = null;
+            var path = dbPath;
+            // one file, there is nothing to open alongside it
+            store = opening.openNow("trades", () -> new SharedMVStore(path, "trades", commitMode));
+            db = new MVStoreRepo<>(store, "trade", Integer.class, tradeType, serializer);
+            symbolIndex = new MVStoreIndex<>(store, "SYMBOL_INDEX", KvIndex.IndexingStrategy.MultipleValues, Integer.class, String.class, "~~~", serializer);
+            dateIndex = new MVStoreIndex<>(store, "DATE_INDEX", KvIndex.IndexingStrategy.MultipleValues, Integer.class, LocalDate.class, "~~~", serializer);
+            statusIndex = new MVStoreIndex<>(store, "STATUS_INDEX", KvIndex.IndexingStrategy.PostfixValue, Integer.class, String.class, "~~~", serializer);
+            countersDb = new MVStoreRepo<>(store, "counters", String.class, new IntegerDataType(), serializer);
+            for (var index : indexes) {
+                declaredStores.put(index.name(), new MVStoreIndex<>(store, index.storeName(), KvIndex.IndexingStrategy.MultipleValues, Integer.class, index.keyType(), "~~~", serializer));
+            }
+        } else {
+            if (singleFile) {
+                log.warn("db.mvstore.single-file only applies to the MVStore backend, ignoring it for {}", storage);
+            }
+            log.info("Using the {} storage backend with {} durability and {} shards", storage, commitMode, shards);
+            store = null;
+            var path = dbPath;
+            TradeStores.reshard(Path.of(path), shards, indexes, storage, tradeType, serializer);
+            var trades = TradeStores.open(Path.of(path), shards, indexes, storage, tradeType, serializer, commitMode, opening);
+            // the mark of the leased ids is written once per block and must reach the disk before any trade using them
+            var counters = opening.open("counters", () -> storage.openDb(path, "counters", String.class, new IntegerDataType(), serializer, Durability.Sync));
+            db = trades.db();
+            symbolIndex = trades.symbols();
+            dateIndex = trades.dates();
+            statusIndex = trades.statuses();
+            declaredStores.putAll(trades.declared());
+            countersDb = opening.get(KvDb.class, counters);
+            this.shards = db instanceof ShardedKvDb<Integer, Trade> sharded ? sharded : null;
+        }
+        locks = new ShardLocks(this.shards == null ? 1 : this.shards.shardCount());
+        declared = indexes.stream().map(x -> Indexed.of(x, declaredStores.get(x.name()))).collect(Collectors.toList());
+        this.indexes = new LinkedHashMap<>();
+        this.indexes.put(SYMBOL.name(), Indexed.of(SYMBOL, symbolIndex));
+        this.indexes.put(CLOSURE_DATE.name(), Indexed.of(CLOSURE_DATE, dateIndex));
+        this.indexes.put(STATUS.name(), Indexed.of(STATUS, statusIndex));
+        declared.forEach(x -> this.indexes.put(x.index().name(), x));
+        anyUnique = indexes.stream().anyMatch(TradeIndex::unique);
+        tradeIds = IdAllocator.of(countersDb, TRADE_KEY_COUNTER, ID_BLOCK_SIZE);
+        cache = new ValueCache<>(tradeType, CACHE_BYTES);
+        journal = new TradeJournal(Path.of(dbPath).resolveSibling("journal"), tradeType, commitMode != Durability.Async);
+        List<IndexVerifier.IndexedKeys<?, Trade>> verified = new ArrayList<>(List.of(
+                new IndexVerifier.IndexedKeys<>("SYMBOL_INDEX", symbolIndex, x -> List.of(x.symbol)),
+                new IndexVerifier.IndexedKeys<>("DATE_INDEX", dateIndex, x -> x.getDateOfClosure().stream().toList()),
+                new IndexVerifier.IndexedKeys<>("STATUS_INDEX", statusIndex, x -> List.of(status(x)))));
+        declared.forEach(x -> verified.add(new IndexVerifier.IndexedKeys<>(x.index().storeName(), x.store(), x::keysOf)));
+        indexVerifier = new IndexVerifier<>(db, x -> x.ID, verified);
+        opening.initialize(this, () -> {
+            buildStatusIndex();
+            buildDeclaredIndexes();
+            recover();
+        });
+    }
+
+    static final TradeIndex<String> SYMBOL = TradeIndex.of("symbol", String.class, x -> x.symbol);
+    static final TradeIndex<LocalDate> CLOSURE_DATE = TradeIndex.of("closureDate", LocalDate.class, x -> x.getDateOfClosure().orElse(null));
+    static final TradeIndex<String> STATUS = TradeIndex.of("status", String.class, TradeRepository::status);
+    static final Set<String> BUILT_IN = Set.of(SYMBOL.name(), CLOSURE_DATE.name(), STATUS.name());
+
+    // an index and its store
+    record Indexed<K>(TradeIndex<K> index, KvIndex<Object, Integer> store) {
+        // the store is given the keys as objects, each checked against the key type of the index by key
+        @SuppressWarnings("unchecked")
+        static <K> Indexed<K> of(TradeIndex<K> index, KvIndex<? super K, Integer> store) {
+            return new Indexed<>(index, (KvIndex<Object, Integer>) store);
+        }
+
+        List<Object> keysOf(Trade trade) {
+            return Collections.unmodifiableList(index.keysOf(trade));
+        }
+
+        // the key, checked against the key type of the index
+        Object key(Object key) {
+            if (index.keyType().isInstance(key) == false) {
+                throw new IllegalArgumentException("The keys of " + index.name() + " are of type " + index.keyType().getSimpleName());
+            }
+            return key;
+        }
+    }
+
+    // A declared index new to the store is built from one scan of the trades, the first time the store is opened
+    // with it. The counters record the indexes built, an index may well be empty, with the version of the key
+    // encoding; an index of number keys written before they were encoded in order is built again.
+    private void buildDeclaredIndexes() {
+        var missing = declared.stream().filter(x -> countersDb.find(BUILT_INDEX + x.index().name())
+                .filter(v -> v >= IndexKeys.VERSION || IndexKeys.ordered(x.index().keyType()) == false).isEmpty()).toList();
+        if (missing.isEmpty()) {
+            return;
+        }
+        missing.forEach(x -> x.store().clear());
+        Map<Indexed<?>, List<Map.Entry<Object, Integer>>> entries = new LinkedHashMap<>();
+        missing.forEach(x -> entries.put(x, new ArrayList<>()));
+        try (var trades = db.scan(null, 0)) {
+            trades.forEach(t -> missing.forEach(x -> x.keysOf(t).forEach(k -> entries.get(x).add(Map.entry(k, t.ID)))));
+        }
+        for (var index : entries.entrySet()) {
+            var store = index.getKey().store();
+            var tx = store.beginTransaction();
+            if (store.indexAll(index.getValue(), tx) == false) {
+                tx.rollback();
+                throw new RuntimeException("Could not build the index " + index.getKey().index().name());
+            }
+            tx.commit();
+            countersDb.save(BUILT_INDEX + index.getKey().index().name(), IndexKeys.VERSION);
+            log.info("Built the index {} of {} entries", index.getKey().index().name(), index.getValue().size());
+        }
+    }
+
+    // The journal is written ahead of the store commits, so it holds every change the store may hold and the
+    // store never holds a change the journal lacks. A change journaled but not yet written by the store when the
+    // process stopped is written again from the journal; a change the store then failed to commit was journaled
+    // back, see commit. Only the changes after the last checkpoint are read, the store holds the ones before.
+    private void recover() {
+        var tail = journal.tail();
+        if (shards != null) {
+            deleteStrays(tail);
+        }
+        var changed = tail.values().stream()
+                .filter(Objects::nonNull)
+                .filter(x -> db.find(x.ID).filter(x::equals).isEmpty())
+                .toList();
+        var removed = tail.entrySet().stream()
+                .filter(x -> x.getValue() == null && db.find(x.getKey()).isPresent())
+                .map(Map.Entry::getKey)
+                .toList();
+        if (changed.isEmpty() == false || removed.isEmpty() == false) {
+            log.warn("Recovering {} changed and {} removed trades from the journal", changed.size(), removed.size());
+            if (changed.isEmpty() == false && saveOrUpdateAll(changed) != changed.size()) {
+                throw new RuntimeException("Could not recover the trades from the journal");
+            }
+            removed.forEach(this::delete);
+        } else if (journal.checkpointDue() == false) {
+            return;
+        }
+        checkpoint();
+    }
+
+    // A trade moving to another shard is committed to its new shard first, see ShardedTransaction; a stop in between
+    // leaves its old copy, with the index entries of that copy, in the shard it moved from. The copies of the trades
+    // of the journal tail outside the shard of their journaled version are deleted, all of them for a removed trade.
+    private void deleteStrays(Map<Integer, Trade> tail) {
+        for (var journaled : tail.entrySet()) {
+            var id = journaled.getKey();
+            var shard = journaled.getValue() == null ? -1 : shards.shardOf(journaled.getValue());
+            for (var stray : shards.strays(id, shard)) {
+                var copy = shards.shards.get(stray).find(id).orElseThrow();
+                var txs = beginTransactions();
+                if (shards.deleteFrom(id, stray, txs.trades()) && unindex(copy, txs)) {
+                    txs.commit();
+                    log.warn("Deleted the copy of trade {} left in shard {} by a move", id, stray);
+                } else {
+                    txs.rollback();
+                    throw new RuntimeException("Could not delete the copy of trade " + id + " left in shard " + stray);
+                }
+            }
+        }
+    }
+
+    // Writes the stores to the disk while no change is in progress, then records in the journal that they hold
+    // every change journaled so far; the journal deletes its segments before the current one. Run once the journal
+    // has filled a segment, and after a recovery.
+    void checkpoint() {
+        var held = lockAll();
+        try {
+            if (store != null) {
+                store.flush();
+            } else {
+                db.flush();
+                symbolIndex.flush();
+                dateIndex.flush();
+                statusIndex.flush();
+                declared.forEach(x -> x.store().flush());
+                countersDb.flush();
+            }
+            journal.checkpoint();
+        } finally {
+            held.close();
+        }
+    }
+
+    // waits for the changes to be durable, the locks released, and checkpoints a journal that has filled a segment
+    private void written(List<Runnable> durable) {
+        durable.forEach(Runnable::run);
+        if (journal.checkpointDue()) {
+            checkpoint();
+        }
+    }
+
+    // Stores written before the status index existed have trades but no status entries; the index is
+    // built from one scan of the trades the first time such a store is opened.
+    private void buildStatusIndex() {
+        if (statusIndex.find(OPEN).isEmpty() == false || statusIndex.find(CLOSED).isEmpty() == false) {
+            return;
+        }
+        List<Map.Entry<String, Integer>> statuses;
+        try (var trades = db.scan(null, 0)) {
+            statuses = trades.map(t -> Map.entry(status(t), t.ID)).toList();
+        }
+        if (statuses.isEmpty()) {
+            return;
+        }
+        var tx = statusIndex.beginTransaction();
+        if (statusIndex.indexAll(statuses, tx)) {
+            tx.commit();
+            log.info("Built the status index of {} trades", statuses.size());
+        } else {
+            tx.rollback();
+            throw new RuntimeException("Could not build the status index");
+        }
+    }
+
+    private static String status(Trade trade) {
+        return trade.isClosed() ? CLOSED : OPEN;
+    }
+
+    private static String otherStatus(Trade trade) {
+        return trade.isClosed() ? OPEN : CLOSED;
+    }
+
+    // The transactions of one unit of work, one per store. With a single store they are all the same
+    // transaction, which is committed once. The stores of the declared indexes get theirs on their first write,
+    // declared is null when they share the one of the trades.
+    private record Transactions(KvTransaction trades, KvTransaction symbols, KvTransaction dates, KvTransaction statuses,
+                                Map<KvIndex<?, Integer>, KvTransaction> declared) {
+        KvTransaction on(KvIndex<?, Integer> index) {
+            return declared == null ? trades : declared.computeIfAbsent(index, KvIndex::beginTransaction);
+        }
+
+        private List<KvTransaction> distinct() {
+            var declaredTxs = declared == null ? Stream.<KvTransaction>empty() : declared.values().stream();
+            return Stream.concat(Stream.of(trades, symbols, dates, statuses), declaredTxs).distinct().toList();
+        }
+
+        void commit() {
+            distinct().forEach(KvTransaction::commit);
+        }
+
+        // commits and collects the waits for the commits to be durable, see KvTransaction.commitDeferred
+        void commit(List<Runnable> durable) {
+            distinct().forEach(x -> durable.add(x.commitDeferred()));
+        }
+
+        void rollback() {
+            distinct().forEach(KvTransaction::rollback);
+        }
+    }
+
+    // Journals the change before the stores commit it, the journal being forced before the stores are waited for.
+    // A change the stores fail to commit is journaled back, so that the journal does not replay it.
+    private void commit(Transactions txs, List<Runnable> durable, Runnable journaled, Runnable undone) {
+        journaled.run();
+        durable.add(journal.durable());
+        try {
+            txs.commit(durable);
+        } catch (RuntimeException e) {
+            undone.run();
+            throw e;
+        }
+    }
+
+    // journals the trade back to its previous version, null for a new trade
+    private void unjournal(Trade trade, Trade previous) {
+        if (previous == null) {
+            journal.appendDeleted(trade.ID);
+        } else {
+            journal.append(trade, previous);
+        }
+    }
+
+    private Transactions beginTransactions() {
+        if (store != null || shards != null) {
+            // the transaction of a sharded db is shared by its indexes, see ShardedTransaction
+            var tx = store != null ? store.beginTransaction() : db.beginTransaction();
+            return new Transactions(tx, tx, tx, tx, null);
+        }
+        return new Transactions(db.beginTransaction(), symbolIndex.beginTransaction(), dateIndex.beginTransaction(),
+                statusIndex.beginTransaction(), new IdentityHashMap<>());
     }
 
     @Override
@@ -45,22 +401,25 @@ public class TradeRepository implements me.sk.ta.api.interfaces.TradeRepository,
         if (id < 1) {
             throw new IllegalArgumentException("id");
         }
-        return db.get(id);
+        return get(id).orElseThrow(() -> new RuntimeException("Not found"));
     }
 
+    // every call returns a trade of its own, changing it does not change what the next call returns
     @Override
     public Optional<Trade> get(int id) {
         if (id < 1) {
             throw new IllegalArgumentException("id");
         }
-        return db.find(id);
+        return cache.get(id, db::find);
+    }
+
+    public ValueCache.Stats cacheStats() {
+        return cache.stats();
     }
 
     @Override
     public List<Trade> where(Predicate<Trade> predicate) {
-        return db.findAll(x -> {
-            return predicate.test(x) ? Optional.of(x) : Optional.empty();
-        });
+        return scan(predicate);
     }
 
     @Override
@@ -69,158 +428,576 @@ public class TradeRepository implements me.sk.ta.api.interfaces.TradeRepository,
             throw new IllegalArgumentException("symbol");
         }
 
-        var ids = symbolIndex.find(symbol);
-        if (ids.size() == 0) {
+        // the symbol index lists every trade of the symbol, the open ones are those in the open postings too;
+        // the symbol and the status are checked again on the trades, an entry may be behind a change in progress
+        var open = symbolIndex.postings(symbol).intersect(statusIndex.postings(OPEN)).toList().stream()
+                .map(this::get)
+                .flatMap(Optional::stream)
+                .filter(x -> symbol.equals(x.symbol) && x.isClosed() == false)
+                .toList();
+        if (open.isEmpty()) {
             return Optional.empty();
         }
-        if (ids.size() > 1) {
+        if (open.size() > 1) {
             throw new RuntimeException("Found more than one open trade in symbol index for symbol: " + symbol);
         }
-        var t = get(ids.get(0));
-        if (t.isEmpty()) {
-            return t;
-        }
-        t.get().tcCalculator = this.chargesCalculator;
-        if (t.get().isClosed())
-            return Optional.empty();
-        else
-            return t;
+        var t = open.get(0);
+        t.tcCalculator = this.chargesCalculator;
+        return Optional.of(t);
     }
 
     @Override
     public List<Trade> getOpenTrades() {
-        return db.findAll(x -> {
-            return x.isClosed() ? Optional.empty() : Optional.of(x);
-        });
+        return byStatus(OPEN, x -> !x.isClosed());
     }
 
     @Override
     public List<Trade> getClosedTrades(LocalDate from, LocalDate to) {
-        return db.findAll(x -> {
-            var date = x.getDateOfClosure();
-            if (date.isEmpty()) {
-                return Optional.empty();
-            }
-            if (date.get().isBefore(from) || date.get().isAfter(to)) {
-                return Optional.empty();
-            }
-            return Optional.of(x);
-        });
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("from and to are required");
+        }
+        // only the trades found in the date index are read; the closure date is checked again
+        // as the index may still hold the date of a trade that has been reopened since
+        return dateIndex.findRange(from, to).stream()
+                .distinct()
+                .map(this::get)
+                .flatMap(Optional::stream)
+                .filter(x -> {
+                    var date = x.getDateOfClosure();
+                    return date.isPresent() && !date.get().isBefore(from) && !date.get().isAfter(to);
+                })
+                .collect(Collectors.toList());
     }
 
     @Override
     public List<Trade> getClosedTrades() {
-        return db.findAll(x -> {
-            return x.isClosed() ? Optional.of(x) : Optional.empty();
-        });
+        return byStatus(CLOSED, Trade::isClosed);
     }
 
 
+    // The writes to a shard are serialized. New ids are taken from the block leased by tradeIds, the counter is not
+    // written per trade. The wait for the write to be durable comes after the lock is released, so concurrent writers can share it.
     @Override
     public int saveOrUpdate(Trade trade) {
         if (trade == null) {
             throw new IllegalArgumentException("trade");
         }
-
-        if (trade.ID <= 0) {
-            trade.ID = getNextId();
-            log.debug("Assigned id: {}", trade.ID);
-        } else {
-            if (get(trade.ID) != null) {
-                log.warn("Trade with id:{} already present, updating it", trade.ID);
-            }
+        List<Runnable> durable = new ArrayList<>();
+        int id;
+        var held = lockFor(trade);
+        try {
+            id = saveOrUpdate(trade, durable);
+        } finally {
+            held.close();
         }
-        trade.checkNulls();
-        // TODO: Implement validation before saving
-        /*
-        if (trade.isValid() == false)
-        {
-            log.warn("Ignoring trade {}-{}. Validation failed:{0}",
-                    trade.ID,
-                    trade.symbol,
-                    String.join("; ", trade.Validate().Errors.Select(x => x.ErrorMessage)));
-            return null;
-        }
-        */
-        Transaction tx1 = null, tx2 = null, tx3 = null;
-        boolean res1 = true, res2 = true, res3 = true;
+        written(durable);
+        return id;
+    }
 
+    private int saveOrUpdate(Trade trade, List<Runnable> durable) {
+        Transactions txs = null;
         try {
-            tx1 = db.beginTransaction();
-            tx2 = symbolIndex.beginTransaction();
-            tx3 = dateIndex.beginTransaction();
+            txs = beginTransactions();
+            Optional<Trade> previous = Optional.empty();
+            if (trade.ID <= 0) {
+                trade.ID = (int) tradeIds.next();
+                log.debug("Assigned id: {}", trade.ID);
+            } else {
+                previous = get(trade.ID);
+                if (previous.isPresent()) {
+                    log.warn("Trade with id:{} already present, updating it", trade.ID);
+                }
+            }
+            trade.checkNulls();
+            // TODO: Implement validation before saving
+            /*
+            if (trade.isValid() == false)
+            {
+                log.warn("Ignoring trade {}-{}. Validation failed:{0}",
+                        trade.ID,
+                        trade.symbol,
+                        String.join("; ", trade.Validate().Errors.Select(x => x.ErrorMessage)));
+                return null;
+            }
+            */
+            boolean res0 = true, res1 = true, res2 = true, res3 = true, res4 = true;
 
-            res1 = db.save(trade.ID, trade, tx1);
-            res2 = symbolIndex.index(trade.symbol, trade.ID, tx2);
+            if (previous.isPresent()) {
+                res0 = moves(previous.get(), trade) ? unindex(previous.get(), txs) : unindexChanged(previous.get(), trade, txs);
+            }
+            res1 = db.save(trade.ID, trade, txs.trades());
+            res2 = symbolIndex.index(trade.symbol, trade.ID, txs.symbols());
             var closureDate = trade.getDateOfClosure();
             if (closureDate.isPresent()) {
-                res3 = dateIndex.index(closureDate.get(), trade.ID, tx3);
+                res3 = dateIndex.index(closureDate.get(), trade.ID, txs.dates());
             }
-            if (res1 && res2 && res3) {
-                tx1.commit();
-                tx2.commit();
-                tx3.commit();
+            res4 = statusIndex.delete(otherStatus(trade), trade.ID, txs.statuses())
+                    && statusIndex.index(status(trade), trade.ID, txs.statuses());
+            var indexedAs = previous.isPresent() && moves(previous.get(), trade) ? null : previous.orElse(null);
+            var res5 = reindex(indexedAs, trade, txs, new HashMap<>());
+            if (res0 && res1 && res2 && res3 && res4 && res5) {
+                var before = previous.orElse(null);
+                commit(txs, durable, () -> journal.append(before, trade), () -> unjournal(trade, before));
+                cache.put(trade.ID, trade);
             } else {
-                tx1.rollback();
-                tx2.rollback();
-                tx3.rollback();
+                txs.rollback();
                 trade.ID = 0;
             }
         } catch (Exception ex) {
             log.error("An exception occurred: {}", ex);
-            if (tx1 != null) tx1.rollback();
-            if (tx2 != null) tx2.rollback();
-            if (tx3 != null) tx3.rollback();
+            if (txs != null) txs.rollback();
             trade.ID = 0;
             return 0;
         }
         return trade.ID;
     }
 
+    // the trades may go to any shard, every shard is locked
+    @Override
+    public int saveOrUpdateAll(List<Trade> trades) {
+        List<Runnable> durable = new ArrayList<>();
+        int saved;
+        var held = lockAll();
+        try {
+            saved = saveOrUpdateAll(trades, durable);
+        } finally {
+            held.close();
+        }
+        written(durable);
+        return saved;
+    }
+
+    private int saveOrUpdateAll(List<Trade> trades, List<Runnable> durable) {
+        if (trades == null) {
+            throw new IllegalArgumentException("trades");
+        }
+        if (trades.isEmpty()) {
+            return 0;
+        }
+
+        var newTrades = trades.stream().filter(x -> x.ID <= 0).toList();
+        Transactions txs = null;
+        try {
+            txs = beginTransactions();
+            Map<Integer, Trade> previous = new HashMap<>();
+            trades.stream().filter(x -> x.ID > 0).forEach(x -> get(x.ID).ifPresent(p -> previous.put(x.ID, p)));
+            if (newTrades.isEmpty() == false) {
+                var nextId = (int) tradeIds.reserve(newTrades.size());
+                for (var t : newTrades) {
+                    t.ID = nextId++;
+                }
+            }
+
+            Map<Integer, Trade> entries = new LinkedHashMap<>();
+            List<Map.Entry<String, Integer>> symbols = new ArrayList<>();
+            List<Map.Entry<LocalDate, Integer>> closureDates = new ArrayList<>();
+            List<Map.Entry<String, Integer>> statuses = new ArrayList<>();
+            for (var t : trades) {
+                t.checkNulls();
+                entries.put(t.ID, t);
+                symbols.add(Map.entry(t.symbol, t.ID));
+                t.getDateOfClosure().ifPresent(date -> closureDates.add(Map.entry(date, t.ID)));
+                statuses.add(Map.entry(status(t), t.ID));
+            }
+
+            boolean res0 = true, res1 = true, res2 = true, res3 = true, res4 = true;
+            for (var p : previous.values()) {
+                var t = entries.get(p.ID);
+                res0 = res0 && (moves(p, t) ? unindex(p, txs) : unindexChanged(p, t, txs));
+            }
+            res1 = db.saveAll(entries, txs.trades());
+            res2 = symbolIndex.indexAll(symbols, txs.symbols());
+            if (closureDates.isEmpty() == false) {
+                res3 = dateIndex.indexAll(closureDates, txs.dates());
+            }
+            for (var t : trades) {
+                res4 = res4 && statusIndex.delete(otherStatus(t), t.ID, txs.statuses());
+            }
+            res4 = res4 && statusIndex.indexAll(statuses, txs.statuses());
+            var res5 = true;
+            Map<Indexed<?>, Map<Object, Integer>> claimed = new HashMap<>();
+            for (var t : entries.values()) {
+                var p = previous.get(t.ID);
+                res5 = res5 && reindex(p == null || moves(p, t) ? null : p, t, txs, claimed);
+            }
+            if (res0 && res1 && res2 && res3 && res4 && res5) {
+                commit(txs, durable, () -> entries.values().forEach(x -> journal.append(previous.get(x.ID), x)),
+                        () -> entries.values().forEach(x -> unjournal(x, previous.get(x.ID))));
+                entries.forEach(cache::put);
+                log.debug("Saved {} trades", entries.size());
+                return entries.size();
+            } else {
+                txs.rollback();
+            }
+        } catch (Exception ex) {
+            log.error("An exception occurred: {}", ex);
+            if (txs != null) txs.rollback();
+        }
+        newTrades.forEach(t -> t.ID = 0);
+        return 0;
+    }
+
     @Override
     public boolean delete(int id) {
         if (id < 1) {
             throw new IllegalArgumentException("id");
         }
+        List<Runnable> durable = new ArrayList<>();
+        boolean deleted;
+        var held = lockFor(id);
+        try {
+            deleted = delete(id, durable);
+        } finally {
+            held.close();
+        }
+        written(durable);
+        return deleted;
+    }
+
+    private boolean delete(int id, List<Runnable> durable) {
         var trade = db.find(id);
         if (trade.isEmpty()) {
             return false;
         }
 
-        Transaction tx1 = null, tx2 = null, tx3 = null;
-        boolean res1 = true, res2 = true, res3 = true;
+        Transactions txs = null;
+        boolean res1 = true, res2 = true, res3 = true, res4 = true;
 
         try {
-            tx1 = db.beginTransaction();
-            tx2 = symbolIndex.beginTransaction();
-            tx3 = dateIndex.beginTransaction();
+            txs = beginTransactions();
 
-            res1 = db.delete(id, tx1);
-            res2 = symbolIndex.delete(trade.get().symbol, id, tx2);
+            res1 = db.delete(id, txs.trades());
+            res2 = symbolIndex.delete(trade.get().symbol, id, txs.symbols());
             var closureDate = trade.get().getDateOfClosure();
             if (closureDate.isPresent()) {
-                res3 = dateIndex.index(closureDate.get(), id, tx3);
+                res3 = dateIndex.delete(closureDate.get(), id, txs.dates());
             }
-            if (res1 && res2 && res3) {
-                tx1.commit();
-                tx2.commit();
-                tx3.commit();
+            res4 = statusIndex.delete(OPEN, id, txs.statuses()) && statusIndex.delete(CLOSED, id, txs.statuses())
+                    && reindex(trade.get(), null, txs, new HashMap<>());
+            if (res1 && res2 && res3 && res4) {
+                commit(txs, durable, () -> journal.appendDeleted(id), () -> journal.append(null, trade.get()));
+                cache.invalidate(id);
                 return true;
             } else {
-                tx1.rollback();
-                tx2.rollback();
-                tx3.rollback();
+                txs.rollback();
                 return false;
             }
         } catch (Exception ex) {
             log.error("An exception occurred: {}", ex);
-            if (tx1 != null) tx1.rollback();
-            if (tx2 != null) tx2.rollback();
-            if (tx3 != null) tx3.rollback();
+            if (txs != null) txs.rollback();
             return false;
         }
     }
 
+    // The trades closed before the date, oldest first. They are read past the cache, so that the
+    // archival does not push the trades in use out of it, and copied like the trades the cache hands out.
+    public List<Trade> getClosedBefore(LocalDate date, int limit) {
+        if (date == null || limit < 1) {
+            throw new IllegalArgumentException("date and a positive limit are required");
+        }
+        return dateIndex.findRange(LocalDate.EPOCH, date.minusDays(1)).stream()
+                .distinct()
+                .map(db::find)
+                .flatMap(Optional::stream)
+                .filter(x -> x.getDateOfClosure().filter(d -> d.isBefore(date)).isPresent())
+                .limit(limit)
+                .map(x -> tradeType.decode(tradeType.encode(x)))
+                .collect(Collectors.toList());
+    }
+
+    // Removes the trades copied to the archive, with their index entries, in one unit of work.
+    // A trade changed since it was copied is kept, the next archival copies it again.
+    public int removeArchived(List<Trade> archived) {
+        List<Runnable> durable = new ArrayList<>();
+        int removed;
+        var held = lockAll();
+        try {
+            removed = removeArchived(archived, durable);
+        } finally {
+            held.close();
+        }
+        written(durable);
+        return removed;
+    }
+
+    private int removeArchived(List<Trade> archived, List<Runnable> durable) {
+        if (archived == null) {
+            throw new IllegalArgumentException("archived");
+        }
+        List<Integer> removed = new ArrayList<>();
+        Transactions txs = null;
+        try {
+            txs = beginTransactions();
+            var res = true;
+            for (var t : archived) {
+                var current = db.find(t.ID);
+                if (current.isEmpty() || current.get().equals(t) == false) {
+                    continue;
+                }
+                res = res && db.delete(t.ID, txs.trades())
+                        && symbolIndex.delete(t.symbol, t.ID, txs.symbols())
+                        && statusIndex.delete(status(t), t.ID, txs.statuses());
+                if (res && t.getDateOfClosure().isPresent()) {
+                    res = dateIndex.delete(t.getDateOfClosure().get(), t.ID, txs.dates());
+                }
+                res = res && reindex(t, null, txs, new HashMap<>());
+                removed.add(t.ID);
+            }
+            if (res) {
+                var removedTrades = archived.stream().filter(x -> removed.contains(x.ID)).toList();
+                commit(txs, durable, () -> removed.forEach(journal::appendArchived), () -> removedTrades.forEach(x -> journal.append(null, x)));
+                removed.forEach(cache::invalidate);
+                return removed.size();
+            }
+            txs.rollback();
+        } catch (Exception ex) {
+            log.error("An exception occurred: {}", ex);
+            if (txs != null) txs.rollback();
+        }
+        return 0;
+    }
+
+    // gives the space of the removed trades back to the file system
+    public void compact() {
+        if (store != null) {
+            store.compact();
+            return;
+        }
+        db.compact();
+        symbolIndex.compact();
+        dateIndex.compact();
+        statusIndex.compact();
+        declared.forEach(x -> x.store().compact());
+    }
+
+    // Compares the symbol, date and status indexes with the trades, without blocking readers or writers.
+    public IndexReport verifyIndexes() {
+        return indexVerifier.verify((int) tradeIds.highWaterMark());
+    }
+
+    // Verifies the indexes and fixes the differences found in one unit of work. Only the fixes hold off the writers.
+    public IndexReport repairIndexes() {
+        var report = verifyIndexes();
+        if (report.isConsistent()) {
+            return report;
+        }
+        var held = lockAll();
+        try {
+            var txs = beginTransactions();
+            try {
+                Map<KvIndex<?, Integer>, KvTransaction> fixes = new IdentityHashMap<>();
+                fixes.put(symbolIndex, txs.symbols());
+                fixes.put(dateIndex, txs.dates());
+                fixes.put(statusIndex, txs.statuses());
+                declared.forEach(x -> fixes.put(x.store(), txs.on(x.store())));
+                if (indexVerifier.repair(report, fixes)) {
+                    txs.commit();
+                    log.info("Repaired {} missing and {} orphaned index entries", report.missing().size(), report.orphans().size());
+                    return report;
+                }
+                txs.rollback();
+            } catch (Exception ex) {
+                log.error("An exception occurred: {}", ex);
+                txs.rollback();
+            }
+            throw new RuntimeException("Could not repair the indexes");
+        } finally {
+            held.close();
+        }
+    }
+
+    // The stores of the trades, of their indexes and counters and the journal as they are now. The writes wait
+    // only while the snapshots are taken, the backup is written from them afterwards.
+    public List<StoreSnapshot> snapshot() {
+        return holdingWrites(() -> {
+            if (store != null) {
+                return StoreSnapshot.takeAll(List.of(store::snapshot, journal::snapshot));
+            }
+            List<Supplier<StoreSnapshot>> stores = new ArrayList<>();
+            Stream.of(db.snapshots(), symbolIndex.snapshots(), dateIndex.snapshots(), statusIndex.snapshots(),
+                    countersDb.snapshots(), List.<Supplier<StoreSnapshot>>of(journal::snapshot)).forEach(stores::addAll);
+            declared.forEach(x -> stores.addAll(x.store().snapshots()));
+            return StoreSnapshot.takeAll(stores);
+        });
+    }
+
+    // runs the action while no write is in progress, see DbBackup
+    <T> T holdingWrites(Supplier<T> action) {
+        var held = lockAll();
+        try {
+            return action.get();
+        } finally {
+            held.close();
+        }
+    }
+
+    // The lock of the shard the trade is written to. A trade that is in another shard already, because its symbol
+    // changed, or that may be, being new with an id of its own, holds every shard. So do all the writes when a
+    // unique index is declared, its keys being checked across the shards.
+    private ShardLocks.Held lockFor(Trade trade) {
+        opening.await();
+        if (shards == null) {
+            return locks.lock(0);
+        }
+        if (anyUnique) {
+            return locks.lockAll();
+        }
+        var shard = shards.shardOf(trade);
+        var held = locks.lock(shard);
+        if (trade.ID <= 0 || shards.locate(trade.ID) == shard) {
+            return held;
+        }
+        held.close();
+        return locks.lockAll();
+    }
+
+    // the lock of the shard holding the trade, checked again once held as the trade may have moved meanwhile
+    private ShardLocks.Held lockFor(int id) {
+        opening.await();
+        if (shards == null) {
+            return locks.lock(0);
+        }
+        var shard = shards.locate(id);
+        if (shard >= 0) {
+            var held = locks.lock(shard);
+            if (shards.locate(id) == shard) {
+                return held;
+            }
+            held.close();
+        }
+        return locks.lockAll();
+    }
+
+    private ShardLocks.Held lockAll() {
+        opening.await();
+        return locks.lockAll();
+    }
+
+    // whether the trade moves to another shard, leaving its index entries behind in the old one
+    private boolean moves(Trade previous, Trade trade) {
+        return shards != null && shards.shardOf(previous) != shards.shardOf(trade);
+    }
+
+    // deletes the index entries of the trade as it was, in the shard it was in
+    private boolean unindex(Trade trade, Transactions txs) {
+        var res = symbolIndex.delete(trade.symbol, trade.ID, txs.symbols())
+                && statusIndex.delete(status(trade), trade.ID, txs.statuses());
+        if (res && trade.getDateOfClosure().isPresent()) {
+            res = dateIndex.delete(trade.getDateOfClosure().get(), trade.ID, txs.dates());
+        }
+        return res && reindex(trade, null, txs, new HashMap<>());
+    }
+
+    // deletes the symbol and closure date entries of the trade as it was that the trade as it is now no longer has
+    private boolean unindexChanged(Trade previous, Trade trade, Transactions txs) {
+        var res = true;
+        if (Objects.equals(previous.symbol, trade.symbol) == false) {
+            res = symbolIndex.delete(previous.symbol, previous.ID, txs.symbols());
+        }
+        var closureDate = previous.getDateOfClosure();
+        if (res && closureDate.isPresent() && closureDate.equals(trade.getDateOfClosure()) == false) {
+            res = dateIndex.delete(closureDate.get(), previous.ID, txs.dates());
+        }
+        return res;
+    }
+
+    // Deletes the keys of the declared indexes only the trade as it was has and adds those only the trade as it is
+    // now has; either may be null. The stores of the indexes whose keys did not change are not written to.
+    // claimed holds the keys of the unique indexes taken so far in the unit of work.
+    private boolean reindex(Trade before, Trade after, Transactions txs, Map<Indexed<?>, Map<Object, Integer>> claimed) {
+        var id = after != null ? after.ID : before.ID;
+        for (var indexed : declared) {
+            var old = before == null ? List.of() : indexed.keysOf(before);
+            var now = after == null ? List.of() : indexed.keysOf(after);
+            for (var key : old) {
+                if (now.contains(key) == false && indexed.store().delete(key, id, txs.on(indexed.store())) == false) {
+                    return false;
+                }
+            }
+            for (var key : now) {
+                if (old.contains(key)) {
+                    continue;
+                }
+                if (indexed.index().unique() && taken(indexed, key, id, claimed)) {
+                    log.warn("Trade {} cannot have {} as its {}, another trade has it", id, key, indexed.index().name());
+                    return false;
+                }
+                if (indexed.store().index(key, id, txs.on(indexed.store())) == false) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // whether another trade has the key of the unique index, earlier in the unit of work or in the store; an entry
+    // of a trade that no longer has the key does not count
+    private boolean taken(Indexed<?> indexed, Object key, int id, Map<Indexed<?>, Map<Object, Integer>> claimed) {
+        var other = claimed.computeIfAbsent(indexed, x -> new HashMap<>()).putIfAbsent(key, id);
+        if (other != null && other != id) {
+            return true;
+        }
+        return indexed.store().find(key).stream()
+                .filter(x -> x != id)
+                .anyMatch(x -> get(x).filter(t -> indexed.keysOf(t).contains(key)).isPresent());
+    }
+
+    // The trades having each of the keys in the indexes named: the declared ones, symbol, closureDate and status
+    // (OPEN or CLOSED). Only the trades in every index are read, in id order; their keys are checked again, as an
+    // index may hold the key of a trade changed meanwhile.
+    @Override
+    public List<Trade> findBy(Map<String, ?> keys) {
+        if (keys == null || keys.isEmpty()) {
+            throw new IllegalArgumentException("keys");
+        }
+        PostingList ids = null;
+        for (var key : keys.entrySet()) {
+            var indexed = indexed(key.getKey());
+            var postings = indexed.store().postings(indexed.key(key.getValue()));
+            ids = ids == null ? postings : ids.intersect(postings);
+            if (ids.isEmpty()) {
+                break;
+            }
+        }
+        return ids.toList().stream().map(this::get).flatMap(Optional::stream)
+                .filter(t -> keys.entrySet().stream().allMatch(x -> indexes.get(x.getKey()).keysOf(t).contains(x.getValue())))
+                .collect(Collectors.toList());
+    }
+
+    // The trades with a key between from and to, both included, in the index named, in key order. For the keys
+    // stored in key order: dates, strings and numbers, see IndexKeys.
+    @Override
+    public <K extends Comparable<? super K>> List<Trade> findByRange(String index, K from, K to) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("from and to are required");
+        }
+        var indexed = indexed(index);
+        return indexed.store().findRange(indexed.key(from), indexed.key(to)).stream().distinct()
+                .map(this::get).flatMap(Optional::stream)
+                .filter(t -> indexed.keysOf(t).stream().anyMatch(x -> between(x, from, to)))
+                .collect(Collectors.toList());
+    }
+
+    // a key of the index, of its key type, which from and to were checked against
+    @SuppressWarnings("unchecked")
+    private static <K extends Comparable<? super K>> boolean between(Object key, K from, K to) {
+        return from.compareTo((K) key) <= 0 && to.compareTo((K) key) >= 0;
+    }
+
+    private Indexed<?> indexed(String name) {
+        var indexed = indexes.get(name);
+        if (indexed == null) {
+            throw new IllegalArgumentException("There is no index " + name + ", the indexes are " + indexes.keySet());
+        }
+        return indexed;
+    }
+
+    // Spreads the trades stored under dbPath over the given number of shards, see TradeStores.reshard.
+    // The repository reshards on opening when db.shards has changed; this is for doing it beforehand, while the stores are closed.
+    public static void reshard(String dbPath, String backend, int shards, ObjectMapper serializer, TradingChargesCalculator tc) {
+        TradeStores.reshard(Path.of(dbPath).resolve("live"), shards, TradeIndex.DEFAULTS, StorageBackend.of(backend), new TradeDataType(tc), serializer);
+    }
+
     @Override
     public void close() {
         log.info("Closing the db and the indices");
@@ -228,29 +1005,43 @@ public class TradeRepository implements me.sk.ta.api.interfaces.TradeRepository,
         countersDb.close();
         symbolIndex.close();
         dateIndex.close();
+        statusIndex.close();
+        declared.forEach(x -> x.store().close());
+        if (store != null) {
+            store.close();
+        }
+        journal.close();
     }
 
     public void drop() {
+        cache.clear();
         db.drop();
         countersDb.drop();
         symbolIndex.drop();
         dateIndex.drop();
+        statusIndex.drop();
+        declared.forEach(x -> x.store().drop());
+        if (store != null) {
+            store.drop();
+        }
+        journal.drop();
     }
 
-    private int getNextId() {
-        var newValue = 1;
-        var tx = countersDb.beginTransaction();
-        try {
-            var counter = countersDb.find(TRADE_KEY_COUNTER, tx);
-            if (counter.isPresent()) {
-                newValue = counter.get();
-                newValue += 1;
-            }
-            countersDb.save(TRADE_KEY_COUNTER, newValue, tx);
-            tx.commit();
-        } catch (Exception ex) {
-            tx.rollback();
+    // trades are decoded one at a time while scanning, only the matches are kept
+    private List<Trade> scan(Predicate<Trade> predicate) {
+        try (var trades = db.scan(null, 0)) {
+            return trades.filter(predicate).collect(Collectors.toList());
         }
-        return newValue;
+    }
+
+    // only the trades listed under the status are read, in id order; the status is checked again on the trade itself
+    private List<Trade> byStatus(String status, Predicate<Trade> predicate) {
+        return statusIndex.find(status).stream()
+                .sorted()
+                .distinct()
+                .map(this::get)
+                .flatMap(Optional::stream)
+                .filter(predicate)
+                .collect(Collectors.toList());
     }
 }
\ No newline at end of file
@@ -0,0 +1,195 @@
+package me.sk.ta.repositories;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import me.sk.ta.domain.Trade;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
+// The trades and their indexes, in one set of stores or spread over shards by the symbol of the trade.
+// With one shard the stores are in the folder of the repository; with N they are in shards-N/0 .. shards-N/N-1.
+// declared holds the stores of the declared indexes by index name, see TradeIndex.
+record TradeStores(KvDb<Integer, Trade> db, KvIndex<String, Integer> symbols, KvIndex<LocalDate, Integer> dates,
+                   KvIndex<String, Integer> statuses, Map<String, KvIndex<Object, Integer>> declared) {
+    private static final Logger log = LoggerFactory.getLogger(TradeStores.class);
+    private static final Pattern SHARDS = Pattern.compile("shards-(\\d+)");
+    // written once the copy of a resharding is complete, holding the number of shards copied from
+    private static final String COPIED = "copied";
+    private static final int BATCH_SIZE = 1000;
+
+    static TradeStores open(Path path, int shards, List<TradeIndex<?>> indexes, StorageBackend storage, TradeDataType tradeType,
+                            ObjectMapper serializer, Durability durability, StoreOpening opening) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be positive");
+        }
+        if (shards == 1) {
+            return open(path, "", indexes, storage, tradeType, serializer, durability, opening);
+        }
+        List<TradeStores> opened = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            opened.add(open(path.resolve("shards-" + shards).resolve(String.valueOf(i)), "shard " + i + " ", indexes, storage, tradeType, serializer, durability, opening));
+        }
+        var db = new ShardedKvDb<>(opened.stream().map(TradeStores::db).toList(), (Trade x) -> x.symbol, x -> x.ID);
+        Map<String, KvIndex<Object, Integer>> declared = new LinkedHashMap<>();
+        for (var index : indexes) {
+            declared.put(index.name(), new ShardedKvIndex<>(opened.stream().map(x -> x.declared().get(index.name())).toList(), db));
+        }
+        return new TradeStores(db,
+                new ShardedKvIndex<>(opened.stream().map(TradeStores::symbols).toList(), db),
+                new ShardedKvIndex<>(opened.stream().map(TradeStores::dates).toList(), db),
+                new ShardedKvIndex<>(opened.stream().map(TradeStores::statuses).toList(), db),
+                declared);
+    }
+
+    private static TradeStores open(Path path, String shard, List<TradeIndex<?>> indexes, StorageBackend storage, TradeDataType tradeType,
+                                    ObjectMapper serializer, Durability durability, StoreOpening opening) {
+        var folder = path.toString();
+        CompletableFuture<KvDb<Integer, Trade>> trades = opening.open(shard + "trade", () -> storage.openDb(folder, "trade", Integer.class, tradeType, serializer, durability));
+        CompletableFuture<KvIndex<String, Integer>> symbols = opening.open(shard + "SYMBOL_INDEX", () -> storage.openIndex(folder, "SYMBOL_INDEX", KvIndex.IndexingStrategy.MultipleValues, Integer.class, String.class, "~~~", serializer, durability));
+        CompletableFuture<KvIndex<LocalDate, Integer>> dates = opening.open(shard + "DATE_INDEX", () -> storage.openIndex(folder, "DATE_INDEX", KvIndex.IndexingStrategy.MultipleValues, Integer.class, LocalDate.class, "~~~", serializer, durability));
+        CompletableFuture<KvIndex<String, Integer>> statuses = opening.open(shard + "STATUS_INDEX", () -> storage.openIndex(folder, "STATUS_INDEX", KvIndex.IndexingStrategy.PostfixValue, Integer.class, String.class, "~~~", serializer, durability));
+        Map<String, CompletableFuture<KvIndex<Object, Integer>>> declared = new LinkedHashMap<>();
+        for (var index : indexes) {
+            declared.put(index.name(), opening.open(shard + index.storeName(), () -> storage.openIndex(folder, index.storeName(), KvIndex.IndexingStrategy.MultipleValues, Integer.class, index.keyType(), "~~~", serializer, durability)));
+        }
+        Map<String, KvIndex<Object, Integer>> opened = new LinkedHashMap<>();
+        declared.forEach((name, index) -> opened.put(name, opening.get(KvIndex.class, index)));
+        return new TradeStores(opening.get(KvDb.class, trades), opening.get(KvIndex.class, symbols),
+                opening.get(KvIndex.class, dates), opening.get(KvIndex.class, statuses), opened);
+    }
+
+    void close() {
+        db.close();
+        symbols.close();
+        dates.close();
+        statuses.close();
+        declared.values().forEach(KvIndex::close);
+    }
+
+    // the number of shards of the trades stored at path, 0 when there are none yet
+    static int layout(Path path) {
+        for (var store : List.of("trade", "trade.rocksdb")) {
+            if (Files.exists(path.resolve(store))) {
+                return 1;
+            }
+        }
+        if (Files.isDirectory(path) == false) {
+            return 0;
+        }
+        try (var entries = Files.list(path)) {
+            return entries.map(x -> SHARDS.matcher(x.getFileName().toString()))
+                    .filter(x -> x.matches())
+                    .mapToInt(x -> Integer.parseInt(x.group(1)))
+                    .findFirst()
+                    .orElse(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Spreads the trades stored at path over the given number of shards. The trades and index entries are copied
+    // into a staging folder first, so a resharding that stopped half way starts over, or, once the copy is complete,
+    // carries on replacing the old stores. Nothing may use the stores meanwhile.
+    static void reshard(Path path, int shards, List<TradeIndex<?>> indexes, StorageBackend storage, TradeDataType tradeType,
+                        ObjectMapper serializer) {
+        var staging = path.resolve("resharding-" + shards);
+        try {
+            if (Files.exists(staging.resolve(COPIED))) {
+                replace(path, staging, Integer.parseInt(Files.readString(staging.resolve(COPIED)).trim()), shards);
+                return;
+            }
+            RocksDbRepo.deleteDirectory(staging.toFile());
+            var from = layout(path);
+            if (from == 0 || from == shards) {
+                return;
+            }
+            log.info("Resharding the trades at {} from {} to {} shards", path, from, shards);
+            var start = System.nanoTime();
+            var copied = copy(open(path, from, indexes, storage, tradeType, serializer, Durability.Async, new StoreOpening("resharding", false)),
+                    open(staging, shards, indexes, storage, tradeType, serializer, Durability.Async, new StoreOpening("resharding", false)));
+            Files.writeString(staging.resolve(COPIED), String.valueOf(from));
+            replace(path, staging, from, shards);
+            log.info("Resharded {} trades in {} ms", copied, (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // copies in batches, the trades first so that their index entries follow them to their shards
+    private static int copy(TradeStores source, TradeStores target) {
+        try {
+            Set<Integer> copied = new HashSet<>();
+            try (var trades = source.db().scan(null, 0)) {
+                Map<Integer, Trade> batch = new LinkedHashMap<>();
+                for (var it = trades.iterator(); it.hasNext(); ) {
+                    var trade = it.next();
+                    batch.put(trade.ID, trade);
+                    if (batch.size() == BATCH_SIZE || it.hasNext() == false) {
+                        if (target.db().saveAll(batch) == false) {
+                            throw new RuntimeException("Could not copy the trades");
+                        }
+                        copied.addAll(batch.keySet());
+                        batch.clear();
+                    }
+                }
+            }
+            copy(source.symbols(), target.symbols(), copied);
+            copy(source.dates(), target.dates(), copied);
+            copy(source.statuses(), target.statuses(), copied);
+            source.declared().forEach((name, index) -> copy(index, target.declared().get(name), copied));
+            return copied.size();
+        } finally {
+            source.close();
+            target.close();
+        }
+    }
+
+    // the entries of trades that are gone are left behind
+    private static <K> void copy(KvIndex<K, Integer> source, KvIndex<K, Integer> target, Set<Integer> trades) {
+        var entries = source.entries().stream().filter(x -> trades.contains(x.getValue())).toList();
+        for (int i = 0; i < entries.size(); i += BATCH_SIZE) {
+            var tx = target.beginTransaction();
+            if (target.indexAll(entries.subList(i, Math.min(entries.size(), i + BATCH_SIZE)), tx) == false) {
+                tx.rollback();
+                throw new RuntimeException("Could not copy the index entries");
+            }
+            tx.commit();
+        }
+    }
+
+    // deletes the stores of the old layout and moves the copies in their place; may be run again if it stops half way
+    private static void replace(Path path, Path staging, int from, int shards) throws IOException {
+        if (from == 1) {
+            // the stores of the old layout have the names of those of a shard; these are moved once the old ones are gone
+            var shard = staging.resolve("shards-" + shards).resolve("0");
+            if (Files.isDirectory(shard)) {
+                try (var stores = Files.list(shard)) {
+                    for (var store : stores.toList()) {
+                        RocksDbRepo.deleteDirectory(path.resolve(store.getFileName()).toFile());
+                    }
+                }
+            }
+        } else {
+            RocksDbRepo.deleteDirectory(path.resolve("shards-" + from).toFile());
+        }
+        try (var copies = Files.list(staging)) {
+            for (var copy : copies.filter(x -> x.getFileName().toString().equals(COPIED) == false).toList()) {
+                Files.move(copy, path.resolve(copy.getFileName()));
+            }
+        }
+        RocksDbRepo.deleteDirectory(staging.toFile());
+    }
+}
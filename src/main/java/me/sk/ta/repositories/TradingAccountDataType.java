@@ -0,0 +1,74 @@
+package me.sk.ta.repositories;
+
+import me.sk.ta.domain.AccountTransactionType;
+import me.sk.ta.domain.TradingAccount;
+import me.sk.ta.domain.TradingAccountEntry;
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.WriteBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+public class TradingAccountDataType extends VersionedDataType<TradingAccount> {
+    private static final byte VERSION = 1;
+
+    @Override
+    protected byte currentVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public Class<TradingAccount> getValueClass() {
+        return TradingAccount.class;
+    }
+
+    @Override
+    public TradingAccount[] createStorage(int size) {
+        return new TradingAccount[size];
+    }
+
+    @Override
+    public int getMemory(TradingAccount account) {
+        var entryCount = account.History == null ? 0 : account.History.size();
+        return 48 + entryCount * 96;
+    }
+
+    @Override
+    protected void writeBody(WriteBuffer buff, TradingAccount account) {
+        buff.putDouble(account.cashBalance);
+        if (account.History == null) {
+            buff.putVarInt(0);
+            return;
+        }
+        buff.putVarInt(account.History.size() + 1);
+        for (var entry : account.History) {
+            putEnum(buff, entry.transType());
+            putString(buff, entry.businessTransactionId());
+            buff.putDouble(entry.amount());
+            putDate(buff, entry.date());
+            putBoolean(buff, entry.isTradeClosed());
+        }
+    }
+
+    @Override
+    protected TradingAccount readBody(ByteBuffer buff, byte version) {
+        var account = new TradingAccount();
+        account.cashBalance = buff.getDouble();
+        var entryCount = DataUtils.readVarInt(buff);
+        if (entryCount == 0) {
+            account.History = null;
+            return account;
+        }
+        var history = new ArrayList<TradingAccountEntry>(entryCount - 1);
+        for (int i = 0; i < entryCount - 1; i++) {
+            history.add(new TradingAccountEntry(
+                    getEnum(buff, AccountTransactionType.class),
+                    getString(buff),
+                    buff.getDouble(),
+                    getDate(buff),
+                    getBoolean(buff)));
+        }
+        account.History = history;
+        return account;
+    }
+}
@@ -1,41 +1,91 @@
 package me.sk.ta.repositories;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import me.sk.ta.domain.AccountTransactionType;
 import me.sk.ta.domain.Trade;
 import me.sk.ta.domain.TradeContract;
 import me.sk.ta.domain.TradingAccount;
+import me.sk.ta.domain.TradingAccountEntry;
 import me.sk.ta.domain.TradingChargesCalculator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.nio.file.Path;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
+// The accounts are kept in an AccountLedger: each entry is a record of its own and the balance is kept alongside,
+// so a posting costs the same however long the history of the account is. Accounts saved whole in trading_account
+// by earlier versions are moved to the ledger on opening.
 @Component
 public class TradingAccountRepository {
     private static final Logger log = LoggerFactory.getLogger(TradingAccountRepository.class);
 
     final String ACCOUNT_ID_COUNTER = "ACCOUNT_ID_COUNTER";
-    final MVStoreIndex<LocalDate, Integer> dateIndex;
+    final KvIndex<LocalDate, Integer> dateIndex;
     final KvDb<String, Integer> countersDb;
+    final IdAllocator accountIds;
+    // the accounts as earlier versions saved them, whole; empty once moved to the ledger
     final KvDb<Integer, TradingAccount> db;
+    private final CompletableFuture<AccountLedger> ledger;
+    final StoreOpening opening;
     String dbPath;
     final TradingChargesCalculator chargesCalculator;
 
-    public TradingAccountRepository(@Value("${db.conn.current.account}") String dbPath, ObjectMapper serializer, TradingChargesCalculator tc) {
+    public TradingAccountRepository(String dbPath, ObjectMapper serializer, TradingChargesCalculator tc) {
+        this(dbPath, false, serializer, tc);
+    }
+
+    // With lazyOpen the stores are opened in the background and the first use of the repository waits for them, see StoreOpening
+    @Autowired
+    public TradingAccountRepository(@Value("${db.conn.current.account}") String dbPath, @Value("${db.lazy-open:false}") boolean lazyOpen,
+                                    ObjectMapper serializer, TradingChargesCalculator tc) {
         if (dbPath == null) {
             throw new IllegalArgumentException("dbPath has not been initialized");
         }
         dbPath = Path.of(dbPath).resolve("live").toString();
         this.dbPath = dbPath;
         this.chargesCalculator = tc;
-        db = new MVStoreRepo<Integer, TradingAccount>(dbPath, "trading_account", Integer.class, Trade.class, serializer);
-        dateIndex = new MVStoreIndex<>(dbPath, "DATE_INDEX", MVStoreIndex.IndexingStrategy.PostfixValue, LocalDate.class, Integer.class, "~~~", serializer);
-        countersDb = new MVStoreRepo<String, Integer>(dbPath, "counters", String.class, Integer.class, serializer);
+        var path = dbPath;
+        opening = new StoreOpening("account", lazyOpen);
+        var accounts = opening.open("trading_account", () -> new MVStoreRepo<Integer, TradingAccount>(path, "trading_account", Integer.class, new TradingAccountDataType(), serializer));
+        var dates = opening.open("DATE_INDEX", () -> new MVStoreIndex<LocalDate, Integer>(path, "DATE_INDEX", KvIndex.IndexingStrategy.PostfixValue, Integer.class, LocalDate.class, "~~~", serializer));
+        var counters = opening.open("counters", () -> new MVStoreRepo<String, Integer>(path, "counters", String.class, new IntegerDataType(), serializer));
+        ledger = opening.open("ledger", () -> new AccountLedger(path, serializer));
+        db = opening.get(KvDb.class, accounts);
+        dateIndex = opening.get(KvIndex.class, dates);
+        countersDb = opening.get(KvDb.class, counters);
+        accountIds = IdAllocator.of(countersDb, ACCOUNT_ID_COUNTER, 10);
+        opening.initialize(this, this::moveToLedger);
+    }
+
+    // the ledger once open; a stand-in is of no use here, the ledger not being an interface
+    private AccountLedger ledger() {
+        opening.await();
+        return ledger.join();
+    }
+
+    // The account saved whole by an earlier version is copied into the ledger, then removed. One with a ledger
+    // already was copied by a run that stopped before removing it.
+    private void moveToLedger() {
+        var saved = db.find(1);
+        if (saved.isEmpty()) {
+            return;
+        }
+        if (ledger().exists(1) == false) {
+            ledger().replace(1, saved.get());
+            log.info("Moved the {} entries of the account to the ledger", saved.get().History == null ? 0 : saved.get().History.size());
+        }
+        db.delete(1);
     }
 
     public void postSale(int tradeId, TradeContract contract)
@@ -48,12 +98,11 @@ public class TradingAccountRepository {
             throw new IllegalArgumentException("not a sale");
         }
         log.trace("Entered - tradeId:{} amt:{} charges:{}", tradeId, contract.totalPrice(), contract.charges());
-        var account = getAccount();
-        log.trace("Balance:{}", account.cashBalance);
-        account.recordSale(contract.totalPrice(), contract.charges(), contract.date(), tradeId, contract.id());
-        saveOrUpdate(account);
-        log.trace("Exit - balance:{}", account.cashBalance);
+        if (contract.totalPrice() > 0) {
+            post(TradingAccountEntry.sale(contract.totalPrice(), contract.charges(), contract.date(), tradeId, contract.id()));
+        }
     }
+
     public void postPurchase(int tradeId, TradeContract contract)
     {
         if (contract.id() <= 0)
@@ -64,11 +113,26 @@ public class TradingAccountRepository {
             throw new IllegalArgumentException("not a purchase");
         }
         log.trace("Entered - tradeId:{} amt:{} charges:{}", tradeId, contract.totalPrice(), contract.charges());
-        var account = getAccount();
-        log.trace("Balance:{}", account.cashBalance);
-        account.recordPurchase(contract.totalPrice(), contract.charges(), contract.date(), tradeId, contract.id());
-        saveOrUpdate(account);
-        log.trace("Exit - balance:{}", account.cashBalance);
+        if (contract.totalPrice() > 0) {
+            post(TradingAccountEntry.purchase(contract.totalPrice(), contract.charges(), contract.date(), tradeId, contract.id()));
+        }
+    }
+
+    public void addCapital(double amount, LocalDate date) {
+        if (amount > 0) {
+            post(new TradingAccountEntry(AccountTransactionType.Capital, "", amount, date, false));
+        }
+    }
+
+    public void withdrawCapital(double amount, LocalDate date) {
+        if (amount > 0) {
+            post(new TradingAccountEntry(AccountTransactionType.Capital, "", -1 * amount, date, false));
+        }
+    }
+
+    private synchronized void post(TradingAccountEntry entry) {
+        ledger().post(1, entry);
+        log.trace("Exit - balance:{}", ledger().balance(1));
     }
 
     public void deleteTrade(int tradeId, Collection<Integer> contractIds)
@@ -77,23 +141,53 @@ public class TradingAccountRepository {
             throw new IllegalArgumentException("contractIds");
         }
         log.trace("Entered - tradeId:{} ", tradeId);
-        var account = getAccount();
-        log.trace("Balance:{}", account.cashBalance);
-        account.deleteTrade(tradeId, contractIds);
-        saveOrUpdate(account);
-        log.trace("Exit - balance:{}", account.cashBalance);
+        synchronized (this) {
+            ledger().reverse(1, businessTransactionIds(tradeId, contractIds));
+        }
     }
+
     public void closeTrade(int tradeId, Collection<Integer> contractIds)
     {
         if (contractIds == null) {
             throw new IllegalArgumentException("contractIds");
         }
         log.trace("Entered - tradeId:{} ", tradeId);
+        synchronized (this) {
+            ledger().close(1, businessTransactionIds(tradeId, contractIds));
+        }
+    }
+
+    private static List<String> businessTransactionIds(int tradeId, Collection<Integer> contractIds) {
+        return contractIds.stream().map(x -> TradingAccountEntry.businessTransactionId(tradeId, x)).toList();
+    }
+
+    // Rebuilds the trade entries of the account from the contracts of the trades, such as those replayed from
+    // the TradeJournal. The capital entries are kept as they are. Rewrites the whole ledger of the account.
+    public synchronized TradingAccount rebuildTradeEntries(Collection<Trade> trades) {
+        if (trades == null) {
+            throw new IllegalArgumentException("trades");
+        }
         var account = getAccount();
-        log.trace("Balance:{}", account.cashBalance);
-        account.closeTrade(tradeId, contractIds);
+        if (account.History == null) {
+            account.History = new ArrayList<>();
+        }
+        account.History.removeIf(x -> x.transType() == AccountTransactionType.Trade);
+        account.cashBalance = account.History.stream().mapToDouble(TradingAccountEntry::amount).sum();
+        for (var trade : trades) {
+            for (var contract : trade.tradeHistory) {
+                if (contract.isSale()) {
+                    account.recordSale(contract.totalPrice(), contract.charges(), contract.date(), trade.ID, contract.id());
+                } else {
+                    account.recordPurchase(contract.totalPrice(), contract.charges(), contract.date(), trade.ID, contract.id());
+                }
+            }
+            if (trade.isClosed()) {
+                account.closeTrade(trade.ID, trade.tradeHistory.stream().map(TradeContract::id).toList());
+            }
+        }
         saveOrUpdate(account);
-        log.trace("Exit - balance:{}", account.cashBalance);
+        log.info("Rebuilt the account entries of {} trades, balance: {}", trades.size(), account.cashBalance);
+        return account;
     }
 
     public TradingAccount getAccount() {
@@ -107,47 +201,49 @@ public class TradingAccountRepository {
         if (id < 1) {
             throw new IllegalArgumentException("id");
         }
-        return db.find(id);
+        return ledger().account(id);
     }
 
-
-    // TODO commit write transaction
-    public void saveOrUpdate(TradingAccount account) {
+    // Replaces the entries and the balance of the account with those given, in one transaction. For the
+    // changes to the account as a whole; the postings above write only their own entries.
+    public synchronized void saveOrUpdate(TradingAccount account) {
         if (account == null) {
             throw new IllegalArgumentException("account");
         }
-
-        db.save(1, account);
+        ledger().replace(1, account);
     }
 
-    public boolean delete(int id) {
+    public synchronized boolean delete(int id) {
         if (id < 1) {
             throw new IllegalArgumentException("id");
         }
-        return db.delete(id);
+        return ledger().delete(id);
+    }
+
+    // the stores of the account as they are now, see TradeRepository.snapshot
+    public synchronized List<StoreSnapshot> snapshot() {
+        List<Supplier<StoreSnapshot>> stores = new ArrayList<>();
+        Stream.of(db.snapshots(), dateIndex.snapshots(), countersDb.snapshots(), List.<Supplier<StoreSnapshot>>of(() -> ledger().snapshot()))
+                .forEach(stores::addAll);
+        return StoreSnapshot.takeAll(stores);
     }
 
-    public void close() {
+    public synchronized void close() {
         db.close();
         countersDb.close();
         dateIndex.close();
+        ledger().close();
     }
 
-    public void drop() {
+    public synchronized void drop() {
         db.drop();
         countersDb.drop();
         dateIndex.drop();
+        ledger().drop();
     }
 
     // TODO Account keyed by year? or number
     private int getNextId() {
-        var counter = countersDb.find(ACCOUNT_ID_COUNTER);
-        var newValue = 1;
-        if (counter.isPresent()) {
-            newValue = counter.get();
-            newValue += 1;
-        }
-        countersDb.save(ACCOUNT_ID_COUNTER, newValue);
-        return newValue;
+        return (int) accountIds.next();
     }
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+package me.sk.ta.repositories;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+// A bounded cache of encoded values, weighed by their encoded size and evicted least recently used first.
+// It keeps immutable byte arrays and decodes a new value for every read, so callers are free to change what they get.
+public final class ValueCache<K, V> {
+    // bookkeeping of an entry besides its bytes
+    private static final int ENTRY_OVERHEAD = 64;
+
+    public record Stats(long hits, long misses, long evictions, int entries, long bytes) {
+    }
+
+    private final VersionedDataType<V> valueType;
+    private final long maxBytes;
+    private final LinkedHashMap<K, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    // bumped by every write, so that a value loaded before a write does not replace what the write put
+    private long generation;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ValueCache(VersionedDataType<V> valueType, long maxBytes) {
+        this.valueType = valueType;
+        this.maxBytes = maxBytes;
+    }
+
+    // loads the values not in the cache with the loader, which reads the committed value from the store
+    Optional<V> get(K key, Function<K, Optional<V>> loader) {
+        byte[] encoded;
+        long loadedAt;
+        synchronized (this) {
+            encoded = entries.get(key);
+            loadedAt = generation;
+        }
+        if (encoded != null) {
+            hits.increment();
+            return Optional.of(valueType.decode(encoded));
+        }
+        misses.increment();
+        var value = loader.apply(key);
+        if (value.isEmpty()) {
+            return value;
+        }
+        encoded = valueType.encode(value.get());
+        synchronized (this) {
+            if (generation == loadedAt) {
+                add(key, encoded);
+            }
+        }
+        return Optional.of(valueType.decode(encoded));
+    }
+
+    // caches the value as it is now; later changes to the object are not seen by the cache
+    synchronized void put(K key, V value) {
+        generation++;
+        add(key, valueType.encode(value));
+    }
+
+    synchronized void invalidate(K key) {
+        generation++;
+        var removed = entries.remove(key);
+        if (removed != null) {
+            bytes -= weight(removed);
+        }
+    }
+
+    synchronized void clear() {
+        generation++;
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), evictions.sum(), entries.size(), bytes);
+    }
+
+    private void add(K key, byte[] encoded) {
+        var previous = entries.put(key, encoded);
+        if (previous != null) {
+            bytes -= weight(previous);
+        }
+        bytes += weight(encoded);
+        Iterator<Map.Entry<K, byte[]>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            var entry = eldest.next();
+            bytes -= weight(entry.getValue());
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private static long weight(byte[] encoded) {
+        return encoded.length + ENTRY_OVERHEAD;
+    }
+}
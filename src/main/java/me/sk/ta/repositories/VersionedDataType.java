@@ -0,0 +1,111 @@
+package me.sk.ta.repositories;
+
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.BasicDataType;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+
+// Base for the binary value codecs stored in MVStoreRepo maps.
+// Every value is prefixed with a format version byte so that the layout can evolve
+// without rewriting existing stores; readBody receives the version the value was written with.
+// Implementations need a public no-arg constructor: MVStore re-creates registered data types by class name.
+public abstract class VersionedDataType<T> extends BasicDataType<T> {
+
+    protected abstract byte currentVersion();
+
+    protected abstract void writeBody(WriteBuffer buff, T value);
+
+    protected abstract T readBody(ByteBuffer buff, byte version);
+
+    public abstract Class<T> getValueClass();
+
+    @Override
+    public void write(WriteBuffer buff, T value) {
+        buff.put(currentVersion());
+        writeBody(buff, value);
+    }
+
+    @Override
+    public T read(ByteBuffer buff) {
+        var version = buff.get();
+        if (version < 1 || version > currentVersion()) {
+            throw new IllegalStateException(String.format("%s cannot read format version %d", getClass().getSimpleName(), version));
+        }
+        return readBody(buff, version);
+    }
+
+    // the value as a standalone byte array, as stored outside of MVStore pages
+    public byte[] encode(T value) {
+        var buff = new WriteBuffer();
+        write(buff, value);
+        var bb = buff.getBuffer();
+        var bytes = new byte[bb.position()];
+        bb.flip();
+        bb.get(bytes);
+        return bytes;
+    }
+
+    public T decode(byte[] bytes) {
+        return bytes == null ? null : read(ByteBuffer.wrap(bytes));
+    }
+
+    static void putString(WriteBuffer buff, String value) {
+        if (value == null) {
+            buff.putVarInt(0);
+        } else {
+            buff.putVarInt(value.length() + 1);
+            buff.putStringData(value, value.length());
+        }
+    }
+
+    static String getString(ByteBuffer buff) {
+        var len = DataUtils.readVarInt(buff);
+        if (len == 0) {
+            return null;
+        }
+        return DataUtils.readString(buff, len - 1);
+    }
+
+    static void putDate(WriteBuffer buff, LocalDate value) {
+        if (value == null) {
+            buff.put((byte) 0);
+        } else {
+            buff.put((byte) 1);
+            buff.putVarLong(value.toEpochDay());
+        }
+    }
+
+    static LocalDate getDate(ByteBuffer buff) {
+        if (buff.get() == 0) {
+            return null;
+        }
+        return LocalDate.ofEpochDay(DataUtils.readVarLong(buff));
+    }
+
+    // enums are stored by ordinal; new constants must only ever be appended
+    static void putEnum(WriteBuffer buff, Enum<?> value) {
+        buff.putVarInt(value == null ? 0 : value.ordinal() + 1);
+    }
+
+    static <E extends Enum<E>> E getEnum(ByteBuffer buff, Class<E> enumClass) {
+        var ordinal = DataUtils.readVarInt(buff);
+        if (ordinal == 0) {
+            return null;
+        }
+        return enumClass.getEnumConstants()[ordinal - 1];
+    }
+
+    static void putBoolean(WriteBuffer buff, boolean value) {
+        buff.put((byte) (value ? 1 : 0));
+    }
+
+    static boolean getBoolean(ByteBuffer buff) {
+        return buff.get() != 0;
+    }
+
+    static int stringMemory(String value) {
+        return value == null ? 0 : 24 + 2 * value.length();
+    }
+}
@@ -0,0 +1,81 @@
+package me.sk.ta.domain
+
+import spock.lang.Specification
+import spock.lang.Title
+
+import java.time.LocalDate
+
+@Title("Testing TradingAccount")
+class TradingAccountSpec extends Specification {
+    static final LocalDate START = LocalDate.of(2019, 1, 1)
+
+    def "Balances and period sums match those of the entries over several years"() {
+        given:
+        var random = new Random(7)
+        var account = new TradingAccount()
+        account.addCapital(1_000_000, START.plusDays(400))
+        (1..2000).each { tradeId ->
+            var date = START.plusDays(random.nextInt(5 * 365))
+            account.recordPurchase(1000 + random.nextInt(5000), 20, date, tradeId, 1)
+            if (tradeId % 3 == 0) {
+                account.recordSale(1000 + random.nextInt(6000), 25, date.plusDays(random.nextInt(60)), tradeId, 2)
+                account.closeTrade(tradeId, [1, 2])
+            }
+            if (tradeId % 50 == 0) {
+                account.withdrawCapital(10_000, date)
+            }
+        }
+        // earlier than anything so far, and a purchase recorded again at another price
+        account.addCapital(50_000, START.minusDays(200))
+        account.recordPurchase(2000, 20, START.plusDays(10), 5, 1)
+        account.deleteTrade(7, [1])
+
+        expect:
+        [START.minusDays(300), START, START.plusDays(365), START.plusDays(1000), START.plusDays(5 * 365 + 100)].every { date ->
+            close(account.getClosingBalanceOn(date), scanned(account) { !it.date().isAfter(date) })
+        }
+        close(account.getClosingBalanceOn(START.plusDays(6 * 365)), account.cashBalance)
+
+        and:
+        var from = START.plusDays(300)
+        var to = START.plusDays(800)
+        var summary = account.reportSummary(from, to)
+        close(summary.invested(), scanned(account) { !it.date().isAfter(to) && it.transType() == AccountTransactionType.Trade && !it.isTradeClosed() })
+        close(summary.capitalInfused(), scanned(account) { Utils.IsWithinRange(it.date(), from, to) && it.transType() == AccountTransactionType.Capital && it.amount() > 0 })
+        close(summary.capitalWithdrawn(), scanned(account) { Utils.IsWithinRange(it.date(), from, to) && it.transType() == AccountTransactionType.Capital && it.amount() < 0 })
+        summary.capitalInfused() == 1_000_000
+        account.History.count { it.businessTransactionId() == "5-1" } == 1
+        account.History.every { it.businessTransactionId() != "7-1" }
+    }
+
+    def "A history set as a plain list is indexed on first use and follows its changes"() {
+        given:
+        var account = new TradingAccount()
+        account.History = [new TradingAccountEntry(AccountTransactionType.Capital, "", 1000, START, false),
+                           new TradingAccountEntry(AccountTransactionType.Trade, "1-1", -400, START.plusDays(1), false)]
+        account.cashBalance = 600
+
+        when:
+        account.closeTrade(1, [1])
+        account.deleteTillAndIncluding(START)
+
+        then:
+        account.History == [new TradingAccountEntry(AccountTransactionType.Trade, "1-1", -400, START.plusDays(1), true)]
+        account.getClosingBalanceOn(START.plusDays(1)) == -400
+        account.reportSummary(START, START.plusDays(1)).invested() == 0
+
+        when:
+        account.History.removeIf { true }
+
+        then:
+        account.getClosingBalanceOn(START.plusDays(1)) == 0
+    }
+
+    static double scanned(TradingAccount account, Closure<Boolean> filter) {
+        return account.History.findAll(filter).sum(0.0) { it.amount() } as double
+    }
+
+    static boolean close(double actual, double expected) {
+        return Math.abs(actual - expected) < 0.001
+    }
+}
@@ -0,0 +1,181 @@
+package me.sk.ta.repositories
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import me.sk.ta.TaApplication
+import me.sk.ta.domain.Trade
+import me.sk.ta.domain.TradingChargesCalculator
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.context.ActiveProfiles
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+@SpringBootTest("webEnvironment=NONE")
+@ContextConfiguration(classes = [TaApplication.class])
+@ActiveProfiles("dev")
+class AsyncTradeRepositoryTest extends Specification {
+    private static final Logger log = LoggerFactory.getLogger(AsyncTradeRepositoryTest.class)
+    static final String DB_FOLDER = "db/test/async"
+    // the request threads of the comparison, as few as a busy Tomcat has free
+    static final int REQUEST_THREADS = 8
+    static final int REQUESTS = 400
+
+    @Autowired
+    ObjectMapper serializer
+    @Autowired
+    TradingChargesCalculator tcCalculator
+
+    TradeRepository repo
+    RepositoryExecutor executor
+
+    def "Calls run on the executor and fail at once when it is saturated"() {
+        given:
+        var small = new RepositoryExecutor(1, 1)
+        var async = new AsyncTradeRepository(repo, small)
+        var saved = newTrade("INFY")
+        var started = new CountDownLatch(1)
+        var release = new CountDownLatch(1)
+
+        when:
+        var id = async.saveOrUpdate(saved).join()
+        var found = async.get(id).join()
+        small.run { started.countDown(); release.await() }
+        started.await()
+        var queued = async.getOpenTrades()
+        var rejected = async.getOpenTrades()
+        release.countDown()
+
+        then:
+        found.get() == saved
+        queued.join()*.ID == [id]
+        rejected.isCompletedExceptionally()
+
+        when:
+        rejected.join()
+
+        then:
+        var e = thrown(CompletionException)
+        e.cause instanceof RejectedExecutionException
+
+        cleanup:
+        small.close()
+    }
+
+    // The load comparison: REQUESTS calls, one write made durable on the disk for every three reads of the
+    // open book, from REQUEST_THREADS request threads. Blocking, a request thread is held for the whole call;
+    // async, only until the call is handed to the executor. The figures are logged, see the next test for the hand-off.
+    def "The blocking and the async paths complete the same load"() {
+        given:
+        repo.saveOrUpdateAll((1..200).collect { newTrade("S" + it) })
+        var async = new AsyncTradeRepository(repo, executor)
+
+        when:
+        var blocking = load { int i -> CompletableFuture.completedFuture(i % 4 == 0 ? repo.saveOrUpdate(newTrade("B" + i)) : repo.getOpenTrades().size()) }
+        var nonBlocking = load { int i -> i % 4 == 0 ? async.saveOrUpdate(newTrade("A" + i)) : async.getOpenTrades().thenApply { it.size() } }
+        log.info("blocking: {}", blocking)
+        log.info("async:    {}", nonBlocking)
+
+        then:
+        blocking.completed == REQUESTS
+        nonBlocking.completed == REQUESTS
+        repo.getOpenTrades().size() == 200 + REQUESTS / 2
+    }
+
+    // every store call waits on the gate: the request threads return only if they do not wait for the calls
+    def "Request threads are released while the store calls wait"() {
+        given:
+        repo.saveOrUpdate(newTrade("INFY"))
+        var async = new AsyncTradeRepository(repo, executor)
+        var gate = new CountDownLatch(1)
+        var matching = { Trade x -> gate.await(); true }
+
+        when:
+        var nonBlocking = handOff { async.where(matching) }
+        var blocking = handOff { CompletableFuture.completedFuture(repo.where(matching)) }
+
+        then:
+        nonBlocking.returned.await(10, TimeUnit.SECONDS)
+        blocking.returned.await(200, TimeUnit.MILLISECONDS) == false
+        blocking.returned.count == REQUEST_THREADS
+
+        when:
+        gate.countDown()
+
+        then:
+        blocking.returned.await(10, TimeUnit.SECONDS)
+        (nonBlocking.responses + blocking.responses).every { it.get(10, TimeUnit.SECONDS).size() == 1 }
+
+        cleanup:
+        gate.countDown()
+        blocking?.threads?.shutdownNow()
+    }
+
+    // one request on each request thread, counting down returned as each request thread is done with its request
+    Map handOff(Closure<CompletableFuture> request) {
+        var threads = Executors.newFixedThreadPool(REQUEST_THREADS)
+        var returned = new CountDownLatch(REQUEST_THREADS)
+        List<CompletableFuture> responses = Collections.synchronizedList([])
+        REQUEST_THREADS.times {
+            threads.execute {
+                responses << request()
+                returned.countDown()
+            }
+        }
+        threads.shutdown()
+        return [threads: threads, returned: returned, responses: responses]
+    }
+
+    // runs the requests on the request threads and waits for all of them to complete
+    Map load(Closure<CompletableFuture> request) {
+        var requestThreads = Executors.newFixedThreadPool(REQUEST_THREADS)
+        var held = new AtomicLong()
+        List<Long> latencies = Collections.synchronizedList([])
+        List<CompletableFuture> responses = Collections.synchronizedList([])
+        var start = System.nanoTime()
+        for (int i = 0; i < REQUESTS; i++) {
+            var n = i
+            var submitted = System.nanoTime()
+            requestThreads.execute {
+                var begin = System.nanoTime()
+                responses << request(n).whenComplete { x, e -> latencies << System.nanoTime() - submitted }
+                held.addAndGet(System.nanoTime() - begin)
+            }
+        }
+        requestThreads.shutdown()
+        requestThreads.awaitTermination(1, TimeUnit.MINUTES)
+        CompletableFuture.allOf(responses as CompletableFuture[]).join()
+        var elapsed = System.nanoTime() - start
+        latencies.sort()
+        return [completed          : responses.size(),
+                wallMillis         : elapsed.intdiv(1_000_000),
+                requestThreadMillis: held.get().intdiv(1_000_000),
+                p50Millis          : latencies[latencies.size().intdiv(2)].intdiv(1_000_000),
+                p99Millis          : latencies[(int) (latencies.size() * 0.99)].intdiv(1_000_000)]
+    }
+
+    Trade newTrade(String symbol) {
+        return TestTrades.newTrade(symbol, tcCalculator)
+    }
+
+    void setup() {
+        repo = new TradeRepository(DB_FOLDER, "mvstore", false, "sync", false, serializer, tcCalculator)
+        executor = new RepositoryExecutor(16, 1000)
+    }
+
+    void cleanup() {
+        executor.close()
+        repo.close()
+        repo.drop()
+        RocksDbRepo.deleteDirectory(new File(DB_FOLDER))
+    }
+}
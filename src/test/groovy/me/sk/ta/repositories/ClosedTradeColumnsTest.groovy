@@ -0,0 +1,230 @@
+package me.sk.ta.repositories
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import me.sk.ta.TaApplication
+import me.sk.ta.domain.ADRating
+import me.sk.ta.domain.BreakoutPattern
+import me.sk.ta.domain.BuyAnalysis
+import me.sk.ta.domain.MarketTrend
+import me.sk.ta.domain.Stats
+import me.sk.ta.domain.Trade
+import me.sk.ta.domain.TradingChargesCalculator
+import me.sk.ta.domain.Trend
+import me.sk.ta.domain.Utils
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.context.ActiveProfiles
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicBoolean
+
+@SpringBootTest("webEnvironment=NONE")
+@ContextConfiguration(classes = [TaApplication.class])
+@ActiveProfiles("dev")
+class ClosedTradeColumnsTest extends Specification {
+    private static final Logger log = LoggerFactory.getLogger(ClosedTradeColumnsTest.class)
+    static final String DB_FOLDER = "db/test/columns"
+
+    @Autowired
+    ObjectMapper serializer
+    @Autowired
+    TradingChargesCalculator tcCalculator
+
+    ClosedTradeColumns columns
+    TradeArchiveRepository archive
+
+    def "Closed trades are scanned by closure date from the mapped segments"() {
+        given:
+        var today = Utils.UtcToday()
+        var trades = (1..20).collect { closedTrade(it, it % 3 ? "INFY" : "TCS", today.minusDays(it), it % 4 ? 345.75 : 320.10) }
+        var open = closedTrade(21, "WIPRO", today, 340)
+        open.Buy(2, 100, 334.37, today, false)
+        columns.append(trades.subList(0, 10) + [open])
+        columns.append(trades.subList(10, 20))
+
+        when:
+        var rows = new ClosedTradeColumns(Path.of(DB_FOLDER, "columns")).scan(today.minusDays(15), today.minusDays(5))
+        var expected = trades.findAll { it.ID >= 5 && it.ID <= 15 }.reverse()
+
+        then:
+        rows*.id() == expected*.ID
+        rows*.symbol() == expected*.symbol
+        rows*.closedOn() == expected*.getDateOfClosure()*.get()
+        rows*.realisedPnl() == expected*.realisedPnl()
+        rows*.totalCharges() == expected*.totalCharges()
+        rows[0].soldSize() == 100
+        rows[0].averageSellPrice() == expected[0].totalSalePrice() / 100
+    }
+
+    def "The statistics of the figures match those of the trades"() {
+        given:
+        var today = Utils.UtcToday()
+        var trades = (1..12).collect { closedTrade(it, "INFY", today.minusDays(20 - it), it % 3 ? 345.75 : 320.10) }
+        columns.append(trades)
+
+        expect:
+        Stats.build(today.minusDays(30), today, columns.scan(today.minusDays(30), today)).toString() ==
+                Stats.build(today.minusDays(30), today, trades).toString()
+    }
+
+    def "A trade appended again is read from the newest segment, also after the segments are merged"() {
+        given:
+        var today = Utils.UtcToday()
+        columns.append([closedTrade(1, "INFY", today.minusDays(10), 345.75), closedTrade(2, "TCS", today.minusDays(10), 345.75)])
+        columns.append([closedTrade(1, "INFY", today.minusDays(2), 320.10)])
+
+        expect:
+        columns.scan(today.minusDays(11), today.minusDays(9))*.id() == [2]
+        columns.scan(today.minusDays(11), today)*.id() == [2, 1]
+
+        when:
+        columns.merge()
+        then:
+        new File(DB_FOLDER, "columns").list().length == 1
+        new ClosedTradeColumns(Path.of(DB_FOLDER, "columns")).scan(today.minusDays(11), today)*.closedOn() == [today.minusDays(10), today.minusDays(2)]
+    }
+
+    def "Scans running while the segments are merged see every row once"() {
+        given:
+        var today = Utils.UtcToday()
+        var trades = (1..40).collect { closedTrade(it, "INFY", today.minusDays(it), 345.75) }
+        columns.append(trades)
+        var failures = Collections.synchronizedList([])
+        var done = new AtomicBoolean()
+        var readers = (1..4).collect {
+            Thread.start {
+                while (!done.get()) {
+                    try {
+                        var rows = columns.scan(today.minusDays(100), today)
+                        if (rows*.id().sort() != (1..40).toList()) {
+                            failures << rows*.id()
+                        }
+                    } catch (Exception e) {
+                        failures << e
+                    }
+                }
+            }
+        }
+
+        when:
+        (1..2 * ClosedTradeColumns.MAX_SEGMENTS).each { columns.append([trades[it % 40]]) }
+        done.set(true)
+        readers*.join()
+
+        then:
+        failures == []
+    }
+
+    def "The columns of an archive are written from its trades when they are missing"() {
+        given:
+        var today = Utils.UtcToday()
+        var trades = (1..5).collect { closedTrade(it, "INFY", today.minusDays(it), 345.75) }
+        archive = new TradeArchiveRepository(DB_FOLDER + "/archive", serializer, tcCalculator)
+        archive.saveAll(trades)
+        archive.close()
+        new ClosedTradeColumns(Path.of(DB_FOLDER, "archive", "columns")).drop()
+
+        when:
+        archive = new TradeArchiveRepository(DB_FOLDER + "/archive", serializer, tcCalculator)
+        then:
+        archive.getClosedTradeFigures(today.minusDays(10), today)*.id() == [5, 4, 3, 2, 1]
+        archive.stats(today.minusDays(10), today).toString() == Stats.build(today.minusDays(10), today, trades.reverse()).toString()
+    }
+
+    def "The rows of the trades reopened or deleted in the archive are dropped"() {
+        given:
+        var today = Utils.UtcToday()
+        var trades = (1..4).collect { closedTrade(it, "INFY", today.minusDays(it), 345.75) }
+        archive = new TradeArchiveRepository(DB_FOLDER + "/archive", serializer, tcCalculator)
+        archive.saveAll(trades)
+
+        when:
+        trades[0].Buy(2, 50, 340.10, today, false)
+        archive.saveAll([trades[0]])
+        archive.delete(2)
+
+        then:
+        archive.getClosedTradeFigures(today.minusDays(10), today)*.id() == [4, 3]
+
+        when:
+        archive.columns.merge()
+        archive.close()
+        archive = new TradeArchiveRepository(DB_FOLDER + "/archive", serializer, tcCalculator)
+
+        then:
+        archive.getClosedTradeFigures(today.minusDays(10), today)*.id() == [4, 3]
+    }
+
+    def "The rows of the trades pending when the archive stopped are written when it is opened"() {
+        given:
+        var today = Utils.UtcToday()
+        var trades = (1..3).collect { closedTrade(it, "INFY", today.minusDays(it), 345.75) }
+        archive = new TradeArchiveRepository(DB_FOLDER + "/archive", serializer, tcCalculator)
+        archive.saveAll(trades.subList(0, 2))
+
+        when: "the process stops after the trade is stored, before its row is written"
+        archive.columns.pending([3])
+        archive.db.save(3, trades[2])
+        archive.close()
+        archive = new TradeArchiveRepository(DB_FOLDER + "/archive", serializer, tcCalculator)
+
+        then:
+        archive.getClosedTradeFigures(today.minusDays(10), today)*.id() == [3, 2, 1]
+        archive.columns.pending().isEmpty()
+    }
+
+    def "A year of figures is scanned without decoding the trades"() {
+        given:
+        var today = Utils.UtcToday()
+        var trades = (1..5000).collect { closedTrade(it, "S" + (it % 300), today.minusDays(it % 365), 300 + it % 90) }
+        archive = new TradeArchiveRepository(DB_FOLDER + "/archive", serializer, tcCalculator)
+        (0..<10).each { archive.saveAll(trades.subList(it * 500, it * 500 + 500)) }
+
+        when:
+        var start = System.nanoTime()
+        var decoded = archive.getClosedTrades(today.minusDays(365), today)
+        var decodedMs = (System.nanoTime() - start) / 1_000_000
+        start = System.nanoTime()
+        var figures = archive.getClosedTradeFigures(today.minusDays(365), today)
+        var figuresMs = (System.nanoTime() - start) / 1_000_000
+        log.info("{} closed trades of a year: {} ms decoding the trades, {} ms scanning the columns", figures.size(), decodedMs, figuresMs)
+        then:
+        figures.size() == decoded.size()
+    }
+
+    Trade closedTrade(int id, String symbol, date, double sellPrice) {
+        var ba = BuyAnalysis.builder()
+                .earningsDate(Utils.UtcToday().plusDays(20))
+                .build()
+        ba.priceLevels(9000000, 0.5, 320, 340, 320 * .12, 340 * 0.93)
+                .breakoutDetails("c", BreakoutPattern.DoubleBottom, 3, 290)
+                .risk(0.9, 0.3, 100000, MarketTrend.Rally)
+                .scoresByGurus(80, 80, 80, 80)
+                .wonScores(80, ADRating.C, 80, 80, 90)
+                .onBalanceValue(Trend.Up, true, 1000000)
+                .adRating(Trend.Up, true)
+                .moneyFlow(Trend.Up, true)
+                .movingAverages(340, 330, 300)
+        var t = Trade.initiateTrade(symbol, ba, tcCalculator)
+        t.ID = id
+        t.Buy(1, 100, 334.37, date.minusDays(30), false)
+        t.Sell(1, 100, sellPrice, date, false)
+        return t
+    }
+
+    void setup() {
+        columns = new ClosedTradeColumns(Path.of(DB_FOLDER, "columns"))
+    }
+
+    void cleanup() {
+        columns.drop()
+        if (archive != null) {
+            archive.close()
+            archive.drop()
+        }
+    }
+}
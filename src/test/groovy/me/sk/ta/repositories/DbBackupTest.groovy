@@ -0,0 +1,183 @@
+package me.sk.ta.repositories
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import me.sk.ta.TaApplication
+import me.sk.ta.domain.Trade
+import me.sk.ta.domain.TradingChargesCalculator
+import me.sk.ta.domain.Utils
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.context.ActiveProfiles
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+@SpringBootTest("webEnvironment=NONE")
+@ContextConfiguration(classes = [TaApplication.class])
+@ActiveProfiles("dev")
+class DbBackupTest extends Specification {
+    static final String DB_FOLDER = "db/test/backup"
+    static final Path RESTORED = Path.of(DB_FOLDER, "restored")
+
+    @Autowired
+    ObjectMapper serializer
+    @Autowired
+    TradingChargesCalculator tcCalculator
+
+    TradeRepository trades
+    TradeArchiveRepository archive
+    TradingAccountRepository accounts
+    DbBackup backup
+    List<Closure> restored = []
+
+    def "A full backup is restored into a fresh directory"() {
+        given:
+        var saved = (1..20).collect { newTrade(it % 2 ? "INFY" : "TCS", it % 3 == 0) }
+        trades.saveOrUpdateAll(saved)
+        archive.saveAll([newTrade("WIPRO", true).tap { ID = 1000 }])
+        var account = accounts.getAccount()
+        account.addCapital(100000, Utils.UtcToday().minusDays(30))
+        accounts.saveOrUpdate(account)
+
+        when:
+        var manifest = backup.backup(false)
+        trades.saveOrUpdate(newTrade("HCL", false))
+        backup.restore(manifest.id(), RESTORED)
+        var copy = openTrades()
+
+        then:
+        manifest.base() == null
+        backup.list()*.id() == [manifest.id()]
+        copy.getOpenTrades()*.ID.sort() == saved.findAll { !it.isClosed() }*.ID
+        copy.getClosedTrades()*.ID.sort() == saved.findAll { it.isClosed() }*.ID
+        copy.find(saved[0].ID) == saved[0]
+        copy.symbolIndex.find("HCL") == []
+        copy.verifyIndexes().isConsistent()
+        openArchive().find(1000).symbol == "WIPRO"
+        openAccounts().getAccount().cashBalance == 100000
+    }
+
+    def "An incremental backup holds the changes since the previous backup and is restored on top of it"() {
+        given:
+        var saved = (1..3000).collect { newTrade("S" + (it % 50), it % 3 == 0) }
+        trades.saveOrUpdateAll(saved)
+        var full = backup.backup(true)
+
+        when:
+        saved[10].Sell(0, 100, 350.10, Utils.UtcToday(), false)
+        trades.saveOrUpdate(saved[10])
+        saved[20].Buy(0, 10, 336.10, Utils.UtcToday(), false)
+        trades.saveOrUpdate(saved[20])
+        trades.delete(saved[30].ID)
+        var added = newTrade("NEW", false)
+        trades.saveOrUpdate(added)
+        var incremental = backup.backup(true)
+        backup.restore(incremental.id(), RESTORED)
+        var copy = openTrades()
+        var live = trades.where { true }
+
+        then:
+        incremental.base() == full.id()
+        size(incremental, "trade") * 4 < size(full, "trade")
+        copy.where { true } == live
+        copy.get(saved[30].ID).isEmpty()
+        copy.find(added.ID) == added
+        copy.find(saved[20].ID).position == 10
+        copy.symbolIndex.find("NEW") == [added.ID]
+        copy.getClosedTrades()*.ID.sort() == trades.getClosedTrades()*.ID.sort()
+        copy.verifyIndexes().isConsistent()
+    }
+
+    def "Writes carry on while the snapshots are written and are not part of them"() {
+        given:
+        var before = newTrade("INFY", false)
+        trades.saveOrUpdate(before)
+
+        when:
+        var snapshots = trades.snapshot()
+        var after = newTrade("TCS", false)
+        trades.saveOrUpdate(after)
+        before.Sell(0, 100, 350.10, Utils.UtcToday(), false)
+        trades.saveOrUpdate(before)
+        snapshots.each {
+            var name = Path.of(DB_FOLDER).toAbsolutePath().relativize(it.source().toAbsolutePath())
+            it.write(RESTORED.resolve("backup").resolve(name), -1)
+            it.restore([RESTORED.resolve("backup").resolve(name)], RESTORED.resolve("copy").resolve(name))
+            it.close()
+        }
+        var copy = new TradeRepository(RESTORED.resolve("copy").toString(), serializer, tcCalculator)
+        restored << { copy.close() }
+
+        then:
+        trades.get(after.ID).isPresent()
+        copy.get(after.ID).isEmpty()
+        copy.find(before.ID).isClosed() == false
+        copy.getOpenTrades()*.ID == [before.ID]
+    }
+
+    long size(DbBackup.Manifest manifest, String store) {
+        Files.size(backup.dir.resolve(manifest.id()).resolve(DB_FOLDER).resolve("live").resolve(store))
+    }
+
+    TradeRepository openTrades() {
+        var repo = new TradeRepository(RESTORED.resolve(DB_FOLDER).toString(), serializer, tcCalculator)
+        restored << { repo.close() }
+        return repo
+    }
+
+    def "A restore asked for by name stays under the restore folder"() {
+        given:
+        var manifest = backup.backup(false)
+
+        when:
+        backup.restoreInto(manifest.id(), "copy")
+
+        then:
+        Files.isDirectory(Path.of(DB_FOLDER, "copies", DbBackup.RESTORED, "copy"))
+
+        when:
+        backup.restoreInto(manifest.id(), target)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        target << ["", "/tmp/elsewhere", "../outside", "copy/../../outside", "a/../b", "."]
+    }
+
+    TradeArchiveRepository openArchive() {
+        var repo = new TradeArchiveRepository(RESTORED.resolve(DB_FOLDER).resolve("archived").toString(), serializer, tcCalculator)
+        restored << { repo.close() }
+        return repo
+    }
+
+    TradingAccountRepository openAccounts() {
+        var repo = new TradingAccountRepository(RESTORED.resolve(DB_FOLDER).resolve("account").toString(), serializer, tcCalculator)
+        restored << { repo.close() }
+        return repo
+    }
+
+    Trade newTrade(String symbol, boolean closed) {
+        return TestTrades.newTrade(symbol, tcCalculator, closed)
+    }
+
+    void setup() {
+        trades = new TradeRepository(DB_FOLDER, serializer, tcCalculator)
+        archive = new TradeArchiveRepository(DB_FOLDER + "/archived", serializer, tcCalculator)
+        accounts = new TradingAccountRepository(DB_FOLDER + "/account", serializer, tcCalculator)
+        backup = new DbBackup(trades, archive, accounts, DB_FOLDER + "/copies", serializer)
+    }
+
+    void cleanup() {
+        restored.each { it() }
+        trades.close()
+        trades.drop()
+        archive.close()
+        archive.drop()
+        accounts.close()
+        accounts.drop()
+        RocksDbRepo.deleteDirectory(new File(DB_FOLDER))
+    }
+}
@@ -0,0 +1,62 @@
+package me.sk.ta.repositories
+
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class IdAllocatorTest extends Specification {
+    long persisted = 0
+    int writes = 0
+    IdAllocator.HighWaterMark mark = new IdAllocator.HighWaterMark() {
+        long get() { persisted }
+
+        void set(long value) {
+            persisted = value
+            writes++
+        }
+    }
+
+    def "Ids are handed out from leased blocks and only the mark is written"() {
+        given:
+        var ids = new IdAllocator(mark, 10)
+        when:
+        var first = (1..25).collect { ids.next() }
+        then:
+        first == (1..25).collect { it as long }
+        writes == 3
+        persisted == 30
+        when:
+        var batch = ids.reserve(12)
+        then:
+        batch == 26
+        ids.next() == 38
+        persisted == 40
+    }
+
+    def "A restart continues above the mark"() {
+        given:
+        new IdAllocator(mark, 10).next()
+        expect:
+        new IdAllocator(mark, 10).next() == 11
+    }
+
+    def "Concurrent callers never get the same id"() {
+        given:
+        var ids = new IdAllocator(mark, 7)
+        var seen = ConcurrentHashMap.newKeySet()
+        var executor = Executors.newFixedThreadPool(8)
+        when:
+        var tasks = (1..8).collect {
+            executor.submit({ (1..1000).each { seen.add(ids.next()) } } as Callable<Object>)
+        }
+        tasks.each { it.get(30, TimeUnit.SECONDS) }
+        then:
+        seen.size() == 8000
+        seen.max() <= ids.highWaterMark()
+        cleanup:
+        executor.shutdown()
+    }
+}
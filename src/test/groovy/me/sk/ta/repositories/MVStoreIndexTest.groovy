@@ -1,5 +1,7 @@
 package me.sk.ta.repositories
 
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule
 import me.sk.ta.domain.Utils
 import spock.lang.Specification
 
@@ -8,6 +10,7 @@ import java.time.LocalDate
 class MVStoreIndexTest extends Specification {
     MVStoreIndex<LocalDate, Integer> dateIndex;
     MVStoreIndex<String, Integer> symbolIndex;
+    ObjectMapper serializer = new ObjectMapper().registerModule(new JavaTimeModule())
 
     def "Find"() {
     }
@@ -18,12 +21,13 @@ class MVStoreIndexTest extends Specification {
     def "PostfixWithCount allows duplicate keys AND duplicate values"() {
         given:
         symbolIndex = new MVStoreIndex<>(
-                "db\\trade\\index",
+                "db/trade/index",
                 "sindex",
-                MVStoreIndex.IndexingStrategy.PostfixWithCount,
-                String.class,
+                KvIndex.IndexingStrategy.PostfixWithCount,
                 Integer.class,
-                "!@#\$");
+                String.class,
+                "!@#\$",
+                serializer);
 
         and:
         symbolIndex.index("INFY", 1);
@@ -38,12 +42,13 @@ class MVStoreIndexTest extends Specification {
     def "PostfixValue allows duplicate keys but merges duplicate values"() {
         given:
         symbolIndex = new MVStoreIndex<>(
-                "db\\trade\\index",
+                "db/trade/index",
                 "symbol",
-                MVStoreIndex.IndexingStrategy.PostfixValue,
-                String.class,
+                KvIndex.IndexingStrategy.PostfixValue,
                 Integer.class,
-                "!@#\$");
+                String.class,
+                "!@#\$",
+                serializer);
 
         and:
         symbolIndex.index("INFY", 1);
@@ -59,10 +64,11 @@ class MVStoreIndexTest extends Specification {
         given:
         dateIndex = new MVStoreIndex<>("db/trade/index",
                 "date",
-                MVStoreIndex.IndexingStrategy.PostfixValue,
-                LocalDate.class,
+                KvIndex.IndexingStrategy.PostfixValue,
                 Integer.class,
-                "!!##@@");
+                LocalDate.class,
+                "!!##@@",
+                serializer);
         when:
         dateIndex.index(Utils.UtcToday(), 1);
         and:
@@ -76,13 +82,14 @@ class MVStoreIndexTest extends Specification {
 
     def "Delete"() {
         given:
-        var symbolIndex = new MVStoreIndex<>(
-                "db\\trade\\index",
+        symbolIndex = new MVStoreIndex<>(
+                "db/trade/index",
                 "sindex",
-                MVStoreIndex.IndexingStrategy.PostfixValue,
-                String.class,
+                KvIndex.IndexingStrategy.PostfixValue,
                 Integer.class,
-                "!@#\$");
+                String.class,
+                "!@#\$",
+                serializer);
 
         and:
         symbolIndex.index("INFY", 1);
@@ -96,6 +103,94 @@ class MVStoreIndexTest extends Specification {
         ids.size() == 1;
     }
 
+    def "Range lookups return the entries of the dates in between in chronological order"() {
+        given:
+        dateIndex = new MVStoreIndex<>("db/trade/index",
+                "date",
+                KvIndex.IndexingStrategy.PostfixValue,
+                Integer.class,
+                LocalDate.class,
+                "~~~",
+                serializer);
+        var day = LocalDate.of(2022, 9, 30)
+        and:
+        dateIndex.index(day.plusDays(1), 3)
+        dateIndex.index(day, 1)
+        dateIndex.index(day.plusDays(1), 4)
+        dateIndex.index(day.plusDays(31), 5)
+        dateIndex.index(day.minusDays(1), 0)
+        dateIndex.index(day.plusYears(1), 6)
+        when:
+        var ids = dateIndex.findRange(day, day.plusDays(31))
+        then:
+        ids == [1, 3, 4, 5]
+        dateIndex.findRange(day.plusDays(2), day.plusDays(30)) == []
+    }
+
+    def "Lookups do not match keys that merely start with the same characters"() {
+        given:
+        var idIndex = new MVStoreIndex<Integer, Integer>("db/trade/index",
+                "ids",
+                KvIndex.IndexingStrategy.PostfixValue,
+                Integer.class,
+                Integer.class,
+                "~~~",
+                serializer);
+        when:
+        idIndex.index(1, 10)
+        idIndex.index(12, 20)
+        idIndex.index(1, 11)
+        then:
+        idIndex.find(1) == [10, 11]
+        idIndex.find(12) == [20]
+        when:
+        idIndex.delete(1, 10)
+        then:
+        idIndex.find(1) == [11]
+
+        cleanup:
+        idIndex.drop()
+    }
+
+    def "MultipleValues keeps the values of a key in one posting list"() {
+        given:
+        dateIndex = new MVStoreIndex<>("db/trade/index",
+                "dates",
+                KvIndex.IndexingStrategy.MultipleValues,
+                Integer.class,
+                LocalDate.class,
+                "~~~",
+                serializer);
+        var day = LocalDate.of(2022, 12, 30)
+        var tx = dateIndex.beginTransaction()
+        dateIndex.indexAll([Map.entry(day, 7), Map.entry(day, 3), Map.entry(day, 7), Map.entry(day.plusDays(1), 4)], tx)
+        tx.commit()
+        dateIndex.index(day.plusDays(2), 3)
+        when:
+        dateIndex.delete(day, 7)
+        then:
+        dateIndex.find(day) == [3]
+        dateIndex.findRange(day, day.plusDays(2)) == [3, 4, 3]
+        dateIndex.postings(day, day.plusDays(2)).toList() == [3, 4]
+        dateIndex.postings(day).intersect(dateIndex.postings(day.plusDays(2))).toList() == [3]
+        dateIndex.committedMap.size() == 3
+    }
+
+    def "An index switched to MultipleValues keeps its entries"() {
+        given: "an index written with the PostfixValue strategy"
+        symbolIndex = new MVStoreIndex<>("db/trade/index", "symbol", KvIndex.IndexingStrategy.PostfixValue, Integer.class, String.class, "~~~", serializer);
+        symbolIndex.index("INFY", 2)
+        symbolIndex.index("INFY", 1)
+        symbolIndex.index("TCS", 3)
+        symbolIndex.close()
+        when:
+        symbolIndex = new MVStoreIndex<>("db/trade/index", "symbol", KvIndex.IndexingStrategy.MultipleValues, Integer.class, String.class, "~~~", serializer);
+        then:
+        symbolIndex.find("INFY") == [1, 2]
+        symbolIndex.find("TCS") == [3]
+        symbolIndex.committedMap.size() == 2
+    }
+
     void cleanup() {
         if (symbolIndex != null) {
             symbolIndex.drop();
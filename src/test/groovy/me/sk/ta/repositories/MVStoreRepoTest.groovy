@@ -0,0 +1,274 @@
+package me.sk.ta.repositories
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import me.sk.ta.TaApplication
+import me.sk.ta.domain.Trade
+import me.sk.ta.domain.TradingChargesCalculator
+import me.sk.ta.domain.Utils
+import org.h2.mvstore.MVStore
+import org.h2.mvstore.WriteBuffer
+import org.h2.mvstore.tx.TransactionStore
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.context.ActiveProfiles
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.function.Function
+
+@SpringBootTest("webEnvironment=NONE")
+@ContextConfiguration(classes = [TaApplication.class])
+@ActiveProfiles("dev")
+class MVStoreRepoTest extends Specification {
+    private static final Logger log = LoggerFactory.getLogger(MVStoreRepoTest.class)
+    static final String DB_FOLDER = "db/test/repo"
+
+    @Autowired
+    ObjectMapper serializer
+    @Autowired
+    TradingChargesCalculator tcCalculator
+
+    MVStoreRepo<Integer, Trade> repo
+
+    def "Trade survives a round trip through the binary codec"() {
+        given:
+        repo = new MVStoreRepo<>(DB_FOLDER, "trade", Integer.class, new TradeDataType(tcCalculator), serializer)
+        var t = sampleTrade(1)
+        when:
+        repo.save(t.ID, t)
+        var found = repo.find(t.ID)
+        then:
+        found.isPresent()
+        found.get() == t
+        found.get().tcCalculator == tcCalculator
+    }
+
+    def "Integer keys are stored natively and scanned in numeric order"() {
+        given:
+        repo = new MVStoreRepo<>(DB_FOLDER, "trade", Integer.class, new TradeDataType(tcCalculator), serializer)
+        [2, 10, 1, 21].each { repo.save(it, sampleTrade(it)) }
+        when:
+        var all = repo.findAll(null)
+        var page = repo.findRange(2, 10)
+        then:
+        all*.ID == [1, 2, 10, 21]
+        page*.ID == [2, 10]
+        repo.get(10).ID == 10
+    }
+
+    def "Scans page through the keys with startAfter and limit"() {
+        given:
+        repo = new MVStoreRepo<>(DB_FOLDER, "trade", Integer.class, new TradeDataType(tcCalculator), serializer)
+        (1..10).each { repo.save(it, sampleTrade(it)) }
+        when:
+        var first = repo.scan(null, 4).map { it.ID }.toList()
+        var second = repo.scan(first.last(), 4).map { it.ID }.toList()
+        var rest = repo.scan(8, 0).map { it.ID }.toList()
+        var firstEven = repo.scan(null, 0).filter { it.ID % 2 == 0 }.findFirst()
+        then:
+        first == [1, 2, 3, 4]
+        second == [5, 6, 7, 8]
+        rest == [9, 10]
+        firstEven.get().ID == 2
+    }
+
+    def "Reads complete while a writer holds the repository monitor"() {
+        given:
+        repo = new MVStoreRepo<>(DB_FOLDER, "trade", Integer.class, new TradeDataType(tcCalculator), serializer)
+        repo.save(1, sampleTrade(1))
+        var holding = new CountDownLatch(1)
+        var release = new CountDownLatch(1)
+        var writer = Thread.start {
+            synchronized (repo) {
+                holding.countDown()
+                release.await()
+            }
+        }
+        holding.await()
+
+        when:
+        var executor = Executors.newSingleThreadExecutor()
+        var found = executor.submit({ repo.find(1) } as Callable<Optional<Trade>>).get(5, TimeUnit.SECONDS)
+
+        then:
+        found.isPresent()
+
+        cleanup:
+        release.countDown()
+        writer.join()
+        executor.shutdown()
+    }
+
+    def "Point lookups from many threads proceed while a long scan is in progress"() {
+        given:
+        repo = new MVStoreRepo<>(DB_FOLDER, "trade", Integer.class, new TradeDataType(tcCalculator), serializer)
+        (1..200).each { repo.save(it, sampleTrade(it)) }
+        var threads = 8
+        var readsPerThread = 2000
+        var scanStarted = new CountDownLatch(1)
+        var readsDone = new CountDownLatch(threads)
+        var executor = Executors.newFixedThreadPool(threads + 1)
+
+        when: "a scan is parked on its first entry"
+        var scan = executor.submit({
+            repo.findAll({ x ->
+                scanStarted.countDown()
+                readsDone.await()
+                return Optional.of(x)
+            } as Function<Trade, Optional<Trade>>)
+        } as Callable<List<Trade>>)
+        scanStarted.await()
+
+        and: "readers hammer point lookups meanwhile"
+        var start = System.nanoTime()
+        var reads = (1..threads).collect { n ->
+            executor.submit({
+                var found = 0
+                for (int i = 0; i < readsPerThread; i++) {
+                    if (repo.find(1 + (i % 200)).isPresent()) {
+                        found++
+                    }
+                }
+                readsDone.countDown()
+                return found
+            } as Callable<Integer>)
+        }
+        var hits = reads.collect { it.get(60, TimeUnit.SECONDS) }.sum()
+        long elapsedMs = Math.max(1L, (long) ((System.nanoTime() - start) / 1_000_000))
+        log.info("{} reads on {} threads during a scan in {} ms ({} reads/s)", hits, threads, elapsedMs, (long) (hits * 1000 / elapsedMs))
+
+        then:
+        hits == threads * readsPerThread
+        scan.get(60, TimeUnit.SECONDS).size() == 200
+
+        cleanup:
+        executor.shutdown()
+    }
+
+    def "Group commit shares store writes among concurrent writers"() {
+        given:
+        var ops = 640
+        var stores = []
+        var writes = [:]
+
+        expect:
+        [Durability.Sync, Durability.Group].each { durability ->
+            [1, 8, 64].each { writers ->
+                var db = new MVStoreRepo<Integer, Integer>(DB_FOLDER, "bench-" + durability + "-" + writers, Integer.class, new IntegerDataType(), serializer, durability)
+                stores << db
+                var executor = Executors.newFixedThreadPool(writers)
+                var start = System.nanoTime()
+                var tasks = (0..<writers).collect { w ->
+                    executor.submit({
+                        for (int i = w; i < ops; i += writers) {
+                            assert db.save(i, i)
+                        }
+                    } as Callable<Object>)
+                }
+                tasks.each { it.get(120, TimeUnit.SECONDS) }
+                long elapsedMs = Math.max(1L, (long) ((System.nanoTime() - start) / 1_000_000))
+                executor.shutdown()
+                log.info("{} commits, {} writers: {} saves in {} ms ({} saves/s), {} store writes",
+                        durability, writers, ops, elapsedMs, (long) (ops * 1000 / elapsedMs), db.commits.writes.get())
+                assert db.findAll(null).size() == ops
+                writes[durability.name() + writers] = db.commits.writes.get()
+            }
+        }
+        writes.Sync64 == ops
+        writes.Group1 == ops
+        writes.Group64 < writes.Sync64
+
+        cleanup:
+        stores.each { it.drop() }
+    }
+
+    def "Binary layout is smaller than the JSON document"() {
+        given:
+        var t = sampleTrade(1)
+        var buff = new WriteBuffer()
+        when:
+        new TradeDataType().write(buff, t)
+        then:
+        buff.position() < serializer.writeValueAsString(t).length()
+    }
+
+    def "Existing JSON stores are migrated when opened"() {
+        given: "a store written in the JSON layout"
+        var t = sampleTrade(7)
+        // CurrentAnalysis has no JSON creator, so the JSON layout only ever held trades without analysis history
+        t.analysisHistory.clear()
+        Files.createDirectories(Path.of(DB_FOLDER))
+        var legacy = new MVStore.Builder()
+                .fileName(new File(DB_FOLDER, "trade").getAbsolutePath())
+                .encryptionKey("007".toCharArray())
+                .compress()
+                .open()
+        var ts = new TransactionStore(legacy)
+        ts.init()
+        var tx = ts.begin()
+        tx.openMap("trade").put(serializer.writeValueAsString(t.ID), serializer.writeValueAsString(t))
+        tx.commit()
+        legacy.close()
+
+        when:
+        repo = new MVStoreRepo<>(DB_FOLDER, "trade", Integer.class, new TradeDataType(tcCalculator), serializer)
+
+        then:
+        repo.find(t.ID).get() == t
+        repo.db.hasMap("trade") == false
+    }
+
+    def "Closing or dropping one map of a shared store leaves the others to its owner"() {
+        given:
+        var store = new SharedMVStore(DB_FOLDER, "shared")
+        var trades = new MVStoreRepo<>(store, "trade", Integer.class, new TradeDataType(tcCalculator), serializer)
+        var counters = new MVStoreRepo<>(store, "counters", String.class, new IntegerDataType(), serializer)
+        var symbols = new MVStoreIndex<>(store, "SYMBOL_INDEX", KvIndex.IndexingStrategy.MultipleValues, Integer.class, String.class, "~~~", serializer)
+        trades.save(1, sampleTrade(1))
+        counters.save("next", 2)
+        symbols.index("INFY", 1)
+
+        when:
+        symbols.close()
+        counters.drop()
+
+        then:
+        store.db.isClosed() == false
+        store.db.hasMap("SYMBOL_INDEX")
+        store.db.hasMap(counters.mapName) == false
+        trades.find(1).isPresent()
+        trades.save(2, sampleTrade(2))
+
+        when:
+        trades.close()
+        store.drop()
+
+        then:
+        store.db.isClosed()
+        Files.exists(store.baseDir.toPath()) == false
+    }
+
+    Trade sampleTrade(int id) {
+        var t = TestTrades.newTrade("INFY", tcCalculator)
+        t.ID = id
+        t.Sell(1, 50, 345.75, Utils.UtcToday(), false)
+        var na = t.generateNewAnalysis()
+        na.setPrice(340)
+        t.addOrUpdateAnalysis(na)
+        return t
+    }
+
+    void cleanup() {
+        if (repo != null) {
+            repo.drop()
+        }
+    }
+}
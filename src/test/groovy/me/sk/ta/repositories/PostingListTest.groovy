@@ -0,0 +1,53 @@
+package me.sk.ta.repositories
+
+import spock.lang.Specification
+
+class PostingListTest extends Specification {
+
+    def "Values are kept sorted and unique"() {
+        given:
+        var list = new PostingList()
+        expect:
+        list.add(5)
+        list.add(1)
+        !list.add(5)
+        list.add(3)
+        list.toList() == [1, 3, 5]
+        list.contains(3)
+        list.remove(3)
+        !list.remove(3)
+        list.toList() == [1, 5]
+    }
+
+    def "Encoding round trips and takes a byte per small gap"() {
+        given:
+        var list = PostingList.of((1000..1099).toList())
+        when:
+        var bytes = list.encode()
+        then:
+        PostingList.decode(bytes) == list
+        bytes.length < 110
+        PostingList.decode(new PostingList().encode()).isEmpty()
+        PostingList.decode(PostingList.of([-7, 0, Integer.MAX_VALUE]).encode()).toList() == [-7, 0, Integer.MAX_VALUE]
+    }
+
+    def "The union of empty lists takes values"() {
+        given:
+        var list = new PostingList().union(new PostingList())
+        when:
+        (1..9).each { list.add(10 - it) }
+        then:
+        list.toList() == (1..9).toList()
+    }
+
+    def "Union and intersection"() {
+        given:
+        var a = PostingList.of([1, 3, 5, 7])
+        var b = PostingList.of([3, 4, 7, 9])
+        expect:
+        a.union(b).toList() == [1, 3, 4, 5, 7, 9]
+        a.intersect(b).toList() == [3, 7]
+        a.intersect(new PostingList()).isEmpty()
+        a.union(new PostingList()) == a
+    }
+}
@@ -0,0 +1,167 @@
+package me.sk.ta.repositories
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import me.sk.ta.TaApplication
+import me.sk.ta.domain.Trade
+import me.sk.ta.domain.TradingChargesCalculator
+import me.sk.ta.domain.Utils
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.context.ActiveProfiles
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+import java.time.LocalDate
+
+@SpringBootTest("webEnvironment=NONE")
+@ContextConfiguration(classes = [TaApplication.class])
+@ActiveProfiles("dev")
+class RocksDbRepoTest extends Specification {
+    private static final Logger log = LoggerFactory.getLogger(RocksDbRepoTest.class)
+    static final String DB_FOLDER = "db/test/rocksdb"
+
+    @Autowired
+    ObjectMapper serializer
+    @Autowired
+    TradingChargesCalculator tcCalculator
+
+    List<Object> stores = []
+
+    def "Trades are stored in key order and scanned by range and page"() {
+        given:
+        KvDb<Integer, Trade> repo = open(new RocksDbRepo<>(DB_FOLDER, "trade", new TradeDataType(tcCalculator)))
+        [2, 10, 1, 21, -3].each { repo.save(it, sampleTrade(it)) }
+        when:
+        var all = repo.findAll(null)
+        var page = repo.findRange(2, 10)
+        var next = repo.scan(2, 2).map { it.ID }.toList()
+        then:
+        all*.ID == [-3, 1, 2, 10, 21]
+        page*.ID == [2, 10]
+        next == [10, 21]
+        repo.get(10) == sampleTrade(10)
+        repo.get(10).tcCalculator == tcCalculator
+    }
+
+    def "Writes in a transaction are visible only after the commit"() {
+        given:
+        KvDb<String, Integer> repo = open(new RocksDbRepo<>(DB_FOLDER, "counters", new IntegerDataType()))
+        var tx = repo.beginTransaction()
+        when:
+        repo.saveAll(["a": 1, "b": 2], tx)
+        then:
+        repo.find("a").isEmpty()
+        when:
+        tx.commit()
+        then:
+        repo.find("a").get() == 1
+        repo.find("b").get() == 2
+        repo.delete("a")
+        repo.find("a").isEmpty()
+    }
+
+    def "Index lookups match the whole key"() {
+        given:
+        KvIndex<String, Integer> index = open(new RocksDbIndex<>(DB_FOLDER, "SYMBOL_INDEX", KvIndex.IndexingStrategy.PostfixValue, Integer.class, String.class, "~~~", serializer))
+        when:
+        index.index("INF", 1)
+        index.index("INFY", 2)
+        index.index("INFY", 3)
+        index.index("INFY", 3)
+        then:
+        index.find("INF") == [1]
+        index.find("INFY") == [2, 3]
+        when:
+        index.delete("INFY", 2)
+        then:
+        index.find("INFY") == [3]
+    }
+
+    def "PostfixWithCount keeps duplicate values"() {
+        given:
+        KvIndex<LocalDate, Integer> index = open(new RocksDbIndex<>(DB_FOLDER, "DATE_INDEX", KvIndex.IndexingStrategy.PostfixWithCount, Integer.class, LocalDate.class, "~~~", serializer))
+        var today = Utils.UtcToday()
+        var tx = index.beginTransaction()
+        when:
+        index.indexAll([Map.entry(today, 1), Map.entry(today, 1), Map.entry(today.minusDays(1), 2)], tx)
+        tx.commit()
+        then:
+        index.find(today) == [1, 1]
+        when:
+        index.delete(today, 1)
+        then:
+        index.find(today) == []
+        index.find(today.minusDays(1)) == [2]
+    }
+
+    def "An index switched to MultipleValues folds its entries into posting lists"() {
+        given: "an index written with the PostfixValue strategy"
+        var postfixed = new RocksDbIndex<String, Integer>(DB_FOLDER, "SYMBOL_INDEX", KvIndex.IndexingStrategy.PostfixValue, Integer.class, String.class, "~~~", serializer)
+        postfixed.index("INFY", 2)
+        postfixed.index("INFY", 1)
+        postfixed.index("TCS", 3)
+        postfixed.close()
+        when:
+        KvIndex<String, Integer> index = open(new RocksDbIndex<>(DB_FOLDER, "SYMBOL_INDEX", KvIndex.IndexingStrategy.MultipleValues, Integer.class, String.class, "~~~", serializer))
+        index.index("TCS", 4)
+        index.delete("INFY", 2)
+        then:
+        index.find("INFY") == [1]
+        index.find("TCS") == [3, 4]
+        index.postings("INFY", "TCS").toList() == [1, 3, 4]
+    }
+
+    def "TradeRepository runs on the RocksDB backend"() {
+        given:
+        var repo = new TradeRepository(DB_FOLDER + "/trade", "rocksdb", false, serializer, tcCalculator)
+        stores << repo
+        var open = sampleTrade(0)
+        var closed = sampleTrade(0)
+        closed.symbol = "TCS"
+        closed.Sell(1, 100, 345.75, Utils.UtcToday(), false)
+        when:
+        var saved = repo.saveOrUpdateAll([open, closed])
+        then:
+        saved == 2
+        repo.getOpenTrade("INFY").get() == open
+        repo.getClosedTrades()*.ID == [closed.ID]
+        repo.dateIndex.find(Utils.UtcToday()) == [closed.ID]
+    }
+
+    def "Write throughput of both backends"() {
+        given:
+        var count = 2000
+        var trades = (1..count).collect { sampleTrade(it) }
+        var backends = [
+                mvstore: new MVStoreRepo<Integer, Trade>(DB_FOLDER, "bench", Integer.class, new TradeDataType(tcCalculator), serializer),
+                rocksdb: new RocksDbRepo<Integer, Trade>(DB_FOLDER, "bench", new TradeDataType(tcCalculator))
+        ]
+        backends.values().each { open(it) }
+
+        expect:
+        backends.each { name, repo ->
+            var start = System.nanoTime()
+            trades.each { repo.save(it.ID, it) }
+            long elapsedMs = Math.max(1L, (long) ((System.nanoTime() - start) / 1_000_000))
+            log.info("{}: {} single trade commits in {} ms ({} writes/s)", name, count, elapsedMs, (long) (count * 1000 / elapsedMs))
+            assert repo.findAll(null).size() == count
+        }
+    }
+
+    private <T> T open(T store) {
+        stores << store
+        return store
+    }
+
+    Trade sampleTrade(int id) {
+        var t = TestTrades.newTrade("INFY", tcCalculator)
+        t.ID = id
+        return t
+    }
+
+    void cleanup() {
+        stores.each { it.drop() }
+    }
+}
@@ -0,0 +1,204 @@
+package me.sk.ta.repositories
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import me.sk.ta.TaApplication
+import me.sk.ta.domain.Trade
+import me.sk.ta.domain.TradingChargesCalculator
+import me.sk.ta.domain.Utils
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.context.ActiveProfiles
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+@SpringBootTest("webEnvironment=NONE")
+@ContextConfiguration(classes = [TaApplication.class])
+@ActiveProfiles("dev")
+class ShardedTradeRepositoryTest extends Specification {
+    static final String DB_FOLDER = "db/test/sharded"
+    static final List<String> SYMBOLS = (1..20).collect { "SYM" + it }
+
+    @Autowired
+    ObjectMapper serializer
+    @Autowired
+    TradingChargesCalculator tcCalculator
+
+    List<TradeRepository> repos = []
+
+    def "Trades are spread over the shards by symbol and read back in id order"() {
+        given:
+        var repo = open(4, "async")
+        var trades = SYMBOLS.collect { newTrade(it) }
+        trades.take(5).each { it.Sell(1, 100, 345.75, Utils.UtcToday().minusDays(it.symbol.length()), false) }
+
+        when:
+        repo.saveOrUpdateAll(trades)
+        var db = repo.shards
+
+        then:
+        (0..<4).every { i -> db.shards[i].scan(null, 0).toList().every { db.shardOf(it) == i } }
+        db.shards.count { it.scan(null, 0).findAny().isPresent() } > 1
+        repo.where { true }*.ID == trades*.ID.sort()
+        repo.getOpenTrades()*.ID == trades.drop(5)*.ID
+        repo.getClosedTrades(Utils.UtcToday().minusDays(10), Utils.UtcToday())*.ID == trades.take(5)*.ID
+        repo.getOpenTrade("SYM12").get().ID == trades[11].ID
+        repo.verifyIndexes().isConsistent()
+    }
+
+    def "A trade whose symbol changes moves to the shard of its new symbol with its index entries"() {
+        given:
+        var repo = open(4, "async")
+        var trade = newTrade("SYM1")
+        repo.saveOrUpdate(trade)
+        var other = SYMBOLS.find { repo.shards.shardOf(newTrade(it)) != repo.shards.locate(trade.ID) }
+
+        when:
+        var moved = repo.get(trade.ID).get()
+        moved.symbol = other
+        repo.saveOrUpdate(moved)
+
+        then:
+        repo.shards.locate(trade.ID) == repo.shards.shardOf(moved)
+        repo.shards.shards.count { it.find(trade.ID).isPresent() } == 1
+        repo.symbolIndex.find("SYM1") == []
+        repo.getOpenTrade(other).get().ID == trade.ID
+        repo.verifyIndexes().isConsistent()
+    }
+
+    def "The copy a move left in the old shard is deleted when the repository recovers"() {
+        given:
+        var repo = open(4, "async")
+        var trade = newTrade("SYM1")
+        repo.saveOrUpdate(trade)
+        var old = repo.shards.locate(trade.ID)
+        var stale = repo.get(trade.ID).get()
+        var other = SYMBOLS.find { repo.shards.shardOf(newTrade(it)) != old }
+        trade.symbol = other
+        repo.saveOrUpdate(trade)
+
+        when: "the process stopped after the new shard committed and before the old one did"
+        repo.shards.shards[old].save(trade.ID, stale)
+        repo.symbolIndex.shards[old].index("SYM1", trade.ID)
+        repo.statusIndex.shards[old].index("OPEN", trade.ID)
+        close(repo)
+        repo = open(4, "async")
+
+        then:
+        repo.shards.shards.count { it.find(trade.ID).isPresent() } == 1
+        repo.find(trade.ID) == trade
+        repo.symbolIndex.find("SYM1") == []
+        repo.verifyIndexes().isConsistent()
+    }
+
+    def "The shard a value is saved to commits before the shard it moved from"() {
+        given:
+        var tx = new ShardedTransaction()
+        var from = Mock(KvTransaction)
+        var to = Mock(KvTransaction)
+        tx.on("from", 0, { from })
+        tx.on("to", 1, { to })
+        tx.receive(7, 1)
+
+        when:
+        tx.commit()
+
+        then:
+        1 * to.commit()
+
+        then:
+        1 * from.commit()
+    }
+
+    def "Resharding keeps the trades and their index entries"() {
+        given:
+        var repo = open(1, "async")
+        var trades = SYMBOLS.collect { newTrade(it) }
+        trades.take(3).each { it.Sell(1, 100, 345.75, Utils.UtcToday(), false) }
+        repo.saveOrUpdateAll(trades)
+        var live = Path.of(DB_FOLDER, "live")
+
+        when:
+        close(repo)
+        repo = open(4, "async")
+
+        then:
+        Files.exists(live.resolve("trade")) == false
+        Files.isDirectory(live.resolve("shards-4"))
+        repo.where { true } == trades
+        repo.getClosedTrades()*.ID == trades.take(3)*.ID
+        repo.verifyIndexes().isConsistent()
+        repo.saveOrUpdate(newTrade("NEW")) > trades.last().ID
+
+        when:
+        close(repo)
+        TradeRepository.reshard(DB_FOLDER, "mvstore", 2, serializer, tcCalculator)
+        repo = open(2, "async")
+
+        then:
+        Files.exists(live.resolve("shards-4")) == false
+        repo.where { true }.size() == trades.size() + 1
+        repo.getOpenTrades().size() == trades.size() - 2
+        repo.verifyIndexes().isConsistent()
+    }
+
+    // Writers updating trades of different symbols, with every commit made durable on the disk.
+    def "Writes of different symbols go to their shards side by side"() {
+        when:
+        var single = updates(open(1, "sync"))
+        cleanup()
+        var sharded = updates(open(4, "sync"))
+        println "1 shard:  $single writes/s"
+        println "4 shards: $sharded writes/s"
+
+        then:
+        single > 0
+        sharded > 0
+    }
+
+    // the number of updates per second of 8 writers, each updating the trades of its own symbols
+    long updates(TradeRepository repo) {
+        var trades = SYMBOLS.collect { newTrade(it) }
+        repo.saveOrUpdateAll(trades)
+        var writers = Executors.newFixedThreadPool(8)
+        var start = System.nanoTime()
+        var perWriter = 50
+        (0..<8).each { w ->
+            writers.execute {
+                var mine = trades.findAll { trades.indexOf(it) % 8 == w }
+                perWriter.times { i ->
+                    var t = mine[i % mine.size()]
+                    assert repo.saveOrUpdate(t) == t.ID
+                }
+            }
+        }
+        writers.shutdown()
+        writers.awaitTermination(2, TimeUnit.MINUTES)
+        return (8 * perWriter * 1_000_000_000L).intdiv(System.nanoTime() - start)
+    }
+
+    TradeRepository open(int shards, String durability) {
+        var repo = new TradeRepository(DB_FOLDER, "mvstore", false, durability, false, shards, serializer, tcCalculator)
+        repos << repo
+        return repo
+    }
+
+    void close(TradeRepository repo) {
+        repo.close()
+        repos.remove(repo)
+    }
+
+    Trade newTrade(String symbol) {
+        return TestTrades.newTrade(symbol, tcCalculator)
+    }
+
+    void cleanup() {
+        repos.each { it.close() }
+        repos.clear()
+        RocksDbRepo.deleteDirectory(new File(DB_FOLDER))
+    }
+}
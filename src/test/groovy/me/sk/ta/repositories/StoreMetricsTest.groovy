@@ -0,0 +1,69 @@
+package me.sk.ta.repositories
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import spock.lang.Specification
+
+import java.time.LocalDate
+
+import static me.sk.ta.repositories.StoreMetrics.Operation.Delete
+import static me.sk.ta.repositories.StoreMetrics.Operation.Find
+import static me.sk.ta.repositories.StoreMetrics.Operation.FindRange
+import static me.sk.ta.repositories.StoreMetrics.Operation.Index
+import static me.sk.ta.repositories.StoreMetrics.Operation.Save
+import static me.sk.ta.repositories.StoreMetrics.Operation.SaveAll
+
+class StoreMetricsTest extends Specification {
+    static final String DB_FOLDER = "db/test/metrics"
+    ObjectMapper serializer = new ObjectMapper().findAndRegisterModules()
+
+    def "Latencies are counted in power of two buckets of microseconds"() {
+        given:
+        var histogram = new LatencyHistogram()
+        when:
+        100.times { histogram.record(3_500) }
+        histogram.record(1_000_000)
+        histogram.record(200)
+        var snapshot = histogram.snapshot()
+        then:
+        snapshot.count() == 102
+        snapshot.buckets() == [1L: 1L, 4L: 100L, 1024L: 1L]
+        snapshot.p50Micros() == 4
+        snapshot.p99Micros() == 4
+        snapshot.maxMicros() == 1000
+        new LatencyHistogram().snapshot().p99Micros() == 0
+    }
+
+    def "Stores register the latency of their operations and the figures of the MVStore until closed"() {
+        given:
+        var repo = new MVStoreRepo<String, Integer>(DB_FOLDER, "counters", String.class, new IntegerDataType(), serializer)
+        var index = new MVStoreIndex<LocalDate, Integer>(DB_FOLDER, "DATE_INDEX", KvIndex.IndexingStrategy.MultipleValues, Integer.class, LocalDate.class, "~~~", serializer)
+        when:
+        repo.save("a", 1)
+        repo.saveAll([b: 2, c: 3])
+        3.times { repo.find("a") }
+        repo.delete("c")
+        index.index(LocalDate.of(2024, 1, 2), 7)
+        index.find(LocalDate.of(2024, 1, 2))
+        index.findRange(LocalDate.of(2024, 1, 1), LocalDate.of(2024, 1, 31))
+        var stores = StoreMetrics.all().collectEntries { [it.name(), it] }
+        var counters = stores[new File(DB_FOLDER, "counters").getPath()]
+        var dates = stores[new File(DB_FOLDER, "DATE_INDEX").getPath()]
+        then:
+        counters.operations().collectEntries { k, v -> [k, v.count()] } == [(Save): 1L, (SaveAll): 1L, (Find): 3L, (Delete): 1L]
+        counters.commits().count() == 3
+        counters.fileBytes() > 0
+        counters.cacheSizeMb() > 0
+        counters.openTransactions() == 0
+        dates.operations().keySet() == [Index, Find, FindRange] as Set
+        dates.commits().count() == 1
+        when:
+        repo.close()
+        index.close()
+        then:
+        StoreMetrics.all().findAll { it.name().startsWith(new File(DB_FOLDER).getPath()) } == []
+    }
+
+    void cleanup() {
+        RocksDbRepo.deleteDirectory(new File(DB_FOLDER))
+    }
+}
@@ -0,0 +1,127 @@
+package me.sk.ta.repositories
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import me.sk.ta.TaApplication
+import me.sk.ta.domain.Trade
+import me.sk.ta.domain.TradingChargesCalculator
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.availability.AvailabilityChangeEvent
+import org.springframework.boot.availability.ReadinessState
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.context.ApplicationEventPublisher
+import org.springframework.test.context.ActiveProfiles
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+import java.util.concurrent.CountDownLatch
+
+@SpringBootTest("webEnvironment=NONE")
+@ContextConfiguration(classes = [TaApplication.class])
+@ActiveProfiles("dev")
+class StoreOpeningTest extends Specification {
+    static final String DB_FOLDER = "db/test/opening"
+
+    @Autowired
+    ObjectMapper serializer
+    @Autowired
+    TradingChargesCalculator tcCalculator
+
+    List<AutoCloseable> opened = []
+
+    // the startup harness: the time each store of the repositories took to open, eagerly and lazily
+    def "The time each store takes to open is reported"() {
+        given:
+        var trades = open(false)
+        trades.saveOrUpdateAll((1..2000).collect { newTrade("S" + (it % 40), it % 3 == 0) })
+        trades.close()
+        opened.clear()
+
+        when:
+        var eager = open(false)
+        var archive = new TradeArchiveRepository(DB_FOLDER + "/archive", "mvstore", false, serializer, tcCalculator)
+        var accounts = new TradingAccountRepository(DB_FOLDER + "/account", false, serializer, tcCalculator)
+        opened.addAll([{ archive.close() } as AutoCloseable, { accounts.close() } as AutoCloseable])
+        var readiness = new StoreReadiness(eager, archive, accounts, Mock(ApplicationEventPublisher))
+        println readiness.report()
+        var openCount = eager.getOpenTrades().size()
+        eager.close()
+        opened.clear()
+        var lazy = open(true)
+        lazy.opening.ready().join()
+        println "lazy trades: " + lazy.opening.report()
+
+        then:
+        readiness.isReady()
+        eager.opening.timings()*.store().sort() == ["CURRENT_MARKET_TREND_INDEX", "DATE_INDEX", "EARNINGS_DATE_INDEX", "MARKET_TREND_INDEX", "PATTERN_INDEX",
+                                                      "STAGE_INDEX", "STATUS_INDEX", "SYMBOL_INDEX", "counters", "trade"]
+        archive.opening.timings()*.store().sort() == ["DATE_INDEX", "SYMBOL_INDEX", "counters", "trade"]
+        accounts.opening.timings()*.store().sort() == ["DATE_INDEX", "counters", "ledger", "trading_account"]
+        lazy.opening.timings().size() == 10
+        lazy.getOpenTrades().size() == openCount
+    }
+
+    def "A lazily opened repository is used before its stores are open"() {
+        given:
+        var trades = open(false)
+        var saved = newTrade("INFY", false)
+        trades.saveOrUpdate(saved)
+        trades.close()
+        opened.clear()
+
+        when:
+        var lazy = open(true)
+        var found = lazy.find(saved.ID)
+        var added = newTrade("TCS", false)
+        lazy.saveOrUpdate(added)
+
+        then:
+        lazy.opening.ready().isDone()
+        found == saved
+        added.ID > saved.ID
+        lazy.getOpenTrades()*.ID == [saved.ID, added.ID]
+    }
+
+    def "Traffic is refused until the stores are open"() {
+        given:
+        var latch = new CountDownLatch(1)
+        var opening = new StoreOpening("slow", true)
+        var store = opening.open("slow", { latch.await(); new Object() })
+        opening.initialize(new Object(), {})
+        List<ReadinessState> states = []
+        ApplicationEventPublisher publisher = { AvailabilityChangeEvent e -> states << e.getState() }
+        var readiness = new StoreReadiness([opening], publisher)
+
+        when:
+        readiness.onReadiness(new AvailabilityChangeEvent<>(this, ReadinessState.ACCEPTING_TRAFFIC))
+
+        then:
+        store.isDone() == false
+        readiness.isReady() == false
+        states == [ReadinessState.REFUSING_TRAFFIC]
+
+        when:
+        latch.countDown()
+
+        then:
+        new PollingConditions(timeout: 5).eventually {
+            assert states == [ReadinessState.REFUSING_TRAFFIC, ReadinessState.ACCEPTING_TRAFFIC]
+        }
+        readiness.isReady()
+    }
+
+    TradeRepository open(boolean lazy) {
+        var repo = new TradeRepository(DB_FOLDER, "mvstore", false, "async", lazy, serializer, tcCalculator)
+        opened << repo
+        return repo
+    }
+
+    Trade newTrade(String symbol, boolean closed) {
+        return TestTrades.newTrade(symbol, tcCalculator, closed)
+    }
+
+    void cleanup() {
+        opened.each { it.close() }
+        RocksDbRepo.deleteDirectory(new File(DB_FOLDER))
+    }
+}
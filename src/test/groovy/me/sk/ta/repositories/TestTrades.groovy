@@ -0,0 +1,43 @@
+package me.sk.ta.repositories
+
+import me.sk.ta.domain.ADRating
+import me.sk.ta.domain.BreakoutPattern
+import me.sk.ta.domain.BuyAnalysis
+import me.sk.ta.domain.MarketTrend
+import me.sk.ta.domain.Trade
+import me.sk.ta.domain.TradingChargesCalculator
+import me.sk.ta.domain.Trend
+import me.sk.ta.domain.Utils
+
+// The trades the repository tests save: bought 100 at 334.37 five days ago, and sold yesterday when closed
+class TestTrades {
+    static Trade newTrade(String symbol, TradingChargesCalculator tcCalculator, boolean closed = false) {
+        return newTrade(symbol, buyAnalysis(), tcCalculator, closed)
+    }
+
+    static Trade newTrade(String symbol, BuyAnalysis ba, TradingChargesCalculator tcCalculator, boolean closed = false) {
+        var t = Trade.initiateTrade(symbol, ba, tcCalculator)
+        t.Buy(1, 100, 334.37, Utils.UtcToday().minusDays(5), false)
+        if (closed) {
+            t.Sell(1, 100, 345.75, Utils.UtcToday().minusDays(1), false)
+        }
+        return t
+    }
+
+    static BuyAnalysis buyAnalysis(BreakoutPattern pattern = BreakoutPattern.DoubleBottom, int stage = 3,
+                                   MarketTrend market = MarketTrend.Rally, int daysToEarnings = 20) {
+        var ba = BuyAnalysis.builder()
+                .earningsDate(Utils.UtcToday().plusDays(daysToEarnings))
+                .build()
+        ba.priceLevels(9000000, 0.5, 320, 340, 320 * .12, 340 * 0.93)
+                .breakoutDetails("c", pattern, stage, 290)
+                .risk(0.9, 0.3, 100000, market)
+                .scoresByGurus(80, 80, 80, 80)
+                .wonScores(80, ADRating.C, 80, 80, 90)
+                .onBalanceValue(Trend.Up, true, 1000000)
+                .adRating(Trend.Up, true)
+                .moneyFlow(Trend.Up, true)
+                .movingAverages(340, 330, 300)
+        return ba
+    }
+}
@@ -0,0 +1,137 @@
+package me.sk.ta.repositories
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import me.sk.ta.TaApplication
+import me.sk.ta.domain.ADRating
+import me.sk.ta.domain.BreakoutPattern
+import me.sk.ta.domain.BuyAnalysis
+import me.sk.ta.domain.MarketTrend
+import me.sk.ta.domain.Trade
+import me.sk.ta.domain.TradingChargesCalculator
+import me.sk.ta.domain.Trend
+import me.sk.ta.domain.Utils
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.context.ActiveProfiles
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+@SpringBootTest("webEnvironment=NONE")
+@ContextConfiguration(classes = [TaApplication.class])
+@ActiveProfiles("dev")
+class TradeArchiverTest extends Specification {
+
+    @Autowired
+    ObjectMapper serializer
+    @Autowired
+    TradingChargesCalculator tcCalculator
+
+    TradeRepository live
+    TradeArchiveRepository archive
+    BuyAnalysis ba
+
+    def "Trades closed before the cutoff are moved to the archive in batches"() {
+        given:
+        var today = Utils.UtcToday()
+        var trades = (1..25).collect {
+            var t = Trade.initiateTrade(it % 2 ? "INFY" : "TCS", ba, tcCalculator)
+            t.Buy(1, 100, 335.35, today.minusDays(200), false)
+            if (it % 5 != 0) {
+                t.Sell(1, 100, 345.75, today.minusDays(it * 5), false)
+            }
+            t
+        }
+        live.saveOrUpdateAll(trades)
+        var cutoff = today.minusDays(60)
+        var old = trades.findAll { it.isClosed() && it.getDateOfClosure().get().isBefore(cutoff) }
+
+        when:
+        var moved = new TradeArchiver(live, archive, 60, 4).archive(cutoff)
+
+        then:
+        moved == old.size()
+        live.getOpenTrades().size() == 5
+        live.getClosedTrades()*.ID == (trades - old).findAll { it.isClosed() }*.ID
+        live.getClosedBefore(cutoff, 100).isEmpty()
+        live.verifyIndexes().isConsistent()
+        archive.getClosedTrades(today.minusDays(200), cutoff)*.ID.sort() == old*.ID
+        archive.find(old[0].ID) == old[0]
+        archive.symbolIndex.find("TCS").sort() == old.findAll { it.symbol == "TCS" }*.ID
+
+        when: "nothing is left to move"
+        moved = new TradeArchiver(live, archive, 60, 4).archive(cutoff)
+        then:
+        moved == 0
+    }
+
+    def "A trade changed after it was copied stays in the live store"() {
+        given:
+        var t = Trade.initiateTrade("INFY", ba, tcCalculator)
+        t.Buy(1, 100, 335.35, Utils.UtcToday().minusDays(200), false)
+        t.Sell(1, 100, 345.75, Utils.UtcToday().minusDays(100), false)
+        live.saveOrUpdate(t)
+        var copied = live.getClosedBefore(Utils.UtcToday(), 10)
+        archive.saveAll(copied)
+
+        when:
+        t.symbol = "INFY2"
+        live.saveOrUpdate(t)
+        then:
+        live.removeArchived(copied) == 0
+        live.get(t.ID).get().symbol == "INFY2"
+
+        when: "the next run copies the changed trade again"
+        new TradeArchiver(live, archive, 0, 10).archive(Utils.UtcToday())
+        then:
+        live.get(t.ID).isEmpty()
+        archive.find(t.ID).symbol == "INFY2"
+        archive.symbolIndex.find("INFY") == []
+        archive.symbolIndex.find("INFY2") == [t.ID]
+    }
+
+    def "A trade saved again in the archive replaces its index entries"() {
+        given:
+        var archived = { String symbol ->
+            var t = Trade.initiateTrade(symbol, ba, tcCalculator)
+            t.ID = 500
+            t.Buy(1, 100, 335.35, Utils.UtcToday().minusDays(200), false)
+            t.Sell(1, 100, 345.75, Utils.UtcToday().minusDays(100), false)
+            return t
+        }
+        archive.save(archived("INFY"))
+
+        when:
+        var id = archive.save(archived("INFY2"))
+
+        then:
+        id == 500
+        archive.find(500).symbol == "INFY2"
+        archive.symbolIndex.find("INFY") == []
+        archive.symbolIndex.find("INFY2") == [500]
+        archive.getClosedTradeFigures(Utils.UtcToday().minusDays(365), Utils.UtcToday())*.symbol() == ["INFY2"]
+    }
+
+    void setup() {
+        live = new TradeRepository("db/test/tiering", serializer, tcCalculator)
+        archive = new TradeArchiveRepository("db/test/tiering/archive", serializer, tcCalculator)
+        ba = BuyAnalysis.builder()
+                .earningsDate(Utils.UtcToday().plusDays(20))
+                .build()
+        ba.priceLevels(9000000, 0.5, 320, 340, 320 * .12, 340 * 0.93)
+                .breakoutDetails("c", BreakoutPattern.DoubleBottom, 3, 290)
+                .risk(0.9, 0.3, 100000, MarketTrend.Rally)
+                .scoresByGurus(80, 80, 80, 80)
+                .wonScores(80, ADRating.C, 80, 80, 90)
+                .onBalanceValue(Trend.Up, true, 1000000)
+                .adRating(Trend.Up, true)
+                .moneyFlow(Trend.Up, true)
+                .movingAverages(340, 330, 300)
+    }
+
+    void cleanup() {
+        live.close()
+        live.drop()
+        archive.close()
+        archive.drop()
+    }
+}
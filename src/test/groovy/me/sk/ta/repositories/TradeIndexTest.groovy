@@ -0,0 +1,193 @@
+package me.sk.ta.repositories
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import me.sk.ta.TaApplication
+import me.sk.ta.domain.BreakoutPattern
+import me.sk.ta.domain.MarketTrend
+import me.sk.ta.domain.Trade
+import me.sk.ta.domain.TradingChargesCalculator
+import me.sk.ta.domain.Utils
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.context.ActiveProfiles
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+@SpringBootTest("webEnvironment=NONE")
+@ContextConfiguration(classes = [TaApplication.class])
+@ActiveProfiles("dev")
+class TradeIndexTest extends Specification {
+    static final String DB_FOLDER = "db/test/indexes"
+
+    @Autowired
+    ObjectMapper serializer
+    @Autowired
+    TradingChargesCalculator tcCalculator
+
+    List<TradeRepository> repos = []
+
+    def "Trades are found by their pattern, stage and status"() {
+        given:
+        var repo = open(TradeIndex.DEFAULTS)
+        var cups = (1..3).collect { newTrade("CUP" + it, BreakoutPattern.CupAndHandle, it, MarketTrend.Up, 10) }
+        var bottoms = (1..3).collect { newTrade("DB" + it, BreakoutPattern.DoubleBottom, 2, MarketTrend.Rally, 20 + it) }
+        repo.saveOrUpdateAll(cups + bottoms)
+        bottoms[0].Sell(1, 100, 345.75, Utils.UtcToday(), false)
+        repo.saveOrUpdate(bottoms[0])
+
+        expect:
+        repo.findBy(pattern: BreakoutPattern.CupAndHandle)*.ID == cups*.ID
+        repo.findBy(pattern: BreakoutPattern.DoubleBottom, stage: 2, status: TradeRepository.OPEN)*.ID == bottoms.drop(1)*.ID
+        repo.findBy(stage: 2)*.ID == [cups[1].ID] + bottoms*.ID
+        repo.findBy(marketTrend: MarketTrend.Up, symbol: "CUP3")*.ID == [cups[2].ID]
+        repo.findBy(pattern: BreakoutPattern.FlatBase) == []
+        repo.findByRange("earningsDate", Utils.UtcToday().plusDays(20), Utils.UtcToday().plusDays(22))*.ID == bottoms.take(2)*.ID
+        repo.verifyIndexes().isConsistent()
+
+        when:
+        repo.findBy(volume: 10)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        when:
+        repo.findBy(stage: "2")
+
+        then:
+        thrown(IllegalArgumentException)
+
+        when: "the names of an enum are not in its order"
+        repo.findByRange("marketTrend", MarketTrend.Up, MarketTrend.Rally)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "The keys of a trade follow its updates and its deletion"() {
+        given:
+        var repo = open(TradeIndex.DEFAULTS)
+        var trade = newTrade("ABC", BreakoutPattern.CupAndHandle, 2, MarketTrend.Up, 10)
+        repo.saveOrUpdate(trade)
+
+        when:
+        trade.buyAnalysis.breakoutDetails("c", BreakoutPattern.FlatBase, 3, 290)
+        repo.saveOrUpdate(trade)
+
+        then:
+        repo.findBy(pattern: BreakoutPattern.CupAndHandle) == []
+        repo.findBy(pattern: BreakoutPattern.FlatBase, stage: 3)*.ID == [trade.ID]
+        repo.indexes.pattern.store().find(BreakoutPattern.CupAndHandle) == []
+
+        when:
+        repo.delete(trade.ID)
+
+        then:
+        repo.findBy(pattern: BreakoutPattern.FlatBase) == []
+        repo.indexes.stage.store().entries() == []
+        repo.verifyIndexes().isConsistent()
+    }
+
+    def "A write taking the key of a unique index from another trade is refused"() {
+        given:
+        var bySymbol = TradeIndex.unique("openSymbol", String.class, { Trade x -> x.isClosed() ? null : x.symbol })
+        var repo = open([bySymbol])
+        var first = newTrade("ABC", BreakoutPattern.CupAndHandle, 2, MarketTrend.Up, 10)
+        repo.saveOrUpdate(first)
+
+        expect:
+        repo.saveOrUpdate(newTrade("ABC", BreakoutPattern.FlatBase, 1, MarketTrend.Up, 10)) == 0
+        repo.saveOrUpdateAll([newTrade("XYZ", BreakoutPattern.FlatBase, 1, MarketTrend.Up, 10),
+                              newTrade("XYZ", BreakoutPattern.FlatBase, 1, MarketTrend.Up, 10)]) == 0
+        repo.findBy(openSymbol: "ABC")*.ID == [first.ID]
+
+        when:
+        first.Sell(1, 100, 345.75, Utils.UtcToday(), false)
+        repo.saveOrUpdate(first)
+
+        then:
+        repo.saveOrUpdate(newTrade("ABC", BreakoutPattern.FlatBase, 1, MarketTrend.Up, 10)) > first.ID
+    }
+
+    def "An index declared on a store holding trades is built on opening"() {
+        given:
+        var repo = open([])
+        var trades = (1..5).collect { newTrade("SYM" + it, BreakoutPattern.CupAndHandle, it % 2, MarketTrend.Up, 10) }
+        repo.saveOrUpdateAll(trades)
+
+        when:
+        close(repo)
+        repo = open(TradeIndex.DEFAULTS)
+
+        then:
+        repo.findBy(stage: 1)*.ID == trades.findAll { it.buyAnalysis.stage == 1 }*.ID
+        repo.verifyIndexes().isConsistent()
+    }
+
+    def "Trades are found by a range of number keys"() {
+        given:
+        var offset = TradeIndex.of("offset", Integer.class, { Trade x -> x.ID - 6 })
+        var weight = TradeIndex.of("weight", Double.class, { Trade x -> (x.ID - 6) * 1.5d })
+        var repo = open(TradeIndex.DEFAULTS + [offset, weight])
+        var trades = (1..12).collect { newTrade("SYM" + it, BreakoutPattern.CupAndHandle, it, MarketTrend.Up, 10) }
+        repo.saveOrUpdateAll(trades)
+
+        expect:
+        repo.findByRange("stage", 2, 10)*.ID == trades[1..9]*.ID
+        repo.findByRange("offset", -3, 4)*.ID == trades.findAll { it.ID - 6 >= -3 && it.ID - 6 <= 4 }*.ID
+        repo.findByRange("weight", -4.5d, 0.75d)*.ID == trades.findAll { (it.ID - 6) * 1.5d >= -4.5d && (it.ID - 6) * 1.5d <= 0.75d }*.ID
+        repo.indexes.offset.store().entries()*.key == trades.collect { it.ID - 6 }
+
+        when: "the store was written with number keys in their json form"
+        repo.countersDb.save(TradeRepository.BUILT_INDEX + "stage", 1)
+        close(repo)
+        repo = open(TradeIndex.DEFAULTS)
+
+        then:
+        repo.findByRange("stage", 2, 10)*.ID == trades[1..9]*.ID
+        repo.verifyIndexes().isConsistent()
+    }
+
+    def "Number keys encode in their numeric order and decode back"() {
+        expect:
+        values.collect { IndexKeys.encode(serializer, it) }.sort() == values.sort().collect { IndexKeys.encode(serializer, it) }
+        values.every { IndexKeys.decode(serializer, IndexKeys.encode(serializer, it), it.class) == it }
+
+        where:
+        values << [[0, -1, 1, 10, 2, Integer.MIN_VALUE, Integer.MAX_VALUE],
+                   [0L, -10L, 9L, Long.MIN_VALUE, Long.MAX_VALUE],
+                   [0.0d, -0.5d, 0.25d, -100.75d, 1e9d, -1e-9d, Double.MAX_VALUE, -Double.MAX_VALUE]]
+    }
+
+    def "Sharded trades are found by their keys"() {
+        given:
+        var repo = new TradeRepository(DB_FOLDER, "mvstore", false, "async", false, 4, TradeIndex.DEFAULTS, serializer, tcCalculator)
+        repos << repo
+        var trades = (1..12).collect { newTrade("SYM" + it, it % 3 == 0 ? BreakoutPattern.FlatBase : BreakoutPattern.CupAndHandle, 2, MarketTrend.Up, 10) }
+        repo.saveOrUpdateAll(trades)
+
+        expect:
+        repo.findBy(pattern: BreakoutPattern.FlatBase)*.ID == trades.findAll { it.buyAnalysis.pattern == BreakoutPattern.FlatBase }*.ID
+        repo.verifyIndexes().isConsistent()
+    }
+
+    TradeRepository open(List<TradeIndex<?>> indexes) {
+        var repo = new TradeRepository(DB_FOLDER, "mvstore", false, "async", false, 1, indexes, serializer, tcCalculator)
+        repos << repo
+        return repo
+    }
+
+    void close(TradeRepository repo) {
+        repo.close()
+        repos.remove(repo)
+    }
+
+    Trade newTrade(String symbol, BreakoutPattern pattern, int stage, MarketTrend market, int daysToEarnings) {
+        return TestTrades.newTrade(symbol, TestTrades.buyAnalysis(pattern, stage, market, daysToEarnings), tcCalculator)
+    }
+
+    void cleanup() {
+        repos.each { it.close() }
+        repos.clear()
+        RocksDbRepo.deleteDirectory(new File(DB_FOLDER))
+    }
+}
@@ -0,0 +1,237 @@
+package me.sk.ta.repositories
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import me.sk.ta.TaApplication
+import me.sk.ta.domain.AccountTransactionType
+import me.sk.ta.domain.Trade
+import me.sk.ta.domain.TradingChargesCalculator
+import me.sk.ta.domain.Utils
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.context.ActiveProfiles
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardOpenOption
+
+import static me.sk.ta.repositories.TradeJournal.EventType.Analyses
+import static me.sk.ta.repositories.TradeJournal.EventType.Contracts
+import static me.sk.ta.repositories.TradeJournal.EventType.Deleted
+import static me.sk.ta.repositories.TradeJournal.EventType.Snapshot
+
+@SpringBootTest("webEnvironment=NONE")
+@ContextConfiguration(classes = [TaApplication.class])
+@ActiveProfiles("dev")
+class TradeJournalTest extends Specification {
+    static final String DB_FOLDER = "db/test/journal"
+
+    @Autowired
+    ObjectMapper serializer
+    @Autowired
+    TradingChargesCalculator tcCalculator
+
+    TradeRepository repo
+    TradingAccountRepository accounts
+
+    def "Contracts and analyses are journaled as changes and replayed onto the snapshot"() {
+        given:
+        var trade = newTrade("INFY")
+        repo.saveOrUpdate(trade)
+
+        when:
+        trade.Buy(0, 50, 336.10, Utils.UtcToday().minusDays(2), false)
+        repo.saveOrUpdate(trade)
+        var analysis = trade.generateNewAnalysis()
+        analysis.setPrice(338)
+        trade.addOrUpdateAnalysis(analysis)
+        repo.saveOrUpdate(trade)
+        trade.setNewStoploss(341.5)
+        trade.Sell(0, 150, 345.75, Utils.UtcToday(), false)
+        repo.saveOrUpdate(trade)
+
+        then:
+        repo.journal.history(trade.ID)*.type() == [Snapshot, Contracts, Analyses, Contracts, Analyses]
+        repo.journal.replay(trade.ID).get() == repo.find(trade.ID)
+        repo.journal.replay(trade.ID).get().isClosed()
+
+        when:
+        repo.delete(trade.ID)
+        then:
+        repo.journal.history(trade.ID).last().type() == Deleted
+        repo.journal.replay(trade.ID).isEmpty()
+        repo.journal.removed() == [trade.ID] as Set
+    }
+
+    def "A trade is written whole again after SNAPSHOT_EVERY changes"() {
+        given:
+        var trade = newTrade("TCS")
+        repo.saveOrUpdate(trade)
+
+        when:
+        (1..TradeJournal.SNAPSHOT_EVERY + 1).each {
+            trade.Buy(0, 1, 330 + it, Utils.UtcToday(), false)
+            repo.saveOrUpdate(trade)
+        }
+        var types = repo.journal.history(trade.ID)*.type()
+
+        then:
+        types.count(Snapshot) == 2
+        types[TradeJournal.SNAPSHOT_EVERY + 1] == Snapshot
+        repo.journal.replay(trade.ID).get() == trade
+    }
+
+    def "Changes the store lost are recovered from the journal when the repository is opened"() {
+        given:
+        var kept = newTrade("INFY")
+        var changed = newTrade("TCS")
+        var deleted = newTrade("WIPRO")
+        repo.saveOrUpdateAll([kept, changed, deleted])
+        var stale = repo.find(changed.ID)
+        changed.Sell(0, 100, 345.75, Utils.UtcToday(), false)
+        repo.saveOrUpdate(changed)
+        var lost = repo.find(deleted.ID)
+        repo.delete(deleted.ID)
+
+        when: "the store goes back to an older state behind the journal's back"
+        repo.db.save(changed.ID, stale)
+        repo.db.save(deleted.ID, lost)
+        repo.close()
+        repo = new TradeRepository(DB_FOLDER, serializer, tcCalculator)
+
+        then:
+        repo.find(changed.ID) == changed
+        repo.get(deleted.ID).isEmpty()
+        repo.find(kept.ID) == kept
+        repo.getClosedTrades()*.ID == [changed.ID]
+        repo.verifyIndexes().isConsistent()
+    }
+
+    def "Only the changes journaled after the checkpoint are recovered"() {
+        given:
+        var kept = newTrade("INFY")
+        var changed = newTrade("TCS")
+        repo.saveOrUpdateAll([kept, changed])
+        repo.checkpoint()
+        var stale = repo.find(changed.ID)
+        changed.Sell(0, 100, 345.75, Utils.UtcToday(), false)
+        repo.saveOrUpdate(changed)
+
+        expect:
+        repo.journal.tail() == [(changed.ID): changed]
+        repo.journal.history(changed.ID)*.type() == [Snapshot, Snapshot]
+
+        when: "the store loses the change made after the checkpoint"
+        repo.db.save(changed.ID, stale)
+        repo.close()
+        repo = new TradeRepository(DB_FOLDER, serializer, tcCalculator)
+
+        then:
+        repo.find(changed.ID) == changed
+        repo.find(kept.ID) == kept
+        repo.journal.tail().isEmpty()
+    }
+
+    def "A checkpoint deletes the filled segments and the sequence carries on after it"() {
+        given:
+        var dir = repo.journal.dir.resolveSibling("small-journal")
+        var journal = new TradeJournal(dir, new TradeDataType(tcCalculator), false, 4096)
+        var trades = (1..50).collect { id -> newTrade("S" + id).tap { it.ID = id } }
+        trades.each { journal.append(null, it) }
+
+        when:
+        var due = journal.checkpointDue()
+        var last = journal.sequence()
+        journal.checkpoint()
+        journal.append(trades[0], trades[0])
+        journal.appendDeleted(trades[1].ID)
+
+        then:
+        due
+        !journal.checkpointDue()
+        Files.list(dir).filter { it.toString().endsWith(".log") }.count() == 1
+        journal.tail() == [(trades[0].ID): trades[0], (trades[1].ID): null]
+
+        when:
+        journal.close()
+        journal = new TradeJournal(dir, new TradeDataType(tcCalculator), false, 4096)
+
+        then:
+        journal.sequence() == last + 2
+        journal.tail().keySet() == [trades[0].ID, trades[1].ID] as Set
+
+        cleanup:
+        journal?.drop()
+    }
+
+    def "The journal ends at a torn record and carries on after it"() {
+        given:
+        var trade = newTrade("INFY")
+        repo.saveOrUpdate(trade)
+        trade.Buy(0, 10, 336.10, Utils.UtcToday(), false)
+        repo.saveOrUpdate(trade)
+        repo.close()
+
+        when: "half of a record made it to the disk"
+        var segment = Files.list(repo.journal.dir).findFirst().get()
+        var end = repo.journal.history(trade.ID).size()
+        try (var channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var buff = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size())
+            var position = 0
+            end.times { position += buff.getInt(position) }
+            buff.putInt(position, 200)
+            buff.putInt(position + 4, 12345)
+            buff.putLong(position + 8, 99)
+            buff.force()
+        }
+        repo = new TradeRepository(DB_FOLDER, serializer, tcCalculator)
+        trade.Sell(0, 110, 345.75, Utils.UtcToday(), false)
+        repo.saveOrUpdate(trade)
+
+        then:
+        repo.journal.history(trade.ID)*.type() == [Snapshot, Contracts, Snapshot]
+        repo.journal.history(trade.ID)*.sequence() == [1, 2, 3]
+        repo.journal.replay(trade.ID).get() == trade
+    }
+
+    def "The trade entries of the account are rebuilt from the replayed trades"() {
+        given:
+        var open = newTrade("INFY")
+        var closed = newTrade("TCS")
+        closed.Sell(2, 100, 345.75, Utils.UtcToday(), false)
+        repo.saveOrUpdateAll([open, closed])
+        var account = accounts.getAccount()
+        account.addCapital(100000, Utils.UtcToday().minusDays(30))
+        accounts.saveOrUpdate(account)
+
+        when:
+        var rebuilt = accounts.rebuildTradeEntries(repo.journal.replay().values())
+
+        then:
+        rebuilt.History.count { it.transType() == AccountTransactionType.Capital } == 1
+        rebuilt.History.findAll { it.transType() == AccountTransactionType.Trade }*.businessTransactionId() ==
+                [open.ID + "-1", closed.ID + "-1", closed.ID + "-2"]
+        rebuilt.History.find { it.businessTransactionId() == closed.ID + "-2" }.isTradeClosed()
+        Math.abs(rebuilt.cashBalance - (100000 - open.tradeHistory[0].totalPrice() - open.tradeHistory[0].charges() -
+                closed.tradeHistory[0].totalPrice() - closed.tradeHistory[0].charges() +
+                closed.tradeHistory[1].totalPrice() - closed.tradeHistory[1].charges())) < 0.001
+        accounts.getAccount().cashBalance == rebuilt.cashBalance
+    }
+
+    Trade newTrade(String symbol) {
+        return TestTrades.newTrade(symbol, tcCalculator)
+    }
+
+    void setup() {
+        repo = new TradeRepository(DB_FOLDER, serializer, tcCalculator)
+        accounts = new TradingAccountRepository(DB_FOLDER + "/account", serializer, tcCalculator)
+    }
+
+    void cleanup() {
+        repo.close()
+        repo.drop()
+        accounts.close()
+        accounts.drop()
+    }
+}
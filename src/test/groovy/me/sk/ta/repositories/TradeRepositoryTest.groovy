@@ -130,6 +130,241 @@ class TradeRepositoryTest extends Specification {
         repo.get(wt2.ID).get() == wt2
     }
 
+    def "SaveOrUpdateAll saves a batch of trades with consecutive ids and their index entries"() {
+        given:
+        var open = Trade.initiateTrade("INFY", ba, tcCalculator)
+        open.Buy(1, 100, 335.35, Utils.UtcToday().minusDays(5), false)
+        var closed = Trade.initiateTrade("TCS", ba, tcCalculator)
+        closed.Buy(1, 100, 335.35, Utils.UtcToday().minusDays(5), false)
+        closed.Sell(1, 100, 345.75, Utils.UtcToday(), false)
+        var earlier = Trade.initiateTrade("WIPRO", ba, tcCalculator)
+        repo.saveOrUpdate(earlier)
+
+        when:
+        var saved = repo.saveOrUpdateAll([open, closed])
+
+        then:
+        saved == 2
+        open.ID == earlier.ID + 1
+        closed.ID == earlier.ID + 2
+        repo.get(open.ID).get() == open
+        repo.get(closed.ID).get() == closed
+        repo.symbolIndex.find("TCS") == [closed.ID]
+        repo.dateIndex.find(Utils.UtcToday()) == [closed.ID]
+        repo.saveOrUpdate(Trade.initiateTrade("HDFC", ba, tcCalculator)) == closed.ID + 1
+    }
+
+    def "Closed trades of a period are found through the date index"() {
+        given:
+        var day = Utils.UtcToday()
+        var inPeriod = Trade.initiateTrade("INFY", ba, tcCalculator)
+        inPeriod.Buy(1, 100, 335.35, day.minusDays(40), false)
+        inPeriod.Sell(1, 100, 345.75, day.minusDays(10), false)
+        var before = Trade.initiateTrade("TCS", ba, tcCalculator)
+        before.Buy(1, 100, 335.35, day.minusDays(90), false)
+        before.Sell(1, 100, 345.75, day.minusDays(60), false)
+        var open = Trade.initiateTrade("WIPRO", ba, tcCalculator)
+        open.Buy(1, 100, 335.35, day.minusDays(20), false)
+        repo.saveOrUpdateAll([inPeriod, before, open])
+
+        expect:
+        repo.getClosedTrades(day.minusDays(30), day)*.ID == [inPeriod.ID]
+        repo.getClosedTrades(day.minusDays(90), day)*.ID == [before.ID, inPeriod.ID]
+        repo.getClosedTrades(day.minusDays(9), day) == []
+        when:
+        repo.delete(inPeriod.ID)
+        then:
+        repo.getClosedTrades(day.minusDays(30), day) == []
+        repo.dateIndex.find(day.minusDays(10)) == []
+    }
+
+    def "The index entries follow a change of symbol and of closure date"() {
+        given:
+        var day = Utils.UtcToday()
+        var single = Trade.initiateTrade("INFY", ba, tcCalculator)
+        single.Buy(1, 100, 335.35, day.minusDays(40), false)
+        single.Sell(1, 100, 345.75, day.minusDays(10), false)
+        var batched = Trade.initiateTrade("TCS", ba, tcCalculator)
+        batched.Buy(1, 100, 335.35, day.minusDays(40), false)
+        batched.Sell(1, 100, 345.75, day.minusDays(10), false)
+        repo.saveOrUpdateAll([single, batched])
+
+        when:
+        single.symbol = "WIPRO"
+        single.Sell(1, 100, 345.75, day.minusDays(5), false)
+        repo.saveOrUpdate(single)
+        batched.symbol = "HCL"
+        batched.Sell(1, 100, 345.75, day.minusDays(3), false)
+        repo.saveOrUpdateAll([batched])
+
+        then:
+        repo.symbolIndex.find("INFY") == []
+        repo.symbolIndex.find("TCS") == []
+        repo.dateIndex.find(day.minusDays(10)) == []
+        repo.getClosedTrades(day.minusDays(5), day)*.ID == [single.ID, batched.ID]
+        repo.verifyIndexes().isConsistent()
+    }
+
+    def "The open trade of a symbol is the one holding the symbol now"() {
+        given:
+        var renamed = Trade.initiateTrade("INFY", ba, tcCalculator)
+        renamed.Buy(1, 100, 335.35, Utils.UtcToday().minusDays(5), false)
+        repo.saveOrUpdate(renamed)
+        renamed.symbol = "WIPRO"
+        repo.saveOrUpdate(renamed)
+        var opened = Trade.initiateTrade("INFY", ba, tcCalculator)
+        opened.Buy(1, 100, 335.35, Utils.UtcToday(), false)
+        repo.saveOrUpdate(opened)
+
+        when: "an entry of the old symbol is left behind"
+        repo.symbolIndex.index("INFY", renamed.ID)
+
+        then:
+        repo.getOpenTrade("INFY").get().ID == opened.ID
+        repo.getOpenTrade("WIPRO").get().ID == renamed.ID
+    }
+
+    def "Open and closed trades are read through the status index"() {
+        given:
+        var first = Trade.initiateTrade("INFY", ba, tcCalculator)
+        first.Buy(1, 100, 335.35, Utils.UtcToday().minusDays(5), false)
+        var second = Trade.initiateTrade("TCS", ba, tcCalculator)
+        second.Buy(1, 100, 335.35, Utils.UtcToday().minusDays(5), false)
+        var third = Trade.initiateTrade("WIPRO", ba, tcCalculator)
+        third.Buy(1, 100, 335.35, Utils.UtcToday().minusDays(5), false)
+        third.Sell(1, 100, 345.75, Utils.UtcToday(), false)
+        repo.saveOrUpdateAll([first, second, third])
+
+        expect:
+        repo.getOpenTrades()*.ID == [first.ID, second.ID]
+        repo.getClosedTrades()*.ID == [third.ID]
+
+        when: "an open trade is closed"
+        second.Sell(1, 100, 345.75, Utils.UtcToday(), false)
+        repo.saveOrUpdate(second)
+        then:
+        repo.getOpenTrades()*.ID == [first.ID]
+        repo.getClosedTrades()*.ID == [second.ID, third.ID]
+        repo.statusIndex.find(TradeRepository.OPEN) == [first.ID]
+
+        when: "trades are deleted"
+        repo.delete(first.ID)
+        repo.delete(third.ID)
+        then:
+        repo.getOpenTrades() == []
+        repo.getClosedTrades()*.ID == [second.ID]
+    }
+
+    def "The status index is built for a store written without it"() {
+        given:
+        var open = Trade.initiateTrade("INFY", ba, tcCalculator)
+        open.Buy(1, 100, 335.35, Utils.UtcToday().minusDays(5), false)
+        var closed = Trade.initiateTrade("TCS", ba, tcCalculator)
+        closed.Buy(1, 100, 335.35, Utils.UtcToday().minusDays(5), false)
+        closed.Sell(1, 100, 345.75, Utils.UtcToday(), false)
+        repo.saveOrUpdateAll([open, closed])
+        repo.statusIndex.clear()
+        repo.close()
+
+        when:
+        repo = new TradeRepository("db/test/trade", ctx.getBean(ObjectMapper.class), tcCalculator)
+
+        then:
+        repo.getOpenTrades()*.ID == [open.ID]
+        repo.getClosedTrades()*.ID == [closed.ID]
+    }
+
+    def "Drifted indexes are reported and repaired"() {
+        given:
+        var day = Utils.UtcToday()
+        var trades = (1..50).collect {
+            var t = Trade.initiateTrade(it % 2 ? "INFY" : "TCS", ba, tcCalculator)
+            t.Buy(1, 100, 335.35, day.minusDays(5), false)
+            if (it % 3 == 0) {
+                t.Sell(1, 100, 345.75, day.minusDays(it % 4), false)
+            }
+            t
+        }
+        repo.saveOrUpdateAll(trades)
+        var closed = trades.find { it.isClosed() }
+
+        expect:
+        repo.verifyIndexes().isConsistent()
+        repo.verifyIndexes().scanned() == 50
+
+        when: "an entry is lost and a stale one is left behind"
+        repo.dateIndex.delete(closed.getDateOfClosure().get(), closed.ID)
+        repo.symbolIndex.index("WIPRO", trades[0].ID)
+        var report = repo.verifyIndexes()
+        then:
+        report.missing() == [new IndexReport.Entry("DATE_INDEX", closed.getDateOfClosure().get(), closed.ID)]
+        report.orphans() == [new IndexReport.Entry("SYMBOL_INDEX", "WIPRO", trades[0].ID)]
+
+        when:
+        repo.repairIndexes()
+        then:
+        repo.verifyIndexes().isConsistent()
+        repo.symbolIndex.find("WIPRO") == []
+        repo.getClosedTrades(day.minusDays(3), day)*.ID.contains(closed.ID)
+    }
+
+    def "Trades are read through the cache and kept in step with writes"() {
+        given:
+        var trade = Trade.initiateTrade("INFY", ba, tcCalculator)
+        trade.Buy(1, 100, 335.35, Utils.UtcToday().minusDays(5), false)
+        repo.saveOrUpdate(trade)
+        repo.cache.clear()
+
+        when:
+        var first = repo.get(trade.ID).get()
+        first.symbol = "CHANGED"
+        var second = repo.find(trade.ID)
+        then:
+        second == trade
+        second.symbol == "INFY"
+        repo.cacheStats().misses() == 1
+        repo.cacheStats().hits() == 1
+
+        when:
+        trade.Sell(1, 100, 345.75, Utils.UtcToday(), false)
+        repo.saveOrUpdate(trade)
+        then:
+        repo.get(trade.ID).get().isClosed()
+        repo.getClosedTrades()*.ID == [trade.ID]
+
+        when:
+        repo.delete(trade.ID)
+        then:
+        repo.cacheStats().entries() == 0
+        repo.get(trade.ID).isEmpty()
+    }
+
+    def "A single store holds the trades, the indexes and the counters"() {
+        given:
+        var single = new TradeRepository("db/test/single", "mvstore", true, ctx.getBean(ObjectMapper.class), tcCalculator)
+        var open = Trade.initiateTrade("INFY", ba, tcCalculator)
+        open.Buy(1, 100, 335.35, Utils.UtcToday().minusDays(5), false)
+        var closed = Trade.initiateTrade("TCS", ba, tcCalculator)
+        closed.Buy(1, 100, 335.35, Utils.UtcToday().minusDays(5), false)
+        closed.Sell(1, 100, 345.75, Utils.UtcToday(), false)
+
+        when:
+        single.saveOrUpdate(open)
+        single.saveOrUpdate(closed)
+
+        then:
+        open.ID == 1
+        closed.ID == 2
+        single.get(open.ID).get() == open
+        single.getOpenTrade("INFY").get() == open
+        single.dateIndex.find(Utils.UtcToday()) == [closed.ID]
+        new File(single.dbPath).list() as List == ["trades"]
+
+        cleanup:
+        single.close()
+        single.drop()
+    }
+
     def "Delete"() {
     }
 
@@ -137,7 +372,7 @@ class TradeRepositoryTest extends Specification {
     }
 
     void setup() {
-        repo = ctx.getBean(TradeRepository.class);
+        repo = new TradeRepository("db/test/trade", ctx.getBean(ObjectMapper.class), tcCalculator);
         log.debug("Instantiated the repository");
         ba = BuyAnalysis.builder()
                 .earningsDate(Utils.UtcToday().plusDays(20))
@@ -0,0 +1,125 @@
+package me.sk.ta.repositories
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import me.sk.ta.TaApplication
+import me.sk.ta.domain.AccountTransactionType
+import me.sk.ta.domain.TradeContract
+import me.sk.ta.domain.TradingAccount
+import me.sk.ta.domain.TradingChargesCalculator
+import me.sk.ta.domain.Utils
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.test.context.ActiveProfiles
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+@SpringBootTest("webEnvironment=NONE")
+@ContextConfiguration(classes = [TaApplication.class])
+@ActiveProfiles("dev")
+class TradingAccountRepositoryTest extends Specification {
+    static final String DB_FOLDER = "db/test/account"
+
+    @Autowired
+    ObjectMapper serializer
+    @Autowired
+    TradingChargesCalculator tcCalculator
+
+    TradingAccountRepository accounts
+
+    def setup() {
+        accounts = open()
+    }
+
+    def "The postings keep the balance and the entries of the account"() {
+        given:
+        var today = Utils.UtcToday()
+        accounts.addCapital(100000, today.minusDays(30))
+
+        when:
+        accounts.postPurchase(1, contract(1, 1, false, 10000, 20, today.minusDays(10)))
+        accounts.postPurchase(2, contract(2, 1, false, 5000, 10, today.minusDays(5)))
+        accounts.postSale(1, contract(1, 2, true, 12000, 25, today))
+        accounts.closeTrade(1, [1, 2])
+        accounts.deleteTrade(2, [1])
+        var account = accounts.getAccount()
+
+        then:
+        Math.abs(account.cashBalance - (100000 - 10020 + 11975)) < 0.001
+        account.History*.businessTransactionId() == ["", "1-1", "1-2"]
+        account.History.findAll { it.transType() == AccountTransactionType.Trade }.every { it.isTradeClosed() }
+        account.cashBalance == account.getClosingBalanceOn(today)
+
+        when:
+        accounts.deleteTrade(2, [1])
+
+        then:
+        thrown(RuntimeException)
+        accounts.getAccount().cashBalance == account.cashBalance
+    }
+
+    def "A contract posted again replaces its entry"() {
+        given:
+        var today = Utils.UtcToday()
+        accounts.postPurchase(1, contract(1, 1, false, 10000, 20, today.minusDays(2)))
+
+        when:
+        accounts.postPurchase(1, contract(1, 1, false, 11000, 20, today))
+
+        then:
+        accounts.getAccount().History*.amount() == [-11020.0]
+        accounts.getAccount().cashBalance == -11020.0
+    }
+
+    def "An account saved whole by an earlier version is moved to the ledger on opening"() {
+        given:
+        var account = new TradingAccount()
+        account.addCapital(50000, Utils.UtcToday().minusDays(3))
+        account.recordPurchase(10000, 20, Utils.UtcToday(), 7, 1)
+        accounts.db.save(1, account)
+        accounts.close()
+
+        when:
+        accounts = open()
+
+        then:
+        accounts.db.find(1).isEmpty()
+        accounts.getAccount().History == account.History
+        accounts.getAccount().cashBalance == account.cashBalance
+
+        when:
+        accounts.postSale(7, contract(7, 2, true, 12000, 25, Utils.UtcToday()))
+
+        then:
+        Math.abs(accounts.getAccount().cashBalance - (account.cashBalance + 11975)) < 0.001
+    }
+
+    // the cost of a posting against the length of the history of the account
+    def "A posting does not depend on the number of entries of the account"() {
+        when:
+        var first = post(0, 500)
+        var later = post(500, 500)
+        println "first 500 postings: ${first} ms, next 500: ${later} ms"
+
+        then:
+        accounts.getAccount().History.size() == 1000
+    }
+
+    long post(int from, int count) {
+        var start = System.nanoTime()
+        (from..<from + count).each { accounts.postPurchase(it + 1, contract(it + 1, 1, false, 100, 1, Utils.UtcToday())) }
+        return (System.nanoTime() - start).intdiv(1_000_000)
+    }
+
+    TradeContract contract(int tradeId, int id, boolean sale, double totalPrice, double charges, date) {
+        return new TradeContract().id(id).isSale(sale).totalPrice(totalPrice).charges(charges).date(date)
+    }
+
+    TradingAccountRepository open() {
+        return new TradingAccountRepository(DB_FOLDER, serializer, tcCalculator)
+    }
+
+    void cleanup() {
+        accounts.close()
+        RocksDbRepo.deleteDirectory(new File(DB_FOLDER))
+    }
+}
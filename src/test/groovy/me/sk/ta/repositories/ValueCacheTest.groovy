@@ -0,0 +1,59 @@
+package me.sk.ta.repositories
+
+import spock.lang.Specification
+
+import java.util.function.Function
+
+class ValueCacheTest extends Specification {
+
+    def "Values are loaded once and counted as hits afterwards"() {
+        given:
+        var cache = new ValueCache<String, Integer>(new IntegerDataType(), 1 << 20)
+        var loads = 0
+        var loader = { String key -> loads++; Optional.of(key.length()) } as Function
+        when:
+        var first = cache.get("abc", loader)
+        var second = cache.get("abc", loader)
+        var missing = cache.get("x", { Optional.empty() } as Function)
+        then:
+        first.get() == 3
+        second.get() == 3
+        missing.isEmpty()
+        loads == 1
+        cache.stats().hits() == 1
+        cache.stats().misses() == 2
+        cache.stats().entries() == 1
+    }
+
+    def "The least recently used entries are evicted once the cache is over its size"() {
+        given:
+        var probe = new ValueCache<Integer, Integer>(new IntegerDataType(), 1 << 20)
+        probe.put(0, 0)
+        var entryBytes = probe.stats().bytes()
+        var cache = new ValueCache<Integer, Integer>(new IntegerDataType(), entryBytes * 3)
+        when:
+        (1..3).each { cache.put(it, it) }
+        cache.get(1, { throw new IllegalStateException() } as Function)
+        cache.put(4, 4)
+        then:
+        cache.stats().evictions() == 1
+        cache.stats().entries() == 3
+        cache.stats().bytes() == entryBytes * 3
+        cache.get(2, { Optional.empty() } as Function).isEmpty()
+        cache.get(1, { Optional.empty() } as Function).get() == 1
+    }
+
+    def "A value loaded before a write does not replace what the write put"() {
+        given:
+        var cache = new ValueCache<String, Integer>(new IntegerDataType(), 1 << 20)
+        when: "the key is written while the stale value is being loaded"
+        var loaded = cache.get("a", { key -> cache.put("a", 2); Optional.of(1) } as Function)
+        then:
+        loaded.get() == 1
+        cache.get("a", { Optional.empty() } as Function).get() == 2
+        when:
+        cache.invalidate("a")
+        then:
+        cache.get("a", { Optional.of(3) } as Function).get() == 3
+    }
+}